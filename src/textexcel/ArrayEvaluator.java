@@ -0,0 +1,244 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * Evaluates a formula for every row of a column at once. Instead of evaluating the formula
+ * one cell at a time, each referenced column is read into a {@code double[]} once, and each
+ * operator is applied to whole arrays in a simple loop, which the virtual machine can compile
+ * to vector instructions. Functions are still evaluated one row at a time.
+ * <p>
+ * A value that cannot be computed, for example because a referenced formula has an error,
+ * is represented by {@link Double#NaN}.
+ * @author Sam Beaumont
+ */
+class ArrayEvaluator {
+	private final Spreadsheet spreadsheet;
+	private final int firstRow;
+	private final int col;
+	private final int n;
+	// The columns that have been read, keyed by their offsets from the origin
+	private final Map<Long, double[]> columns = new HashMap<Long, double[]>();
+	
+	private ArrayEvaluator (Spreadsheet spreadsheet, int firstRow, int lastRow, int col) {
+		this.spreadsheet = spreadsheet;
+		this.firstRow = firstRow;
+		this.col = col;
+		n = lastRow - firstRow + 1;
+	}
+	
+	/**
+	 * Evaluates an {@link Expression} for every row of a column segment, as if it were held by
+	 * each of the cells in turn.
+	 * @param expression The {@link Expression}, whose relative references are counted from each cell.
+	 * @param spreadsheet The {@link Spreadsheet} that references are read from.
+	 * @param firstRow The index of the first row of the segment.
+	 * @param lastRow The index of the last row of the segment.
+	 * @param col The index of the column of the segment.
+	 * @return The value for each row, or {@link Double#NaN} where there is none.
+	 */
+	static double[] evaluate (Expression expression, Spreadsheet spreadsheet, int firstRow, int lastRow, int col) {
+		ArrayEvaluator evaluator = new ArrayEvaluator(spreadsheet, firstRow, lastRow, col);
+		double[] values = evaluator.evaluate(expression);
+		return (values == null) ? filled(evaluator.n, evaluator.scalar(expression)) : values;
+	}
+	
+	/**
+	 * Returns the values of an {@link Expression} for every row, or {@code null} if it has the same
+	 * value in every row, in which case it is given by {@link #scalar(Expression)}. The array that
+	 * is returned may be one that was read from the spreadsheet, and must not be modified.
+	 */
+	private double[] evaluate (Expression expression) {
+		if (!expression.isRelative()) {
+			return null;
+		} else if (expression instanceof Expression.Reference && ((Expression.Reference) expression).sheet == null) {
+			return read((Expression.Reference) expression);
+		} else if (expression instanceof Expression.Negation) {
+			double[] a = evaluate(((Expression.Negation) expression).operand);
+			double[] result = new double[n];
+			for (int i = 0; i < n; i++) {
+				result[i] = -a[i];
+			}
+			return result;
+		} else if (expression instanceof Expression.Operation) {
+			Expression.Operation operation = (Expression.Operation) expression;
+			double[] a = evaluate(operation.left);
+			double[] b = evaluate(operation.right);
+			if (a == null) {
+				return apply(operation.operator, scalar(operation.left), b);
+			} else if (b == null) {
+				return apply(operation.operator, a, scalar(operation.right));
+			}
+			return apply(operation.operator, a, b);
+		}
+		
+		// A function of relative references, or a reference to another sheet, is evaluated in each row
+		double[] result = new double[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = value(expression, firstRow + i, col);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the value of an {@link Expression} that is the same in every row.
+	 */
+	private double scalar (Expression expression) {
+		return value(expression, firstRow, col);
+	}
+	
+	/**
+	 * Reads the column that a relative reference refers to.
+	 */
+	private double[] read (Expression.Reference ref) {
+		Long key = Long.valueOf(((long) ref.row << 32) | (ref.col & 0xFFFFFFFFL));
+		double[] values = columns.get(key);
+		if (values == null) {
+			values = new double[n];
+			Cell[][] cells = spreadsheet.getCells();
+			int j = col + ref.col;
+			for (int i = 0; i < n; i++) {
+				int row = firstRow + i + ref.row;
+				if (row < 0 || j < 0 || row >= cells.length || j >= cells[0].length) {
+					continue; // outside of the spreadsheet
+				}
+				try {
+					Cell[] cellRow = cells[row];
+					values[i] = (cellRow != null) ? cellRow[j].getValue() : spreadsheet.getValue(row, j);
+				} catch (ArithmeticException e) {
+					values[i] = Double.NaN;
+				} catch (StackOverflowError e) {
+					values[i] = Double.NaN;
+				}
+			}
+			columns.put(key, values);
+		}
+		return values;
+	}
+	
+	private double value (Expression expression, int row, int col) {
+		try {
+			return expression.evaluate(spreadsheet, row, col);
+		} catch (ArithmeticException e) {
+			return Double.NaN;
+		} catch (StackOverflowError e) {
+			return Double.NaN;
+		}
+	}
+	
+	// Each operator has its own loop, so that every loop is simple enough to be vectorized
+	
+	private static double[] apply (char operator, double[] a, double[] b) {
+		double[] result = new double[a.length];
+		switch (operator) {
+			case '+':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] + b[i];
+				}
+				break;
+			case '-':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] - b[i];
+				}
+				break;
+			case '*':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] * b[i];
+				}
+				break;
+			case '/':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] / b[i];
+				}
+				break;
+			case '%':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] % b[i];
+				}
+				break;
+			default: // case '^':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = Math.pow(a[i], b[i]);
+				}
+		}
+		return result;
+	}
+	
+	private static double[] apply (char operator, double[] a, double b) {
+		double[] result = new double[a.length];
+		switch (operator) {
+			case '+':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] + b;
+				}
+				break;
+			case '-':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] - b;
+				}
+				break;
+			case '*':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] * b;
+				}
+				break;
+			case '/':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] / b;
+				}
+				break;
+			case '%':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a[i] % b;
+				}
+				break;
+			default: // case '^':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = Math.pow(a[i], b);
+				}
+		}
+		return result;
+	}
+	
+	private static double[] apply (char operator, double a, double[] b) {
+		double[] result = new double[b.length];
+		switch (operator) {
+			case '+':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a + b[i];
+				}
+				break;
+			case '-':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a - b[i];
+				}
+				break;
+			case '*':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a * b[i];
+				}
+				break;
+			case '/':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a / b[i];
+				}
+				break;
+			case '%':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = a % b[i];
+				}
+				break;
+			default: // case '^':
+				for (int i = 0; i < result.length; i++) {
+					result[i] = Math.pow(a, b[i]);
+				}
+		}
+		return result;
+	}
+	
+	private static double[] filled (int n, double value) {
+		double[] values = new double[n];
+		Arrays.fill(values, value);
+		return values;
+	}
+}
\ No newline at end of file
@@ -5,8 +5,7 @@ package textexcel;
  * @author Sam Beaumont
  */
 class Cell {
-	private Date date;
-	private double d;
+	private double d; // the number, the epoch day of a date, or the dictionary code of a String
 	private Formula formula;
 	private String s;
 	private Types type;
@@ -19,6 +18,26 @@ class Cell {
 		type = Types.EMPTY;
 	}
 	
+	/**
+	 * Creates a new cell holding the given number.
+	 * @param d The number to be stored.
+	 */
+	Cell (double d) {
+		this.d = d;
+		type = Types.DOUBLE;
+	}
+	
+	/**
+	 * Creates a new cell holding the {@link String} with the given code.
+	 * @param code The code of the {@link String}.
+	 * @param dictionary The {@link StringDictionary} that the code belongs to.
+	 */
+	Cell (int code, StringDictionary dictionary) {
+		s = dictionary.get(code);
+		d = code;
+		type = Types.STRING;
+	}
+	
 	/**
 	 * Creates a new cell that, depending on the format of the {@link String} that
 	 * is passed to it, holds an {@code int}, {@code double}, {@link Date}, or
@@ -28,23 +47,8 @@ class Cell {
 	 * @throws IllegalArgumentException If {@code iS} cannot be parsed into a valid cell.
 	 */
 	Cell (String iS) {
-		try {
-			d = Double.parseDouble(iS);
-			type = Types.DOUBLE;
-		} catch (NumberFormatException nfe) { // Not a valid real number
-			try {
-				date = new Date(iS);
-				type = Types.DATE;
-			} catch (IllegalArgumentException iae) { // Not a valid date
-				if (iS.matches("\".+\"")) {
-					s = iS.substring(1, iS.length() - 1);
-					type = Types.STRING;
-				} else if (iS.equals("<empty>") || iS.equals("\"\"")) {
-					type = Types.EMPTY;
-				} else {
-					throw new IllegalArgumentException();
-				}
-			}
+		if (!read(iS)) {
+			throw new IllegalArgumentException();
 		}
 	}
 	
@@ -59,6 +63,36 @@ class Cell {
 		type = Types.FORMULA;
 	}
 	
+	/**
+	 * Creates a new cell holding the given formula.
+	 * @param formula The {@link Formula} to be stored.
+	 */
+	Cell (Formula formula) {
+		this.formula = formula;
+		type = Types.FORMULA;
+	}
+	
+	/**
+	 * Parses a {@link String} into a new cell without relying on exceptions for control flow.
+	 * The parser is chosen by looking at the first character and the shape of the {@link String},
+	 * so text that is not a number never reaches {@link Double#parseDouble(String)}.
+	 * A {@link String} surrounded by parentheses, or a function call such as {@code SUM(A1:A5)},
+	 * is parsed as a formula.
+	 * @param s The {@link String} to be parsed.
+	 * @param name The name of the cell, used if {@code s} is a formula.
+	 * @param spreadsheet The {@link Spreadsheet} that a formula references.
+	 * @return The new cell, or {@code null} if {@code s} cannot be parsed into a valid cell.
+	 * @throws NumberFormatException If {@code s} looks like a formula but is not a valid one.
+	 * @throws ArithmeticException If {@code s} is a formula that does not evaluate to a real number.
+	 */
+	static Cell parse (String s, String name, Spreadsheet spreadsheet) {
+		if (isFormula(s)) {
+			return new Cell(s, name, spreadsheet);
+		}
+		Cell cell = new Cell();
+		return cell.read(s) ? cell : null;
+	}
+	
 	/**
 	 * Returns one of the constants of the enumerated type {@link Types}, depending
 	 * on the type of data that is stored in the cell.
@@ -68,25 +102,70 @@ class Cell {
 	}
 	
 	/**
-	 * Returns the value of the {@link Formula} in the cell if the cell contains a formula.
-	 * Otherwise, returns {@code 0.0}.
+	 * Returns the value of the {@link Formula} in the cell if the cell contains a formula,
+	 * the number in the cell if the cell contains a number, or the number of days since
+	 * January 1, 1970 if the cell contains a {@link Date}. Otherwise, returns {@code 0.0}.
 	 */
 	double getValue () {
 		if (type == Types.FORMULA) {
 			return formula.getValue();
-		} else if (type == Types.DOUBLE) {
+		} else if (type == Types.DOUBLE || type == Types.DATE) {
 			return d;
 		} else {
 			return 0;
 		}
 	}
 	
+	/**
+	 * Returns the {@link Date} stored in the cell, or {@code null} if the cell does not contain a date.
+	 */
+	Date getDate () {
+		return (type == Types.DATE) ? new Date((int) d) : null;
+	}
+	
+	/**
+	 * Returns the code of the {@link String} stored in the cell, or {@code -1} if the cell
+	 * does not contain a {@link String} or the {@link String} has not been added to a
+	 * {@link StringDictionary}. Two cells of the same {@link Spreadsheet} hold equal
+	 * {@link String}s if and only if they have the same code.
+	 */
+	int getCode () {
+		return (type == Types.STRING) ? (int) d : -1;
+	}
+	
+	/**
+	 * Adds the {@link String} stored in the cell to the given {@link StringDictionary},
+	 * replacing it with the equal {@link String} from the dictionary so that the two are shared.
+	 * Does nothing if the cell does not contain a {@link String}.
+	 * @param dictionary The dictionary of the {@link Spreadsheet} that the cell is stored in.
+	 */
+	void encode (StringDictionary dictionary) {
+		if (type == Types.STRING) {
+			int code = dictionary.intern(s);
+			s = dictionary.get(code);
+			d = code;
+		}
+	}
+	
+	/**
+	 * Returns the {@link Formula} stored in the cell, or {@code null} if the cell does not contain a formula.
+	 */
+	Formula getFormula () {
+		return (type == Types.FORMULA) ? formula : null;
+	}
+	
+	/**
+	 * Returns the {@link String} stored in the cell, or {@code null} if the cell does not contain a {@link String}.
+	 */
+	String getString () {
+		return (type == Types.STRING) ? s : null;
+	}
+	
 	/**
 	 * Returns a copy of the cell.
 	 */
 	public Cell clone () {
 		Cell copy = new Cell();
-		copy.date = date;
 		copy.d = d;
 		copy.formula = formula;
 		copy.s = s;
@@ -94,13 +173,132 @@ class Cell {
 		return copy;
 	}
 	
+	/**
+	 * Sets the type and contents of the cell using a {@link String} holding a number,
+	 * a {@link Date}, a quoted {@link String}, or {@code <empty>}.
+	 * @param s The {@link String} to be parsed.
+	 * @return {@code true} if {@code s} was parsed, {@code false} otherwise.
+	 */
+	private boolean read (String s) {
+		int length = s.length();
+		if (length == 0) {
+			return false;
+		}
+		char first = s.charAt(0);
+		if (first == '"') { // a String, or "" for an empty cell
+			if (length == 2 && s.charAt(1) == '"') {
+				type = Types.EMPTY;
+				return true;
+			} else if (length > 2 && s.charAt(length - 1) == '"') {
+				this.s = s.substring(1, length - 1);
+				d = -1; // not yet in a StringDictionary
+				type = Types.STRING;
+				return true;
+			}
+			return false;
+		} else if (first == '<') {
+			if (s.equals("<empty>")) {
+				type = Types.EMPTY;
+				return true;
+			}
+			return false;
+		} else if (isNumber(s)) {
+			d = Double.parseDouble(s);
+			type = Types.DOUBLE;
+			return true;
+		}
+		int epochDay = Date.parseEpochDay(s);
+		if (epochDay != Date.INVALID) {
+			d = epochDay;
+			type = Types.DATE;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Determines whether a {@link String} is surrounded by parentheses or is shaped like
+	 * a function call, such as {@code SUM(A1:A5)}.
+	 * @param s The {@link String} to be evaluated.
+	 */
+	static boolean isFormula (String s) {
+		int length = s.length();
+		if (length < 2 || s.charAt(length - 1) != ')') {
+			return false;
+		}
+		int i = 0;
+		while (i < length && Character.isLetter(s.charAt(i))) {
+			i++;
+		}
+		return s.charAt(i) == '(';
+	}
+	
+	/**
+	 * Determines whether a {@link String} is shaped like a real number that
+	 * {@link Double#parseDouble(String)} accepts, such as {@code -3}, {@code .5}, {@code 1.0E10},
+	 * {@code NaN} or {@code Infinity}. Leading and trailing whitespace is ignored.
+	 * @param s The {@link String} to be evaluated.
+	 */
+	private static boolean isNumber (String s) {
+		int i = 0;
+		int end = s.length();
+		while (i < end && s.charAt(i) <= ' ') {
+			i++;
+		}
+		while (end > i && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+			i++;
+		}
+		if (end - i == 8 && s.startsWith("Infinity", i) || end - i == 3 && s.startsWith("NaN", i)) {
+			return true;
+		}
+		
+		int digits = 0;
+		while (i < end && isDigit(s.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (i < end && s.charAt(i) == '.') {
+			i++;
+			while (i < end && isDigit(s.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		
+		if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) { // exponent
+			i++;
+			if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+				i++;
+			}
+			int exponentDigits = 0;
+			while (i < end && isDigit(s.charAt(i))) {
+				i++;
+				exponentDigits++;
+			}
+			if (exponentDigits == 0) {
+				return false;
+			}
+		}
+		return i == end;
+	}
+	
+	private static boolean isDigit (char c) {
+		return c >= '0' && c <= '9';
+	}
+	
 	/**
 	 * Returns a textual representation of the contents of the cell, formatted as a {@link String}.
 	 */
 	public String toString () {
 		switch (type) {
 			case DATE: // date
-				return date.toString();
+				return Date.toString((int) d);
 			case DOUBLE: // number
 				return Double.toString(d);
 			case FORMULA: // Formula
@@ -0,0 +1,293 @@
+package textexcel;
+
+import java.math.*;
+
+/**
+ * How the numbers in a column of a {@link Spreadsheet} are printed, such as with two decimal
+ * places or as a percentage. Numbers are written straight into a {@link StringBuilder} that the
+ * caller reuses, rather than into a new {@link String} for each cell: the shortest decimal that
+ * reads back as the same {@code double} is found with a few multiplications, and its digits
+ * are rounded with integer arithmetic, so {@code 1.005} with two decimal places is {@code 1.01}.
+ * Only numbers that need more than fifteen digits fall back to {@link Double#toString(double)}
+ * and {@link BigDecimal}.
+ * @author Sam Beaumont
+ */
+class CellFormat {
+	/**
+	 * Indicates that numbers are printed as by {@link Double#toString(double)}.
+	 */
+	static final int GENERAL = 0;
+	/**
+	 * Indicates that numbers are printed with a fixed number of decimal places, such as {@code 3.14}.
+	 */
+	static final int FIXED = 1;
+	/**
+	 * Indicates that numbers are multiplied by 100 and printed with a fixed number of decimal
+	 * places and a percent sign, such as {@code 12.5%}.
+	 */
+	static final int PERCENT = 2;
+	/**
+	 * Indicates that numbers are printed in scientific notation with a fixed number of decimal
+	 * places, such as {@code 1.23E5}.
+	 */
+	static final int SCIENTIFIC = 3;
+	/**
+	 * Indicates that numbers are printed as the date that is that many days after January 1, 1970,
+	 * such as {@code 05/03/2014}.
+	 */
+	static final int DATE = 4;
+	/**
+	 * The largest number of decimal places.
+	 */
+	static final int MAX_DECIMALS = 10;
+	/**
+	 * The format of a column that has not been given one.
+	 */
+	static final CellFormat DEFAULT = new CellFormat(GENERAL, 0);
+	
+	// The name and the number of decimal places if none are given, of each type
+	private static final String[] NAMES = {"general", "fixed", "percent", "scientific", "date"};
+	private static final int[] DEFAULT_DECIMALS = {0, 2, 0, 2, 0};
+	// The largest number that the digits of a decimal may make up
+	private static final double MAX_DIGITS = 1e15;
+	private static final double[] POWERS = new double[23]; // the powers of ten that are exact doubles
+	private static final long[] LONG_POWERS = new long[19];
+	
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+		LONG_POWERS[0] = 1;
+		for (int i = 1; i < LONG_POWERS.length; i++) {
+			LONG_POWERS[i] = LONG_POWERS[i - 1] * 10;
+		}
+	}
+	
+	private final int type;
+	private final int decimals;
+	
+	private CellFormat (int type, int decimals) {
+		this.type = type;
+		this.decimals = decimals;
+	}
+	
+	/**
+	 * Returns the format with the given name, case-insensitive, such as {@code fixed}.
+	 * @param name The name of the type of format.
+	 * @param decimals The number of decimal places, or {@code -1} for the default of the type,
+	 * 			which is ignored by {@link #GENERAL} and {@link #DATE}.
+	 * @return The format, or {@code null} if there is no such type, or too many decimal places.
+	 */
+	static CellFormat get (String name, int decimals) {
+		for (int type = 0; type < NAMES.length; type++) {
+			if (NAMES[type].equalsIgnoreCase(name)) {
+				if (type == GENERAL) {
+					return DEFAULT;
+				} else if (decimals > MAX_DECIMALS) {
+					return null;
+				}
+				return new CellFormat(type, (decimals < 0 || type == DATE) ? DEFAULT_DECIMALS[type] : decimals);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the type of the format, such as {@link #FIXED}.
+	 */
+	int getType () {
+		return type;
+	}
+	
+	/**
+	 * Appends a number, formatted, to a {@link StringBuilder}.
+	 * @param value The number.
+	 * @param out The {@link StringBuilder} that the digits are written to.
+	 */
+	void format (double value, StringBuilder out) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			out.append(value);
+			return;
+		}
+		switch (type) {
+			case FIXED:
+				appendFixed(value, 0, out);
+				break;
+			case PERCENT:
+				appendFixed(value, 2, out);
+				out.append('%');
+				break;
+			case SCIENTIFIC:
+				appendScientific(value, out);
+				break;
+			case DATE:
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+					out.append(Date.toString((int) Math.floor(value)));
+					break;
+				}
+				out.append(value);
+				break;
+			default: // case GENERAL:
+				appendGeneral(value, out);
+		}
+	}
+	
+	/**
+	 * Returns the name of the format, followed by its number of decimal places if it has them,
+	 * such as {@code fixed 2}.
+	 */
+	public String toString () {
+		return (type == GENERAL || type == DATE) ? NAMES[type] : NAMES[type] + " " + decimals;
+	}
+	
+	/**
+	 * Appends a number as {@link Double#toString(double)} would.
+	 */
+	private static void appendGeneral (double value, StringBuilder out) {
+		double abs = Math.abs(value);
+		if (value == 0) {
+			out.append((1 / value < 0) ? "-0.0" : "0.0");
+			return;
+		}
+		int scale = (abs >= 1e-3 && abs < 1e7) ? shortestScale(abs) : -1;
+		if (scale == -1) { // written in scientific notation, or too many digits
+			out.append(value);
+			return;
+		}
+		if (value < 0) {
+			out.append('-');
+		}
+		appendDecimal(Math.round(abs * POWERS[scale]), scale, Math.max(scale, 1), out);
+	}
+	
+	/**
+	 * Appends a number with a fixed number of decimal places.
+	 * @param shift The number of places that the decimal point is moved to the right,
+	 * 			such as {@code 2} to write a percentage.
+	 */
+	private void appendFixed (double value, int shift, StringBuilder out) {
+		double abs = Math.abs(value);
+		int scale = shortestScale(abs);
+		if (scale == -1 || scale - shift - decimals > 18) {
+			BigDecimal rounded = BigDecimal.valueOf(value).movePointRight(shift)
+					.setScale(decimals, RoundingMode.HALF_UP);
+			out.append((rounded.signum() == 0) ? rounded.abs().toPlainString() : rounded.toPlainString());
+			return;
+		}
+		long digits = Math.round(abs * POWERS[scale]);
+		scale -= shift;
+		if (scale < 0) { // the digits of the shifted number are all before the decimal point
+			digits *= LONG_POWERS[-scale];
+			scale = 0;
+		}
+		if (scale > decimals) {
+			digits = round(digits, scale - decimals);
+			scale = decimals;
+		}
+		if (value < 0 && digits != 0) {
+			out.append('-');
+		}
+		appendDecimal(digits, scale, decimals, out);
+	}
+	
+	/**
+	 * Appends a number in scientific notation, with one digit before the decimal point.
+	 */
+	private void appendScientific (double value, StringBuilder out) {
+		double abs = Math.abs(value);
+		int scale = shortestScale(abs);
+		long digits;
+		int exponent;
+		if (scale == -1) {
+			BigDecimal exact = BigDecimal.valueOf(abs);
+			BigDecimal rounded = exact.round(new MathContext(decimals + 1, RoundingMode.HALF_UP));
+			digits = rounded.unscaledValue().longValue();
+			exponent = rounded.precision() - 1 - rounded.scale();
+			scale = rounded.precision() - 1;
+		} else {
+			digits = Math.round(abs * POWERS[scale]);
+			int length = length(digits);
+			exponent = length - 1 - scale;
+			if (length > decimals + 1) {
+				digits = round(digits, length - decimals - 1);
+				if (digits == LONG_POWERS[decimals + 1]) { // rounded up to another digit, such as 9.99 to 10.0
+					digits /= 10;
+					exponent++;
+				}
+			}
+			scale = length(digits) - 1;
+		}
+		if (value < 0) {
+			out.append('-');
+		}
+		appendDecimal(digits, scale, decimals, out);
+		out.append('E').append(exponent);
+	}
+	
+	/**
+	 * Returns the smallest number of decimal places, {@code k}, such that a number rounded to
+	 * {@code k} places reads back as the same {@code double}, or {@code -1} if it would need
+	 * more than fifteen digits.
+	 * @param abs A positive number.
+	 */
+	private static int shortestScale (double abs) {
+		for (int k = 0; k < POWERS.length && abs * POWERS[k] < MAX_DIGITS; k++) {
+			long digits = Math.round(abs * POWERS[k]);
+			if (digits / POWERS[k] == abs) {
+				return k;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Rounds off the last digits of a number, rounding halves up.
+	 * @param places The number of digits to be removed.
+	 */
+	private static long round (long digits, int places) {
+		if (places >= LONG_POWERS.length) {
+			return 0;
+		}
+		long power = LONG_POWERS[places];
+		long rounded = digits / power;
+		return (digits % power * 2 >= power) ? rounded + 1 : rounded;
+	}
+	
+	/**
+	 * Returns the number of digits of a positive number, or {@code 1} for zero.
+	 */
+	private static int length (long digits) {
+		int length = 1;
+		while (length < LONG_POWERS.length && digits >= LONG_POWERS[length]) {
+			length++;
+		}
+		return length;
+	}
+	
+	/**
+	 * Appends the digits of a decimal, with a decimal point if it has decimal places.
+	 * @param digits The digits, without the decimal point.
+	 * @param scale The number of the digits that come after the decimal point.
+	 * @param places The number of decimal places to write, which is at least {@code scale};
+	 * 			zeros are added to make them up.
+	 */
+	private static void appendDecimal (long digits, int scale, int places, StringBuilder out) {
+		long power = LONG_POWERS[scale];
+		out.append(digits / power);
+		if (places == 0) {
+			return;
+		}
+		out.append('.');
+		long fraction = digits % power;
+		for (int k = (fraction == 0) ? 1 : length(fraction); k < scale; k++) {
+			out.append('0');
+		}
+		if (scale > 0) {
+			out.append(fraction);
+		}
+		for (int k = scale; k < places; k++) {
+			out.append('0');
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+package textexcel;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A connection to a {@link Server} on the same host. The methods that send a single request wait
+ * for its answer, while {@link #batch(List)} pipelines many requests at once, which is much faster.
+ * The events of the ranges that the connection is subscribed to are kept as they arrive between
+ * the answers, until they are read with {@link #nextEvent()}.
+ * A {@code Client} must only be used by one thread at a time.
+ * @author Sam Beaumont
+ */
+class Client {
+	/**
+	 * The largest number of requests of a batch that are sent before their answers are read, so
+	 * that neither side blocks while writing because the other is not reading.
+	 */
+	static final int WINDOW = 256;
+	
+	private final SocketChannel channel;
+	private final BufferedReader in;
+	private final Writer out;
+	private final Queue<String> events = new LinkedList<String>(); // that arrived while answers were read
+	
+	private Client (SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.socket().setTcpNoDelay(true);
+		in = new BufferedReader(new InputStreamReader(channel.socket().getInputStream(), "UTF-8"));
+		out = new BufferedWriter(new OutputStreamWriter(channel.socket().getOutputStream(), "UTF-8"));
+	}
+	
+	/**
+	 * Connects to a {@link Server} on the same host.
+	 * @param port The port that the server listens on.
+	 * @throws IOException If the connection cannot be made.
+	 */
+	static Client connect (int port) throws IOException {
+		return new Client(SocketChannel.open(new InetSocketAddress(InetAddress.getByName(null), port)));
+	}
+	
+	/**
+	 * Returns the contents of a cell of the current sheet, as the command line shows them.
+	 * @param cell The name of the cell, such as {@code A1}.
+	 * @throws IllegalArgumentException If the server rejects the request.
+	 * @throws IOException If the connection fails.
+	 */
+	String get (String cell) throws IOException {
+		return result(request("GET " + cell));
+	}
+	
+	/**
+	 * Returns the value of a cell of the current sheet, see {@link Cell#getValue()}.
+	 * @param cell The name of the cell, such as {@code A1}.
+	 * @throws IllegalArgumentException If the server rejects the request, for example because
+	 * 			the cell holds a formula that does not evaluate to a real number.
+	 * @throws IOException If the connection fails.
+	 */
+	double getValue (String cell) throws IOException {
+		return Double.parseDouble(result(request("VALUE " + cell)));
+	}
+	
+	/**
+	 * Sets a cell of the current sheet.
+	 * @param cell The name of the cell, such as {@code A1}.
+	 * @param contents The contents, as they would be typed on the command line,
+	 * 			or an empty {@link String} to clear the cell.
+	 * @throws IllegalArgumentException If the server rejects the request.
+	 * @throws IOException If the connection fails.
+	 */
+	void set (String cell, String contents) throws IOException {
+		result(request("SET " + cell + " " + contents));
+	}
+	
+	/**
+	 * Returns the value of a formula without storing it.
+	 * @param formula The formula, such as {@code ( A1 * 2 )} or {@code SUM(A1:A10)}.
+	 * @throws IllegalArgumentException If the server rejects the request.
+	 * @throws IOException If the connection fails.
+	 */
+	double evaluate (String formula) throws IOException {
+		return Double.parseDouble(result(request("EVAL " + formula)));
+	}
+	
+	/**
+	 * Makes the requests that follow use another sheet.
+	 * @param name The name of the sheet.
+	 * @throws IllegalArgumentException If there is no such sheet.
+	 * @throws IOException If the connection fails.
+	 */
+	void setSheet (String name) throws IOException {
+		result(request("SHEET " + name));
+	}
+	
+	/**
+	 * Saves the workbook that the server shares to the directory that it was loaded from,
+	 * or the sheet to its file if a single spreadsheet is shared.
+	 * @throws IllegalArgumentException If the server rejects the request.
+	 * @throws IOException If the connection fails.
+	 */
+	void save () throws IOException {
+		result(request("SAVE"));
+	}
+	
+	/**
+	 * Subscribes the connection to the changes to the values of a range of cells of the current
+	 * sheet, which are read with {@link #nextEvent()}.
+	 * @param range The range, such as {@code A1:C10}, or a single cell.
+	 * @throws IllegalArgumentException If the server rejects the request.
+	 * @throws IOException If the connection fails.
+	 */
+	void subscribe (String range) throws IOException {
+		result(request("SUBSCRIBE " + range));
+	}
+	
+	/**
+	 * Cancels every subscription of the connection. Events that have already been sent can
+	 * still be read.
+	 * @throws IOException If the connection fails.
+	 */
+	void unsubscribe () throws IOException {
+		result(request("UNSUBSCRIBE"));
+	}
+	
+	/**
+	 * Returns the next change to a cell of a range that the connection is subscribed to, waiting
+	 * for it if there is none yet.
+	 * @return The change, as {@code <sheet>!<cell> <value>}, such as {@code Sheet1!A1 5.0}.
+	 * @throws IOException If the connection fails.
+	 */
+	String nextEvent () throws IOException {
+		if (events.isEmpty()) { // every request has been answered, so the next line is an event
+			String line = in.readLine();
+			if (line == null) {
+				throw new EOFException("The server closed the connection");
+			}
+			events.add(line);
+		}
+		return events.remove().substring(6);
+	}
+	
+	/**
+	 * Sends many requests without waiting for each answer, in the format described by {@link Server}.
+	 * @param requests The requests, none of which may contain a line break.
+	 * @return The answers to the requests, in order, including the ones that are errors.
+	 * @throws IOException If the connection fails.
+	 */
+	List<String> batch (List<String> requests) throws IOException {
+		List<String> answers = new ArrayList<String>(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			if (i - answers.size() == WINDOW) { // wait for half of the window
+				out.flush();
+				while (i - answers.size() > WINDOW / 2) {
+					answers.add(readAnswer());
+				}
+			}
+			out.write(requests.get(i));
+			out.write('\n');
+		}
+		out.flush();
+		while (answers.size() < requests.size()) {
+			answers.add(readAnswer());
+		}
+		return answers;
+	}
+	
+	/**
+	 * Closes the connection.
+	 */
+	void close () {
+		try {
+			channel.close();
+		} catch (IOException e) { // nothing more is sent anyway
+		}
+	}
+	
+	private String request (String request) throws IOException {
+		out.write(request);
+		out.write('\n');
+		out.flush();
+		return readAnswer();
+	}
+	
+	private String readAnswer () throws IOException {
+		while (true) {
+			String answer = in.readLine();
+			if (answer == null) {
+				throw new EOFException("The server closed the connection");
+			} else if (!answer.startsWith("EVENT ")) {
+				return answer;
+			}
+			events.add(answer);
+		}
+	}
+	
+	/**
+	 * Returns the result of an answer that is not an error.
+	 * @throws IllegalArgumentException If the answer is an error, with its message.
+	 */
+	private static String result (String answer) {
+		if (answer.startsWith("ERROR")) {
+			throw new IllegalArgumentException(answer.substring(Math.min(6, answer.length())));
+		}
+		return (answer.length() > 3) ? answer.substring(3) : "";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,73 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * Measures how much faster a formula is evaluated once {@link FormulaCompiler} has compiled it
+ * than when its tree of {@link Expression}s is interpreted. The formula reads the three cells to
+ * its left, and is evaluated in each of {@link #ROWS} rows of random numbers in turn, the way that
+ * a formula that has been filled down a column is. It is first checked to give the same value both
+ * ways in every row, and then each way is timed over the same number of evaluations, a few rounds
+ * in a row so that the later rounds show the speed once the virtual machine has warmed up.
+ * <p>
+ * The arguments, all optional, are the number of evaluations in each round and the number of
+ * rounds, which default to 10000000 and 5.
+ * @author Sam Beaumont
+ */
+class CompileBenchmark {
+	/**
+	 * The number of rows that the formula is evaluated in, which is a power of two.
+	 */
+	static final int ROWS = 1024;
+	
+	// Twelve operators over three cells, which is what most formulas that are compiled look like
+	private static final String FORMULA = "( ( RC[-3] + RC[-2] ) * RC[-1] - RC[-3] / ( RC[-2] + 1 )"
+			+ " + RC[-1] * RC[-1] - ( RC[-3] - RC[-2] ) * 2 + RC[-2] / 4 - RC[-1] + RC[-3] * 3 )";
+	
+	private CompileBenchmark () {} // prevent this class from being instantiated
+	
+	public static void main (String[] args) {
+		int evaluations = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		
+		Spreadsheet sheet = new Spreadsheet();
+		Random random = new Random(42);
+		for (int i = 1; i <= ROWS; i++) {
+			sheet.set("A" + i, new Cell(random.nextDouble() * 1000 - 500));
+			sheet.set("B" + i, new Cell(random.nextDouble() * 1000));
+			sheet.set("C" + i, new Cell(random.nextInt(100)));
+		}
+		Expression expression = FormulaParser.parse(FORMULA);
+		CompiledFormula compiled = FormulaCompiler.compile(expression);
+		for (int row = 0; row < ROWS; row++) {
+			double interpreted = expression.evaluate(sheet, row, 3);
+			double fast = compiled.evaluate(sheet, row, 3);
+			if (Double.compare(interpreted, fast) != 0) {
+				throw new IllegalStateException("Interpreted " + interpreted + " but compiled " + fast
+						+ " in row " + (row + 1));
+			}
+		}
+		
+		for (int r = 1; r <= rounds; r++) {
+			double expected = 0; // the totals are compared so that the evaluations are not optimized away
+			long start = System.nanoTime();
+			for (int i = 0; i < evaluations; i++) {
+				expected += expression.evaluate(sheet, i & (ROWS - 1), 3);
+			}
+			long interpreted = System.nanoTime() - start;
+			
+			double total = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < evaluations; i++) {
+				total += compiled.evaluate(sheet, i & (ROWS - 1), 3);
+			}
+			long fast = System.nanoTime() - start;
+			
+			if (total != expected) {
+				throw new IllegalStateException("Interpreted a total of " + expected + " but compiled " + total);
+			}
+			System.out.printf("Round %d: interpreted %.1f ns, compiled %.1f ns per evaluation, %.1fx faster%n",
+					r, (double) interpreted / evaluations, (double) fast / evaluations, (double) interpreted / fast);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+package textexcel;
+
+/**
+ * The superclass of the classes that {@link FormulaCompiler} generates for {@link Formula}s
+ * that are evaluated often. Each generated class overrides {@link #compute(Object[][], Object)}
+ * with straight-line code that reads {@link Cell}s directly from the storage of the
+ * {@link Spreadsheet}. Relative references are counted from the origin that is passed in,
+ * so cells that share a formula also share its compiled class.
+ * <p>
+ * The generated classes are defined by their own class loader, so they can only use
+ * members of this class that are {@code public} or {@code protected}, which is why
+ * this class is {@code public} unlike the rest of the package.
+ * @author Sam Beaumont
+ */
+public abstract class CompiledFormula {
+	private Expression[] calls;
+	
+	/**
+	 * Called by the constructors of the generated classes.
+	 */
+	protected CompiledFormula () {}
+	
+	/**
+	 * Computes the value of the formula.
+	 * @param cells The {@link Cell}s of the {@link Spreadsheet}.
+	 * @param spreadsheet The {@link Spreadsheet}, which is passed on to {@link #call(Object, int, int, int)}.
+	 * @param row The index of the row of the cell that holds the formula.
+	 * @param col The index of the column of the cell that holds the formula.
+	 */
+	protected abstract double compute (Object[][] cells, Object spreadsheet, int row, int col);
+	
+	/**
+	 * Returns the value of the {@link Cell} at the given indices, or {@code 0} if the indices
+	 * are outside of the bounds of the spreadsheet, like {@link Spreadsheet#getValue(int, int)}.
+	 * @param cells The {@link Cell}s of the {@link Spreadsheet}.
+	 * @param spreadsheet The {@link Spreadsheet}, which the {@link Cell} is read from if its row
+	 * 			has not been parsed.
+	 * @param row The index of the row of the {@link Cell}.
+	 * @param col The index of the column of the {@link Cell}.
+	 */
+	protected static double value (Object[][] cells, Object spreadsheet, int row, int col) {
+		if (row < 0 || col < 0 || row >= cells.length) {
+			return 0;
+		}
+		Object[] cellRow = cells[row];
+		if (cellRow == null) {
+			return ((Spreadsheet) spreadsheet).getValue(row, col);
+		}
+		return (col < cellRow.length) ? ((Cell) cellRow[col]).getValue() : 0;
+	}
+	
+	/**
+	 * Evaluates one of the parts of the formula that were not compiled, such as a {@link Function}.
+	 * @param spreadsheet The {@link Spreadsheet} that the formula references.
+	 * @param index The index of the part.
+	 * @param row The index of the row of the cell that holds the formula.
+	 * @param col The index of the column of the cell that holds the formula.
+	 */
+	protected final double call (Object spreadsheet, int index, int row, int col) {
+		return calls[index].evaluate((Spreadsheet) spreadsheet, row, col);
+	}
+	
+	/**
+	 * Returns the value of the formula.
+	 * @param spreadsheet The {@link Spreadsheet} that the formula references.
+	 * @param row The index of the row of the cell that holds the formula.
+	 * @param col The index of the column of the cell that holds the formula.
+	 */
+	final double evaluate (Spreadsheet spreadsheet, int row, int col) {
+		return compute(spreadsheet.getCells(), spreadsheet, row, col);
+	}
+	
+	/**
+	 * Sets the parts of the formula that are evaluated by {@link #call(Object, int, int, int)}.
+	 */
+	final void setCalls (Expression[] calls) {
+		this.calls = calls;
+	}
+}
\ No newline at end of file
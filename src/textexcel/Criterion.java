@@ -0,0 +1,216 @@
+package textexcel;
+
+import java.util.regex.*;
+
+/**
+ * A test that the cells of a range are counted or added up by, such as {@code ">5"} or
+ * {@code "east*"}, as passed to {@code COUNTIF}, {@code SUMIF}, {@code AVERAGEIF} and their
+ * variants with several criteria. A criterion is an optional operator ({@code =}, {@code <>},
+ * {@code <}, {@code >}, {@code <=} or {@code >=}) followed by a number, a date or text.
+ * Text is matched with case; without an operator, or with {@code =} or {@code <>}, it may hold
+ * the wildcards {@code *} (any characters) and {@code ?} (any one character), and {@code ~}
+ * makes the character after it literal. An empty criterion matches empty cells.
+ * <p>
+ * A criterion is compiled once, when the formula is parsed if it is written as text, into one of
+ * three tests: a comparison of numbers, an equality of the dictionary codes of {@link String}s
+ * (see {@link StringDictionary}), or a precompiled {@link Pattern}. The code of the text in the
+ * dictionary of a sheet is looked up once for each range, with {@link #codeIn(StringDictionary)}.
+ * @author Sam Beaumont
+ */
+class Criterion {
+	// The operators, longest first so that "<=" is not read as "<"
+	private static final String[] OPERATORS = {"<=", ">=", "<>", "=", "<", ">"};
+	private static final int LESS_OR_EQUAL = 0;
+	private static final int GREATER_OR_EQUAL = 1;
+	private static final int NOT_EQUAL = 2;
+	private static final int EQUAL = 3;
+	private static final int LESS = 4;
+	private static final int GREATER = 5;
+	
+	/**
+	 * A criterion that no cell satisfies, which is what an empty cell that is used as the
+	 * criterion means.
+	 */
+	static final Criterion NONE = new Criterion(EQUAL, Double.NaN, null, null);
+	
+	private final int operator;
+	private final double number; // the number that cells are compared with, if text is null
+	private final String text; // the text that cells are compared with, or null
+	private final Pattern pattern; // the text with its wildcards, or null if it has none
+	
+	private Criterion (int operator, double number, String text, Pattern pattern) {
+		this.operator = operator;
+		this.number = number;
+		this.text = text;
+		this.pattern = pattern;
+	}
+	
+	/**
+	 * Compiles a criterion that is written as text, such as {@code ">=10"}.
+	 * @param criterion The text of the criterion, without quotation marks.
+	 */
+	static Criterion parse (String criterion) {
+		int operator = EQUAL;
+		for (int op = 0; op < OPERATORS.length; op++) {
+			if (criterion.startsWith(OPERATORS[op])) {
+				operator = op;
+				criterion = criterion.substring(OPERATORS[op].length());
+				break;
+			}
+		}
+		
+		Cell value = null;
+		if (!criterion.isEmpty() && criterion.charAt(0) != '"' && criterion.charAt(0) != '<') {
+			try {
+				value = new Cell(criterion);
+			} catch (IllegalArgumentException e) { // text
+			} catch (ArithmeticException e) {
+			}
+		}
+		if (value != null && (value.getType() == Types.DOUBLE || value.getType() == Types.DATE)) {
+			return new Criterion(operator, value.getValue(), null, null);
+		}
+		Pattern pattern = null;
+		if ((operator == EQUAL || operator == NOT_EQUAL) && (criterion.indexOf('*') != -1
+				|| criterion.indexOf('?') != -1 || criterion.indexOf('~') != -1)) {
+			pattern = compile(criterion);
+		}
+		return new Criterion(operator, Double.NaN, criterion, pattern);
+	}
+	
+	/**
+	 * Returns the criterion that a value that is not written as text stands for: a {@link String}
+	 * is read as a criterion, and a number is matched by equal numbers.
+	 * @param key The value, such as the {@link Cell} that a criterion references.
+	 */
+	static Criterion of (Cell key) {
+		Types type = key.getType();
+		if (type == Types.STRING) {
+			return parse(key.getString());
+		} else if (type == Types.EMPTY) {
+			return NONE;
+		}
+		return new Criterion(EQUAL, key.getValue(), null, null);
+	}
+	
+	/**
+	 * Returns {@code true} if the criterion matches the cells that are equal to a single value,
+	 * which a {@link LookupIndex} can find (see {@link #getKey()}), {@code false} otherwise.
+	 */
+	boolean isEquality () {
+		return operator == EQUAL && pattern == null && (text == null ? !Double.isNaN(number) : !text.isEmpty());
+	}
+	
+	/**
+	 * Returns the value that the cells that match an equality are equal to, see {@link #isEquality()}.
+	 */
+	Cell getKey () {
+		return (text == null) ? new Cell(number) : new Cell("\"" + text + "\"");
+	}
+	
+	/**
+	 * Returns {@code true} if empty cells satisfy the criterion, {@code false} otherwise.
+	 */
+	boolean matchesEmpty () {
+		return (text == null) ? operator == NOT_EQUAL : (text.isEmpty() ? operator == EQUAL : operator == NOT_EQUAL);
+	}
+	
+	/**
+	 * Returns the code of the text of the criterion in a dictionary, which is passed to
+	 * {@link #matches(Cell, int)} for the cells of a sheet that uses the dictionary.
+	 * @return The code, or {@code -1} if no cell holds the text or the criterion is not text.
+	 */
+	int codeIn (StringDictionary strings) {
+		return (text == null || pattern != null) ? -1 : strings.codeOf(text);
+	}
+	
+	/**
+	 * Returns {@code true} if a cell satisfies the criterion, {@code false} otherwise.
+	 * Formulas that cannot be evaluated do not satisfy any criterion.
+	 * @param cell The cell, which is not modified.
+	 * @param code The code of the text of the criterion in the dictionary of the cell's sheet,
+	 * 			as returned by {@link #codeIn(StringDictionary)}.
+	 */
+	boolean matches (Cell cell, int code) {
+		Types type = cell.getType();
+		if (type == Types.EMPTY) {
+			return matchesEmpty();
+		} else if (text == null) {
+			if (type == Types.STRING) {
+				return operator == NOT_EQUAL;
+			}
+			double value;
+			try {
+				value = cell.getValue();
+			} catch (ArithmeticException e) {
+				return false;
+			} catch (StackOverflowError e) {
+				return false;
+			}
+			return compare(value < number ? -1 : (value > number ? 1 : (value == number ? 0 : 2)));
+		} else if (type != Types.STRING) {
+			return operator == NOT_EQUAL;
+		} else if (pattern != null) {
+			return pattern.matcher(cell.getString()).matches() == (operator == EQUAL);
+		} else if (operator == EQUAL || operator == NOT_EQUAL) {
+			return (code != -1 && cell.getCode() == code) == (operator == EQUAL);
+		}
+		return compare(cell.getString().compareTo(text));
+	}
+	
+	/**
+	 * Returns the criterion as it would be written.
+	 */
+	public String toString () {
+		String operand = (text == null) ? String.valueOf(number) : text;
+		return (operator == EQUAL) ? operand : OPERATORS[operator] + operand;
+	}
+	
+	/**
+	 * Returns whether the result of a comparison satisfies the operator.
+	 * @param result Less than, equal to or greater than {@code 0}, or {@code 2} if the values
+	 * 			cannot be compared, which only satisfies {@code <>}.
+	 */
+	private boolean compare (int result) {
+		switch (operator) {
+			case EQUAL:
+				return result == 0;
+			case NOT_EQUAL:
+				return result != 0;
+			case LESS:
+				return result < 0;
+			case GREATER:
+				return result > 0 && result != 2;
+			case LESS_OR_EQUAL:
+				return result <= 0;
+			default: // case GREATER_OR_EQUAL:
+				return result >= 0 && result != 2;
+		}
+	}
+	
+	/**
+	 * Compiles text with wildcards into a {@link Pattern} that matches the whole of a {@link String}.
+	 */
+	private static Pattern compile (String s) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '~' && i + 1 < s.length()) {
+				literal.append(s.charAt(++i));
+			} else if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append((c == '*') ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+}
\ No newline at end of file
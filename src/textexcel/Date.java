@@ -1,13 +1,34 @@
 package textexcel;
 
 /**
- * A class to represent dates.
+ * A class to represent dates. A {@code Date} is stored as the number of days since
+ * January 1, 1970 (its epoch day), so that dates can be compared, subtracted and stored
+ * as plain numbers.
  * @author Sam Beaumont
  */
-class Date {
-	private int month;
-	private int day;
-	private int year;
+class Date implements Comparable<Date> {
+	/**
+	 * Returned by {@link #parseEpochDay(String)} if a {@link String} cannot be parsed into a date.
+	 */
+	static final int INVALID = Integer.MIN_VALUE;
+	
+	// The first three letters of each month name, packed into an int by monthKey
+	private static final int[] MONTH_KEYS = new int[12];
+	// The full name of each month
+	private static final String[] MONTH_NAMES = {"january", "february", "march", "april", "may",
+			"june", "july", "august", "september", "october", "november", "december"};
+	// The largest year that can be represented, so that epoch days fit in an int
+	private static final int MAX_YEAR = 999999;
+	// Recently parsed Strings and their epoch days, indexed by hash code
+	private static final CacheEntry[] CACHE = new CacheEntry[512];
+	
+	static {
+		for (int i = 0; i < MONTH_NAMES.length; i++) {
+			MONTH_KEYS[i] = monthKey(MONTH_NAMES[i], 0);
+		}
+	}
+	
+	private final int epochDay;
 	
 	/**
 	 * Constructs a new {@link Date} from a {@link String}.
@@ -15,90 +36,286 @@ class Date {
 	 * @throws IllegalArgumentException If the {@link String} cannot be parsed into a date.
 	 */
 	Date (String s) {
-		String monthNames = "(?iu)(Jan|January|Feb|February|Mar|March|Apr|April|May|" + 
-				"Jun|June|Jul|July|Aug|August|Sep|Sept|September|Oct|October|" +
-				"Nov|November|Dec|December)";
-		if (s.matches("\\d{1,2}/\\d{1,2}/\\d+")) { // Something like "5/3/2014"
-			setSlashDate(s);
-		} else if (s.matches(monthNames + ".? \\d{1,2},? \\d+")) {
-			// Something like "Apr. 5, 2014"
-			setMdyDate(s);
-		} else if (s.matches("\\d{1,2} " + monthNames + "(.|,) \\d+")) {
-			// Something like "5 April 2014"
-			setDmyDate(s);
-		} else {
+		epochDay = parseEpochDay(s);
+		if (epochDay == INVALID) {
 			// Not a valid date
 			throw new IllegalArgumentException();
 		}
 	}
 	
+	/**
+	 * Constructs a new {@link Date} from the number of days since January 1, 1970.
+	 * @param epochDay The number of days since January 1, 1970.
+	 */
+	Date (int epochDay) {
+		this.epochDay = epochDay;
+	}
+	
+	/**
+	 * Parses a {@link String} into a new {@link Date} without throwing an exception
+	 * if the {@link String} is not a date.
+	 * @param s The {@link String} to be evaluated.
+	 * @return The {@link Date}, or {@code null} if {@code s} cannot be parsed into a valid date.
+	 */
+	static Date parse (String s) {
+		int epochDay = parseEpochDay(s);
+		return (epochDay == INVALID) ? null : new Date(epochDay);
+	}
+	
+	/**
+	 * Parses a {@link String} formatted like {@code 5/3/2014}, {@code Apr. 5, 2014} or
+	 * {@code 5 April 2014} into the number of days since January 1, 1970.
+	 * Month names are case-insensitive and may be abbreviated.
+	 * @param s The {@link String} to be evaluated.
+	 * @return The epoch day, or {@link #INVALID} if {@code s} cannot be parsed into a valid date.
+	 */
+	static int parseEpochDay (String s) {
+		if (s.length() < 5) { // too short to be any kind of date
+			return INVALID;
+		}
+		CacheEntry[] cache = CACHE;
+		int slot = s.hashCode() & (cache.length - 1);
+		CacheEntry entry = cache[slot];
+		if (entry != null && entry.key.equals(s)) {
+			return entry.epochDay;
+		}
+		
+		int epochDay = read(s);
+		cache[slot] = new CacheEntry(s, epochDay);
+		return epochDay;
+	}
+	
+	/**
+	 * Returns the number of days since January 1, 1970.
+	 */
+	int toEpochDay () {
+		return epochDay;
+	}
+	
+	/**
+	 * Returns the {@code Date} that is the given number of days after this one.
+	 * @param days The number of days to add, which may be negative.
+	 */
+	Date plusDays (int days) {
+		return new Date(epochDay + days);
+	}
+	
+	/**
+	 * Returns the number of days from this {@code Date} until the given {@code Date},
+	 * which is negative if the given {@code Date} is earlier.
+	 * @param other The other {@code Date}.
+	 */
+	int daysUntil (Date other) {
+		return other.epochDay - epochDay;
+	}
+	
+	/**
+	 * Compares two {@code Date}s chronologically.
+	 */
+	public int compareTo (Date other) {
+		return (epochDay < other.epochDay) ? -1 : ((epochDay == other.epochDay) ? 0 : 1);
+	}
+	
+	public boolean equals (Object o) {
+		return o instanceof Date && ((Date) o).epochDay == epochDay;
+	}
+	
+	public int hashCode () {
+		return epochDay;
+	}
+	
 	/**
 	 * Converts the {@code Date} into a {@code String}.
 	 * @return A {@code String} representing the {@code Date}.
 	 */
 	public String toString () {
-		return ((Integer.toString(month).length() < 2) ? "0" + month
-				: month) + "/" +
-				((Integer.toString(day).length() < 2) ? "0" + day : day) + "/" + year;
+		return toString(epochDay);
 	}
 	
 	/**
-	 * Parses a {@code String} formatted like this: {@code 12/3/2014}, using it to
-	 * set the month, day, and year fields.
-	 * @param s The {@code String} to be parsed.
+	 * Converts a number of days since January 1, 1970 into a {@code String}
+	 * formatted like this: {@code 05/03/2014}.
+	 * @param epochDay The number of days since January 1, 1970.
 	 */
-	private void setSlashDate (String s) {
-		month = Library.fromString(s, 0, s.indexOf("/"));
-		day = Library.fromString(s, s.indexOf("/") + 1,
-				s.lastIndexOf("/"));
-		year = Library.fromString(s, s.lastIndexOf("/") + 1, s.length());
-		if (isInvalid()) {
-			throw new IllegalArgumentException();
+	static String toString (int epochDay) {
+		// Convert the epoch day into a year, month and day (proleptic Gregorian calendar)
+		long z = epochDay + 719468L;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long shiftedMonth = (5 * dayOfYear + 2) / 153; // March is 0
+		int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+		int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		
+		StringBuilder sb = new StringBuilder(10);
+		if (month < 10) {
+			sb.append('0');
+		}
+		sb.append(month).append('/');
+		if (day < 10) {
+			sb.append('0');
 		}
+		return sb.append(day).append('/').append(year).toString();
 	}
 	
 	/**
-	 * Parses a {@link String} in MDY format with the month represented as a word or
-	 * abbreviation, using it to instantiate a new {@link Date} object.
+	 * Parses a {@link String} into an epoch day in a single pass, without regular expressions.
 	 * @param s The {@link String} to be parsed.
-	 * @throws IllegalArgumentException If the resulting date is not valid.
+	 * @return The epoch day, or {@link #INVALID} if {@code s} is not a valid date.
 	 */
-	private void setMdyDate (String s) {
-		setMonth(s.substring(0, s.indexOf(" "))); // Set the month
+	private static int read (String s) {
+		int length = s.length();
+		int month;
+		int day;
+		int year;
+		int i; // the position of the year
 		
-		// Set the day
-		if (s.indexOf(",") != -1) { // For some reason, s.matches(",") doesn't work.
-			day = Library.fromString(s, s.indexOf(" ") + 1, s.indexOf(","));
-		} else {
-			day = Library.fromString(s, s.indexOf(" ") + 1, s.lastIndexOf(" "));
+		if (isDigit(s.charAt(0))) {
+			int first = readNumber(s, 0, 2);
+			int pos = first >>> 16;
+			if (pos < length && s.charAt(pos) == '/') { // Something like "5/3/2014"
+				month = first & 0xFFFF;
+				int second = readNumber(s, pos + 1, 2);
+				pos = second >>> 16;
+				if (second == -1 || pos >= length || s.charAt(pos) != '/') {
+					return INVALID;
+				}
+				day = second & 0xFFFF;
+				i = pos + 1;
+			} else if (pos < length && s.charAt(pos) == ' ') { // Something like "5 April 2014"
+				day = first & 0xFFFF;
+				int end = skipLetters(s, pos + 1);
+				month = lookUpMonth(s, pos + 1, end);
+				if (end < length && (s.charAt(end) == '.' || s.charAt(end) == ',')) {
+					end++;
+				}
+				if (end >= length || s.charAt(end) != ' ') {
+					return INVALID;
+				}
+				i = end + 1;
+			} else {
+				return INVALID;
+			}
+		} else { // Something like "Apr. 5, 2014"
+			int end = skipLetters(s, 0);
+			month = lookUpMonth(s, 0, end);
+			if (end < length && s.charAt(end) == '.') {
+				end++;
+			}
+			if (end >= length || s.charAt(end) != ' ') {
+				return INVALID;
+			}
+			int second = readNumber(s, end + 1, 2);
+			if (second == -1) {
+				return INVALID;
+			}
+			day = second & 0xFFFF;
+			int pos = second >>> 16;
+			if (pos < length && s.charAt(pos) == ',') {
+				pos++;
+			}
+			if (pos >= length || s.charAt(pos) != ' ') {
+				return INVALID;
+			}
+			i = pos + 1;
 		}
 		
-		// Set the year
-		year = Library.fromString(s, s.lastIndexOf(" ") + 1, s.length());
-		if (isInvalid()) {
-			throw new IllegalArgumentException();
+		// Read the year, which must be the rest of the String
+		if (i >= length || length - i > 6) {
+			return INVALID;
+		}
+		year = 0;
+		for (; i < length; i++) {
+			char c = s.charAt(i);
+			if (!isDigit(c)) {
+				return INVALID;
+			}
+			year = year * 10 + (c - '0');
 		}
+		
+		if (isInvalid(month, day, year)) {
+			return INVALID;
+		}
+		return toEpochDay(year, month, day);
 	}
 	
 	/**
-	 * Parses a {@link String} in MDY format with the month represented as a word or
-	 * abbreviation, using it to instantiate a new {@link Date} object.
-	 * @param s The {@link String} to be parsed.
-	 * @throws IllegalArgumentException If the resulting date is not valid.
+	 * Reads an unsigned number of at most {@code maxDigits} digits.
+	 * @param s The {@link String} to be read.
+	 * @param start The index of the first digit.
+	 * @param maxDigits The largest number of digits allowed.
+	 * @return The number in the lower 16 bits and the index after its last digit in the upper bits,
+	 * 			or {@code -1} if there is no number at {@code start}.
 	 */
-	private void setDmyDate (String s) {
-		setMonth(s.substring(s.indexOf(" ") + 1, s.lastIndexOf(" ")));
-		day = Library.fromString(s, 0, s.indexOf(" "));
-		year = Library.fromString(s, s.lastIndexOf(" ") + 1, s.length());
-		if (isInvalid()) {
-			throw new IllegalArgumentException();
+	private static int readNumber (String s, int start, int maxDigits) {
+		int n = 0;
+		int i = start;
+		while (i < s.length() && i - start < maxDigits && isDigit(s.charAt(i))) {
+			n = n * 10 + (s.charAt(i) - '0');
+			i++;
+		}
+		return (i == start || i < s.length() && isDigit(s.charAt(i))) ? -1 : (i << 16) | n;
+	}
+	
+	private static int skipLetters (String s, int start) {
+		int i = start;
+		while (i < s.length() && Character.isLetter(s.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+	
+	/**
+	 * Looks up a month name or abbreviation ({@code Jan}, {@code January}, {@code Sept}, etc.)
+	 * in the table of month names, regardless of case.
+	 * @param s The {@link String} containing the month name.
+	 * @param start The index of the first letter of the month name.
+	 * @param end The index after the last letter of the month name.
+	 * @return The number of the month, or {@code 0} if it is not a month name.
+	 */
+	private static int lookUpMonth (String s, int start, int end) {
+		if (end - start < 3) {
+			return 0;
 		}
+		int key = monthKey(s, start);
+		for (int i = 0; i < MONTH_KEYS.length; i++) {
+			if (MONTH_KEYS[i] == key) {
+				String name = MONTH_NAMES[i];
+				int length = end - start;
+				if (length == 3 || length == name.length() && s.regionMatches(true, start, name, 0, length)
+						|| i == 8 && length == 4 && s.regionMatches(true, start, "sept", 0, 4)) {
+					return i + 1;
+				}
+				return 0;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Packs the first three letters at the given index of a {@link String} into an {@code int},
+	 * converting them to lower case.
+	 */
+	private static int monthKey (String s, int start) {
+		return Character.toLowerCase(s.charAt(start)) << 16
+				| Character.toLowerCase(s.charAt(start + 1)) << 8
+				| Character.toLowerCase(s.charAt(start + 2));
+	}
+	
+	private static boolean isDigit (char c) {
+		return c >= '0' && c <= '9';
 	}
 	
-	private boolean isInvalid () {
+	private static boolean isLeapYear (int year) {
+		return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+	
+	private static boolean isInvalid (int month, int day, int year) {
 		return
 				// no such thing as year 0
-				year == 0
+				year == 0 || year > MAX_YEAR
 				
 				// invalid months
 				|| month < 1 || month > 12
@@ -107,13 +324,10 @@ class Date {
 				|| day < 1
 				
 				// February
-				|| month == 2 && (year % 4 == 0 && day > 29
-				|| year % 4 != 0 && day > 28)
+				|| month == 2 && day > (isLeapYear(year) ? 29 : 28)
 				
 				// 30-day months
-				|| month == 4 && day > 30
-				|| month == 6 && day > 30 || month == 9 && day > 30
-				|| month == 11 && day == 30
+				|| (month == 4 || month == 6 || month == 9 || month == 11) && day > 30
 				
 				// normal months
 				|| day > 31
@@ -121,48 +335,28 @@ class Date {
 	}
 	
 	/**
-	 * Parses a {@code String}, using it to set the month of the {@code Date},
-	 * assuming that the month is formatted as a word, not a number.
-	 * @param s The {@code String} to be parsed.
-	 */
-	private void setMonth (String s) {
-		if (Library.startsWithIgnoreCase(s, "Jan")) {
-			month = 1;
-		} else if (Library.startsWithIgnoreCase(s, "Feb")
-				|| Library.startsWithIgnoreCase(s, "February")) {
-			month = 2;
-		} else if (Library.startsWithIgnoreCase(s, "Mar")
-				|| Library.startsWithIgnoreCase(s, "March")) {
-			month = 3;
-		} else if (Library.startsWithIgnoreCase(s, "Apr")
-				|| Library.startsWithIgnoreCase(s, "April")) {
-			month = 4;
-		} else if (Library.startsWithIgnoreCase(s, "May")) {
-			month = 5;
-		} else if (Library.startsWithIgnoreCase(s, "Jun")
-				|| Library.startsWithIgnoreCase(s, "June")) {
-			month = 6;
-		} else if (Library.startsWithIgnoreCase(s, "Jul")
-				|| Library.startsWithIgnoreCase(s, "July")) {
-			month = 7;
-		} else if (Library.startsWithIgnoreCase(s, "Aug")
-				|| Library.startsWithIgnoreCase(s, "August")) {
-			month = 8;
-		} else if (Library.startsWithIgnoreCase(s, "Sep")
-				|| Library.startsWithIgnoreCase(s, "Sept")
-				|| Library.startsWithIgnoreCase(s, "September")) {
-			month = 9;
-		} else if (Library.startsWithIgnoreCase(s, "Oct")
-				|| Library.startsWithIgnoreCase(s, "October")) {
-			month = 10;
-		} else if (Library.startsWithIgnoreCase(s, "Nov")
-				|| Library.startsWithIgnoreCase(s, "November")) {
-			month = 11;
-		} else if (Library.startsWithIgnoreCase(s, "Dec")
-				|| Library.startsWithIgnoreCase(s, "December")) {
-			month = 12;
-		} else {
-			throw new IllegalArgumentException();
+	 * Converts a year, month and day into the number of days since January 1, 1970.
+	 */
+	private static int toEpochDay (int year, int month, int day) {
+		long y = (month <= 2) ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return (int) (era * 146097 + dayOfEra - 719468);
+	}
+	
+	/**
+	 * An entry in the cache of parsed {@link String}s. Entries are never modified, so that the
+	 * cache can be read without locking.
+	 */
+	private static class CacheEntry {
+		final String key;
+		final int epochDay;
+		
+		CacheEntry (String key, int epochDay) {
+			this.key = key;
+			this.epochDay = epochDay;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,648 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * A node of the tree that a {@link Formula} is parsed into by {@link FormulaParser}.
+ * Each kind of node is a nested subclass.
+ * <p>
+ * References may be relative, such as {@code R[-1]C}, in which case they are counted from the
+ * cell that holds the formula, called its origin. This lets many cells share one tree.
+ * References and ranges may also name another sheet of the {@link Workbook}, such as
+ * {@code Sheet2!A1}, in which case they are read from that sheet.
+ * @author Sam Beaumont
+ */
+abstract class Expression {
+	// Whether the value is remembered until the spreadsheet changes, see ExpressionTable
+	private boolean memoized;
+	private Memo memo;
+	private int hash;
+	
+	/**
+	 * Returns the value of the expression as a {@code double}. If the expression is memoized,
+	 * it is only computed once for each version of the {@link Spreadsheet}.
+	 * @param spreadsheet The {@link Spreadsheet} that references are read from.
+	 * @param row The index of the row of the origin.
+	 * @param col The index of the column of the origin.
+	 * @throws ArithmeticException If the expression cannot be evaluated, for example
+	 * 			because a looked-up value is not found.
+	 */
+	final double evaluate (Spreadsheet spreadsheet, int row, int col) {
+		if (!memoized) {
+			return compute(spreadsheet, row, col);
+		}
+		long version = spreadsheet.getVersion();
+		Memo m = memo;
+		if (m != null && m.version == version) {
+			return m.value;
+		}
+		double value = compute(spreadsheet, row, col);
+		memo = new Memo(version, value);
+		return value;
+	}
+	
+	/**
+	 * Computes the value of the expression as a {@code double}, without memoization.
+	 * @param spreadsheet The {@link Spreadsheet} that references are read from.
+	 * @param row The index of the row of the origin.
+	 * @param col The index of the column of the origin.
+	 * @throws ArithmeticException If the expression cannot be evaluated, for example
+	 * 			because a looked-up value is not found.
+	 */
+	abstract double compute (Spreadsheet spreadsheet, int row, int col);
+	
+	/**
+	 * Returns {@code true} if the value of the expression does not depend on any {@link Cell},
+	 * {@code false} otherwise.
+	 */
+	abstract boolean isConstant ();
+	
+	/**
+	 * Returns {@code true} if the expression contains a relative reference, so that its value
+	 * depends on its origin, {@code false} otherwise.
+	 */
+	abstract boolean isRelative ();
+	
+	/**
+	 * Returns an equal expression in which every reference is relative to the given origin.
+	 * @param row The index of the row of the origin.
+	 * @param col The index of the column of the origin.
+	 */
+	abstract Expression relativeTo (int row, int col);
+	
+	/**
+	 * Adds the name of every other sheet of the {@link Workbook} that the expression references,
+	 * such as {@code Sheet2} in {@code Sheet2!A1 * 2}, in upper case.
+	 * @param sheets The {@link Set} that the names are added to.
+	 */
+	abstract void addSheets (Set<String> sheets);
+	
+	/**
+	 * Returns {@code true} if every {@link Cell} that the expression references is moved by the
+	 * same distance as its origin when rows or columns are inserted or deleted, so that the
+	 * expression still refers to the same cells from the new origin if its references are relative,
+	 * {@code false} otherwise, including if a referenced {@link Cell} is deleted. The cells of other
+	 * sheets than the one that the rows or columns are in do not move.
+	 * @param shift The rows or columns that are inserted or deleted.
+	 * @param row The index of the row of the origin.
+	 * @param col The index of the column of the origin.
+	 */
+	abstract boolean movesWith (Spreadsheet.Shift shift, int row, int col);
+	
+	/**
+	 * Returns {@code true} if the expression references the {@link Cell} at its own origin, directly
+	 * or through a range on its own sheet, which a formula in that {@link Cell} cannot do.
+	 * @param row The index of the row of the origin.
+	 * @param col The index of the column of the origin.
+	 */
+	abstract boolean referencesOrigin (int row, int col);
+	
+	/**
+	 * Makes the value of the expression be remembered until the {@link Spreadsheet} changes.
+	 * Only expressions that are not relative may be memoized.
+	 */
+	final void memoize () {
+		memoized = true;
+	}
+	
+	/**
+	 * Returns {@code true} if the other object is an expression with the same structure,
+	 * so that {@link ExpressionTable} can share it between formulas.
+	 */
+	public abstract boolean equals (Object o);
+	
+	public final int hashCode () {
+		if (hash == 0) {
+			hash = computeHash();
+		}
+		return hash;
+	}
+	
+	/**
+	 * Computes the hash code, which depends only on the structure of the expression.
+	 */
+	abstract int computeHash ();
+	
+	/**
+	 * A number, such as {@code 2.5}.
+	 */
+	static class Constant extends Expression {
+		final double value;
+		
+		Constant (double value) {
+			this.value = value;
+		}
+		
+		double compute (Spreadsheet spreadsheet, int row, int col) {
+			return value;
+		}
+		
+		boolean isConstant () {
+			return true;
+		}
+		
+		boolean isRelative () {
+			return false;
+		}
+		
+		Expression relativeTo (int row, int col) {
+			return this;
+		}
+		
+		void addSheets (Set<String> sheets) {
+		}
+		
+		boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+			return true;
+		}
+		
+		boolean referencesOrigin (int row, int col) {
+			return false;
+		}
+		
+		public boolean equals (Object o) {
+			return o instanceof Constant
+					&& Double.doubleToLongBits(((Constant) o).value) == Double.doubleToLongBits(value);
+		}
+		
+		int computeHash () {
+			long bits = Double.doubleToLongBits(value);
+			return (int) (bits ^ (bits >>> 32));
+		}
+	}
+	
+	/**
+	 * A reference to a single {@link Cell}, such as {@code B3}, or a relative reference
+	 * such as {@code R[-1]C[2]}, whose row and column are counted from the origin.
+	 * Either may name another sheet, such as {@code Sheet2!B3}.
+	 */
+	static class Reference extends Expression {
+		final String sheet; // null for the sheet that holds the formula
+		final int row;
+		final int col;
+		final boolean relative;
+		
+		Reference (int row, int col) {
+			this(row, col, false);
+		}
+		
+		Reference (int row, int col, boolean relative) {
+			this(null, row, col, relative);
+		}
+		
+		Reference (String sheet, int row, int col, boolean relative) {
+			this.sheet = sheet;
+			this.row = row;
+			this.col = col;
+			this.relative = relative;
+		}
+		
+		/**
+		 * Returns the {@link Spreadsheet} that the referenced {@link Cell} is in.
+		 * @param spreadsheet The {@link Spreadsheet} that holds the formula.
+		 * @throws ArithmeticException If the sheet does not exist or cannot be read.
+		 */
+		Spreadsheet resolve (Spreadsheet spreadsheet) {
+			return (sheet == null) ? spreadsheet : spreadsheet.getSheet(sheet);
+		}
+		
+		/**
+		 * Returns the index of the row of the referenced {@link Cell}.
+		 * @param originRow The index of the row of the origin.
+		 */
+		int rowAt (int originRow) {
+			return relative ? originRow + row : row;
+		}
+		
+		/**
+		 * Returns the index of the column of the referenced {@link Cell}.
+		 * @param originCol The index of the column of the origin.
+		 */
+		int colAt (int originCol) {
+			return relative ? originCol + col : col;
+		}
+		
+		double compute (Spreadsheet spreadsheet, int row, int col) {
+			return resolve(spreadsheet).getValue(rowAt(row), colAt(col));
+		}
+		
+		boolean isConstant () {
+			return false;
+		}
+		
+		boolean isRelative () {
+			return relative;
+		}
+		
+		Expression relativeTo (int row, int col) {
+			return relative ? this : new Reference(sheet, this.row - row, this.col - col, true);
+		}
+		
+		void addSheets (Set<String> sheets) {
+			if (sheet != null) {
+				sheets.add(sheet);
+			}
+		}
+		
+		boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+			if (sheet != null && !shift.isOn(sheet)) { // the cell does not move, so neither may the origin
+				int origin = shift.rows ? row : col;
+				return shift.apply(origin) == origin;
+			}
+			return shift.movesWith(rowAt(row), colAt(col), row, col);
+		}
+		
+		boolean referencesOrigin (int row, int col) {
+			return sheet == null && rowAt(row) == row && colAt(col) == col;
+		}
+		
+		public boolean equals (Object o) {
+			if (!(o instanceof Reference)) {
+				return false;
+			}
+			Reference r = (Reference) o;
+			return r.row == row && r.col == col && r.relative == relative
+					&& (sheet == null ? r.sheet == null : sheet.equals(r.sheet));
+		}
+		
+		int computeHash () {
+			return ((row * 31 + col) * 2 + (relative ? 1 : 0)) * 31 + (sheet == null ? 0 : sheet.hashCode());
+		}
+	}
+	
+	/**
+	 * The negation of another expression, such as {@code -(A1 + 2)}.
+	 */
+	static class Negation extends Expression {
+		Expression operand;
+		
+		Negation (Expression operand) {
+			this.operand = operand;
+		}
+		
+		double compute (Spreadsheet spreadsheet, int row, int col) {
+			return -operand.evaluate(spreadsheet, row, col);
+		}
+		
+		boolean isConstant () {
+			return operand.isConstant();
+		}
+		
+		boolean isRelative () {
+			return operand.isRelative();
+		}
+		
+		Expression relativeTo (int row, int col) {
+			return new Negation(operand.relativeTo(row, col));
+		}
+		
+		void addSheets (Set<String> sheets) {
+			operand.addSheets(sheets);
+		}
+		
+		boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+			return operand.movesWith(shift, row, col);
+		}
+		
+		boolean referencesOrigin (int row, int col) {
+			return operand.referencesOrigin(row, col);
+		}
+		
+		public boolean equals (Object o) {
+			return o == this || o instanceof Negation && ((Negation) o).operand.equals(operand);
+		}
+		
+		int computeHash () {
+			return ~operand.hashCode();
+		}
+	}
+	
+	/**
+	 * A binary operation: one of {@code +}, {@code -}, {@code *}, {@code /}, {@code %} or {@code ^}.
+	 */
+	static class Operation extends Expression {
+		final char operator;
+		Expression left;
+		Expression right;
+		
+		Operation (char operator, Expression left, Expression right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+		
+		double compute (Spreadsheet spreadsheet, int row, int col) {
+			double a = left.evaluate(spreadsheet, row, col);
+			double b = right.evaluate(spreadsheet, row, col);
+			switch (operator) {
+				case '+':
+					return a + b;
+				case '-':
+					return a - b;
+				case '*':
+					return a * b;
+				case '/':
+					return a / b;
+				case '%':
+					return a % b;
+				default: // case '^':
+					return Math.pow(a, b);
+			}
+		}
+		
+		boolean isConstant () {
+			return left.isConstant() && right.isConstant();
+		}
+		
+		boolean isRelative () {
+			return left.isRelative() || right.isRelative();
+		}
+		
+		Expression relativeTo (int row, int col) {
+			return new Operation(operator, left.relativeTo(row, col), right.relativeTo(row, col));
+		}
+		
+		void addSheets (Set<String> sheets) {
+			left.addSheets(sheets);
+			right.addSheets(sheets);
+		}
+		
+		boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+			return left.movesWith(shift, row, col) && right.movesWith(shift, row, col);
+		}
+		
+		boolean referencesOrigin (int row, int col) {
+			return left.referencesOrigin(row, col) || right.referencesOrigin(row, col);
+		}
+		
+		public boolean equals (Object o) {
+			if (o == this) {
+				return true;
+			} else if (!(o instanceof Operation)) {
+				return false;
+			}
+			Operation op = (Operation) o;
+			return op.operator == operator && op.left.equals(left) && op.right.equals(right);
+		}
+		
+		int computeHash () {
+			return (left.hashCode() * 31 + right.hashCode()) * 31 + operator;
+		}
+	}
+	
+	/**
+	 * A rectangular range of {@link Cell}s, such as {@code A1:C10}, which can only be
+	 * passed to a {@link Function}. Either end of the range may be relative, and the range may
+	 * be on another sheet, such as {@code Sheet2!A1:C10}.
+	 */
+	static class Range extends Expression {
+		final String sheet; // null for the sheet that holds the formula
+		final int firstRow;
+		final int firstCol;
+		final int lastRow;
+		final int lastCol;
+		final boolean firstRelative;
+		final boolean lastRelative;
+		
+		/**
+		 * @throws NumberFormatException If the first cell is below or to the right of the last cell.
+		 */
+		Range (int firstRow, int firstCol, int lastRow, int lastCol) {
+			this(new Reference(firstRow, firstCol), new Reference(lastRow, lastCol));
+		}
+		
+		/**
+		 * @throws NumberFormatException If both ends are relative or both are not, and the first cell
+		 * 			is below or to the right of the last cell.
+		 */
+		Range (Reference first, Reference last) {
+			this(null, first, last);
+		}
+		
+		/**
+		 * @param sheet The name of the sheet that the range is on, or {@code null} for the sheet
+		 * 			that holds the formula.
+		 * @throws NumberFormatException If both ends are relative or both are not, and the first cell
+		 * 			is below or to the right of the last cell.
+		 */
+		Range (String sheet, Reference first, Reference last) {
+			if (first.relative == last.relative && (first.row > last.row || first.col > last.col)) {
+				throw new NumberFormatException();
+			}
+			this.sheet = sheet;
+			firstRow = first.row;
+			firstCol = first.col;
+			firstRelative = first.relative;
+			lastRow = last.row;
+			lastCol = last.col;
+			lastRelative = last.relative;
+		}
+		
+		/**
+		 * Returns the range that this range refers to from the given origin, in which neither end
+		 * is relative.
+		 * @param row The index of the row of the origin.
+		 * @param col The index of the column of the origin.
+		 * @throws ArithmeticException If the first cell is then below or to the right of the last cell.
+		 */
+		Range at (int row, int col) {
+			if (!firstRelative && !lastRelative) {
+				return this;
+			}
+			Reference first = new Reference(firstRelative ? row + firstRow : firstRow,
+					firstRelative ? col + firstCol : firstCol);
+			Reference last = new Reference(lastRelative ? row + lastRow : lastRow,
+					lastRelative ? col + lastCol : lastCol);
+			if (first.row > last.row || first.col > last.col) {
+				throw new ArithmeticException();
+			}
+			return new Range(sheet, first, last);
+		}
+		
+		/**
+		 * Returns the {@link Spreadsheet} that the range is in.
+		 * @param spreadsheet The {@link Spreadsheet} that holds the formula.
+		 * @throws ArithmeticException If the sheet does not exist or cannot be read.
+		 */
+		Spreadsheet resolve (Spreadsheet spreadsheet) {
+			return (sheet == null) ? spreadsheet : spreadsheet.getSheet(sheet);
+		}
+		
+		/**
+		 * @throws ArithmeticException Always, since a range does not have a single value.
+		 */
+		double compute (Spreadsheet spreadsheet, int row, int col) {
+			throw new ArithmeticException();
+		}
+		
+		boolean isConstant () {
+			return false;
+		}
+		
+		boolean isRelative () {
+			return firstRelative || lastRelative;
+		}
+		
+		Expression relativeTo (int row, int col) {
+			return new Range(sheet, (Reference) new Reference(firstRow, firstCol, firstRelative).relativeTo(row, col),
+					(Reference) new Reference(lastRow, lastCol, lastRelative).relativeTo(row, col));
+		}
+		
+		void addSheets (Set<String> sheets) {
+			if (sheet != null) {
+				sheets.add(sheet);
+			}
+		}
+		
+		boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+			if (sheet != null && !shift.isOn(sheet)) { // the cells do not move, so neither may the origin
+				int origin = shift.rows ? row : col;
+				return shift.apply(origin) == origin;
+			}
+			int first = firstRelative ? row + firstRow : firstRow;
+			int last = lastRelative ? row + lastRow : lastRow;
+			return shift.movesWith(first, firstRelative ? col + firstCol : firstCol, row, col)
+					&& shift.movesWith(last, lastRelative ? col + lastCol : lastCol, row, col);
+		}
+		
+		boolean referencesOrigin (int row, int col) {
+			if (sheet != null) {
+				return false;
+			}
+			Range range;
+			try {
+				range = at(row, col);
+			} catch (ArithmeticException e) { // an empty range
+				return false;
+			}
+			return row >= range.firstRow && row <= range.lastRow && col >= range.firstCol && col <= range.lastCol;
+		}
+		
+		public boolean equals (Object o) {
+			if (!(o instanceof Range)) {
+				return false;
+			}
+			Range r = (Range) o;
+			return r.firstRow == firstRow && r.firstCol == firstCol && r.lastRow == lastRow && r.lastCol == lastCol
+					&& r.firstRelative == firstRelative && r.lastRelative == lastRelative
+					&& (sheet == null ? r.sheet == null : sheet.equals(r.sheet));
+		}
+		
+		int computeHash () {
+			return ((((firstRow * 31 + firstCol) * 31 + lastRow) * 31 + lastCol) * 2
+					+ (firstRelative ? 1 : 0)) * 2 + (lastRelative ? 1 : 0) + (sheet == null ? 0 : sheet.hashCode());
+		}
+	}
+	
+	/**
+	 * Text surrounded by quotation marks, such as {@code "apples"}, which can only be
+	 * passed to a {@link Function}.
+	 */
+	static class Text extends Expression {
+		final String text;
+		final Cell cell;
+		
+		Text (String text) {
+			this.text = text;
+			cell = new Cell("\"" + text + "\"");
+		}
+		
+		/**
+		 * Returns {@code 0}, the value of any {@link Cell} that holds a {@link String}.
+		 */
+		double compute (Spreadsheet spreadsheet, int row, int col) {
+			return 0;
+		}
+		
+		boolean isConstant () {
+			return true;
+		}
+		
+		boolean isRelative () {
+			return false;
+		}
+		
+		Expression relativeTo (int row, int col) {
+			return this;
+		}
+		
+		void addSheets (Set<String> sheets) {
+		}
+		
+		boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+			return true;
+		}
+		
+		boolean referencesOrigin (int row, int col) {
+			return false;
+		}
+		
+		public boolean equals (Object o) {
+			return o instanceof Text && ((Text) o).text.equals(text);
+		}
+		
+		int computeHash () {
+			return text.hashCode();
+		}
+	}
+	
+	/**
+	 * A reference to a {@link Cell} that was deleted, written {@code #REF!}, whose value is always
+	 * an error.
+	 */
+	static class Deleted extends Expression {
+		/**
+		 * @throws ArithmeticException Always.
+		 */
+		double compute (Spreadsheet spreadsheet, int row, int col) {
+			throw new ArithmeticException();
+		}
+		
+		/**
+		 * Returns {@code false}, so that a formula that holds the expression can still be created.
+		 */
+		boolean isConstant () {
+			return false;
+		}
+		
+		boolean isRelative () {
+			return false;
+		}
+		
+		Expression relativeTo (int row, int col) {
+			return this;
+		}
+		
+		void addSheets (Set<String> sheets) {
+		}
+		
+		boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+			return true;
+		}
+		
+		boolean referencesOrigin (int row, int col) {
+			return false;
+		}
+		
+		public boolean equals (Object o) {
+			return o instanceof Deleted;
+		}
+		
+		int computeHash () {
+			return 1;
+		}
+	}
+	
+	/**
+	 * A value that was computed for one version of a {@link Spreadsheet}.
+	 */
+	private static class Memo {
+		final long version;
+		final double value;
+		
+		Memo (long version, double value) {
+			this.version = version;
+			this.value = value;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package textexcel;
+
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+ * Shares identical {@link Expression}s between the {@link Formula}s of a {@link Spreadsheet},
+ * so that a subexpression such as {@code SUM(A1:A1000)} that appears in many formulas is
+ * only stored once. Shared subexpressions, and every function of a range of cells,
+ * are memoized: they are computed once for each version of the {@link Spreadsheet},
+ * no matter how many formulas use them. Expressions with relative references are shared
+ * but not memoized, since their values depend on the cell that holds the formula.
+ * <p>
+ * Expressions are only held weakly, so that they are discarded along with the last
+ * formula that uses them.
+ * @author Sam Beaumont
+ */
+class ExpressionTable {
+	private final WeakHashMap<Expression, WeakReference<Expression>> table =
+			new WeakHashMap<Expression, WeakReference<Expression>>();
+	
+	/**
+	 * Returns the expression in the table that is equal to the given one, adding it to the table
+	 * if there is none. The subexpressions of the given expression are replaced with the ones
+	 * in the table first.
+	 * @param expression The expression to be shared.
+	 */
+	synchronized Expression intern (Expression expression) {
+		if (expression instanceof Expression.Negation) {
+			Expression.Negation negation = (Expression.Negation) expression;
+			negation.operand = intern(negation.operand);
+		} else if (expression instanceof Expression.Operation) {
+			Expression.Operation operation = (Expression.Operation) expression;
+			operation.left = intern(operation.left);
+			operation.right = intern(operation.right);
+		} else if (expression instanceof Function) {
+			Expression[] args = ((Function) expression).getArguments();
+			for (int i = 0; i < args.length; i++) {
+				args[i] = intern(args[i]);
+			}
+		}
+		
+		WeakReference<Expression> ref = table.get(expression);
+		Expression existing = (ref == null) ? null : ref.get();
+		if (existing != null) {
+			// Numbers, references and text are cheaper to compute than to look up
+			if ((existing instanceof Expression.Negation || existing instanceof Expression.Operation
+					|| existing instanceof Function) && !existing.isRelative()) {
+				existing.memoize();
+			}
+			return existing;
+		}
+		if (expression instanceof Function && ((Function) expression).hasRange() && !expression.isRelative()) {
+			expression.memoize();
+		}
+		table.put(expression, new WeakReference<Expression>(expression));
+		return expression;
+	}
+}
\ No newline at end of file
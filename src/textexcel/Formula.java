@@ -5,12 +5,35 @@ import java.util.regex.*;
 
 /**
  * A class to represent mathematical formulas.
+ * Formulas that are filled into many cells share a single parsed, and possibly compiled,
+ * {@link Expression} whose references are relative, along with the text of the original formula;
+ * each cell only stores its own position.
+ * <p>
+ * The value of each formula is remembered until the {@link Spreadsheet} changes, so a formula that
+ * many others reference is only computed once, and {@link Recalculator} can compute the values
+ * ahead of time.
  * @author Sam Beaumont
  */
 class Formula {
-	private String formula;
-	private Set<String> cells = new HashSet<String>();
+	/**
+	 * The number of times that a formula is evaluated before it is compiled.
+	 */
+	static final int COMPILE_THRESHOLD = 1000;
+	/**
+	 * Whether formulas that are evaluated often are compiled by {@link FormulaCompiler}.
+	 * Compilation can be turned off with {@code -Dtextexcel.compile=false}.
+	 */
+	static final boolean COMPILE = !"false".equalsIgnoreCase(System.getProperty("textexcel.compile"));
+	
+	// Text surrounded by quotation marks, which is skipped, or a cell such as "AB12" that is not
+	// the name of a sheet, such as "SHEET2!A1"
+	private static final Pattern REFERENCE = Pattern.compile("\"[^\"]*\"|\\b([A-Z]+)(\\d+)\\b(?!!)");
+	
+	private Code code;
+	private int row; // the position of the cell that holds the formula
+	private int col;
 	private Spreadsheet spreadsheet;
+	private Memo memo; // the value that was last computed, or null
 	
 	/**
 	 * Constructs a new {@code Formula} object with all fields set to {@code null}.
@@ -26,29 +49,126 @@ class Formula {
 	
 	/**
 	 * Constructs a new formula using a {@link String} that is input by the user.
-	 * @throws NumberFormatException If the formula is not a mathematically valid expression
-	 * 			or is not surrounded by parentheses.
-	 * @throws ArithmeticException If the formula does not evaluate to a real number.
+	 * The formula is parsed once, when it is constructed, and parts of it that are the same as
+	 * parts of other formulas in the {@link Spreadsheet} are shared with them.
+	 * @throws NumberFormatException If the formula is not a mathematically valid expression.
+	 * @throws UnrecognizedFunctionException If the formula calls a function that does not exist.
+	 * @throws ArithmeticException If the formula does not depend on any cells and
+	 * 			does not evaluate to a real number.
 	 * @param formula The {@link String} used to create the formula.
+	 * @param name The name of the cell that holds the formula, which relative references are
+	 * 			counted from, or {@code null} to count them from {@code A1}.
+	 * @param spreadsheet The {@link Spreadsheet} that the formula references.
 	 */
 	Formula (String formula, String name, Spreadsheet spreadsheet) {
-		if (!formula.startsWith("(") || !formula.endsWith(")")) { // not surrounded by parentheses
-			throw new NumberFormatException();
-		}
-		this.formula = formula;
-		ensureValid(getValue(formula.replaceAll("[A-Z]+\\d+", "1"), cells));
+		int[] origin = (name == null) ? new int[2] : Spreadsheet.getIndices(name);
+		code = new Code(formula, origin[0], origin[1], spreadsheet.intern(FormulaParser.parse(formula)), false);
+		row = origin[0];
+		col = origin[1];
 		this.spreadsheet = spreadsheet;
-		cells.add(name);
+		spreadsheet.addDependencies(code.expression);
+		if (code.expression.isConstant()) {
+			getValue();
+		}
 	}
 	
 	/**
-	 * Returns the value of the formula as a {@code double}.
-	 * @throws ArithmeticException If evaluating the formula results in division by zero.
-	 * @throws NumberFormatException If the formula is not a mathematically valid
-	 * 			expression.
+	 * Returns the value of the formula as a {@code double}, which is only computed once for each
+	 * version of the {@link Spreadsheet}. Once the formula has been evaluated
+	 * {@link #COMPILE_THRESHOLD} times, it is compiled, unless compilation is turned off.
+	 * @throws ArithmeticException If the formula does not evaluate to a real number,
+	 * 			for example because of division by zero.
 	 */
 	double getValue () {
-		return getValue(cells);
+		long version = spreadsheet.getVersion();
+		Memo m = memo;
+		if (m != null && m.version == version) {
+			if (m.error) {
+				throw new ArithmeticException();
+			}
+			return m.value;
+		}
+		
+		Code c = code;
+		double value;
+		try {
+			if (c.compiled != null) {
+				value = c.compiled.evaluate(spreadsheet, row, col);
+			} else {
+				value = c.expression.evaluate(spreadsheet, row, col);
+				if (COMPILE && ++c.evaluations == COMPILE_THRESHOLD) {
+					c.compile();
+				}
+			}
+			ensureValid(value);
+		} catch (ArithmeticException e) {
+			memo = new Memo(version, Double.NaN, true);
+			throw e;
+		}
+		memo = new Memo(version, value, false);
+		return value;
+	}
+	
+	/**
+	 * Returns {@code true} if the value of the formula has been computed since the
+	 * {@link Spreadsheet} last changed, {@code false} otherwise.
+	 */
+	boolean isCalculated () {
+		Memo m = memo;
+		return m != null && m.version == spreadsheet.getVersion();
+	}
+	
+	/**
+	 * Returns the value that was last computed, which may be out of date, without computing it.
+	 * @return The value, or {@code NaN} if it has never been computed or was not a real number.
+	 */
+	double getLastValue () {
+		Memo m = memo;
+		return (m == null || m.error) ? Double.NaN : m.value;
+	}
+	
+	/**
+	 * Returns a copy of the formula for another cell, with its references moved by the distance
+	 * to that cell, as when a formula is filled down a column. The copy shares the parsed and
+	 * compiled formula, which is changed to use relative references the first time this method is called.
+	 * @param row The index of the row of the cell that the copy is for.
+	 * @param col The index of the column of the cell that the copy is for.
+	 */
+	Formula fill (int row, int col) {
+		if (!code.relative) {
+			code = new Code(code.source, code.row, code.col,
+					spreadsheet.intern(code.expression.relativeTo(code.row, code.col)), true);
+		}
+		Formula f = clone();
+		f.row = row;
+		f.col = col;
+		return f;
+	}
+	
+	/**
+	 * Returns {@code true} if every {@link Cell} that the formula references is
+	 * moved by the same distance as the formula when rows or columns are inserted or deleted,
+	 * so that a copy made by {@link #fill(int, int)} at its new location still references the
+	 * same cells, {@code false} otherwise. See {@link Expression#movesWith(Spreadsheet.Shift, int, int)}.
+	 */
+	boolean movesWith (Spreadsheet.Shift shift) {
+		return code.expression.movesWith(shift, row, col);
+	}
+	
+	/**
+	 * Adds the name of every other sheet of the {@link Workbook} that the formula references, in
+	 * upper case. See {@link Expression#addSheets(Set)}.
+	 */
+	void addSheets (Set<String> sheets) {
+		code.expression.addSheets(sheets);
+	}
+	
+	/**
+	 * Returns {@code true} if the formula references the {@link Cell} that holds it, directly or
+	 * through a range, {@code false} otherwise. See {@link Expression#referencesOrigin(int, int)}.
+	 */
+	boolean referencesItself () {
+		return code.expression.referencesOrigin(row, col);
 	}
 	
 	/**
@@ -56,148 +176,111 @@ class Formula {
 	 */
 	public Formula clone () {
 		Formula f = new Formula();
-		f.formula = formula;
-		f.cells = cells;
+		f.code = code;
+		f.row = row;
+		f.col = col;
 		f.spreadsheet = spreadsheet;
 		return f;
 	}
-
+	
 	/**
-	 * Returns the {@link String} that was originally used to construct the formula.
+	 * Returns the {@link String} that was originally used to construct the formula, or for a
+	 * formula that was filled into another cell, that {@link String} with its references moved.
+	 * @throws IllegalArgumentException If a reference would be moved outside of the spreadsheet.
 	 */
 	public String toString () {
-		return formula;
+		if (row == code.row && col == code.col) {
+			return code.source;
+		}
+		return shift(code.source, row - code.row, col - code.col);
 	}
 	
 	/**
-	 * Throws an {@link ArithmeticException} if a call of {@link Double#toString(double)} on the
-	 * {@link double} that is passed as a parameter returns {@code "NaN"}, or anything that ends
-	 * with {@code "Infinity"}, case-insensitive. 
+	 * Moves every cell that is referenced in a formula, such as {@code A1}, by the same distance.
+	 * Text surrounded by quotation marks and relative references are left unchanged.
+	 * @param formula The formula to be changed.
+	 * @param rows The number of rows to move the references down by.
+	 * @param cols The number of columns to move the references right by.
+	 * @throws IllegalArgumentException If a reference would be moved outside of the spreadsheet.
+	 */
+	private static String shift (String formula, int rows, int cols) {
+		Matcher m = REFERENCE.matcher(formula);
+		StringBuffer shifted = new StringBuffer();
+		while (m.find()) {
+			if (m.group(1) == null) { // quoted text
+				continue;
+			}
+			int row = Integer.parseInt(m.group(2)) + rows;
+			int col = Spreadsheet.toDec(m.group(1)) + cols;
+			if (row < 1 || col < 0) {
+				throw new IllegalArgumentException("Reference outside of the spreadsheet");
+			}
+			m.appendReplacement(shifted, Spreadsheet.toBase26(col) + row);
+		}
+		m.appendTail(shifted);
+		return shifted.toString();
+	}
+	
+	/**
+	 * Throws an {@link ArithmeticException} if the {@code double} that is passed as a parameter
+	 * is not a number or is infinite.
 	 * @param value The {@code double} to be evaluated.
 	 */
 	private static void ensureValid (double value) {
-		if (Double.toString(value).equals("NaN")
-				|| Library.endsWithIgnoreCase(Double.toString(value), "Infinity")) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
 			throw new ArithmeticException();
 		}
 	}
 	
-	private double getValue (Set<String> cells) {
-		// Replace all instances of - - or -- with +.
-		// For example, 5 - -5 would become 5 + 5, which would evaluate to 10.0
-		String s = formula.replaceAll("-\\s*-", "+");
-		double value = getValue(s, cells);
-		ensureValid(value);
-		return value;
-	}
-	
 	/**
-	 * Returns the value of the given {@link String} as a {@code double} if it is
-	 * a well-formed, syntactically valid mathematical expression. A {@link NumberFormatException}
-	 * is thrown if the formula is not valid.
-	 * @param formula The {@link String} to be evaluated as a formula.
-	 */
-	private double getValue (String formula, Set<String> cells) {
-		String[] regexes = new String[] {
-			"\\s*\\(\\s*(.*)\\s*\\)\\s*", // parentheses
-			"\\s*(.*)\\s*\\+\\s*(.*)\\s*", // addition
-			"\\s*(.*)\\s*-\\s*(.*)\\s*", // subtraction
-			"\\s*(.*)\\s*\\*\\s*(.*)\\s*", // multiplication
-			"\\s*(.*)\\s*/\\s*(.*)\\s*", // division
-			"\\s*(.*)\\s*%\\s*(.*)\\s*", // modulo
-			"\\s*(.*)\\s*\\^\\s*(.*)\\s*", // exponentiation
-			"\\s*-\\s*(\\(.*\\)|\\d)\\s*", // negation
-			"\\s*([A-Z]+\\d+)\\s*", // cell reference
-			"\\s+(\\d)\\s*", // number preceded by, possibly followed by spaces
-			"(\\d+)\\s+", // number followed by spaces
-		};
-		
-		// create a Matcher object for each pattern
-		Matcher[] matchers = new Matcher[regexes.length];
-		for (int i = 0; i < matchers.length; i++) {
-			matchers[i] = Pattern.compile("^" + regexes[i] + "$").matcher(formula);
-		}
+	 * A value that was computed for one version of a {@link Spreadsheet}.
+	 */
+	private static class Memo {
+		final long version;
+		final double value;
+		final boolean error; // whether the formula did not evaluate to a real number
 		
-		// eliminate redundancy (no "matchers[0].find()", "matchers[1].find()", etc.)
-		boolean[] found = new boolean[matchers.length];
-		for (int i = 0; i < found.length; i++) {
-			if (i == 2) { // Subtraction; handled separately
-				continue;
-			}
-			found[i] = matchers[i].find();
+		Memo (long version, double value, boolean error) {
+			this.version = version;
+			this.value = value;
+			this.error = error;
 		}
+	}
+	
+	/**
+	 * The parsed form of a formula, which is shared by the cells that the formula was filled into.
+	 */
+	private static class Code {
+		final String source; // the text of the formula in the cell it was entered in
+		final int row;
+		final int col;
+		final Expression expression;
+		final boolean relative; // whether every reference in the expression is relative
+		int evaluations;
+		CompiledFormula compiled; // null until the formula has been compiled
 		
-		// The subtraction sign is not immediately preceded by a different operator,
-		// and is not at the beginning of the expression
-		found[2] = matchers[2].find()
-				&& !Library.containsRegex(matchers[2].group(1),
-						"[\\+\\*\\/%\\^]\\s*$")
-				&& !matchers[2].group(1).matches("\\s*");
-		
-		// Make sure that any binary operator that is being evaluated isn't inside parentheses
-		for (int i = 2; i < found.length - 4; i++) {
-			found[i] = found[i]
-					&& Library.parensAreClosed(matchers[i].group(1))
-					&& Library.parensAreClosed(matchers[i].group(2));
+		Code (String source, int row, int col, Expression expression, boolean relative) {
+			this.source = source;
+			this.row = row;
+			this.col = col;
+			this.expression = expression;
+			this.relative = relative;
 		}
 		
-		// recursive cases
-		if (formula.matches("(?iu)\\(\\s*avg\\s*[A-Z]+\\d+\\s*-\\s*[A-Z]+\\d+\\s*\\)")) { // average
-			Matcher m
-					= Pattern.compile("(?iu)\\(\\s*avg\\s*([A-Z]+\\d+)\\s*-\\s*([A-Z]+\\d+)\\s*\\)")
-					.matcher(formula);
-			String startIndex = "";
-			String endIndex = "";
-			if (m.find()) {
-				startIndex = m.group(1);
-				endIndex = m.group(2);
-			}
-			return spreadsheet.avg(startIndex, endIndex);
-		} else if (formula.matches("(?iu)\\(\\s*sum\\s*[A-Z]+\\d+\\s*-\\s*[A-Z]+\\d+\\s*\\)")) { // sum
-			Matcher m
-					= Pattern.compile("(?iu)\\(\\s*sum\\s*([A-Z]+\\d+)\\s*-\\s*([A-Z]+\\d+)\\s*\\)")
-					.matcher(formula);
-			String startIndex = "";
-			String endIndex = "";
-			if (m.find()) {
-				startIndex = m.group(1);
-				endIndex = m.group(2);
-			}
-			return spreadsheet.sum(startIndex, endIndex);
-		} else if (found[0]) { // the whole expression is surrounded by parentheses
-			return getValue(matchers[0].group(1), cells);
-		} else if (found[1] || found[2]) { // PEMDAS: "AS"
-			if (found[1]) { // addition
-				return getValue(matchers[1].group(1), cells)
-						+ getValue(matchers[1].group(2), cells);
-			} else { // found[2] (subtraction)
-				return getValue(matchers[2].group(1), cells)
-						- getValue(matchers[2].group(2), cells);
+		/**
+		 * Compiles the formula, or leaves it to be interpreted if it cannot be compiled.
+		 * A formula that only calls a function is not compiled, since the function would
+		 * still be interpreted.
+		 */
+		void compile () {
+			if (expression instanceof Function) {
+				return;
 			}
-		} else if (found[3] || found[4] || found[5]) { // PEMDAS: "MD", with modulo as well
-			if (found[3]) { // multiplication
-				return getValue(matchers[3].group(1), cells)
-						* getValue(matchers[3].group(2), cells);
-			} else if (found[4]) { // division
-				return getValue(matchers[4].group(1), cells)
-						/ getValue(matchers[4].group(2), cells);
-			} else { // found[5] (modulo)
-				return getValue(matchers[5].group(1), cells)
-						% getValue(matchers[5].group(2), cells);
+			try {
+				compiled = FormulaCompiler.compile(expression);
+			} catch (RuntimeException e) { // the formula is too large, or class loaders are not allowed
+			} catch (LinkageError e) { // the generated class was rejected
 			}
-		} else if (found[6]) { // exponentiation (PEMDAS: "E")
-			return Math.pow(getValue(matchers[6].group(1), cells),
-					getValue(matchers[6].group(2), cells));
-		} else if (found[7]) { // cell reference
-			return spreadsheet.get(matchers[7].group(1)).getValue();
-		} else if (found[8]) { // negation
-			return -getValue(matchers[8].group(1), cells);
-		} else if (found[9]) { // a valid double, preceded by and possibly followed by whitespace
-			return getValue(matchers[9].group(1), cells);
-		} else if (found[10]) { // a valid double, followed by whitespace
-			return getValue(matchers[10].group(1), cells);
-		} else { // one digit, base case
-			return Double.parseDouble(formula);
 		}
 	}
 }
\ No newline at end of file
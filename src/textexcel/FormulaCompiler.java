@@ -0,0 +1,322 @@
+package textexcel;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Compiles a tree of {@link Expression}s into a subclass of {@link CompiledFormula}, by writing
+ * its class file directly. Numbers, references, negations and the binary operators become
+ * straight-line bytecode, which the virtual machine can compile to machine code; any other
+ * {@link Expression}, such as a {@link Function} or a reference to another sheet, is evaluated
+ * by the interpreter through {@link CompiledFormula#call(Object, int, int, int)}.
+ * <p>
+ * The generated code never branches, so the class file does not need stack map frames.
+ * @author Sam Beaumont
+ */
+class FormulaCompiler {
+	// Instructions
+	private static final int ALOAD_0 = 0x2A;
+	private static final int ALOAD_1 = 0x2B;
+	private static final int ALOAD_2 = 0x2C;
+	private static final int ILOAD = 0x15;
+	private static final int ILOAD_3 = 0x1D;
+	private static final int IADD = 0x60;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int DADD = 0x63;
+	private static final int DSUB = 0x67;
+	private static final int DMUL = 0x6B;
+	private static final int DDIV = 0x6F;
+	private static final int DREM = 0x73;
+	private static final int DNEG = 0x77;
+	private static final int DRETURN = 0xAF;
+	private static final int RETURN = 0xB1;
+	private static final int INVOKEVIRTUAL = 0xB6;
+	private static final int INVOKESPECIAL = 0xB7;
+	private static final int INVOKESTATIC = 0xB8;
+	
+	// The largest method that the virtual machine accepts
+	private static final int MAX_CODE_LENGTH = 65535;
+	private static final String SUPERCLASS = "textexcel/CompiledFormula";
+	private static int classes;
+	
+	private final Map<String, Integer> constants = new HashMap<String, Integer>();
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private int poolSize = 1;
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+	private final DataOutputStream codeOut = new DataOutputStream(code);
+	private final List<Expression> calls = new ArrayList<Expression>();
+	
+	private FormulaCompiler () {}
+	
+	/**
+	 * Compiles a tree of {@link Expression}s.
+	 * @param expression The root of the tree.
+	 * @return An instance of the generated class.
+	 * @throws UnsupportedOperationException If the formula is too large to be compiled.
+	 * @throws LinkageError If the virtual machine rejects the generated class.
+	 * @throws SecurityException If a class loader cannot be created.
+	 */
+	static CompiledFormula compile (Expression expression) {
+		String name;
+		synchronized (FormulaCompiler.class) {
+			name = "textexcel.CompiledFormula$" + (++classes);
+		}
+		FormulaCompiler compiler = new FormulaCompiler();
+		byte[] bytes;
+		try {
+			bytes = compiler.write(name.replace('.', '/'), expression);
+		} catch (IOException e) { // never thrown by a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		
+		// Each class gets its own loader, so that it can be unloaded with its formula
+		CompiledFormula compiled;
+		try {
+			compiled = (CompiledFormula) new Loader().define(name, bytes).getDeclaredConstructor().newInstance();
+		} catch (InstantiationException e) {
+			throw new LinkageError(e.toString());
+		} catch (IllegalAccessException e) {
+			throw new LinkageError(e.toString());
+		} catch (NoSuchMethodException e) {
+			throw new LinkageError(e.toString());
+		} catch (InvocationTargetException e) {
+			throw new LinkageError(e.toString());
+		}
+		compiled.setCalls(compiler.calls.toArray(new Expression[compiler.calls.size()]));
+		return compiled;
+	}
+	
+	/**
+	 * Writes the class file.
+	 */
+	private byte[] write (String className, Expression expression) throws IOException {
+		int thisClass = classConstant(className);
+		int superClass = classConstant(SUPERCLASS);
+		int superInit = methodConstant(SUPERCLASS, "<init>", "()V");
+		int initName = utf8("<init>");
+		int initType = utf8("()V");
+		int computeName = utf8("compute");
+		int computeType = utf8("([[Ljava/lang/Object;Ljava/lang/Object;II)D");
+		int codeName = utf8("Code");
+		
+		int maxStack = emit(expression);
+		codeOut.writeByte(DRETURN);
+		if (code.size() > MAX_CODE_LENGTH) {
+			throw new UnsupportedOperationException("Formula is too large to compile");
+		}
+		
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(file);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(50); // Java 6
+		out.writeShort(poolSize);
+		pool.writeTo(out);
+		out.writeShort(0x0031); // public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+		
+		// The constructor calls the constructor of the superclass
+		out.writeShort(0x0001); // public
+		out.writeShort(initName);
+		out.writeShort(initType);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + 5);
+		out.writeShort(1); // max stack
+		out.writeShort(1); // max locals
+		out.writeInt(5);
+		out.writeByte(ALOAD_0);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(superInit);
+		out.writeByte(RETURN);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+		
+		out.writeShort(0x0001); // public
+		out.writeShort(computeName);
+		out.writeShort(computeType);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.size());
+		out.writeShort(maxStack);
+		out.writeShort(5); // this, cells, spreadsheet, row, col
+		out.writeInt(code.size());
+		code.writeTo(out);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+		
+		out.writeShort(0); // class attributes
+		return file.toByteArray();
+	}
+	
+	/**
+	 * Writes the instructions that push the value of an {@link Expression} onto the stack.
+	 * @return The largest number of stack slots that the instructions use.
+	 */
+	private int emit (Expression expression) throws IOException {
+		if (expression instanceof Expression.Constant) {
+			codeOut.writeByte(LDC2_W);
+			codeOut.writeShort(doubleConstant(((Expression.Constant) expression).value));
+			return 2;
+		} else if (expression instanceof Expression.Reference && ((Expression.Reference) expression).sheet == null) {
+			Expression.Reference ref = (Expression.Reference) expression;
+			codeOut.writeByte(ALOAD_1);
+			codeOut.writeByte(ALOAD_2);
+			if (ref.relative) { // add the offsets to the origin
+				codeOut.writeByte(ILOAD_3);
+				emitInt(ref.row);
+				codeOut.writeByte(IADD);
+				codeOut.writeByte(ILOAD);
+				codeOut.writeByte(4);
+				emitInt(ref.col);
+				codeOut.writeByte(IADD);
+			} else {
+				emitInt(ref.row);
+				emitInt(ref.col);
+			}
+			codeOut.writeByte(INVOKESTATIC);
+			codeOut.writeShort(methodConstant(SUPERCLASS, "value", "([[Ljava/lang/Object;Ljava/lang/Object;II)D"));
+			return ref.relative ? 5 : 4;
+		} else if (expression instanceof Expression.Negation) {
+			int stack = emit(((Expression.Negation) expression).operand);
+			codeOut.writeByte(DNEG);
+			return stack;
+		} else if (expression instanceof Expression.Operation) {
+			Expression.Operation operation = (Expression.Operation) expression;
+			int stack = Math.max(emit(operation.left), 2 + emit(operation.right));
+			switch (operation.operator) {
+				case '+':
+					codeOut.writeByte(DADD);
+					break;
+				case '-':
+					codeOut.writeByte(DSUB);
+					break;
+				case '*':
+					codeOut.writeByte(DMUL);
+					break;
+				case '/':
+					codeOut.writeByte(DDIV);
+					break;
+				case '%':
+					codeOut.writeByte(DREM);
+					break;
+				default: // case '^':
+					codeOut.writeByte(INVOKESTATIC);
+					codeOut.writeShort(methodConstant("java/lang/Math", "pow", "(DD)D"));
+			}
+			return stack;
+		}
+		
+		// Anything else is left to the interpreter
+		codeOut.writeByte(ALOAD_0);
+		codeOut.writeByte(ALOAD_2);
+		emitInt(calls.size());
+		calls.add(expression);
+		codeOut.writeByte(ILOAD_3);
+		codeOut.writeByte(ILOAD);
+		codeOut.writeByte(4);
+		codeOut.writeByte(INVOKEVIRTUAL);
+		codeOut.writeShort(methodConstant(SUPERCLASS, "call", "(Ljava/lang/Object;III)D"));
+		return 5;
+	}
+	
+	private void emitInt (int value) throws IOException {
+		codeOut.writeByte(LDC_W);
+		codeOut.writeShort(intConstant(value));
+	}
+	
+	private int utf8 (String s) throws IOException {
+		Integer index = constants.get("U" + s);
+		if (index == null) {
+			poolOut.writeByte(1);
+			poolOut.writeUTF(s);
+			index = add("U" + s, 1);
+		}
+		return index;
+	}
+	
+	private int classConstant (String name) throws IOException {
+		Integer index = constants.get("C" + name);
+		if (index == null) {
+			int nameIndex = utf8(name);
+			poolOut.writeByte(7);
+			poolOut.writeShort(nameIndex);
+			index = add("C" + name, 1);
+		}
+		return index;
+	}
+	
+	private int methodConstant (String owner, String name, String type) throws IOException {
+		String key = "M" + owner + '.' + name + type;
+		Integer index = constants.get(key);
+		if (index == null) {
+			int ownerIndex = classConstant(owner);
+			int nameIndex = utf8(name);
+			int typeIndex = utf8(type);
+			poolOut.writeByte(12); // name and type
+			poolOut.writeShort(nameIndex);
+			poolOut.writeShort(typeIndex);
+			int nameAndType = add("N" + key, 1);
+			poolOut.writeByte(10);
+			poolOut.writeShort(ownerIndex);
+			poolOut.writeShort(nameAndType);
+			index = add(key, 1);
+		}
+		return index;
+	}
+	
+	private int intConstant (int value) throws IOException {
+		Integer index = constants.get("I" + value);
+		if (index == null) {
+			poolOut.writeByte(3);
+			poolOut.writeInt(value);
+			index = add("I" + value, 1);
+		}
+		return index;
+	}
+	
+	private int doubleConstant (double value) throws IOException {
+		long bits = Double.doubleToRawLongBits(value);
+		Integer index = constants.get("D" + bits);
+		if (index == null) {
+			poolOut.writeByte(6);
+			poolOut.writeLong(bits);
+			index = add("D" + bits, 2); // a double takes up two entries
+		}
+		return index;
+	}
+	
+	/**
+	 * Records a constant that was just written to the pool.
+	 * @param slots The number of entries of the pool that the constant takes up.
+	 */
+	private int add (String key, int slots) {
+		int index = poolSize;
+		if (index + slots > 0xFFFF) {
+			throw new UnsupportedOperationException("Formula is too large to compile");
+		}
+		constants.put(key, index);
+		poolSize += slots;
+		return index;
+	}
+	
+	/**
+	 * Defines a single generated class.
+	 */
+	private static class Loader extends ClassLoader {
+		Loader () {
+			super(FormulaCompiler.class.getClassLoader());
+		}
+		
+		Class<?> define (String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
\ No newline at end of file
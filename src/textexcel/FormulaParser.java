@@ -0,0 +1,387 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * Parses the text of a {@link Formula} into a tree of {@link Expression}s, using
+ * the following grammar, where operators of the same precedence are evaluated
+ * from left to right:
+ * <pre>
+ *      sum     = product { ("+" | "-") product }
+ *      product = power { ("*" | "/" | "%") power }
+ *      power   = unary { "^" unary }
+ *      unary   = "-" unary | primary
+ *      primary = number | [ sheet "!" ] reference | "(" sum ")" | name "(" [ argument { "," argument } ] ")"
+ *                | ("sum" | "avg" | "mean") cell "-" cell | "#REF!"
+ *      argument = [ sheet "!" ] reference ":" reference | text | sum
+ *      reference = cell | "R" [ "[" offset "]" ] "C" [ "[" offset "]" ]
+ * </pre>
+ * Relative references such as {@code R[-1]C[2]} are counted from the cell that holds the formula.
+ * A reference or range that starts with the name of a sheet, such as {@code Sheet2!A1}, is read
+ * from that sheet of the {@link Workbook}; names of sheets are not case-sensitive.
+ * {@code #REF!} stands for a reference to a cell that was deleted.
+ * Parts of the formula that only involve numbers, such as {@code 2 * 3}, are replaced with their values.
+ * @author Sam Beaumont
+ */
+class FormulaParser {
+	private final String s;
+	private int pos;
+	
+	private FormulaParser (String s) {
+		this.s = s;
+	}
+	
+	/**
+	 * Parses a formula into a tree of {@link Expression}s.
+	 * @param formula The {@link String} to be parsed.
+	 * @return The root of the tree.
+	 * @throws NumberFormatException If the formula is not a mathematically valid expression.
+	 * @throws UnrecognizedFunctionException If the formula calls a function that does not exist.
+	 */
+	static Expression parse (String formula) {
+		FormulaParser parser = new FormulaParser(formula);
+		Expression expression = parser.parseSum();
+		parser.skipSpaces();
+		if (parser.pos != formula.length()) { // something is left over
+			throw new NumberFormatException();
+		}
+		return expression;
+	}
+	
+	private Expression parseSum () {
+		Expression expression = parseProduct();
+		while (true) {
+			char c = peek();
+			if (c != '+' && c != '-') {
+				return expression;
+			}
+			pos++;
+			expression = fold(new Expression.Operation(c, expression, parseProduct()));
+		}
+	}
+	
+	private Expression parseProduct () {
+		Expression expression = parsePower();
+		while (true) {
+			char c = peek();
+			if (c != '*' && c != '/' && c != '%') {
+				return expression;
+			}
+			pos++;
+			expression = fold(new Expression.Operation(c, expression, parsePower()));
+		}
+	}
+	
+	private Expression parsePower () {
+		Expression expression = parseUnary();
+		while (peek() == '^') {
+			pos++;
+			expression = fold(new Expression.Operation('^', expression, parseUnary()));
+		}
+		return expression;
+	}
+	
+	private Expression parseUnary () {
+		if (peek() == '-') {
+			pos++;
+			return fold(new Expression.Negation(parseUnary()));
+		}
+		return parsePrimary();
+	}
+	
+	private Expression parsePrimary () {
+		char c = peek();
+		String sheet = readSheet();
+		if (sheet != null) {
+			Expression.Reference ref = readReference(sheet);
+			if (ref == null) {
+				throw new NumberFormatException();
+			}
+			return ref;
+		} else if (c == '(') {
+			pos++;
+			Expression expression = parseSum();
+			expect(')');
+			return expression;
+		} else if (c >= '0' && c <= '9' || c == '.') {
+			return new Expression.Constant(readNumber());
+		} else if (s.startsWith(Spreadsheet.DELETED, pos)) {
+			pos += Spreadsheet.DELETED.length();
+			return new Expression.Deleted();
+		} else if (c == 'R' && isRelativeReference()) {
+			return readRelativeReference(null);
+		} else if (Character.isLetter(c)) {
+			int start = pos;
+			while (pos < s.length() && Character.isLetter(s.charAt(pos))) {
+				pos++;
+			}
+			if (pos < s.length() && isDigit(s.charAt(pos)) && isUpperCase(start, pos)) {
+				pos = start;
+				int[] cell = readCell();
+				return new Expression.Reference(cell[0], cell[1]);
+			}
+			String name = s.substring(start, pos);
+			if (peek() == '(') {
+				pos++;
+				return fold(new Function(name, readArguments()));
+			}
+			return readLegacyRange(name);
+		}
+		throw new NumberFormatException();
+	}
+	
+	/**
+	 * Replaces an expression that does not depend on any cell with its value,
+	 * unless it cannot be computed.
+	 */
+	private static Expression fold (Expression expression) {
+		if (expression.isConstant()) {
+			try {
+				return new Expression.Constant(expression.compute(null, 0, 0));
+			} catch (ArithmeticException e) { // left to fail when the formula is evaluated
+			}
+		}
+		return expression;
+	}
+	
+	/**
+	 * Reads the arguments of a function call, after the opening parenthesis.
+	 */
+	private List<Expression> readArguments () {
+		List<Expression> args = new ArrayList<Expression>();
+		if (peek() == ')') {
+			pos++;
+			return args;
+		}
+		do {
+			args.add(readArgument());
+		} while (accept(','));
+		expect(')');
+		return args;
+	}
+	
+	private Expression readArgument () {
+		char c = peek();
+		if (c == '"') {
+			int end = s.indexOf('"', pos + 1);
+			if (end == -1) {
+				throw new NumberFormatException();
+			}
+			String text = s.substring(pos + 1, end);
+			pos = end + 1;
+			return new Expression.Text(text);
+		}
+		
+		// A range such as "A1:C10" or "R[-5]C:R[-1]C"
+		int start = pos;
+		String sheet = readSheet();
+		Expression.Reference first = readReference(sheet);
+		if (first != null && accept(':')) {
+			skipSpaces();
+			Expression.Reference last = readReference(null);
+			if (last == null) {
+				throw new NumberFormatException();
+			}
+			return new Expression.Range(sheet, first, last);
+		}
+		pos = start;
+		return parseSum();
+	}
+	
+	/**
+	 * Reads a range function written like {@code sum A1-A5}, after its name.
+	 */
+	private Expression readLegacyRange (String name) {
+		if (!name.equalsIgnoreCase("sum") && !name.equalsIgnoreCase("avg") && !name.equalsIgnoreCase("mean")) {
+			throw new UnrecognizedFunctionException(name);
+		}
+		skipSpaces();
+		int[] first = readCell();
+		if (first == null || !accept('-')) {
+			throw new NumberFormatException();
+		}
+		skipSpaces();
+		int[] last = readCell();
+		if (last == null) {
+			throw new NumberFormatException();
+		}
+		List<Expression> args = new ArrayList<Expression>();
+		args.add(new Expression.Range(first[0], first[1], last[0], last[1]));
+		return new Function(name, args);
+	}
+	
+	/**
+	 * Reads the name of a sheet followed by {@code !}, such as {@code Sheet2!}. The name starts with
+	 * a letter and is made up of letters, digits and underscores.
+	 * @return The name of the sheet in upper case, or {@code null} if there is no name of a sheet
+	 * 			at the current position.
+	 */
+	private String readSheet () {
+		int end = pos;
+		if (end >= s.length() || !Character.isLetter(s.charAt(end))) {
+			return null;
+		}
+		while (end < s.length() && (Character.isLetterOrDigit(s.charAt(end)) || s.charAt(end) == '_')) {
+			end++;
+		}
+		if (end >= s.length() || s.charAt(end) != '!') {
+			return null;
+		}
+		String sheet = s.substring(pos, end).toUpperCase();
+		pos = end + 1;
+		return sheet;
+	}
+	
+	/**
+	 * Reads a reference such as {@code AB12} or {@code R[-1]C}.
+	 * @param sheet The name of the sheet that the reference is on, or {@code null} for the sheet
+	 * 			that holds the formula.
+	 * @return The reference, or {@code null} if there is no reference at the current position.
+	 */
+	private Expression.Reference readReference (String sheet) {
+		if (pos < s.length() && s.charAt(pos) == 'R' && isRelativeReference()) {
+			return readRelativeReference(sheet);
+		}
+		int[] cell = readCell();
+		return (cell == null) ? null : new Expression.Reference(sheet, cell[0], cell[1], false);
+	}
+	
+	/**
+	 * Determines whether a relative reference starts at the current position, which is an {@code R}:
+	 * either {@code R[} or {@code RC} followed by {@code [} or by anything but a letter or digit.
+	 * Otherwise, text such as {@code RC5} is a cell in column {@code RC}.
+	 */
+	private boolean isRelativeReference () {
+		int i = pos + 1;
+		if (i < s.length() && s.charAt(i) == '[') {
+			return true;
+		} else if (i >= s.length() || s.charAt(i) != 'C') {
+			return false;
+		}
+		i++;
+		return i >= s.length() || s.charAt(i) == '[' || !Character.isLetterOrDigit(s.charAt(i));
+	}
+	
+	/**
+	 * Reads a relative reference written like {@code R[<rows>]C[<columns>]}, where either
+	 * offset may be left out along with its brackets if it is zero.
+	 * @param sheet The name of the sheet that the reference is on, or {@code null}.
+	 */
+	private Expression.Reference readRelativeReference (String sheet) {
+		pos++; // R
+		int row = readOffset();
+		if (pos >= s.length() || s.charAt(pos) != 'C') {
+			throw new NumberFormatException();
+		}
+		pos++;
+		int col = readOffset();
+		return new Expression.Reference(sheet, row, col, true);
+	}
+	
+	/**
+	 * Reads an offset written like {@code [-3]}, or returns {@code 0} if there is no opening bracket.
+	 */
+	private int readOffset () {
+		if (pos >= s.length() || s.charAt(pos) != '[') {
+			return 0;
+		}
+		int end = s.indexOf(']', pos);
+		if (end == -1) {
+			throw new NumberFormatException();
+		}
+		String offset = s.substring(pos + 1, end).trim();
+		if (offset.startsWith("+")) {
+			offset = offset.substring(1);
+		}
+		pos = end + 1;
+		return Integer.parseInt(offset); // throws NumberFormatException if it is not a number
+	}
+	
+	/**
+	 * Reads a cell such as {@code AB12}.
+	 * @return The row and column indices of the cell, or {@code null} if there is no cell at the
+	 * 			current position.
+	 */
+	private int[] readCell () {
+		int start = pos;
+		while (pos < s.length() && s.charAt(pos) >= 'A' && s.charAt(pos) <= 'Z') {
+			pos++;
+		}
+		int letters = pos;
+		while (pos < s.length() && isDigit(s.charAt(pos))) {
+			pos++;
+		}
+		if (letters == start || pos == letters || pos - letters > 9) {
+			pos = start;
+			return null;
+		}
+		int row = Integer.parseInt(s.substring(letters, pos)) - 1;
+		if (row < 0) {
+			throw new NumberFormatException();
+		}
+		return new int[] {row, Spreadsheet.toDec(s.substring(start, letters))};
+	}
+	
+	private double readNumber () {
+		int start = pos;
+		while (pos < s.length() && (isDigit(s.charAt(pos)) || s.charAt(pos) == '.')) {
+			pos++;
+		}
+		if (pos < s.length() && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+			int mark = pos;
+			pos++;
+			if (pos < s.length() && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+				pos++;
+			}
+			if (pos < s.length() && isDigit(s.charAt(pos))) {
+				while (pos < s.length() && isDigit(s.charAt(pos))) {
+					pos++;
+				}
+			} else {
+				pos = mark; // not an exponent
+			}
+		}
+		return Double.parseDouble(s.substring(start, pos)); // throws NumberFormatException for "1.2.3"
+	}
+	
+	/**
+	 * Skips any whitespace, then returns the next character, or {@code 0} at the end of the formula.
+	 */
+	private char peek () {
+		skipSpaces();
+		return (pos < s.length()) ? s.charAt(pos) : 0;
+	}
+	
+	private boolean accept (char c) {
+		if (peek() == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+	
+	private void expect (char c) {
+		if (!accept(c)) {
+			throw new NumberFormatException();
+		}
+	}
+	
+	private void skipSpaces () {
+		while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+			pos++;
+		}
+	}
+	
+	private boolean isUpperCase (int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) < 'A' || s.charAt(i) > 'Z') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean isDigit (char c) {
+		return c >= '0' && c <= '9';
+	}
+}
\ No newline at end of file
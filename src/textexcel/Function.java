@@ -1,13 +1,15 @@
 package textexcel;
 
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
 
 /**
  * A class to represent user-called functions, such as {@code AVG}, {@code SUM}, etc.
+ * Functions are called in formulas like this: {@code SUM(A1:A10, 5)}. Ranges of cells are
+ * written as {@code <first cell>:<last cell>}.
  * @author Sam Beaumont
  */
-class Function {
+class Function extends Expression {
 	/**
 	 * Indicates that the function returns the average of the values of a range of {@link Cell}s.
 	 */
@@ -29,8 +31,7 @@ class Function {
 	 */
 	static final int MIN = 3;
 	/**
-	 * Indicates that the function returns the square root of two expressions that both evaluate
-	 * to real numbers.
+	 * Indicates that the function returns the square root of an expression.
 	 */
 	static final int SQRT = 4;
 	/**
@@ -38,101 +39,292 @@ class Function {
 	 * in the specified range.
 	 */
 	static final int SUM = 5;
+	/**
+	 * Indicates that the function looks up a value in the first column of a range and
+	 * returns the value in another column of the same row:
+	 * {@code VLOOKUP(value, range, column [, approximate])}.
+	 */
+	static final int VLOOKUP = 6;
+	/**
+	 * Indicates that the function looks up a value in the first row of a range and
+	 * returns the value in another row of the same column:
+	 * {@code HLOOKUP(value, range, row [, approximate])}.
+	 */
+	static final int HLOOKUP = 7;
+	/**
+	 * Indicates that the function returns the position of a value in a single row or column:
+	 * {@code MATCH(value, range [, type])}.
+	 */
+	static final int MATCH = 8;
+	/**
+	 * Indicates that the function returns the number of {@link Cell}s in a range that satisfy
+	 * a {@link Criterion}: {@code COUNTIF(range, criterion)}.
+	 */
+	static final int COUNTIF = 9;
+	/**
+	 * Indicates that the function returns the sample standard deviation of its arguments.
+	 */
+	static final int STDEV = 10;
+	/**
+	 * Indicates that the function returns the sample variance of its arguments.
+	 */
+	static final int VAR = 11;
+	/**
+	 * Indicates that the function returns the population covariance of two ranges of the same
+	 * size: {@code COVAR(range, range)}.
+	 */
+	static final int COVAR = 12;
+	/**
+	 * Indicates that the function returns the correlation coefficient of two ranges of the same
+	 * size: {@code CORREL(range, range)}.
+	 */
+	static final int CORREL = 13;
+	/**
+	 * Indicates that the function multiplies the cells in the same position of ranges of the same
+	 * size and returns the sum of the products: {@code SUMPRODUCT(range, range, ...)}.
+	 */
+	static final int SUMPRODUCT = 14;
+	/**
+	 * Indicates that the function returns the sum of the {@link Cell}s of a range whose cells in
+	 * the same positions of another range satisfy a {@link Criterion}:
+	 * {@code SUMIF(range, criterion [, sum range])}.
+	 */
+	static final int SUMIF = 15;
+	/**
+	 * Indicates that the function returns the average of the {@link Cell}s of a range whose cells
+	 * in the same positions of another range satisfy a {@link Criterion}:
+	 * {@code AVERAGEIF(range, criterion [, average range])}.
+	 */
+	static final int AVERAGEIF = 16;
+	/**
+	 * Indicates that the function returns the number of positions of ranges of the same size where
+	 * every range satisfies its {@link Criterion}: {@code COUNTIFS(range, criterion, ...)}.
+	 */
+	static final int COUNTIFS = 17;
+	/**
+	 * Indicates that the function returns the sum of the {@link Cell}s of a range in the positions
+	 * where every other range satisfies its {@link Criterion}:
+	 * {@code SUMIFS(sum range, range, criterion, ...)}.
+	 */
+	static final int SUMIFS = 18;
+	/**
+	 * Indicates that the function returns the average of the {@link Cell}s of a range in the
+	 * positions where every other range satisfies its {@link Criterion}:
+	 * {@code AVERAGEIFS(average range, range, criterion, ...)}.
+	 */
+	static final int AVERAGEIFS = 19;
+	/**
+	 * The smallest number of cells that {@code STDEV}, {@code VAR}, {@code COVAR}, {@code CORREL}
+	 * and {@code SUMPRODUCT} read on several threads at once.
+	 */
+	static final int PARALLEL_CELLS = 1 << 20;
+	/**
+	 * The number of threads that large ranges are read on.
+	 */
+	static final int THREADS = Runtime.getRuntime().availableProcessors();
+	/**
+	 * The threads that large ranges are read on, which are shared with {@link Query}.
+	 */
+	static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread(r, "TextExcel statistics");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	// The name, smallest number of arguments and largest number of arguments of each type
+	private static final String[] NAMES = {"AVG", "MAX", "MED", "MIN", "SQRT", "SUM",
+			"VLOOKUP", "HLOOKUP", "MATCH", "COUNTIF", "STDEV", "VAR", "COVAR", "CORREL", "SUMPRODUCT",
+			"SUMIF", "AVERAGEIF", "COUNTIFS", "SUMIFS", "AVERAGEIFS"};
+	private static final int[] MIN_ARGS = {1, 1, 1, 1, 1, 1, 3, 3, 2, 2, 1, 1, 2, 2, 1, 2, 2, 2, 3, 3};
+	private static final int[] MAX_ARGS = {-1, -1, -1, -1, 1, -1, 4, 4, 3, 2, -1, -1, 2, 2, -1,
+			3, 3, -1, -1, -1}; // -1 for no limit
+	
+	private static final int BLOCK_CELLS = 1 << 14; // the number of cells that are summarized at a time
 	
 	private int type;
 	private String original;
-	private List<String> args;
-	private boolean isFormatted;
-	private Spreadsheet spreadsheet; // To allow references to cells or ranges of cells
+	private Expression[] args;
+	private RangeCache[] caches; // by the positions of the arguments, null until a range is cached
+	// The criteria of the conditional functions, by the positions of the arguments; null for
+	// the arguments that are not written as text, which are compiled each time they are used
+	private Criterion[] criteria;
 	
 	/**
-	 * Constructs a new {@code Function} object by parsing the given {@link String} to determine
-	 * the type of function represented and the arguments passed to that function.
-	 * @param func
-	 * @param spreadsheet
+	 * Constructs a new {@code Function} with all fields set to their default values.
 	 */
-	Function (String func, Spreadsheet spreadsheet) {
-		args = readArgs(func);
-		
-		if (func.matches("[A-Za-z]+\\(.*\\)")) {
-			if ((Library.startsWithIgnoreCase(func, "AVG") || Library
-					.startsWithIgnoreCase(func, "MEAN"))) {
-				type = AVG;
-			} else if (Library.startsWithIgnoreCase(func, "MAX")) {
-				type = MAX;
-			} else if (Library.startsWithIgnoreCase(func, "MED")) {
-				type = MEAN;
-			} else if (Library.startsWithIgnoreCase(func, "MIN")) {
-				type = MIN;
-			} else if (Library.startsWithIgnoreCase(func, "SQRT")) {
-				type = SQRT;
-			} else if (Library.startsWithIgnoreCase(func, "SUM")) {
-				type = SUM;
-			} else {
-				Matcher funcNameFinder = Pattern.compile("([A-Za-z]+)\\(.*\\)").matcher(func);
-				String funcName = null;
-				if (funcNameFinder.find()) { // always evaluates to true
-					funcName = funcNameFinder.group(1);
-				}
-				throw new UnrecognizedFunctionException(funcName);
-			}
-			
-			isFormatted = true;
-		} else if (func.matches("(?iu)(AVG|MEAN|SUM)\\s+[A-Z]+\\d+\\s*-\\s*[A-Z]+\\d+")) {
-			Matcher argReader
-					= Pattern.compile("(?iu)(AVG|MEAN|SUM)\\s+([A-Z]+\\d+)\\s*-\\s*([A-Z]+\\d+)")
-					.matcher(func);
-			
-			if (argReader.find()) { // always evaluates to true
-				args.add(argReader.group(1));
-				args.add(argReader.group(2));
-			}
-			
-			if (Library.startsWithIgnoreCase(func, "avg") || Library.startsWithIgnoreCase(func, "mean")) {
-				type = AVG;
-			} else if (Library.startsWithIgnoreCase(func, "sum")) {
-				type = SUM;
-			} else {
-				String funcName = null;
-				if (func.matches("[A-Za-z]+\\(.*\\)")) {
-					funcName = func.substring(0, func.indexOf("("));
-				} else if (func.matches("[A-Za-z]+\\s+[A-Z]+\\d+\\s*-\\s*[A-Z]+\\d+\\s*")) {
-					funcName = func.substring(0, func.indexOf(" "));
-				}
-				
-				if (funcName == null) {
-					throw new UnrecognizedFunctionException();
-				} else {
-					throw new UnrecognizedFunctionException(funcName);
-				}
-			}
-			
-			isFormatted = false;
+	private Function () {}
+	
+	/**
+	 * Constructs a new {@code Function} with the given name and arguments.
+	 * @param name The name of the function, case-insensitive.
+	 * @param args The arguments passed to the function.
+	 * @throws UnrecognizedFunctionException If there is no function with the given name.
+	 * @throws NumberFormatException If the function is passed the wrong number or kind of arguments.
+	 */
+	Function (String name, List<Expression> args) {
+		if (name.equalsIgnoreCase("MEAN")) {
+			type = MEAN;
 		} else {
-			throw new UnrecognizedFunctionException();
+			type = Arrays.asList(NAMES).indexOf(name.toUpperCase());
+			if (type == -1) {
+				throw new UnrecognizedFunctionException(name);
+			}
 		}
+		if (args.size() < MIN_ARGS[type] || MAX_ARGS[type] != -1 && args.size() > MAX_ARGS[type]) {
+			throw new NumberFormatException();
+		}
+		this.args = args.toArray(new Expression[args.size()]);
 		
-		this.spreadsheet = spreadsheet;
+		// The lookup functions need a range in a particular position
+		if (type == VLOOKUP || type == HLOOKUP || type == MATCH) {
+			requireRange(1);
+		} else if (type == COUNTIF || type >= SUMIF) {
+			// Each range that is tested is followed by its criterion, which is compiled now if it is text
+			criteria = new Criterion[this.args.length];
+			int end = isMultiple() ? this.args.length : 2;
+			if ((end - firstCriterion()) % 2 != 0) {
+				throw new NumberFormatException();
+			}
+			for (int i = firstCriterion(); i < end; i += 2) {
+				requireRange(i);
+				if (this.args[i + 1] instanceof Expression.Range) {
+					throw new NumberFormatException();
+				} else if (this.args[i + 1] instanceof Expression.Text) {
+					criteria[i + 1] = Criterion.parse(((Expression.Text) this.args[i + 1]).text);
+				}
+			}
+			if (valueRange() != -1) {
+				requireRange(valueRange());
+			}
+		} else if (type == COVAR || type == CORREL || type == SUMPRODUCT) {
+			for (int i = 0; i < this.args.length; i++) {
+				requireRange(i);
+			}
+		}
+		original = name;
 	}
 	
 	/**
 	 * Returns the value computed by the {@code Function}.
+	 * @param spreadsheet The {@link Spreadsheet} that ranges and references are read from.
+	 * @throws ArithmeticException If the value cannot be computed, for example if a value
+	 * 			that is looked up is not found.
 	 */
-	double getValue () {
-		if (type == AVG) {
-			
-		} else if (type == MAX) {
-			
-		} else if (type == MED) {
-			
-		} else if (type == MIN) {
-			
-		} else if (type == SQRT) {
-			return Math.sqrt(Double.parseDouble(args.get(0)));
-		} else { 
-			return 0;
+	double compute (Spreadsheet spreadsheet, int row, int col) {
+		switch (type) {
+			case SQRT:
+				return Math.sqrt(args[0].evaluate(spreadsheet, row, col));
+			case VLOOKUP:
+			case HLOOKUP:
+				return lookUp(spreadsheet, row, col);
+			case MATCH:
+				return match(spreadsheet, row, col);
+			case COUNTIF:
+			case SUMIF:
+			case AVERAGEIF:
+			case COUNTIFS:
+			case SUMIFS:
+			case AVERAGEIFS:
+				return conditional(spreadsheet, row, col);
+			case STDEV:
+			case VAR:
+			case COVAR:
+			case CORREL:
+			case SUMPRODUCT:
+				return statistic(spreadsheet, row, col);
+			default:
+				return aggregate(spreadsheet, row, col);
+		}
+	}
+	
+	boolean isConstant () {
+		for (Expression arg : args) {
+			if (!arg.isConstant()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public boolean equals (Object o) {
+		if (o == this) {
+			return true;
+		} else if (!(o instanceof Function)) {
+			return false;
+		}
+		Function f = (Function) o;
+		return f.type == type && Arrays.equals(f.args, args);
+	}
+	
+	int computeHash () {
+		return Arrays.hashCode(args) * 31 + type;
+	}
+	
+	boolean isRelative () {
+		for (Expression arg : args) {
+			if (arg.isRelative()) {
+				return true;
+			}
 		}
-		return 0;
+		return false;
+	}
+	
+	Expression relativeTo (int row, int col) {
+		Function f = new Function();
+		f.type = type;
+		f.original = original;
+		f.criteria = criteria;
+		f.args = new Expression[args.length];
+		for (int i = 0; i < args.length; i++) {
+			f.args[i] = args[i].relativeTo(row, col);
+		}
+		return f;
+	}
+	
+	void addSheets (Set<String> sheets) {
+		for (Expression arg : args) {
+			arg.addSheets(sheets);
+		}
+	}
+	
+	boolean movesWith (Spreadsheet.Shift shift, int row, int col) {
+		for (Expression arg : args) {
+			if (!arg.movesWith(shift, row, col)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	boolean referencesOrigin (int row, int col) {
+		for (Expression arg : args) {
+			if (arg.referencesOrigin(row, col)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the arguments passed to the {@code Function}. Elements of the array may be
+	 * replaced with equal {@link Expression}s.
+	 */
+	Expression[] getArguments () {
+		return args;
+	}
+	
+	/**
+	 * Returns {@code true} if any of the arguments is a range of {@link Cell}s.
+	 */
+	boolean hasRange () {
+		for (Expression arg : args) {
+			if (arg instanceof Expression.Range) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -143,51 +335,687 @@ class Function {
 	}
 	
 	/**
-	 * Returns the {@link String} that was originally used to construct the {@code Function}.
+	 * Returns the name that was originally used to call the {@code Function}.
 	 */
 	public String toString () {
 		return original;
 	}
 	
 	/**
-	 * Reads a {@link String} representing a user-called function, parsing its parameters.
-	 * @param func A {@link String} of parameters.
-	 * @return A {@link List}{@code <}{@link String}{@code >} representing the parameters
-	 * 			passed to the function.
+	 * Computes {@code AVG}, {@code MAX}, {@code MED}, {@code MIN} or {@code SUM} over every
+	 * argument. Only the numbers, dates and formulas in a range are included. A range that
+	 * does not move and spans more than one block of rows is summarized one block at a time,
+	 * and the summaries are kept so that only the blocks that change are read again.
 	 */
-	private static List<String> readArgs (String func) {
-		List<String> args = new LinkedList<String>();
-		if (func.matches("[A-Za-z]+\\(.*\\)")) {
-			addArgs(func, args);
-		} else if (func.matches("[A-za-z]+\\s*[A-Z]+\\d+\\s*-\\s*[A-Z]+\\d+")) {
-			Matcher argFinder = Pattern.compile("[A-za-z]+\\s*([A-Z]+\\d+)\\s*-\\s*([A-Z]+\\d+)").matcher(func);
-			args.add(argFinder.group(1));
-			args.add(argFinder.group(2));
+	private double aggregate (Spreadsheet spreadsheet, int row, int col) {
+		double[] values = (type == MED) ? new double[16] : null;
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int count = 0;
+		for (int a = 0; a < args.length; a++) {
+			Expression arg = args[a];
+			if (arg instanceof Expression.Range) {
+				Expression.Range range = ((Expression.Range) arg).at(row, col);
+				Spreadsheet sheet = range.resolve(spreadsheet);
+				if (type != MED && isCached(a, range, sheet)) {
+					Moments moments = new Moments();
+					summarize(spreadsheet, row, col, a, new Expression[] {arg}, moments);
+					sum += moments.getTotal();
+					min = Math.min(min, moments.getMin());
+					max = Math.max(max, moments.getMax());
+					count += moments.getCount();
+					continue;
+				}
+				int lastRow = Math.min(range.lastRow, sheet.getRowCount() - 1);
+				int lastCol = Math.min(range.lastCol, sheet.getColumnCount() - 1);
+				for (int i = range.firstRow; i <= lastRow; i++) {
+					for (int j = range.firstCol; j <= lastCol; j++) {
+						Types cellType = sheet.getCell(i, j).getType();
+						if (cellType == Types.EMPTY || cellType == Types.STRING) {
+							continue;
+						}
+						double value = sheet.getValue(i, j);
+						sum += value;
+						min = Math.min(min, value);
+						max = Math.max(max, value);
+						if (values != null) {
+							if (count == values.length) {
+								values = Arrays.copyOf(values, count * 2);
+							}
+							values[count] = value;
+						}
+						count++;
+					}
+				}
+			} else if (!(arg instanceof Expression.Text)) {
+				double value = arg.evaluate(spreadsheet, row, col);
+				sum += value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				if (values != null) {
+					if (count == values.length) {
+						values = Arrays.copyOf(values, count * 2);
+					}
+					values[count] = value;
+				}
+				count++;
+			}
+		}
+		
+		switch (type) {
+			case AVG:
+				if (count == 0) {
+					throw new ArithmeticException();
+				}
+				return sum / count;
+			case MAX:
+				return (count == 0) ? 0 : max;
+			case MIN:
+				return (count == 0) ? 0 : min;
+			case MED:
+				if (count == 0) {
+					throw new ArithmeticException();
+				}
+				Arrays.sort(values, 0, count);
+				return (count % 2 == 1) ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) / 2;
+			default: // case SUM:
+				return sum;
+		}
+	}
+	
+	/**
+	 * Computes {@code STDEV}, {@code VAR}, {@code COVAR}, {@code CORREL} or {@code SUMPRODUCT} in
+	 * a single pass over the cells, see {@link Moments}. {@code STDEV} and {@code VAR} include every
+	 * argument, and only the numbers, dates and formulas in a range, as {@link #aggregate} does.
+	 * {@code COVAR} and {@code CORREL} only include the positions where both ranges hold one of
+	 * those, and {@code SUMPRODUCT} counts any other cell as {@code 0}.
+	 */
+	private double statistic (Spreadsheet spreadsheet, int row, int col) {
+		Moments moments = new Moments();
+		if (type == STDEV || type == VAR) {
+			for (int a = 0; a < args.length; a++) {
+				if (args[a] instanceof Expression.Range) {
+					summarize(spreadsheet, row, col, a, new Expression[] {args[a]}, moments);
+				} else if (!(args[a] instanceof Expression.Text)) {
+					moments.add(args[a].evaluate(spreadsheet, row, col));
+				}
+			}
 		} else {
-			throw new UnrecognizedFunctionException();
+			summarize(spreadsheet, row, col, -1, args, moments);
 		}
-		return args;
+		
+		switch (type) {
+			case STDEV:
+				return Math.sqrt(moments.getVariance());
+			case VAR:
+				return moments.getVariance();
+			case COVAR:
+				return moments.getCovariance();
+			case CORREL:
+				return moments.getCorrelation();
+			default: // case SUMPRODUCT:
+				return moments.getSum();
+		}
+	}
+	
+	/**
+	 * Returns {@code true} if the summaries of the blocks of a range that is an argument are kept,
+	 * which they are if the range does not move and spans more than one block of rows,
+	 * {@code false} otherwise.
+	 * @param arg The position of the argument.
+	 * @param range The range, as returned by {@link Expression.Range#at(int, int)}.
+	 * @param sheet The {@link Spreadsheet} that the range is on.
+	 */
+	private boolean isCached (int arg, Expression.Range range, Spreadsheet sheet) {
+		return !args[arg].isRelative() && range.firstRow / Spreadsheet.BLOCK_ROWS
+				< Math.min(range.lastRow, sheet.getRowCount() - 1) / Spreadsheet.BLOCK_ROWS;
+	}
+	
+	/**
+	 * Adds the cells of ranges of the same size to a {@link Moments}, a block of rows at a time.
+	 * If the ranges hold at least {@link #PARALLEL_CELLS} cells, the blocks are read and summarized
+	 * on other threads, and the ones that cannot be read there without computing a formula are
+	 * read on this thread instead. The summaries are combined in order either way. The other
+	 * threads only read the rows of the ranges as this thread found them when it forked them,
+	 * and this thread waits for all of them to end before it parses a row or computes a formula,
+	 * so they never read what another thread is writing.
+	 * <p>
+	 * If the summaries of a single range are kept (see {@link #isCached}), the blocks are the
+	 * blocks of rows of its sheet, and a block is only read again if its version
+	 * ({@link Spreadsheet#getBlockVersion(int)}) has changed, or it holds formulas and the
+	 * version of the sheet has changed.
+	 * @param arg The position of the range if there is only one, or {@code -1}.
+	 * @param ranges The ranges, which are all instances of {@link Expression.Range}.
+	 * @throws ArithmeticException If the ranges are not the same size, or a cell does not evaluate
+	 * 			to a real number.
+	 */
+	private void summarize (Spreadsheet spreadsheet, int row, int col, int arg, Expression[] ranges,
+			Moments moments) {
+		final Expression.Range[] at = new Expression.Range[ranges.length];
+		final Spreadsheet[] sheets = new Spreadsheet[ranges.length];
+		int rows = Integer.MAX_VALUE;
+		int cols = Integer.MAX_VALUE;
+		for (int k = 0; k < ranges.length; k++) {
+			at[k] = ((Expression.Range) ranges[k]).at(row, col);
+			sheets[k] = at[k].resolve(spreadsheet);
+			if (at[k].lastRow - at[k].firstRow != at[0].lastRow - at[0].firstRow
+					|| at[k].lastCol - at[k].firstCol != at[0].lastCol - at[0].firstCol) {
+				throw new ArithmeticException("Ranges of different sizes");
+			}
+			// The cells outside of a sheet are empty, so they add nothing
+			rows = Math.min(rows, Math.min(at[k].lastRow, sheets[k].getRowCount() - 1) - at[k].firstRow + 1);
+			cols = Math.min(cols, Math.min(at[k].lastCol, sheets[k].getColumnCount() - 1) - at[k].firstCol + 1);
+		}
+		if (rows <= 0 || cols <= 0) {
+			return;
+		}
+		
+		// The blocks, whose rows are counted from the top of the ranges
+		Block[] cached = null;
+		int offset = 0;
+		int blockRows = Math.max(1, BLOCK_CELLS / cols);
+		if (arg != -1 && isCached(arg, at[0], sheets[0])) {
+			cached = cache(arg, sheets[0], (at[0].firstRow + rows - 1) / Spreadsheet.BLOCK_ROWS + 1);
+			offset = at[0].firstRow % Spreadsheet.BLOCK_ROWS;
+			blockRows = Spreadsheet.BLOCK_ROWS;
+		}
+		int firstBlock = at[0].firstRow / Spreadsheet.BLOCK_ROWS;
+		int blocks = (rows + offset + blockRows - 1) / blockRows;
+		long sheetVersion = sheets[0].getVersion();
+		Block[] summaries = new Block[blocks];
+		if (cached != null) {
+			for (int b = 0; b < blocks; b++) {
+				Block block = cached[firstBlock + b];
+				if (block != null && block.version == sheets[0].getBlockVersion(firstBlock + b)
+						&& (!block.formulas || block.sheetVersion == sheetVersion)) {
+					summaries[b] = block;
+				}
+			}
+		}
+		
+		final int width = cols;
+		List<Future<Block>> parallel = new ArrayList<Future<Block>>();
+		Block[] computed = new Block[blocks]; // the summaries that the other threads computed
+		if ((long) rows * cols * ranges.length >= PARALLEL_CELLS && THREADS > 1) {
+			final Cell[][][] snapshots = new Cell[ranges.length][][];
+			for (int k = 0; k < ranges.length; k++) {
+				snapshots[k] = Arrays.copyOfRange(sheets[k].getCells(), at[k].firstRow, at[k].firstRow + rows);
+			}
+			for (int b = 0; b < blocks; b++) {
+				final int first = Math.max(0, b * blockRows - offset);
+				final int end = Math.min(rows, (b + 1) * blockRows - offset);
+				parallel.add((summaries[b] != null) ? null : POOL.submit(new Callable<Block>() {
+					public Block call () {
+						return summarize(sheets, snapshots, at, first, end, width);
+					}
+				}));
+			}
+		}
+		try {
+			for (int b = 0; b < parallel.size(); b++) {
+				if (parallel.get(b) != null) {
+					computed[b] = get(parallel.get(b));
+				}
+			}
+			for (int b = 0; b < blocks; b++) {
+				Block block = summaries[b];
+				if (block == null) {
+					block = computed[b];
+					if (block == null) {
+						block = summarize(sheets, null, at, Math.max(0, b * blockRows - offset),
+								Math.min(rows, (b + 1) * blockRows - offset), width);
+					}
+					if (cached != null) {
+						block.version = sheets[0].getBlockVersion(firstBlock + b);
+						block.sheetVersion = sheetVersion;
+						cached[firstBlock + b] = block;
+					}
+				}
+				moments.combine(block.moments);
+			}
+		} finally {
+			for (Future<Block> block : parallel) {
+				if (block != null) {
+					block.cancel(false);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the summaries that are kept of the blocks of a range that is an argument, by the
+	 * indices of the blocks of its sheet, forgetting them if the range is now on another sheet.
+	 * @param arg The position of the argument.
+	 * @param sheet The {@link Spreadsheet} that the range is on.
+	 * @param blocks The smallest number of blocks that the array must hold.
+	 */
+	private Block[] cache (int arg, Spreadsheet sheet, int blocks) {
+		if (caches == null) {
+			caches = new RangeCache[args.length];
+		}
+		RangeCache cache = caches[arg];
+		if (cache == null || cache.sheet != sheet) {
+			cache = caches[arg] = new RangeCache(sheet);
+		}
+		if (cache.blocks.length < blocks) {
+			cache.blocks = Arrays.copyOf(cache.blocks, blocks);
+		}
+		return cache.blocks;
+	}
+	
+	/**
+	 * Reads a block of rows of ranges of the same size into buffers and summarizes it.
+	 * @param snapshots The rows of each range, from its top, as the thread that computes the
+	 * 			formula that calls the function found them, if this is another thread; or {@code null}
+	 * 			on that thread, to read the rows of the sheets and compute the formulas in them.
+	 * @param first The first row of the block, counted from the top of the ranges.
+	 * @param end The row after the last row of the block, counted from the top of the ranges.
+	 * @param cols The number of columns to read.
+	 * @return The summary of the block, or {@code null} if a formula would have to be computed,
+	 * 			or a row has not been parsed, and {@code snapshots} is not {@code null}.
+	 */
+	private Block summarize (Spreadsheet[] sheets, Cell[][][] snapshots, Expression.Range[] ranges,
+			int first, int end, int cols) {
+		int size = (end - first) * cols;
+		double[][] buffers = new double[ranges.length][size];
+		Block block = new Block();
+		for (int k = 0; k < ranges.length; k++) {
+			int formulas = (snapshots == null)
+					? read(sheets[k], null, ranges[k].firstRow + first, ranges[k].firstRow + end,
+							ranges[k].firstCol, cols, buffers[k])
+					: read(sheets[k], snapshots[k], first, end, ranges[k].firstCol, cols, buffers[k]);
+			if (formulas == -1) {
+				return null;
+			}
+			block.formulas |= formulas > 0;
+		}
+		
+		Moments moments = block.moments;
+		if (type == COVAR || type == CORREL) {
+			double[] x = buffers[0];
+			double[] y = buffers[1];
+			for (int i = 0; i < size; i++) {
+				if (!Double.isNaN(x[i]) && !Double.isNaN(y[i])) {
+					moments.add(x[i], y[i]);
+				}
+			}
+		} else if (type == SUMPRODUCT) {
+			for (int i = 0; i < size; i++) {
+				double product = 1;
+				for (double[] buffer : buffers) {
+					product *= Double.isNaN(buffer[i]) ? 0 : buffer[i];
+				}
+				moments.addProduct(product);
+			}
+		} else {
+			double[] x = buffers[0];
+			for (int i = 0; i < size; i++) {
+				if (!Double.isNaN(x[i])) {
+					moments.add(x[i]);
+				}
+			}
+		}
+		return block;
 	}
 	
 	/**
-	 * Adds the arguments of a function to an {@link List}, assuming that the {@link String}
-	 * representing the function matches the regular expression "{@code [A-Za-z]\(.*\)}".
-	 * @param func The function to be parsed.
-	 * @param args The {@link List} of {@link String} to be filled.
+	 * Reads the values of a block of rows of a sheet into a buffer, row by row, with {@code NaN}
+	 * for the cells that are not numbers, dates or formulas.
+	 * @param snapshot Some rows of the sheet, which are read without computing formulas or parsing
+	 * 			rows; or {@code null} to read the rows of the sheet itself, computing formulas and
+	 * 			parsing rows as they are needed.
+	 * @param firstRow The index of the first row, in {@code snapshot} if it is not {@code null}.
+	 * @param endRow The index of the row after the last row.
+	 * @return The number of formulas that were read, or {@code -1} if a formula would have to be
+	 * 			computed, or a row has not been parsed, and {@code snapshot} is not {@code null}.
+	 * @throws ArithmeticException If a formula does not evaluate to a real number, and
+	 * 			{@code snapshot} is {@code null}.
 	 */
-	private static void addArgs (String func, List<String> args) {
-		Scanner argReader = new Scanner(func).useDelimiter(",\\s*");
-		while (argReader.hasNext()) {
-			String current = argReader.next();
-			if (Library.parensAreClosed(current)) {
-				args.add(current);
-			} else {
-				recursiveAddArgs(argReader, args);
+	private static int read (Spreadsheet sheet, Cell[][] snapshot, int firstRow, int endRow, int firstCol,
+			int cols, double[] buffer) {
+		boolean compute = (snapshot == null);
+		int n = 0;
+		int formulas = 0;
+		for (int i = firstRow; i < endRow; i++) {
+			if (!compute && snapshot[i] == null) {
+				return -1;
 			}
+			for (int j = firstCol; j < firstCol + cols; j++) {
+				Cell cell = compute ? sheet.getCell(i, j) : snapshot[i][j];
+				Types cellType = cell.getType();
+				if (cellType == Types.EMPTY || cellType == Types.STRING) {
+					buffer[n++] = Double.NaN;
+					continue;
+				} else if (cellType != Types.FORMULA) {
+					buffer[n++] = cell.getValue();
+					continue;
+				}
+				formulas++;
+				if (compute) {
+					buffer[n++] = cell.getValue();
+				} else if (cell.getFormula().isCalculated() && !Double.isNaN(cell.getFormula().getLastValue())) {
+					buffer[n++] = cell.getFormula().getLastValue();
+				} else { // not computed yet, or an error, which is thrown on the other thread
+					return -1;
+				}
+			}
+		}
+		return formulas;
+	}
+	
+	/**
+	 * Returns the summary that another thread computed, or {@code null} if it could not.
+	 */
+	private static Block get (Future<Block> block) {
+		try {
+			return block.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/**
+	 * Computes {@code VLOOKUP} or {@code HLOOKUP}.
+	 */
+	private double lookUp (Spreadsheet spreadsheet, int row, int col) {
+		Expression.Range range = ((Expression.Range) args[1]).at(row, col);
+		Spreadsheet sheet = range.resolve(spreadsheet);
+		Cell key = readKey(args[0], spreadsheet, sheet, row, col);
+		boolean byRow = (type == HLOOKUP);
+		int offset = (int) args[2].evaluate(spreadsheet, row, col) - 1;
+		if (offset < 0 || offset > (byRow ? range.lastRow - range.firstRow : range.lastCol - range.firstCol)) {
+			throw new ArithmeticException("Index out of range");
+		}
+		boolean approximate = args.length < 4 || args[3].evaluate(spreadsheet, row, col) != 0;
+		
+		LookupIndex index = byRow
+				? sheet.getLookupIndex(true, range.firstRow, range.firstCol, range.lastCol)
+				: sheet.getLookupIndex(false, range.firstCol, range.firstRow, range.lastRow);
+		int position = approximate ? index.findLessOrEqual(key) : index.findExact(key, sheet.getStrings());
+		if (position == -1) {
+			throw new ArithmeticException("Value not found");
+		}
+		return byRow ? sheet.getValue(range.firstRow + offset, range.firstCol + position)
+				: sheet.getValue(range.firstRow + position, range.firstCol + offset);
+	}
+	
+	/**
+	 * Computes {@code MATCH}. The type is {@code 1} (the default) to find the largest value that is
+	 * less than or equal to the key, {@code 0} to find an equal value, or {@code -1} to find the
+	 * smallest value that is greater than or equal to the key.
+	 */
+	private double match (Spreadsheet spreadsheet, int row, int col) {
+		Expression.Range range = ((Expression.Range) args[1]).at(row, col);
+		Spreadsheet sheet = range.resolve(spreadsheet);
+		Cell key = readKey(args[0], spreadsheet, sheet, row, col);
+		LookupIndex index;
+		if (range.firstCol == range.lastCol) {
+			index = sheet.getLookupIndex(false, range.firstCol, range.firstRow, range.lastRow);
+		} else if (range.firstRow == range.lastRow) {
+			index = sheet.getLookupIndex(true, range.firstRow, range.firstCol, range.lastCol);
+		} else {
+			throw new ArithmeticException("MATCH needs a single row or column");
+		}
+		
+		double matchType = (args.length < 3) ? 1 : args[2].evaluate(spreadsheet, row, col);
+		int position;
+		if (matchType > 0) {
+			position = index.findLessOrEqual(key);
+		} else if (matchType < 0) {
+			position = index.findGreaterOrEqual(key);
+		} else {
+			position = index.findExact(key, sheet.getStrings());
 		}
+		if (position == -1) {
+			throw new ArithmeticException("Value not found");
+		}
+		return position + 1;
 	}
 	
-	private static void recursiveAddArgs (Scanner argReader, List<String> args) {
+	/**
+	 * Computes {@code COUNTIF}, {@code SUMIF}, {@code AVERAGEIF}, {@code COUNTIFS}, {@code SUMIFS}
+	 * or {@code AVERAGEIFS} in a single pass over the columns of the ranges. The positions of a
+	 * column that satisfy the first criterion are found first, and each other criterion only tests
+	 * the positions that are left, so that the cells of the range that is added up are only read
+	 * where every criterion holds. The cells are read in place, without being copied.
+	 * <p>
+	 * {@code SUMIF} and {@code AVERAGEIF} add up the range of the same size as the tested range
+	 * that starts at the top-left cell of their third argument, and only the numbers, dates and
+	 * formulas in it are included, as {@link #aggregate} does.
+	 * @throws ArithmeticException If the ranges of a function with several criteria are not the same
+	 * 			size, or {@code AVERAGEIF} or {@code AVERAGEIFS} finds no numbers.
+	 */
+	private double conditional (Spreadsheet spreadsheet, int row, int col) {
+		int first = firstCriterion();
+		int n = isMultiple() ? (args.length - first) / 2 : 1;
+		Expression.Range[] ranges = new Expression.Range[n];
+		Spreadsheet[] sheets = new Spreadsheet[n];
+		Criterion[] tests = new Criterion[n];
+		int[] codes = new int[n];
+		boolean empty = false; // whether empty cells may satisfy every criterion
+		for (int k = 0; k < n; k++) {
+			ranges[k] = ((Expression.Range) args[first + 2 * k]).at(row, col);
+			sheets[k] = ranges[k].resolve(spreadsheet);
+			if (!sameSize(ranges[k], ranges[0])) {
+				throw new ArithmeticException("Ranges of different sizes");
+			}
+			Criterion criterion = criteria[first + 2 * k + 1];
+			tests[k] = (criterion != null) ? criterion
+					: Criterion.of(readKey(args[first + 2 * k + 1], spreadsheet, sheets[k], row, col));
+			codes[k] = tests[k].codeIn(sheets[k].getStrings());
+			empty |= tests[k].matchesEmpty();
+		}
+		Expression.Range values = null;
+		Spreadsheet valueSheet = null;
+		if (valueRange() != -1) {
+			values = ((Expression.Range) args[valueRange()]).at(row, col);
+			valueSheet = values.resolve(spreadsheet);
+			if (isMultiple() && !sameSize(values, ranges[0])) {
+				throw new ArithmeticException("Ranges of different sizes");
+			}
+		}
 		
+		// The cells outside of a sheet are empty, so they can be left out unless empty cells count
+		int rows = ranges[0].lastRow - ranges[0].firstRow + 1;
+		int cols = ranges[0].lastCol - ranges[0].firstCol + 1;
+		if (!empty) {
+			for (int k = 0; k < n; k++) {
+				rows = Math.min(rows, sheets[k].getRowCount() - ranges[k].firstRow);
+				cols = Math.min(cols, sheets[k].getColumnCount() - ranges[k].firstCol);
+			}
+		}
+		if (rows <= 0 || cols <= 0) {
+			if (type == AVERAGEIF || type == AVERAGEIFS) {
+				throw new ArithmeticException();
+			}
+			return 0;
+		}
+		
+		int[] selected = new int[rows];
+		long count = 0; // of the positions that satisfy every criterion, or of the numbers among them
+		double sum = 0;
+		for (int j = 0; j < cols; j++) {
+			if (values == null && n == 1 && tests[0].isEquality()) { // counted by the index alone
+				count += sheets[0].getLookupIndex(false, ranges[0].firstCol + j, ranges[0].firstRow, ranges[0].lastRow)
+						.count(tests[0].getKey(), sheets[0].getStrings());
+				continue;
+			}
+			int kept = select(sheets, ranges, tests, codes, j, rows, selected);
+			if (values == null) {
+				count += kept;
+				continue;
+			}
+			for (int k = 0; k < kept; k++) {
+				Cell cell = valueSheet.getCell(values.firstRow + selected[k], values.firstCol + j);
+				Types cellType = cell.getType();
+				if (cellType != Types.EMPTY && cellType != Types.STRING) {
+					sum += cell.getValue();
+					count++;
+				}
+			}
+		}
+		
+		switch (type) {
+			case SUMIF:
+			case SUMIFS:
+				return sum;
+			case AVERAGEIF:
+			case AVERAGEIFS:
+				if (count == 0) {
+					throw new ArithmeticException();
+				}
+				return sum / count;
+			default: // case COUNTIF: case COUNTIFS:
+				return count;
+		}
+	}
+	
+	/**
+	 * Finds the positions of a column of ranges of the same size where every range satisfies
+	 * its criterion. If one of the criteria is an equality, the positions that satisfy it are
+	 * looked up in the {@link LookupIndex} of its column, and the other criteria only test those.
+	 * @param j The position of the column, counted from the left of the ranges.
+	 * @param rows The number of rows of the ranges that are tested.
+	 * @param selected The array that the positions are written to, in order, counted from the top
+	 * 			of the ranges.
+	 * @return The number of positions.
+	 */
+	private static int select (Spreadsheet[] sheets, Expression.Range[] ranges, Criterion[] tests, int[] codes,
+			int j, int rows, int[] selected) {
+		int indexed = -1;
+		for (int k = 0; k < tests.length && indexed == -1; k++) {
+			if (tests[k].isEquality()) {
+				indexed = k;
+			}
+		}
+		
+		int n = 0;
+		if (indexed != -1) {
+			int[] positions = sheets[indexed].getLookupIndex(false, ranges[indexed].firstCol + j,
+					ranges[indexed].firstRow, ranges[indexed].lastRow)
+					.findAll(tests[indexed].getKey(), sheets[indexed].getStrings());
+			for (int position : positions) {
+				if (position < rows) {
+					selected[n++] = position;
+				}
+			}
+		} else {
+			n = rows;
+			for (int i = 0; i < rows; i++) {
+				selected[i] = i;
+			}
+		}
+		for (int k = 0; k < tests.length; k++) {
+			if (k == indexed) {
+				continue;
+			}
+			Spreadsheet sheet = sheets[k];
+			int firstRow = ranges[k].firstRow;
+			int c = ranges[k].firstCol + j;
+			int kept = 0;
+			for (int p = 0; p < n; p++) {
+				if (tests[k].matches(sheet.getCell(firstRow + selected[p], c), codes[k])) {
+					selected[kept++] = selected[p];
+				}
+			}
+			n = kept;
+		}
+		return n;
+	}
+	
+	/**
+	 * Returns {@code true} if the function takes any number of ranges and criteria, such as
+	 * {@code SUMIFS}, {@code false} if it takes one of each, such as {@code SUMIF}.
+	 */
+	private boolean isMultiple () {
+		return type == COUNTIFS || type == SUMIFS || type == AVERAGEIFS;
+	}
+	
+	/**
+	 * Returns the position of the first range that a conditional function tests.
+	 */
+	private int firstCriterion () {
+		return (type == SUMIFS || type == AVERAGEIFS) ? 1 : 0;
+	}
+	
+	/**
+	 * Returns the position of the range that a conditional function adds up, or {@code -1}
+	 * if it only counts.
+	 */
+	private int valueRange () {
+		switch (type) {
+			case SUMIF:
+			case AVERAGEIF:
+				return (args.length == 3) ? 2 : 0;
+			case SUMIFS:
+			case AVERAGEIFS:
+				return 0;
+			default: // case COUNTIF: case COUNTIFS:
+				return -1;
+		}
+	}
+	
+	/**
+	 * Returns {@code true} if two ranges have the same numbers of rows and columns.
+	 */
+	private static boolean sameSize (Expression.Range a, Expression.Range b) {
+		return a.lastRow - a.firstRow == b.lastRow - b.firstRow && a.lastCol - a.firstCol == b.lastCol - b.firstCol;
+	}
+	
+	/**
+	 * Returns the value that a lookup function searches for: the text itself, the referenced
+	 * {@link Cell}, or the value of any other expression.
+	 * @param spreadsheet The {@link Spreadsheet} that holds the formula.
+	 * @param searched The {@link Spreadsheet} that is searched, whose dictionary the code of a
+	 * 			{@link String} that is returned belongs to.
+	 */
+	private static Cell readKey (Expression arg, Spreadsheet spreadsheet, Spreadsheet searched, int row, int col) {
+		if (arg instanceof Expression.Text) {
+			return ((Expression.Text) arg).cell;
+		} else if (arg instanceof Expression.Reference) {
+			Expression.Reference ref = (Expression.Reference) arg;
+			Spreadsheet sheet = ref.resolve(spreadsheet);
+			Cell cell = sheet.getCell(ref.rowAt(row), ref.colAt(col));
+			if (sheet != searched && cell.getCode() != -1) { // the code belongs to another dictionary
+				return new Cell("\"" + cell.getString() + "\"");
+			}
+			return cell;
+		}
+		return new Cell(arg.evaluate(spreadsheet, row, col));
+	}
+	
+	/**
+	 * @throws NumberFormatException If the argument at the given position is not a range of cells.
+	 */
+	private void requireRange (int position) {
+		if (!(args[position] instanceof Expression.Range)) {
+			throw new NumberFormatException();
+		}
+	}
+	
+	/**
+	 * The summary of a block of rows of the ranges of a function.
+	 */
+	private static class Block {
+		final Moments moments = new Moments();
+		boolean formulas; // whether it holds formulas, whose values may change without the block changing
+		long version; // the version of the block of rows when it was summarized, if it is kept
+		long sheetVersion; // the version of the sheet when it was summarized, if it is kept
+	}
+	
+	/**
+	 * The summaries that are kept of the blocks of rows of a range, see {@link Function#isCached}.
+	 */
+	private static class RangeCache {
+		final Spreadsheet sheet;
+		Block[] blocks = new Block[0]; // by the indices of the blocks of the sheet
+		
+		RangeCache (Spreadsheet sheet) {
+			this.sheet = sheet;
+		}
 	}
 }
\ No newline at end of file
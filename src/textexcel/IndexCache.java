@@ -0,0 +1,139 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * Holds the {@link LookupIndex}es of a {@link Spreadsheet}, building each one the first time
+ * it is needed. When the indexes take up more than a fixed amount of memory,
+ * the least recently used ones are discarded.
+ * @author Sam Beaumont
+ */
+class IndexCache {
+	private final long maxBytes;
+	private long bytes;
+	// In order of use, least recently used first
+	private final LinkedHashMap<Key, LookupIndex> indexes = new LinkedHashMap<Key, LookupIndex>(16, 0.75f, true);
+	
+	/**
+	 * Creates an empty cache.
+	 * @param maxBytes The approximate number of bytes that the indexes may take up.
+	 */
+	IndexCache (long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Returns the index of a row or column segment, building it if necessary.
+	 * @param spreadsheet The {@link Spreadsheet} that the segment is part of.
+	 * @param byRow {@code true} if the segment is part of a row, {@code false} if it is part of a column.
+	 * @param fixed The index of the row or column.
+	 * @param start The index of the first column or row in the segment.
+	 * @param end The index of the last column or row in the segment.
+	 */
+	LookupIndex get (Spreadsheet spreadsheet, boolean byRow, int fixed, int start, int end) {
+		Key key = new Key(byRow, fixed, start, end);
+		LookupIndex index = indexes.get(key);
+		if (index == null) {
+			Cell[] cells = new Cell[end - start + 1];
+			for (int i = 0; i < cells.length; i++) {
+				cells[i] = byRow ? spreadsheet.getCell(fixed, start + i) : spreadsheet.getCell(start + i, fixed);
+			}
+			index = new LookupIndex(cells, spreadsheet.getStrings());
+			indexes.put(key, index);
+			bytes += index.size();
+			evict(key);
+		}
+		return index;
+	}
+	
+	/**
+	 * Discards every index that includes the given cell, along with every index
+	 * that includes a formula, since its value may depend on the cell.
+	 * @param row The index of the row of the cell that has changed.
+	 * @param col The index of the column of the cell that has changed.
+	 */
+	void invalidate (int row, int col) {
+		Iterator<Map.Entry<Key, LookupIndex>> i = indexes.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Key, LookupIndex> entry = i.next();
+			if (entry.getKey().contains(row, col) || entry.getValue().hasFormulas()) {
+				bytes -= entry.getValue().size();
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Discards every index that includes a row at or after the given one, such as when rows are
+	 * inserted or deleted there, along with every index that includes a formula.
+	 * @param row The index of the first row that has changed.
+	 */
+	void invalidateRows (int row) {
+		Iterator<Map.Entry<Key, LookupIndex>> i = indexes.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Key, LookupIndex> entry = i.next();
+			Key key = entry.getKey();
+			if ((key.byRow ? key.fixed : key.end) >= row || entry.getValue().hasFormulas()) {
+				bytes -= entry.getValue().size();
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Discards every index.
+	 */
+	void clear () {
+		indexes.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * Discards the least recently used indexes until the cache is within its limit,
+	 * keeping the index that was just built.
+	 */
+	private void evict (Key newest) {
+		Iterator<Map.Entry<Key, LookupIndex>> i = indexes.entrySet().iterator();
+		while (bytes > maxBytes && i.hasNext()) {
+			Map.Entry<Key, LookupIndex> entry = i.next();
+			if (!entry.getKey().equals(newest)) {
+				bytes -= entry.getValue().size();
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Identifies a row or column segment.
+	 */
+	private static class Key {
+		final boolean byRow;
+		final int fixed;
+		final int start;
+		final int end;
+		
+		Key (boolean byRow, int fixed, int start, int end) {
+			this.byRow = byRow;
+			this.fixed = fixed;
+			this.start = start;
+			this.end = end;
+		}
+		
+		boolean contains (int row, int col) {
+			return byRow ? row == fixed && col >= start && col <= end
+					: col == fixed && row >= start && row <= end;
+		}
+		
+		public boolean equals (Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return k.byRow == byRow && k.fixed == fixed && k.start == start && k.end == end;
+		}
+		
+		public int hashCode () {
+			return ((fixed * 31 + start) * 31 + end) * 2 + (byRow ? 1 : 0);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+package textexcel;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A stable sort that orders the indices of a set of primitive keys instead of the
+ * objects the keys were taken from. Each key is made up of a class, which is compared
+ * first, and a value. Large inputs are split into chunks that are sorted in parallel
+ * and then merged. Cannot be instantiated.
+ * @author Sam Beaumont
+ */
+class IndexSort {
+	// Inputs smaller than this are sorted on the calling thread
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+	// Runs smaller than this are sorted with an insertion sort
+	private static final int INSERTION_THRESHOLD = 24;
+	
+	private final int[] classes;
+	private final double[] values;
+	private final int lastClass; // keys of this class stay at the end in either order
+	private final boolean descending;
+	
+	private IndexSort (int[] classes, double[] values, int lastClass, boolean descending) {
+		this.classes = classes;
+		this.values = values;
+		this.lastClass = lastClass;
+		this.descending = descending;
+	}
+	
+	/**
+	 * Returns the permutation that sorts the given keys: element {@code i} of the result is
+	 * the index of the key that belongs at position {@code i}. Keys that compare as equal keep
+	 * their original order.
+	 * @param classes The class of each key. Keys with smaller classes come first.
+	 * @param values The value of each key, compared when two keys have the same class.
+	 * @param lastClass A class whose keys are placed at the end even if {@code descending} is
+	 * 			{@code true}, such as the class of empty {@link Cell}s.
+	 * @param descending {@code true} to sort from largest to smallest.
+	 */
+	static int[] sort (int[] classes, double[] values, int lastClass, boolean descending) {
+		IndexSort sorter = new IndexSort(classes, values, lastClass, descending);
+		int n = values.length;
+		int[] index = new int[n];
+		for (int i = 0; i < n; i++) {
+			index[i] = i;
+		}
+		int[] buffer = new int[n];
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (n < PARALLEL_THRESHOLD || threads < 2) {
+			sorter.mergeSort(index, buffer, 0, n);
+		} else {
+			sorter.parallelSort(index, buffer, threads);
+		}
+		return index;
+	}
+	
+	/**
+	 * Sorts equal-sized chunks of the index on separate threads, then merges them.
+	 */
+	private void parallelSort (final int[] index, final int[] buffer, int threads) {
+		final int n = index.length;
+		final int chunk = (n + threads - 1) / threads;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int start = 0; start < n; start += chunk) {
+				final int from = start;
+				final int to = Math.min(n, start + chunk);
+				results.add(executor.submit(new Runnable() {
+					public void run () {
+						mergeSort(index, buffer, from, to);
+					}
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		
+		// Merge neighbouring chunks until there is only one
+		for (int width = chunk; width < n; width *= 2) {
+			for (int from = 0; from + width < n; from += 2 * width) {
+				merge(index, buffer, from, from + width, Math.min(n, from + 2 * width));
+			}
+		}
+	}
+	
+	/**
+	 * Sorts {@code index[from]} to {@code index[to - 1]}.
+	 */
+	private void mergeSort (int[] index, int[] buffer, int from, int to) {
+		if (to - from <= INSERTION_THRESHOLD) {
+			for (int i = from + 1; i < to; i++) {
+				int current = index[i];
+				int j = i - 1;
+				while (j >= from && compare(index[j], current) > 0) {
+					index[j + 1] = index[j];
+					j--;
+				}
+				index[j + 1] = current;
+			}
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(index, buffer, from, middle);
+		mergeSort(index, buffer, middle, to);
+		merge(index, buffer, from, middle, to);
+	}
+	
+	/**
+	 * Merges the sorted runs {@code index[from..middle)} and {@code index[middle..to)}.
+	 */
+	private void merge (int[] index, int[] buffer, int from, int middle, int to) {
+		if (compare(index[middle - 1], index[middle]) <= 0) { // already in order
+			return;
+		}
+		System.arraycopy(index, from, buffer, from, to - from);
+		int i = from;
+		int j = middle;
+		for (int k = from; k < to; k++) {
+			if (j >= to || i < middle && compare(buffer[i], buffer[j]) <= 0) {
+				index[k] = buffer[i++];
+			} else {
+				index[k] = buffer[j++];
+			}
+		}
+	}
+	
+	private int compare (int a, int b) {
+		int classA = classes[a];
+		int classB = classes[b];
+		int result;
+		if (classA != classB) {
+			if (classA == lastClass || classB == lastClass) {
+				return (classA == lastClass) ? 1 : -1;
+			}
+			result = (classA < classB) ? -1 : 1;
+		} else {
+			result = Double.compare(values[a], values[b]);
+		}
+		return descending ? -result : result;
+	}
+}
\ No newline at end of file
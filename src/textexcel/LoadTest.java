@@ -0,0 +1,103 @@
+package textexcel;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures how many requests a {@link Server} can handle when several {@link Client}s use it
+ * at once. The server and the clients run in this process and talk over the loopback address.
+ * Each client sets the cells of its own column in batches, reads them back, and sums the column
+ * with a formula, and the results are checked before the throughput is printed.
+ * <p>
+ * The arguments, all optional, are the number of clients, the number of batches that each one
+ * sends, and the number of cells in each batch, which default to 8, 200 and 100.
+ * @author Sam Beaumont
+ */
+class LoadTest {
+	private LoadTest () {} // prevent this class from being instantiated
+	
+	public static void main (String[] args) throws Exception {
+		final int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		final int batches = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+		final int size = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+		
+		Workbook book = new Workbook();
+		book.add("Sheet1");
+		final Server server = new Server(book, null, 0);
+		Thread accepter = new Thread(new Runnable() {
+			public void run () {
+				server.run();
+			}
+		});
+		accepter.setDaemon(true);
+		accepter.start();
+		
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final String column = Spreadsheet.toBase26(c);
+			results.add(pool.submit(new Callable<long[]>() {
+				public long[] call () throws IOException {
+					return run(server.getPort(), column, batches, size);
+				}
+			}));
+		}
+		long requests = 0;
+		long worst = 0;
+		for (Future<long[]> result : results) {
+			long[] r = result.get();
+			requests += r[0];
+			worst = Math.max(worst, r[1]);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		pool.shutdown();
+		server.close();
+		
+		System.out.printf("%d requests from %d clients in %.2f s: %.0f requests/s,"
+				+ " slowest batch %.2f ms%n", requests, clients, seconds, requests / seconds, worst / 1e6);
+	}
+	
+	/**
+	 * Runs one client.
+	 * @return The number of requests that were sent, and the longest time that a batch took in nanoseconds.
+	 * @throws IllegalStateException If an answer is wrong.
+	 */
+	private static long[] run (int port, String column, int batches, int size) throws IOException {
+		Client client = Client.connect(port);
+		long requests = 0;
+		long worst = 0;
+		try {
+			for (int b = 0; b < batches; b++) {
+				List<String> batch = new ArrayList<String>(2 * size + 1);
+				for (int i = 1; i <= size; i++) {
+					batch.add("SET " + column + i + " " + (b + i));
+				}
+				for (int i = 1; i <= size; i++) {
+					batch.add("VALUE " + column + i);
+				}
+				batch.add("EVAL SUM(" + column + "1:" + column + size + ")");
+				
+				long start = System.nanoTime();
+				List<String> answers = client.batch(batch);
+				worst = Math.max(worst, System.nanoTime() - start);
+				requests += batch.size();
+				
+				for (int i = 1; i <= size; i++) {
+					check(answers.get(size + i - 1), b + i);
+				}
+				check(answers.get(2 * size), (double) size * b + size * (size + 1) / 2);
+			}
+		} finally {
+			client.close();
+		}
+		return new long[] {requests, worst};
+	}
+	
+	private static void check (String answer, double expected) {
+		if (!answer.equals("OK " + expected)) {
+			throw new IllegalStateException("Expected OK " + expected + " but got " + answer);
+		}
+	}
+}
\ No newline at end of file
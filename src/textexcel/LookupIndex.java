@@ -0,0 +1,335 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * An index of the values in a single row or column segment of a {@link Spreadsheet},
+ * used by lookup functions such as {@code VLOOKUP} and {@code MATCH}. Exact matches are
+ * found with a hash table, and approximate matches with a binary search over the values
+ * in sorted order. Positions are counted from the start of the segment.
+ * @author Sam Beaumont
+ */
+class LookupIndex {
+	// Exact match on numbers: an open-addressing hash table
+	private long[] keys;
+	private int[] firstPositions; // -1 marks an empty slot
+	private int[] counts;
+	
+	// Exact match on Strings: indexed by dictionary code
+	private int[] firstPositionOfCode;
+	private int[] countOfCode;
+	
+	// Approximate match: values in ascending order, ties in the order they appear
+	private double[] sortedNumbers;
+	private int[] numberPositions;
+	private String[] sortedStrings;
+	private int[] stringPositions;
+	
+	private boolean hasFormulas;
+	
+	/**
+	 * Builds an index of the given cells.
+	 * @param cells The cells of the segment, in order. Elements may be {@code null} for
+	 * 			cells outside of the spreadsheet.
+	 * @param strings The {@link StringDictionary} of the {@link Spreadsheet}.
+	 */
+	LookupIndex (Cell[] cells, StringDictionary strings) {
+		int n = cells.length;
+		double[] numbers = new double[n];
+		int[] positions = new int[n];
+		int numberCount = 0;
+		int[] codes = new int[n];
+		int stringCount = 0;
+		
+		firstPositionOfCode = new int[strings.size()];
+		countOfCode = new int[strings.size()];
+		Arrays.fill(firstPositionOfCode, -1);
+		for (int i = 0; i < n; i++) {
+			Cell cell = cells[i];
+			Types type = (cell == null) ? Types.EMPTY : cell.getType();
+			if (type == Types.STRING) {
+				int code = cell.getCode();
+				if (firstPositionOfCode[code] == -1) {
+					firstPositionOfCode[code] = i;
+				}
+				countOfCode[code]++;
+				codes[stringCount] = code;
+				positions[n - 1 - stringCount++] = i; // String positions fill the array from the end
+			} else if (type != Types.EMPTY) {
+				if (type == Types.FORMULA) {
+					hasFormulas = true;
+				}
+				try {
+					numbers[numberCount] = cell.getValue();
+				} catch (ArithmeticException ae) {
+					continue; // an error cannot be looked up
+				} catch (StackOverflowError soe) {
+					continue;
+				}
+				positions[numberCount++] = i;
+			}
+		}
+		
+		buildHashTable(numbers, positions, numberCount);
+		
+		// Sort the numbers, keeping equal numbers in order
+		double[] values = Arrays.copyOf(numbers, numberCount);
+		int[] order = IndexSort.sort(new int[numberCount], values, -1, false);
+		sortedNumbers = new double[numberCount];
+		numberPositions = new int[numberCount];
+		for (int k = 0; k < numberCount; k++) {
+			sortedNumbers[k] = values[order[k]];
+			numberPositions[k] = positions[order[k]];
+		}
+		
+		// Sort the Strings alphabetically, keeping equal Strings in order
+		int[] ranks = strings.ranks();
+		double[] stringRanks = new double[stringCount];
+		for (int k = 0; k < stringCount; k++) {
+			stringRanks[k] = ranks[codes[k]];
+		}
+		order = IndexSort.sort(new int[stringCount], stringRanks, -1, false);
+		sortedStrings = new String[stringCount];
+		stringPositions = new int[stringCount];
+		for (int k = 0; k < stringCount; k++) {
+			sortedStrings[k] = strings.get(codes[order[k]]);
+			stringPositions[k] = positions[n - 1 - order[k]];
+		}
+	}
+	
+	/**
+	 * Returns the position of the first cell that is equal to the key, or {@code -1} if there is none.
+	 * @param key The value to be found.
+	 * @param strings The {@link StringDictionary} of the {@link Spreadsheet}.
+	 */
+	int findExact (Cell key, StringDictionary strings) {
+		Types type = key.getType();
+		if (type == Types.STRING) {
+			int code = codeOf(key, strings);
+			return (code == -1) ? -1 : firstPositionOfCode[code];
+		} else if (type == Types.EMPTY) {
+			return -1;
+		}
+		int slot = find(key.getValue());
+		return (slot == -1) ? -1 : firstPositions[slot];
+	}
+	
+	/**
+	 * Returns the number of cells that are equal to the key.
+	 * @param key The value to be counted.
+	 * @param strings The {@link StringDictionary} of the {@link Spreadsheet}.
+	 */
+	int count (Cell key, StringDictionary strings) {
+		Types type = key.getType();
+		if (type == Types.STRING) {
+			int code = codeOf(key, strings);
+			return (code == -1) ? 0 : countOfCode[code];
+		} else if (type == Types.EMPTY) {
+			return 0;
+		}
+		int slot = find(key.getValue());
+		return (slot == -1) ? 0 : counts[slot];
+	}
+	
+	/**
+	 * Returns the positions of the cells that are equal to the key, in order.
+	 * @param key The value to be found.
+	 * @param strings The {@link StringDictionary} of the {@link Spreadsheet}.
+	 */
+	int[] findAll (Cell key, StringDictionary strings) {
+		Types type = key.getType();
+		if (type == Types.STRING) {
+			if (codeOf(key, strings) == -1) {
+				return new int[0];
+			}
+			return Arrays.copyOfRange(stringPositions, lowerBound(key.getString()), upperBound(key.getString()));
+		} else if (type == Types.EMPTY) {
+			return new int[0];
+		}
+		double value = key.getValue();
+		int[] positions;
+		if (value == 0) { // -0.0 is sorted before 0.0, but is equal to it
+			positions = Arrays.copyOfRange(numberPositions, lowerBound(-0.0), upperBound(0.0));
+			Arrays.sort(positions);
+		} else {
+			positions = Arrays.copyOfRange(numberPositions, lowerBound(value), upperBound(value));
+		}
+		return positions;
+	}
+	
+	/**
+	 * Returns the position of the largest value that is less than or equal to the key,
+	 * or {@code -1} if there is none. Numbers are only compared with numbers, and
+	 * {@link String}s with {@link String}s. Of several equal values, the last is returned.
+	 * @param key The value to be found.
+	 */
+	int findLessOrEqual (Cell key) {
+		Types type = key.getType();
+		if (type == Types.STRING) {
+			int k = upperBound(key.getString()) - 1;
+			return (k < 0) ? -1 : stringPositions[k];
+		} else if (type == Types.EMPTY) {
+			return -1;
+		}
+		int k = upperBound(key.getValue()) - 1;
+		return (k < 0) ? -1 : numberPositions[k];
+	}
+	
+	/**
+	 * Returns the position of the smallest value that is greater than or equal to the key,
+	 * or {@code -1} if there is none. Of several equal values, the first is returned.
+	 * @param key The value to be found.
+	 */
+	int findGreaterOrEqual (Cell key) {
+		Types type = key.getType();
+		if (type == Types.STRING) {
+			int k = lowerBound(key.getString());
+			return (k == sortedStrings.length) ? -1 : stringPositions[k];
+		} else if (type == Types.EMPTY) {
+			return -1;
+		}
+		int k = lowerBound(key.getValue());
+		return (k == sortedNumbers.length) ? -1 : numberPositions[k];
+	}
+	
+	/**
+	 * Returns {@code true} if any of the indexed cells is a formula, in which case the index
+	 * must be rebuilt whenever any cell changes.
+	 */
+	boolean hasFormulas () {
+		return hasFormulas;
+	}
+	
+	/**
+	 * Returns the approximate number of bytes used by the index.
+	 */
+	long size () {
+		return 16L * keys.length + 8L * firstPositionOfCode.length
+				+ 12L * sortedNumbers.length + 8L * sortedStrings.length + 64;
+	}
+	
+	/**
+	 * Returns the code of a {@link String} key, which may not have been added to the dictionary yet.
+	 */
+	private int codeOf (Cell key, StringDictionary strings) {
+		int code = key.getCode();
+		if (code == -1) {
+			code = strings.codeOf(key.getString());
+		}
+		return (code < firstPositionOfCode.length) ? code : -1;
+	}
+	
+	private void buildHashTable (double[] numbers, int[] positions, int n) {
+		int capacity = 4;
+		while (capacity < n * 2) {
+			capacity *= 2;
+		}
+		keys = new long[capacity];
+		firstPositions = new int[capacity];
+		counts = new int[capacity];
+		Arrays.fill(firstPositions, -1);
+		int mask = capacity - 1;
+		for (int i = 0; i < n; i++) {
+			long key = bits(numbers[i]);
+			int slot = hash(key) & mask;
+			while (firstPositions[slot] != -1 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			if (firstPositions[slot] == -1) {
+				keys[slot] = key;
+				firstPositions[slot] = positions[i];
+			}
+			counts[slot]++;
+		}
+	}
+	
+	/**
+	 * Returns the slot of the hash table that holds the given number, or {@code -1}.
+	 */
+	private int find (double number) {
+		long key = bits(number);
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (firstPositions[slot] != -1) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the number of sorted numbers that are less than the given number.
+	 */
+	private int lowerBound (double number) {
+		int low = 0;
+		int high = sortedNumbers.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (Double.compare(sortedNumbers[middle], number) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * Returns the number of sorted numbers that are less than or equal to the given number.
+	 */
+	private int upperBound (double number) {
+		int low = 0;
+		int high = sortedNumbers.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (Double.compare(sortedNumbers[middle], number) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	private int lowerBound (String s) {
+		int low = 0;
+		int high = sortedStrings.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (sortedStrings[middle].compareTo(s) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	private int upperBound (String s) {
+		int low = 0;
+		int high = sortedStrings.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (sortedStrings[middle].compareTo(s) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * Returns the bits of a number, treating {@code -0.0} as {@code 0.0}.
+	 */
+	private static long bits (double number) {
+		return Double.doubleToLongBits(number == 0 ? 0.0 : number);
+	}
+	
+	private static int hash (long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
\ No newline at end of file
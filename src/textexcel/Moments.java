@@ -0,0 +1,184 @@
+package textexcel;
+
+/**
+ * The count, means and sums of squared deviations of a stream of values or pairs of values, from
+ * which the variance, covariance and correlation are computed in a single pass, along with the
+ * sum, smallest and largest of the values and a sum of products. The means and deviations are
+ * updated with Welford's method, and the sums with Neumaier's compensated summation, so that
+ * none of them loses precision over millions of values the way that summing the values and their
+ * squares does.
+ * <p>
+ * The values of separate parts of a range can be summarized separately, for example on other
+ * threads, and then combined with {@link #combine(Moments)}, which gives the same result as
+ * summarizing them together.
+ * @author Sam Beaumont
+ */
+class Moments {
+	private long count;
+	// The first values that were added, which the means are counted from, so that values that
+	// are far from zero but close to each other keep their precision
+	private double shiftX;
+	private double shiftY;
+	private double meanX;
+	private double meanY;
+	private double m2X; // the sum of the squared deviations of the first values from their mean
+	private double m2Y;
+	private double cXY; // the sum of the products of the deviations of both values
+	private double[] total = new double[2]; // the sum of the values, and the low-order bits that were lost from it
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private double[] products = new double[2]; // the sum of the products, and the bits that were lost
+	
+	/**
+	 * Adds a value.
+	 */
+	void add (double x) {
+		if (count == 0) {
+			shiftX = x;
+		}
+		count++;
+		double dx = (x - shiftX) - meanX;
+		meanX += dx / count;
+		m2X += dx * ((x - shiftX) - meanX);
+		add(total, x);
+		min = Math.min(min, x);
+		max = Math.max(max, x);
+	}
+	
+	/**
+	 * Adds a pair of values, such as the cells in the same position of two ranges.
+	 */
+	void add (double x, double y) {
+		if (count == 0) {
+			shiftX = x;
+			shiftY = y;
+		}
+		count++;
+		double dx = (x - shiftX) - meanX;
+		meanX += dx / count;
+		double dy = (y - shiftY) - meanY;
+		meanY += dy / count;
+		m2X += dx * ((x - shiftX) - meanX);
+		m2Y += dy * ((y - shiftY) - meanY);
+		cXY += dx * ((y - shiftY) - meanY);
+	}
+	
+	/**
+	 * Adds a product to the sum of products, without counting it as a value.
+	 */
+	void addProduct (double product) {
+		add(products, product);
+	}
+	
+	/**
+	 * Adds the values and products of another {@code Moments}, which is not changed.
+	 */
+	void combine (Moments other) {
+		if (other.count > 0) {
+			if (count == 0) {
+				shiftX = other.shiftX;
+				shiftY = other.shiftY;
+			}
+			long n = count + other.count;
+			double dx = (other.shiftX - shiftX) + (other.meanX - meanX);
+			double dy = (other.shiftY - shiftY) + (other.meanY - meanY);
+			double weight = (double) count * other.count / n;
+			m2X += other.m2X + dx * dx * weight;
+			m2Y += other.m2Y + dy * dy * weight;
+			cXY += other.cXY + dx * dy * weight;
+			meanX += dx * other.count / n;
+			meanY += dy * other.count / n;
+			count = n;
+		}
+		add(total, other.total[0]);
+		total[1] += other.total[1];
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		add(products, other.products[0]);
+		products[1] += other.products[1];
+	}
+	
+	/**
+	 * Returns the number of values or pairs that were added.
+	 */
+	long getCount () {
+		return count;
+	}
+	
+	/**
+	 * Returns the sum of the values that were added one at a time.
+	 */
+	double getTotal () {
+		return total[0] + total[1];
+	}
+	
+	/**
+	 * Returns the smallest of the values that were added one at a time,
+	 * or positive infinity if there were none.
+	 */
+	double getMin () {
+		return min;
+	}
+	
+	/**
+	 * Returns the largest of the values that were added one at a time,
+	 * or negative infinity if there were none.
+	 */
+	double getMax () {
+		return max;
+	}
+	
+	/**
+	 * Returns the sample variance of the values, or of the first values of the pairs.
+	 * @throws ArithmeticException If fewer than two values were added.
+	 */
+	double getVariance () {
+		if (count < 2) {
+			throw new ArithmeticException();
+		}
+		return m2X / (count - 1);
+	}
+	
+	/**
+	 * Returns the population covariance of the pairs.
+	 * @throws ArithmeticException If no pairs were added.
+	 */
+	double getCovariance () {
+		if (count == 0) {
+			throw new ArithmeticException();
+		}
+		return cXY / count;
+	}
+	
+	/**
+	 * Returns the correlation coefficient of the pairs.
+	 * @throws ArithmeticException If either value of the pairs is always the same.
+	 */
+	double getCorrelation () {
+		if (m2X == 0 || m2Y == 0) {
+			throw new ArithmeticException();
+		}
+		return cXY / Math.sqrt(m2X * m2Y);
+	}
+	
+	/**
+	 * Returns the sum of the products.
+	 */
+	double getSum () {
+		return products[0] + products[1];
+	}
+	
+	/**
+	 * Adds a number to a sum with Neumaier's compensated summation.
+	 * @param sum The sum, followed by the low-order bits that were lost from it.
+	 */
+	private static void add (double[] sum, double x) {
+		double t = sum[0] + x;
+		if (Math.abs(sum[0]) >= Math.abs(x)) {
+			sum[1] += (sum[0] - t) + x;
+		} else {
+			sum[1] += (x - t) + sum[0];
+		}
+		sum[0] = t;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,566 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * A pivot table: a summary of a range of a {@link Spreadsheet} with a row for each distinct value
+ * of one of its columns, and optionally a column for each distinct value of another, holding the
+ * {@code SUM}, {@code COUNT} or {@code AVG} of a third column over the rows of the range that
+ * have those values. The table is written into the same spreadsheet, below or to the right of
+ * the range, with its rows and columns in order by value, numbers first. Rows of the range
+ * whose value in the first column is empty, or a formula that cannot be evaluated, are skipped.
+ * <p>
+ * The table is kept up to date as the range changes. The contribution of each row of the range
+ * is remembered, so when a cell of the range is set with {@link Spreadsheet#set(String, Cell)},
+ * only the old contribution of its row is taken away and the new one added, and only the cells
+ * of the table whose values changed are written again. The whole table is only written again
+ * when a row or column appears or disappears, and the range is only read again after changes
+ * that may affect many cells at once, such as sorting or undoing. Formulas in the range are
+ * read when their row is, so a formula whose value changes because of another cell is only
+ * counted again when the range is read again.
+ * <p>
+ * The cells of the table are written without being recorded for undoing or logged, since they
+ * are written again whenever the range changes. When rows or columns are inserted or deleted,
+ * the range and the table move with their cells, and a table whose range, or one of whose
+ * columns, is deleted is stopped. A pivot table lasts until it is stopped, or the spreadsheet
+ * is loaded again.
+ * @author Sam Beaumont
+ */
+class Pivot {
+	// The aggregates that a pivot table can hold, which can be updated as rows are taken away
+	private static final String[] FUNCTIONS = {"SUM", "COUNT", "AVG"};
+	private static final int SUM = 0;
+	private static final int COUNT = 1;
+	private static final int AVG = 2;
+	
+	private final Spreadsheet spreadsheet;
+	private int firstRow;
+	private int firstCol;
+	private int lastRow;
+	private int lastCol;
+	private int rowCol; // the column whose values are the rows of the table
+	private int colCol; // the column whose values are the columns of the table, or -1
+	private int valueCol;
+	private final int function;
+	private int targetRow;
+	private int targetCol;
+	
+	private final Keys rowKeys = new Keys();
+	private final Keys colKeys = new Keys();
+	private final Map<Long, Group> groups = new HashMap<Long, Group>(); // by the numbers of their keys
+	// The contribution of each row of the range: the numbers of its keys, or -1 if it is skipped,
+	// and its value, if it is counted
+	private int[] rowIds = new int[0];
+	private int[] colIds = new int[0];
+	private double[] values = new double[0];
+	private byte[] counted = new byte[0]; // 1 if the value is counted, 0 otherwise
+	private int[] rowPositions = new int[0]; // the row of the table of each key, or -1
+	private int[] colPositions = new int[0];
+	private int writtenRows; // the size of the table when it was last written
+	private int writtenCols;
+	
+	/**
+	 * Creates a pivot table and writes it. The columns must be inside the range, and the table
+	 * must be below or to the right of it, so that it never overlaps the range as it grows.
+	 * @param spreadsheet The {@link Spreadsheet} that holds the range and the table.
+	 * @param first The indices of the top left cell of the range.
+	 * @param last The indices of the bottom right cell of the range.
+	 * @param rowCol The column whose values are the rows of the table.
+	 * @param colCol The column whose values are the columns of the table, or {@code -1} for
+	 * 			a table with a single column of values.
+	 * @param function The name of the aggregate, {@code SUM}, {@code COUNT} or {@code AVG},
+	 * 			case-insensitive.
+	 * @param valueCol The column that is aggregated.
+	 * @param target The indices of the top left cell of the table.
+	 * @throws IllegalArgumentException If any of the above is not valid.
+	 */
+	Pivot (Spreadsheet spreadsheet, int[] first, int[] last, int rowCol, int colCol, String function,
+			int valueCol, int[] target) {
+		this.spreadsheet = spreadsheet;
+		firstRow = first[0];
+		firstCol = first[1];
+		lastRow = last[0];
+		lastCol = last[1];
+		this.rowCol = rowCol;
+		this.colCol = colCol;
+		this.valueCol = valueCol;
+		this.function = Arrays.asList(FUNCTIONS).indexOf(function.toUpperCase());
+		targetRow = target[0];
+		targetCol = target[1];
+		if (firstRow > lastRow || firstCol > lastCol || this.function == -1
+				|| !inRange(rowCol) || !(colCol == -1 || inRange(colCol)) || !inRange(valueCol)
+				|| (targetRow <= lastRow && targetCol <= lastCol)) {
+			throw new IllegalArgumentException();
+		}
+		rebuild();
+	}
+	
+	/**
+	 * Returns the indices of the top left cell of the table.
+	 */
+	int[] getTarget () {
+		return new int[] {targetRow, targetCol};
+	}
+	
+	/**
+	 * Returns {@code true} if the table depends on any of the given rows, {@code false} otherwise.
+	 */
+	boolean reads (int first, int last) {
+		return first <= lastRow && last >= firstRow;
+	}
+	
+	/**
+	 * Moves the range and the table after rows or columns of the {@link Spreadsheet} were
+	 * inserted or deleted. A range or table that loses some of its rows or columns keeps the
+	 * others, and a table that loses some, or has some inserted into it, is written again. The
+	 * table is read again by the spreadsheet if its range changed.
+	 * @param shift The rows or columns that were inserted or deleted.
+	 * @return {@code false} if the range, one of the columns that the table is made from, or
+	 * 			the whole table was deleted, in which case the table must be stopped and
+	 * 			nothing is moved, {@code true} otherwise.
+	 */
+	boolean shift (Spreadsheet.Shift shift) {
+		int[] range = shift.rows ? shift.apply(firstRow, lastRow) : shift.apply(firstCol, lastCol);
+		int[] table = shift.rows ? shift.apply(targetRow, targetRow + writtenRows - 1)
+				: shift.apply(targetCol, targetCol + writtenCols - 1);
+		if (range == null || table == null || (!shift.rows && (shift.apply(rowCol) == -1
+				|| (colCol != -1 && shift.apply(colCol) == -1) || shift.apply(valueCol) == -1))) {
+			return false;
+		}
+		int size = table[1] - table[0] + 1;
+		boolean cut;
+		if (shift.rows) {
+			firstRow = range[0];
+			lastRow = range[1];
+			targetRow = table[0];
+			cut = size != writtenRows;
+			writtenRows = size;
+		} else {
+			firstCol = range[0];
+			lastCol = range[1];
+			rowCol = shift.apply(rowCol);
+			colCol = (colCol == -1) ? -1 : shift.apply(colCol);
+			valueCol = shift.apply(valueCol);
+			targetCol = table[0];
+			cut = size != writtenCols;
+			writtenCols = size;
+		}
+		if (cut) {
+			write();
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns where the range, its columns and the table are, so that they can be put back with
+	 * {@link #setPosition(int[])} when inserting or deleting rows or columns is undone.
+	 */
+	int[] getPosition () {
+		return new int[] {firstRow, firstCol, lastRow, lastCol, rowCol, colCol, valueCol,
+				targetRow, targetCol, writtenRows, writtenCols};
+	}
+	
+	/**
+	 * Puts back the range, its columns and the table where {@link #getPosition()} found them.
+	 * The table must be written again with {@link #rebuild()}.
+	 */
+	void setPosition (int[] position) {
+		firstRow = position[0];
+		firstCol = position[1];
+		lastRow = position[2];
+		lastCol = position[3];
+		rowCol = position[4];
+		colCol = position[5];
+		valueCol = position[6];
+		targetRow = position[7];
+		targetCol = position[8];
+		writtenRows = position[9];
+		writtenCols = position[10];
+	}
+	
+	/**
+	 * Updates the table after a cell of the {@link Spreadsheet} was set, if the cell is part of
+	 * the range: the old contribution of its row is taken away, and the new one is added.
+	 * @param row The index of the row of the cell.
+	 * @param col The index of the column of the cell.
+	 */
+	void update (int row, int col) {
+		if (row < firstRow || row > lastRow || (col != rowCol && col != colCol && col != valueCol)) {
+			return;
+		}
+		int i = row - firstRow;
+		ensureRows(i + 1);
+		int oldRow = rowIds[i];
+		int oldCol = colIds[i];
+		double oldValue = values[i];
+		boolean oldCounted = counted[i] == 1;
+		// The new contribution is added first, so that a key that the row keeps never disappears
+		boolean layout = add(i);
+		layout |= remove(oldRow, oldCol, oldValue, oldCounted);
+		if (layout) {
+			write();
+		} else { // only the cells of the groups that the row left and joined have changed
+			if (oldRow != -1) {
+				writeGroup(oldRow, oldCol);
+			}
+			if (rowIds[i] != -1 && (rowIds[i] != oldRow || colIds[i] != oldCol)) {
+				writeGroup(rowIds[i], colIds[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the whole range again, and writes the whole table.
+	 */
+	void rebuild () {
+		rowKeys.clear();
+		colKeys.clear();
+		groups.clear();
+		int rows = Math.max(0, Math.min(lastRow, spreadsheet.getCells().length - 1) - firstRow + 1);
+		rowIds = new int[rows];
+		colIds = new int[rows];
+		values = new double[rows];
+		counted = new byte[rows];
+		Arrays.fill(rowIds, -1);
+		for (int i = 0; i < rows; i++) {
+			add(i);
+		}
+		write();
+	}
+	
+	/**
+	 * Returns {@code true} if a column is inside the range, {@code false} otherwise.
+	 */
+	private boolean inRange (int col) {
+		return col >= firstCol && col <= lastCol;
+	}
+	
+	/**
+	 * Makes room for the contributions of at least the given number of rows of the range.
+	 */
+	private void ensureRows (int rows) {
+		if (rows > rowIds.length) {
+			int old = rowIds.length;
+			int size = Math.max(rows, old * 2);
+			rowIds = Arrays.copyOf(rowIds, size);
+			colIds = Arrays.copyOf(colIds, size);
+			values = Arrays.copyOf(values, size);
+			counted = Arrays.copyOf(counted, size);
+			Arrays.fill(rowIds, old, size, -1);
+		}
+	}
+	
+	/**
+	 * Takes away the old contribution of a row of the range.
+	 * @param rowId The number of the key of the row in the column of rows, or {@code -1} if it was skipped.
+	 * @param colId The number of the key of the row in the column of columns.
+	 * @param value The value of the row.
+	 * @param wasCounted {@code true} if the value was counted.
+	 * @return {@code true} if a row or column of the table disappeared, {@code false} otherwise.
+	 */
+	private boolean remove (int rowId, int colId, double value, boolean wasCounted) {
+		if (rowId == -1) {
+			return false;
+		}
+		Group group = groups.get(key(rowId, colId));
+		group.rows--;
+		if (wasCounted) {
+			group.count--;
+			group.add(-value);
+			if (group.count == 0) { // forget any rounding errors
+				group.sum = 0;
+				group.lost = 0;
+			}
+		}
+		if (group.rows == 0) {
+			groups.remove(key(rowId, colId));
+		}
+		boolean rowGone = rowKeys.release(rowId);
+		boolean colGone = colCol != -1 && colKeys.release(colId);
+		return rowGone || colGone;
+	}
+	
+	/**
+	 * Reads a row of the range, and adds its contribution.
+	 * @param i The index of the row in the range.
+	 * @return {@code true} if a row or column of the table appeared, {@code false} otherwise.
+	 */
+	private boolean add (int i) {
+		int row = firstRow + i;
+		Key rowKey = Key.of(spreadsheet.getCell(row, rowCol));
+		Key colKey = (colCol == -1) ? null : Key.of(spreadsheet.getCell(row, colCol));
+		rowIds[i] = -1;
+		counted[i] = 0;
+		if (rowKey == null || (colCol != -1 && colKey == null)) { // skipped
+			return false;
+		}
+		int sizeBefore = rowKeys.visible + colKeys.visible;
+		rowIds[i] = rowKeys.acquire(rowKey);
+		colIds[i] = (colCol == -1) ? 0 : colKeys.acquire(colKey);
+		Long key = key(rowIds[i], colIds[i]);
+		Group group = groups.get(key);
+		if (group == null) {
+			group = new Group();
+			groups.put(key, group);
+		}
+		group.rows++;
+		
+		Cell cell = spreadsheet.getCell(row, valueCol);
+		if (function == COUNT) {
+			if (cell.getType() != Types.EMPTY) {
+				counted[i] = 1;
+				group.count++;
+			}
+		} else if (cell.getType() != Types.EMPTY && cell.getType() != Types.STRING) {
+			try {
+				values[i] = cell.getValue();
+				counted[i] = 1;
+				group.count++;
+				group.add(values[i]);
+			} catch (ArithmeticException ae) { // not counted
+			} catch (IllegalArgumentException iae) {
+			} catch (StackOverflowError soe) {
+			}
+		}
+		return rowKeys.visible + colKeys.visible != sizeBefore;
+	}
+	
+	/**
+	 * Writes the whole table, and empties the cells of the last table that it no longer covers.
+	 */
+	private void write () {
+		List<Integer> rows = rowKeys.sorted();
+		List<Integer> cols = (colCol == -1) ? Arrays.asList(0) : colKeys.sorted();
+		rowPositions = positions(rows, rowKeys.size());
+		colPositions = positions(cols, (colCol == -1) ? 1 : colKeys.size());
+		int height = rows.size() + 1;
+		int width = cols.size() + 1;
+		for (int i = 0; i < Math.max(height, writtenRows); i++) {
+			for (int j = 0; j < Math.max(width, writtenCols); j++) {
+				if (i >= height || j >= width) {
+					spreadsheet.put(targetRow + i, targetCol + j, new Cell());
+				}
+			}
+		}
+		writtenRows = height;
+		writtenCols = width;
+		
+		String label = FUNCTIONS[function] + "(" + Spreadsheet.toBase26(valueCol) + ")";
+		if (colCol == -1) {
+			spreadsheet.put(targetRow, targetCol, text(Spreadsheet.toBase26(rowCol)));
+			spreadsheet.put(targetRow, targetCol + 1, text(label));
+		} else {
+			spreadsheet.put(targetRow, targetCol, text(label));
+			for (int j = 0; j < cols.size(); j++) {
+				spreadsheet.put(targetRow, targetCol + 1 + j, colKeys.get(cols.get(j)).cell.clone());
+			}
+		}
+		for (int i = 0; i < rows.size(); i++) {
+			spreadsheet.put(targetRow + 1 + i, targetCol, rowKeys.get(rows.get(i)).cell.clone());
+			for (int j = 0; j < cols.size(); j++) {
+				writeGroup(rows.get(i), cols.get(j));
+			}
+		}
+	}
+	
+	/**
+	 * Writes the cell of the table that holds the aggregate of a group.
+	 */
+	private void writeGroup (int rowId, int colId) {
+		Group group = groups.get(key(rowId, colId));
+		Cell cell;
+		if (group == null) {
+			cell = new Cell();
+		} else if (function == COUNT) {
+			cell = new Cell(group.count);
+		} else if (group.count == 0) {
+			cell = new Cell();
+		} else if (function == SUM) {
+			cell = new Cell(group.sum + group.lost);
+		} else { // function == AVG
+			cell = new Cell((group.sum + group.lost) / group.count);
+		}
+		spreadsheet.put(targetRow + 1 + rowPositions[rowId], targetCol + 1 + colPositions[colId], cell);
+	}
+	
+	/**
+	 * Returns the position of each key in a sorted list of keys, or {@code -1} for the keys that
+	 * are not in it.
+	 * @param size The number of keys.
+	 */
+	private static int[] positions (List<Integer> sorted, int size) {
+		int[] positions = new int[size];
+		Arrays.fill(positions, -1);
+		for (int k = 0; k < sorted.size(); k++) {
+			positions[sorted.get(k)] = k;
+		}
+		return positions;
+	}
+	
+	/**
+	 * Returns a cell that holds a heading of the table.
+	 */
+	private Cell text (String s) {
+		return Cell.parse("\"" + s + "\"", null, spreadsheet);
+	}
+	
+	/**
+	 * Returns the key of the group with the given keys.
+	 */
+	private static Long key (int rowId, int colId) {
+		return ((long) rowId << 32) | colId;
+	}
+	
+	/**
+	 * The rows of the range with the same keys.
+	 */
+	private static class Group {
+		int rows;
+		long count; // the number of values that are counted
+		double sum;
+		double lost; // the low-order bits that were lost from the sum
+		
+		/**
+		 * Adds a number to the sum with Neumaier's compensated summation, as {@link Moments}
+		 * does, so that adding and taking away the same numbers many times does not let
+		 * rounding errors build up.
+		 */
+		void add (double x) {
+			double t = sum + x;
+			if (Math.abs(sum) >= Math.abs(x)) {
+				lost += (sum - t) + x;
+			} else {
+				lost += (x - t) + sum;
+			}
+			sum = t;
+		}
+	}
+	
+	/**
+	 * The distinct values of a column of the range, each with a number that never changes and
+	 * the number of rows that have it.
+	 */
+	private static class Keys {
+		int visible; // the number of keys that some row has
+		private final List<Key> keys = new ArrayList<Key>();
+		private final Map<Key, Integer> ids = new HashMap<Key, Integer>();
+		private int[] rows = new int[16];
+		
+		/**
+		 * Returns the number of a key, adding it if it is new, and counts another row that has it.
+		 */
+		int acquire (Key key) {
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = keys.size();
+				keys.add(key);
+				ids.put(key, id);
+				if (id == rows.length) {
+					rows = Arrays.copyOf(rows, id * 2);
+				}
+			}
+			if (rows[id]++ == 0) {
+				visible++;
+			}
+			return id;
+		}
+		
+		/**
+		 * Counts one row fewer that has a key.
+		 * @return {@code true} if no row has the key any more, {@code false} otherwise.
+		 */
+		boolean release (int id) {
+			if (--rows[id] == 0) {
+				visible--;
+				return true;
+			}
+			return false;
+		}
+		
+		Key get (int id) {
+			return keys.get(id);
+		}
+		
+		int size () {
+			return keys.size();
+		}
+		
+		/**
+		 * Returns the numbers of the keys that some row has, in order by key.
+		 */
+		List<Integer> sorted () {
+			List<Integer> sorted = new ArrayList<Integer>();
+			for (int id = 0; id < keys.size(); id++) {
+				if (rows[id] > 0) {
+					sorted.add(id);
+				}
+			}
+			Collections.sort(sorted, new Comparator<Integer>() {
+				public int compare (Integer a, Integer b) {
+					return keys.get(a).compareTo(keys.get(b));
+				}
+			});
+			return sorted;
+		}
+		
+		void clear () {
+			visible = 0;
+			keys.clear();
+			ids.clear();
+			rows = new int[16];
+		}
+	}
+	
+	/**
+	 * A value of a column of the range that rows are grouped by: a number, which includes dates
+	 * and the values of formulas, or a {@link String}.
+	 */
+	private static class Key implements Comparable<Key> {
+		final Cell cell; // the first cell that was found with the value, as it is written in the table
+		private final String string; // null for a number
+		private final double number;
+		
+		private Key (Cell cell, String string, double number) {
+			this.cell = cell;
+			this.string = string;
+			this.number = number;
+		}
+		
+		/**
+		 * Returns the key of a cell, or {@code null} if it is empty or cannot be evaluated.
+		 */
+		static Key of (Cell cell) {
+			Types type = cell.getType();
+			if (type == Types.EMPTY) {
+				return null;
+			} else if (type == Types.STRING) {
+				return new Key(cell.clone(), cell.getString(), 0);
+			}
+			try {
+				double value = cell.getValue() + 0.0; // -0.0 + 0.0 is 0.0
+				return new Key((type == Types.FORMULA) ? new Cell(value) : cell.clone(), null, value);
+			} catch (ArithmeticException ae) {
+				return null;
+			} catch (IllegalArgumentException iae) {
+				return null;
+			} catch (StackOverflowError soe) {
+				return null;
+			}
+		}
+		
+		public int compareTo (Key other) {
+			if ((string == null) != (other.string == null)) {
+				return (string == null) ? -1 : 1;
+			}
+			return (string == null) ? Double.compare(number, other.number) : string.compareTo(other.string);
+		}
+		
+		public boolean equals (Object o) {
+			return o instanceof Key && compareTo((Key) o) == 0;
+		}
+		
+		public int hashCode () {
+			return (string == null) ? Double.valueOf(number).hashCode() : string.hashCode();
+		}
+	}
+}
\ No newline at end of file
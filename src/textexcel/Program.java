@@ -2,6 +2,7 @@ package textexcel;
 
 import java.io.*;
 import java.util.*;
+import java.util.regex.*;
 
 /**
  * A class that contains the main portion of the {@link textexcel} program.
@@ -36,13 +37,26 @@ import java.util.*;
  * </ul>
  */
 public class Program {
+	// The sheets that the user can switch between
+	private static Workbook book = new Workbook();
 	// So that the spreadsheet can be modified by any method in this class.
-	private static Spreadsheet spr = new Spreadsheet();
+	private static Spreadsheet spr = book.add("Sheet1");
+	// The log of changes to the sheets, or null if they are not logged
+	private static WriteAheadLog log;
+	// Computes the values of the formulas while the user is typing
+	private static Recalculator recalc = new Recalculator();
+	// The ranges whose changes are printed as they happen
+	private static List<Subscription> watches = new ArrayList<Subscription>();
 	
 	private Program () {} // prevent this class from being instantiated
 	
 	public static void main (String[] args) {
+		if (args.length > 0 && args[0].equalsIgnoreCase("--server")) {
+			serve(args);
+			return;
+		}
 		System.out.println("Welcome to TextExcel!");
+		startLog();
 		
 		// Prime the command loop
 		System.out.print("\nEnter a command: ");
@@ -51,29 +65,76 @@ public class Program {
 		
 		// Command loop
 		while (!command.equalsIgnoreCase("exit")) {
+			// Printing waits a while for the values, but other commands don't
+			boolean printing = Library.startsWithIgnoreCase(command, "print");
+			boolean calculated = recalc.finish(printing ? Recalculator.PRINT_WAIT : 0);
 			if (command.equalsIgnoreCase("print")) { // Printing the spreadsheet
-				System.out.println("\n" + spr);
+				System.out.println("\n" + spr.toString(calculated));
+				if (!calculated) {
+					System.out.println("Still calculating: values marked with ~ are out of date, and ... are not ready yet.\n");
+				}
+			} else if (printing) {
+				print(command, calculated); // print part of the spreadsheet, or fit its columns
 			} else if (command.equalsIgnoreCase("help")) {
 				help();
 			} else if (command.matches("[A-Z]+\\d+.*")) {
 				cell(command); // set or display an individual cell
+			} else if (command.equalsIgnoreCase("undo")) {
+				if (!spr.undo()) { // undo the last change to the cells
+					printError("There is nothing to undo.");
+				}
+			} else if (command.equalsIgnoreCase("redo")) {
+				if (!spr.redo()) { // redo the last change that was undone
+					printError("There is nothing to redo.");
+				}
+			} else if (command.equalsIgnoreCase("sheets")) {
+				listSheets();
+			} else if (Library.startsWithIgnoreCase(command, "sheet ")) {
+				sheet(command); // switch to another sheet
 			} else if (Library.startsWithIgnoreCase(command, "clear")) {
 				clear(command); // clear cell/sheet
 			} else if (Library.startsWithIgnoreCase(command, "save")) {
 				handleSave(command); // save the spreadsheet
 			} else if (Library.startsWithIgnoreCase(command, "load")) {
 				load(command); // load a spreadsheet
+			} else if (Library.startsWithIgnoreCase(command, "sort")) {
+				sort(command); // sort a range of rows
+			} else if (Library.startsWithIgnoreCase(command, "filter")) {
+				filter(command); // keep only the rows that match
+			} else if (Library.startsWithIgnoreCase(command, "fill")) {
+				fill(command); // copy a cell into a range
+			} else if (Library.startsWithIgnoreCase(command, "copy")) {
+				copy(command); // copy a range to another place
+			} else if (Library.startsWithIgnoreCase(command, "pivot ")) {
+				pivot(command); // summarize a range in a table that is kept up to date
+			} else if (Library.startsWithIgnoreCase(command, "watch ")) {
+				watch(command); // print the changes to a range as they happen
+			} else if (Library.startsWithIgnoreCase(command, "query ")) {
+				query(command); // summarize a range
+			} else if (Library.startsWithIgnoreCase(command, "format")) {
+				format(command); // print the numbers of a column differently
+			} else if (Library.startsWithIgnoreCase(command, "array")) {
+				array(command); // compute a formula for a whole range
+			} else if (Library.startsWithIgnoreCase(command, "insert")
+					|| Library.startsWithIgnoreCase(command, "delete")) {
+				insertOrDelete(command); // insert or delete rows or columns
 			} else {
 				// The command is completely invalid, ex. "This isn't working." or "al;skdfa;df"
 				printError();
 			}
 			
 			// Get ready for the next iteration of the loop
+			commitLog();
+			book.publish();
+			recalc.start(spr);
 			System.out.print("Enter a command: ");
 			command = console.nextLine();
 		}
 		
 		console.close(); // To get rid of those annoying "resource leak" warnings
+		if (log != null) { // there is nothing to recover
+			log.delete();
+		}
 		System.out.print("\nFarewell!");
 	}
 	
@@ -82,12 +143,18 @@ public class Program {
 	 * @param command The command that the user has typed.
 	 */
 	private static void cell (String command) {
-		if (command.matches("[A-Z]+\\d+ = \\(.*\\)") || command.matches("[A-Z]+\\d+ = [A-Z]+\\(.*\\)")) {
-			
-		} else if (command.matches("[A-Z]+\\d+ = .*")) { // Setting a cell
+		if (command.matches("[A-Z]+\\d+ = .*")) { // Setting a cell
+			String name = command.substring(0, command.indexOf("=") - 1);
 			String setWith = command.substring(command.indexOf("=") + 2, command.length());
 			try {
-				spr.set(command.substring(0, command.indexOf("=") - 1), new Cell(setWith));
+				Cell value = Cell.parse(setWith, name, spr);
+				if (value == null) { // Cell format is invalid
+					printError();
+				} else if (value.getType() == Types.FORMULA && value.getFormula().referencesItself()) {
+					printError("Circular formula reference.");
+				} else {
+					spr.set(name, value);
+				}
 			} catch (ArithmeticException e) {
 				printError("Formulae containing non-real numbers are not supported"
 						+ " by this application.");
@@ -95,6 +162,8 @@ public class Program {
 				printError("Invalid formula.");
 			} catch (StackOverflowError soe) {
 				printError("Circular formula reference.");
+			} catch (UnrecognizedFunctionException e) {
+				printError("Unrecognized function " + e.getMessage() + ".");
 			} catch (InvalidCellException e) { // Cell format is invalid
 				printError();
 			} catch (IllegalArgumentException e) {
@@ -148,7 +217,10 @@ public class Program {
 	 * @param command The command that the user has typed.
 	 */
 	private static void handleSave (String command) {
-		if (command.equalsIgnoreCase("save")) {
+		Matcher workbook = Pattern.compile("(?iu)save workbook(?: (.+))?").matcher(command);
+		if (workbook.matches()) {
+			saveWorkbook(workbook.group(1));
+		} else if (command.equalsIgnoreCase("save")) {
 			String loc = spr.getPath();
 			if (loc == null) {
 				int i;
@@ -203,12 +275,18 @@ public class Program {
 	 * @param command The command that the user has typed.
 	 */
 	private static void load (String command) {
-		if (command.matches("(?iu)load .+\\.txt")) {
+		if (command.matches("(?iu)load workbook .+")) {
+			loadWorkbook(command.substring(command.indexOf(" ", 5) + 1, command.length()));
+		} else if (command.matches("(?iu)load .+\\.txt")) {
 			String loadFrom = command.substring(command.indexOf(" ") + 1, command.length());
 			try {
-				spr = new Spreadsheet(loadFrom);
+				spr = book.load(spr.getName(), loadFrom);
+				restartLog();
 			} catch (FileNotFoundException nf) {
 				printError("No file was found at the path \"" + getPath(loadFrom) + "\".");
+			} catch (IOException e) {
+				printError("An error occurred as this program attempted to read the file at \""
+						+ getPath(loadFrom) + "\".");
 			} catch (SecurityException se) {
 				printError("This program does not have permission to access the file at \""
 						+ loadFrom + "\".");
@@ -218,6 +296,372 @@ public class Program {
 		}
 	}
 	
+	/**
+	 * Saves every sheet of the workbook to a directory, or prints an error message if it cannot
+	 * be saved. Only the sheets that have changed are written.
+	 * @param directory The directory, or {@code null} to use the one that the workbook was last
+	 * 			saved to or loaded from.
+	 */
+	private static void saveWorkbook (String directory) {
+		if (directory == null) {
+			directory = book.getDirectory();
+			if (directory == null) {
+				printError("The workbook has not been saved before, so a directory must be input.");
+				return;
+			}
+		}
+		try {
+			book.save(directory);
+		} catch (IOException e) {
+			printError("An error occurred as this program attempted to save the workbook to \""
+					+ getPath(directory) + "\".");
+		} catch (SecurityException se) {
+			printError("This program does not have permission to save the workbook to \""
+					+ directory + "\".");
+		}
+	}
+	
+	/**
+	 * Opens the workbook saved in a directory and switches to its first sheet, or prints an error
+	 * message if it cannot be opened.
+	 * @param directory The directory that the workbook was saved to.
+	 */
+	private static void loadWorkbook (String directory) {
+		try {
+			Workbook opened = Workbook.open(directory);
+			spr = opened.get(opened.getNames().get(0));
+			book = opened;
+			restartLog();
+		} catch (FileNotFoundException nf) {
+			printError("No workbook was found in the directory \"" + getPath(directory) + "\".");
+		} catch (IOException e) {
+			printError("An error occurred as this program attempted to read the workbook in \""
+					+ getPath(directory) + "\".");
+		} catch (SecurityException se) {
+			printError("This program does not have permission to access the workbook in \""
+					+ directory + "\".");
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code sheet}, case-insensitive.
+	 * Switches to the sheet with the given name, such as {@code sheet Sales}, adding it to the
+	 * workbook if there is none, or prints an error message if the name is not valid.
+	 * @param command The command that the user has typed.
+	 */
+	private static void sheet (String command) {
+		String name = command.substring(command.indexOf(" ") + 1, command.length()).trim();
+		try {
+			Spreadsheet sheet = book.get(name);
+			if (sheet == null) {
+				sheet = book.add(name);
+				System.out.println("Added the sheet " + name + ".\n");
+			}
+			spr = sheet;
+		} catch (IllegalArgumentException e) {
+			printError("The name of a sheet must start with a letter and contain only letters, digits"
+					+ " and underscores.");
+		} catch (FileNotFoundException nf) {
+			printError("The file of the sheet " + name + " was not found.");
+		} catch (IOException e) {
+			printError("An error occurred as this program attempted to read the sheet " + name + ".");
+		}
+	}
+	
+	/**
+	 * Prints the names of the sheets of the workbook, marking the one that is being edited.
+	 */
+	private static void listSheets () {
+		System.out.println();
+		for (String name : book.getNames()) {
+			System.out.println((name.equals(spr.getName()) ? " * " : "   ") + name);
+		}
+		System.out.println();
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code sort}, case-insensitive.
+	 * Sorts the rows of a range of cells, such as {@code sort A1:C20 by B desc},
+	 * or prints an error message if the command is not valid.
+	 * @param command The command that the user has typed.
+	 */
+	private static void sort (String command) {
+		Matcher m = Pattern.compile("(?i:sort) ([A-Z]+\\d+)\\s*[:-]\\s*([A-Z]+\\d+) (?i:by) ([A-Z]+)"
+				+ "(?: ((?i:asc|desc)))?").matcher(command);
+		if (m.matches()) {
+			try {
+				spr.sort(m.group(1), m.group(2), m.group(3),
+						m.group(4) == null || m.group(4).equalsIgnoreCase("asc"));
+			} catch (IllegalArgumentException e) {
+				printError((e.getMessage() != null) ? e.getMessage() : "Illegal cell range.");
+			}
+		} else {
+			printError();
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code fill}, case-insensitive.
+	 * Either copies a cell into a range, such as {@code fill B1 B2:B100}, or sets every cell of
+	 * a range to the same contents, such as {@code fill A1:A1000 = 0}.
+	 * @param command The command given by the user.
+	 */
+	private static void fill (String command) {
+		Matcher m = Pattern.compile("(?i:fill) ([A-Z]+\\d+) ([A-Z]+\\d+)\\s*[:-]\\s*([A-Z]+\\d+)").matcher(command);
+		Matcher range = Pattern.compile("(?i:fill) ([A-Z]+\\d+)\\s*[:-]\\s*([A-Z]+\\d+) = (.+)").matcher(command);
+		if (m.matches()) {
+			try {
+				spr.fill(m.group(1), m.group(2), m.group(3));
+			} catch (IllegalArgumentException e) {
+				printError("Illegal cell range.");
+			}
+		} else if (range.matches()) {
+			try {
+				Cell value = Cell.parse(range.group(3), range.group(1), spr);
+				if (value == null) { // Cell format is invalid
+					printError();
+				} else if (value.getType() == Types.FORMULA && value.getFormula().referencesItself()) {
+					printError("Circular formula reference.");
+				} else {
+					spr.setRange(range.group(1), range.group(2), value);
+				}
+			} catch (ArithmeticException e) {
+				printError("Formulae containing non-real numbers are not supported"
+						+ " by this application.");
+			} catch (NumberFormatException e) {
+				printError("Invalid formula.");
+			} catch (UnrecognizedFunctionException e) {
+				printError("Unrecognized function " + e.getMessage() + ".");
+			} catch (InvalidCellException e) {
+				printError();
+			} catch (IllegalArgumentException e) {
+				printError("Illegal cell range.");
+			}
+		} else {
+			printError();
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code copy}, case-insensitive,
+	 * such as {@code copy A1:C100 to E1}.
+	 * @param command The command given by the user.
+	 */
+	private static void copy (String command) {
+		Matcher m = Pattern.compile("(?i:copy) ([A-Z]+\\d+)\\s*[:-]\\s*([A-Z]+\\d+) (?i:to) ([A-Z]+\\d+)")
+				.matcher(command);
+		if (m.matches()) {
+			try {
+				spr.copy(m.group(1), m.group(2), m.group(3));
+			} catch (IllegalArgumentException e) {
+				printError("Illegal cell range.");
+			}
+		} else {
+			printError();
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code print}, case-insensitive,
+	 * and is followed by a range, such as {@code print A1:H20}, by {@code fit}, or by both.
+	 * @param command The command given by the user.
+	 * @param calculated {@code true} if the values of all of the formulas are ready.
+	 */
+	private static void print (String command, boolean calculated) {
+		Matcher m = Pattern.compile("(?i:print)(?: ([A-Z]+\\d+\\s*[:-]\\s*[A-Z]+\\d+))?( (?i:fit))?").matcher(command);
+		if (!m.matches()) {
+			printError();
+			return;
+		}
+		String range = (m.group(1) == null) ? null : m.group(1).replaceAll("\\s*[:-]\\s*", ":");
+		System.out.println();
+		try {
+			spr.print(range, calculated, m.group(2) != null, System.out);
+		} catch (IllegalArgumentException e) {
+			printError("Illegal cell range.");
+			return;
+		}
+		System.out.println();
+		if (!calculated) {
+			System.out.println("Still calculating: values marked with ~ are out of date, and ... are not ready yet.\n");
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code pivot}, case-insensitive,
+	 * such as {@code pivot A1:D100 rows B columns C sum D into F1}, or {@code pivot stop F1}.
+	 * @param command The command given by the user.
+	 */
+	private static void pivot (String command) {
+		Matcher stop = Pattern.compile("(?i:pivot stop) ([A-Z]+\\d+)").matcher(command);
+		if (stop.matches()) {
+			if (!spr.stopPivot(stop.group(1))) {
+				printError("There is no pivot table at " + stop.group(1) + ".");
+			}
+			return;
+		}
+		Matcher m = Pattern.compile("(?i:pivot) ([A-Z]+\\d+)\\s*[:-]\\s*([A-Z]+\\d+) (?i:rows) ([A-Z]+)"
+				+ "(?: (?i:columns) ([A-Z]+))? ([A-Za-z]+) ([A-Z]+) (?i:into) ([A-Z]+\\d+)").matcher(command);
+		if (!m.matches()) {
+			printError();
+			return;
+		}
+		try {
+			spr.pivot(m.group(1), m.group(2), m.group(3), m.group(4), m.group(5), m.group(6), m.group(7));
+		} catch (IllegalArgumentException e) {
+			printError("Illegal pivot table.");
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code watch}, case-insensitive,
+	 * such as {@code watch A1:C10}, or {@code watch stop}.
+	 * @param command The command given by the user.
+	 */
+	private static void watch (String command) {
+		if (command.equalsIgnoreCase("watch stop")) {
+			for (Subscription watch : watches) {
+				watch.cancel();
+			}
+			watches.clear();
+			return;
+		}
+		Matcher m = Pattern.compile("(?i:watch) ([A-Z]+\\d+(?:\\s*[:-]\\s*[A-Z]+\\d+)?)").matcher(command);
+		if (!m.matches()) {
+			printError();
+			return;
+		}
+		try {
+			watches.add(spr.subscribe(m.group(1).replaceAll("\\s*[:-]\\s*", ":"), new Subscription.Listener() {
+				public void changed (Subscription.Event event) {
+					System.out.println("\nChanged: " + event);
+				}
+			}));
+		} catch (IllegalArgumentException e) {
+			printError("Illegal cell range.");
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code query}, case-insensitive,
+	 * such as {@code query A1:D100 select B, sum(D) group by B}, optionally followed by
+	 * {@code into} and the cell that the result is written to.
+	 * @param command The command given by the user.
+	 */
+	private static void query (String command) {
+		Matcher m = Pattern.compile("(?i:query) (.+?)(?: (?i:into) ([A-Z]+\\d+))?").matcher(command);
+		if (!m.matches()) {
+			printError();
+			return;
+		}
+		Cell[][] result;
+		try {
+			result = spr.query(m.group(1), m.group(2));
+		} catch (IllegalArgumentException e) {
+			printError((e.getMessage() == null) ? "Illegal cell range." : e.getMessage());
+			return;
+		}
+		if (m.group(2) == null) {
+			System.out.println();
+			Spreadsheet.print(result, System.out);
+			System.out.println();
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code format}, case-insensitive,
+	 * such as {@code format B fixed 2}, or {@code format B} to print the format of a column.
+	 * @param command The command given by the user.
+	 */
+	private static void format (String command) {
+		Matcher m = Pattern.compile("(?i:format) ([A-Z]+)(?: ([A-Za-z]+)(?: (\\d+))?)?").matcher(command);
+		if (!m.matches()) {
+			printError();
+			return;
+		}
+		int col = Spreadsheet.toDec(m.group(1));
+		if (m.group(2) == null) {
+			System.out.println(spr.getFormat(col));
+			return;
+		}
+		CellFormat format = CellFormat.get(m.group(2), (m.group(3) == null) ? -1 : Integer.parseInt(m.group(3)));
+		if (format == null) {
+			printError("Illegal format.");
+			return;
+		}
+		try {
+			spr.setFormat(col, format);
+		} catch (IllegalArgumentException e) {
+			printError("Illegal column.");
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code insert} or {@code delete},
+	 * case-insensitive, such as {@code insert row 3} or {@code delete col B 2}.
+	 * @param command The command given by the user.
+	 */
+	private static void insertOrDelete (String command) {
+		Matcher m = Pattern.compile("(?i:(insert|delete) (?:(row)|col(?:umn)?)s?) (?:(\\d+)|([A-Z]+))(?: (\\d+))?")
+				.matcher(command);
+		if (!m.matches() || (m.group(2) == null) != (m.group(3) == null)) { // a row needs a number
+			printError();
+			return;
+		}
+		boolean rows = m.group(2) != null;
+		int start = rows ? Integer.parseInt(m.group(3)) - 1 : Spreadsheet.toDec(m.group(4));
+		int count = (m.group(5) == null) ? 1 : Integer.parseInt(m.group(5));
+		try {
+			if (m.group(1).equalsIgnoreCase("insert")) {
+				spr.insert(rows, start, count);
+			} else {
+				spr.delete(rows, start, count);
+			}
+		} catch (IllegalArgumentException e) {
+			printError(rows ? "Illegal row." : "Illegal column.");
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code array}, case-insensitive.
+	 * @param command The command given by the user.
+	 */
+	private static void array (String command) {
+		Matcher m = Pattern.compile("(?i:array) ([A-Z]+\\d+)\\s*[:-]\\s*([A-Z]+\\d+) = (.+)").matcher(command);
+		if (m.matches()) {
+			try {
+				int errors = spr.computeArray(m.group(1), m.group(2), m.group(3));
+				if (errors > 0) {
+					printError(errors + " cell(s) did not evaluate to a real number and were left empty.");
+				}
+			} catch (UnrecognizedFunctionException e) {
+				printError("Unrecognized function " + e.getMessage() + ".");
+			} catch (NumberFormatException e) {
+				printError("Invalid formula.");
+			} catch (IllegalArgumentException e) {
+				printError("Illegal cell range.");
+			}
+		} else {
+			printError();
+		}
+	}
+	
+	/**
+	 * Processes the user's command, assuming that it starts with {@code filter}, case-insensitive.
+	 * Keeps only the rows whose cell in a column satisfies a comparison, such as
+	 * {@code filter B >= 10}, or prints an error message if the command is not valid.
+	 * @param command The command that the user has typed.
+	 */
+	private static void filter (String command) {
+		Matcher m = Pattern.compile("(?i:filter) ([A-Z]+) (=|!=|<=|>=|<|>) (.+)").matcher(command);
+		Cell value = m.matches() ? Cell.parse(m.group(3), null, spr) : null;
+		if (value == null || value.getType() == Types.FORMULA) {
+			printError();
+		} else {
+			spr.filter(m.group(1), m.group(2), value);
+		}
+	}
+	
 	/**
 	 * Returns the absolute filepath, as a {@link String}, of the specified file.
 	 * @param filename The file at the filepath to be evaluated
@@ -226,6 +670,40 @@ public class Program {
 		return new File(filename).getAbsolutePath();
 	}
 
+	/**
+	 * Serves a workbook to other processes on this host instead of reading commands, see
+	 * {@link Server}. The arguments are {@code --server}, optionally followed by the port, and then
+	 * by a spreadsheet file ending with {@code .txt} or the directory of a workbook to be served.
+	 * The changes that clients make are logged as the user's commands are, and if the last session
+	 * did not exit normally, the workbook that it left is recovered from the log and served instead.
+	 * @param args The arguments of the program.
+	 */
+	private static void serve (String[] args) {
+		int next = 1;
+		int port = Server.DEFAULT_PORT;
+		if (args.length > next && args[next].matches("\\d+")) {
+			port = Integer.parseInt(args[next++]);
+		}
+		try {
+			if (args.length > next && args[next].toLowerCase().endsWith(".txt")) {
+				spr = book.load(spr.getName(), args[next]);
+			} else if (args.length > next) {
+				book = Workbook.open(args[next]);
+			}
+			startLog();
+			Server server = new Server(book, log, port);
+			System.out.println("Serving " + book.getNames() + " on port " + server.getPort()
+					+ " of this host. Press Ctrl+C to stop.");
+			server.run();
+		} catch (FileNotFoundException nf) {
+			printError("No spreadsheet or workbook was found at \"" + getPath(args[next]) + "\".");
+		} catch (IOException e) {
+			printError("The server could not be started: " + e.getMessage());
+		} catch (SecurityException se) {
+			printError("This program does not have permission to start the server.");
+		}
+	}
+	
 	/**
 	 * Calls {@link Program#printError(String)}, passing the {@link String} 
 	 * "{@code Invalid command.}" as a parameter.
@@ -234,6 +712,68 @@ public class Program {
 		printError("Invalid command.");
 	}
 	
+	/**
+	 * Recovers the workbook from the log of the last session if the program did not exit
+	 * normally, then starts logging the changes to its sheets, unless logging is turned off.
+	 */
+	private static void startLog () {
+		if (WriteAheadLog.FILE.length() == 0) {
+			return;
+		}
+		try {
+			Workbook recovered = WriteAheadLog.recover(WriteAheadLog.FILE);
+			if (recovered != null) {
+				spr = recovered.get(recovered.getNames().get(0));
+				book = recovered;
+				System.out.println("The spreadsheet from the last session, which did not exit normally,"
+						+ " has been recovered.");
+			}
+			log = new WriteAheadLog(WriteAheadLog.FILE, book);
+			book.setLog(log);
+		} catch (IOException e) {
+			stopLog();
+		} catch (SecurityException e) {
+			stopLog();
+		}
+	}
+	
+	/**
+	 * Starts the log again from the workbook, after a spreadsheet or another workbook has been loaded.
+	 */
+	private static void restartLog () {
+		if (log != null) {
+			book.setLog(log);
+			try {
+				log.checkpoint(book);
+			} catch (IOException e) {
+				stopLog();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the changes that the last command made to the log.
+	 */
+	private static void commitLog () {
+		if (log != null) {
+			try {
+				log.commit();
+			} catch (IOException e) {
+				stopLog();
+			}
+		}
+	}
+	
+	/**
+	 * Stops logging changes after the log could not be written.
+	 */
+	private static void stopLog () {
+		printError("Changes cannot be logged to the file at \"" + getPath(WriteAheadLog.FILE)
+				+ "\", so they cannot be recovered if this program crashes.");
+		book.setLog(null);
+		log = null;
+	}
+	
 	/**
 	 * Prints an error message to the console.
 	 * @param message The message to be printed.
@@ -270,12 +810,59 @@ public class Program {
 		System.out.println("asks for more input as usual.\n");
 		System.out.println("The spreadsheet must be saved as a text file with the extension .txt\n");
 		
+		System.out.println("Very large files are not read all at once. Instead, each row is read");
+		System.out.println("when it is first used, and rows that have not been changed are");
+		System.out.println("forgotten and read again when too many are held in memory. Sorting or");
+		System.out.println("filtering reads the whole file, so it needs enough memory for all of it.\n");
+		
 		System.out.println("If an error occurs while this program");
 		System.out.println("attempts to load the spreadsheet, an error message is printed");
 		System.out.println("to the command line, the spreadsheet is not loaded, and this program");
 		System.out.println("prompts the user for another command.\n\n");
 		
 		
+		System.out.println("PRINTING A SPREADSHEET\n");
+		
+		System.out.println("Type \"print\" to display the current spreadsheet. The values of the");
+		System.out.println("formulas are computed in the background while the next command is");
+		System.out.println("typed. If they are not all ready after two seconds, the spreadsheet");
+		System.out.println("is printed anyway: a value that is out of date is marked with ~,");
+		System.out.println("and a value that has not been computed yet is shown as ...\n");
+		
+		System.out.println("Every column is " + Spreadsheet.COLUMN_WIDTH + " characters wide, and longer values are cut off");
+		System.out.println("and end with >. To print only part of a large spreadsheet, or to fit");
+		System.out.println("each column to its longest value, type commands such as these:\n");
+		
+		System.out.println("\tprint A1:H20");
+		System.out.println("\tprint fit");
+		System.out.println("\tprint A1:H20 fit\n");
+		
+		System.out.println("With \"fit\", only the values in the range that is printed are");
+		System.out.println("measured, and no column is wider than " + Spreadsheet.MAX_COLUMN_WIDTH + " characters.\n\n");
+		
+		
+		System.out.println("FORMATTING NUMBERS\n");
+		
+		System.out.println("The numbers in a column, including the values of formulas, can be");
+		System.out.println("printed in a different format with commands such as these:\n");
+		
+		System.out.println("\tformat B fixed 2");
+		System.out.println("\tformat C percent 1");
+		System.out.println("\tformat D scientific 3");
+		System.out.println("\tformat E date");
+		System.out.println("\tformat B general\n");
+		
+		System.out.println("\"fixed\" prints a number with the given amount of decimal places,");
+		System.out.println("rounding halves up, such as 3.14; \"percent\" multiplies it by 100");
+		System.out.println("and adds a % sign; \"scientific\" prints it as a number between");
+		System.out.println("1 and 10 times a power of ten, such as 1.23E5; \"date\" prints it as");
+		System.out.println("the date that is that many days after 01/01/1970; and \"general\",");
+		System.out.println("which is the default, prints numbers as they are stored. At most");
+		System.out.println(CellFormat.MAX_DECIMALS + " decimal places can be given. Type \"format B\" to see");
+		System.out.println("the format of column B. Formats only change how numbers are printed,");
+		System.out.println("not their values, and they are not saved with the spreadsheet.\n\n");
+		
+		
 		System.out.println("SAVING A SPREADSHEET\n");
 		
 		System.out.println("To save a spreadsheet to a specific filepath, use the following syntax:\n");
@@ -296,6 +883,264 @@ public class Program {
 		System.out.println("If some sort of error occurs while this program attempts");
 		System.out.println("to save the spreadsheet to a file, an error message will be printed");
 		System.out.println("to the command line, the spreadsheet will not be saved,");
-		System.out.println("and the user will be prompted for another command as usual.");
+		System.out.println("and the user will be prompted for another command as usual.\n\n");
+		
+		
+		System.out.println("SORTING AND FILTERING\n");
+		
+		System.out.println("To sort the rows of a range of cells by one of its columns,");
+		System.out.println("use the following syntax:\n");
+		
+		System.out.println("\tsort <start>:<end> by <column> [asc|desc]\n");
+		
+		System.out.println("For example, \"sort A1:C20 by B desc\" sorts rows 1 to 20 of columns A to C");
+		System.out.println("from the largest to the smallest value in column B. Rows are sorted");
+		System.out.println("in ascending order if neither asc nor desc is typed. Numbers and dates");
+		System.out.println("come before text, and empty cells are always placed last.\n");
+		
+		System.out.println("To keep only the rows whose cell in a column satisfies a comparison,");
+		System.out.println("use the following syntax:\n");
+		
+		System.out.println("\tfilter <column> <operator> <value>\n");
+		
+		System.out.println("<operator> is one of =, !=, <, >, <= or >=, and <value> is a number,");
+		System.out.println("a date, or text surrounded by quotation marks. The rows that are kept");
+		System.out.println("are moved to the top of the spreadsheet, and the rest are cleared.");
+		System.out.println("In both cases, formulas that refer to a moved cell are updated");
+		System.out.println("to refer to its new location.\n\n");
+		
+		
+		System.out.println("QUERYING A RANGE\n");
+		
+		System.out.println("To summarize a range of cells without changing it, use the following");
+		System.out.println("syntax, where the WHERE and GROUP BY parts are optional:\n");
+		
+		System.out.println("\tquery <start>:<end> select <items> where <conditions> group by <columns>\n");
+		
+		System.out.println("For example, \"query A1:D100 select B, sum(D), count(*) where C > 5");
+		System.out.println("and A = \"east\" group by B\" prints, for each distinct value of column B");
+		System.out.println("among the rows whose value in C is greater than 5 and whose value in A");
+		System.out.println("is \"east\", the sum of column D and the number of rows. <items> are");
+		System.out.println("columns of the range and the aggregates sum, avg, min, max and count");
+		System.out.println("of columns, separated by commas; a column that is not aggregated must");
+		System.out.println("be listed after group by. <conditions> are comparisons like those of");
+		System.out.println("filter, separated by and. Without aggregates or group by, the items of");
+		System.out.println("every row that satisfies the conditions are printed. Sums, averages,");
+		System.out.println("minimums and maximums only count numbers, and empty rows are skipped.");
+		System.out.println("Add \"into <cell>\" to the end of the command to write the result");
+		System.out.println("into the spreadsheet, with its headings, starting at <cell>, instead");
+		System.out.println("of printing it. This can be undone.\n\n");
+		
+		
+		System.out.println("PIVOT TABLES\n");
+		
+		System.out.println("A pivot table summarizes a range like a query, but stays in the");
+		System.out.println("spreadsheet and is kept up to date as the range changes. To create one,");
+		System.out.println("use the following syntax, where the columns part is optional:\n");
+		
+		System.out.println("\tpivot <start>:<end> rows <column> columns <column> <function> <column> into <cell>\n");
+		
+		System.out.println("For example, \"pivot A1:D100 rows B columns C sum D into F1\" writes a");
+		System.out.println("table starting at F1 with a row for each distinct value of column B and");
+		System.out.println("a column for each distinct value of column C, holding the sum of column D");
+		System.out.println("over the rows of the range with those values. <function> is sum, count");
+		System.out.println("or avg. Rows whose cell in the first column is empty are skipped. The");
+		System.out.println("table must start below or to the right of the range. When a cell of the");
+		System.out.println("range is set, only the parts of the table that it affects are updated;");
+		System.out.println("after other changes, such as sorting or undoing, the range is read again.");
+		System.out.println("Changing the cells of the table does not change the range, and is");
+		System.out.println("overwritten the next time the table is updated. Type");
+		System.out.println("\"pivot stop F1\" to stop updating the table at F1, which keeps its");
+		System.out.println("values. Inserting or deleting rows or columns moves the range and the");
+		System.out.println("table, and deleting the range or the table stops updating it. Pivot");
+		System.out.println("tables last until the spreadsheet is loaded again.\n\n");
+		
+		
+		System.out.println("WATCHING CELLS\n");
+		
+		System.out.println("To print the new values of a range of cells whenever they change,");
+		System.out.println("including the values of formulas that depend on other cells, use the");
+		System.out.println("following syntax:\n");
+		
+		System.out.println("\twatch <start>:<end>\n");
+		
+		System.out.println("For example, \"watch A1:C10\" prints the cells of A1:C10 whose values");
+		System.out.println("have changed after each command. The range moves when rows or columns");
+		System.out.println("are inserted or deleted. Type \"watch stop\" to stop watching every range.\n\n");
+		
+		
+		System.out.println("FUNCTIONS\n");
+		
+		System.out.println("Formulas may call functions, such as \"C1 = SUM(A1:A10, 5)\".");
+		System.out.println("A range of cells is written as <first cell>:<last cell>.");
+		System.out.println("AVG, MAX, MED, MIN, SQRT and SUM compute a value from their arguments,");
+		System.out.println("and so do STDEV and VAR, which return the sample standard deviation and");
+		System.out.println("variance. The following functions take ranges of the same size:\n");
+		
+		System.out.println("\tCOVAR(<range>, <range>)");
+		System.out.println("\tCORREL(<range>, <range>)");
+		System.out.println("\tSUMPRODUCT(<range> [, <range>, ...])\n");
+		
+		System.out.println("COVAR returns the covariance and CORREL the correlation of the cells in");
+		System.out.println("the same positions of the two ranges, leaving out positions where either");
+		System.out.println("cell is empty or text. SUMPRODUCT multiplies the cells in the same");
+		System.out.println("positions and returns the sum of the products, counting empty cells and");
+		System.out.println("text as 0.\n");
+		
+		System.out.println("The following functions look up a value, which may be a number,");
+		System.out.println("a cell, or text surrounded by quotation marks:\n");
+		
+		System.out.println("\tVLOOKUP(<value>, <range>, <column> [, <approximate>])");
+		System.out.println("\tHLOOKUP(<value>, <range>, <row> [, <approximate>])");
+		System.out.println("\tMATCH(<value>, <range> [, <type>])\n");
+		
+		System.out.println("VLOOKUP finds the value in the first column of the range and returns");
+		System.out.println("the cell in the given column of the same row; HLOOKUP does the same");
+		System.out.println("with rows and columns swapped. Unless <approximate> is 0, the largest");
+		System.out.println("value that is less than or equal to <value> is found. MATCH returns");
+		System.out.println("the position of the value in a single row or column: <type> is 1 (the");
+		System.out.println("default) for the largest value less than or equal to it, 0 for an equal");
+		System.out.println("value, or -1 for the smallest value greater than or equal to it.");
+		System.out.println("If a value is not found, the formula shows #ERROR.\n");
+		
+		System.out.println("The following functions count, add up or average the cells that meet a");
+		System.out.println("criterion:\n");
+		
+		System.out.println("\tCOUNTIF(<range>, <criterion>)");
+		System.out.println("\tSUMIF(<range>, <criterion> [, <sum range>])");
+		System.out.println("\tAVERAGEIF(<range>, <criterion> [, <average range>])");
+		System.out.println("\tCOUNTIFS(<range>, <criterion>, <range>, <criterion>, ...)");
+		System.out.println("\tSUMIFS(<sum range>, <range>, <criterion>, <range>, <criterion>, ...)");
+		System.out.println("\tAVERAGEIFS(<average range>, <range>, <criterion>, ...)\n");
+		
+		System.out.println("A criterion is a number, a cell, or text surrounded by quotation marks,");
+		System.out.println("such as \"east\", \">5\", \"<>0\" or \"a*\". Text may start with =, <>, <,");
+		System.out.println(">, <= or >=, and without one of those, or with = or <>, may hold the");
+		System.out.println("wildcards * (any characters) and ? (any one character); ~ makes the");
+		System.out.println("character after it plain. Text is matched with case, and \"\" matches");
+		System.out.println("empty cells. SUMIF and AVERAGEIF add up the cells of the sum range in");
+		System.out.println("the same positions as the cells of <range> that meet the criterion, or");
+		System.out.println("the cells of <range> themselves if there is no sum range. The functions");
+		System.out.println("ending in IFS only include the positions where every range meets its");
+		System.out.println("criterion, and their ranges must all be the same size. Only numbers,");
+		System.out.println("dates and formulas are added up.\n\n");
+		
+		
+		System.out.println("FILLING AND RELATIVE REFERENCES\n");
+		
+		System.out.println("To copy a cell into every cell of a range, use the following syntax:\n");
+		
+		System.out.println("\tfill <cell> <start>:<end>\n");
+		
+		System.out.println("If the cell holds a formula, the cells that it references are moved");
+		System.out.println("along with it. For example, if B1 is ( A1 * 2 ), then \"fill B1 B2:B100\"");
+		System.out.println("sets B2 to ( A2 * 2 ), B3 to ( A3 * 2 ), and so on. A reference can also");
+		System.out.println("be written relative to the cell that holds the formula, as R[<rows>]C[<columns>]:");
+		System.out.println("R[-1]C is the cell above, RC[1] is the cell to the right, and");
+		System.out.println("SUM(R[-3]C:R[-1]C) is the sum of the three cells above.\n");
+		
+		System.out.println("To set every cell of a range to the same contents at once, which is much");
+		System.out.println("faster than setting them one at a time, use the following syntax:\n");
+		
+		System.out.println("\tfill <start>:<end> = <contents>\n");
+		
+		System.out.println("The contents are written for the top left cell, so a formula is filled");
+		System.out.println("as above: \"fill B1:B100 = ( A1 * 2 )\" is the same as setting B1 and");
+		System.out.println("filling it into B2:B100.\n");
+		
+		System.out.println("To copy a range of cells to another place, use the following syntax:\n");
+		
+		System.out.println("\tcopy <start>:<end> to <cell>\n");
+		
+		System.out.println("<cell> is where the top left cell of the range is copied to. The references");
+		System.out.println("of the formulas that are copied are moved by the same distance as the cells.\n");
+		
+		System.out.println("To compute a formula for every cell of a range at once, and store");
+		System.out.println("the results as numbers rather than formulas, use the following syntax:\n");
+		
+		System.out.println("\tarray <start>:<end> = <formula>\n");
+		
+		System.out.println("The formula is written for the top left cell, and its references are");
+		System.out.println("moved for the other cells as they are by fill. For example,");
+		System.out.println("\"array C1:C1000 = ( A1 * B1 + 1 )\" sets each cell in C1 to C1000.");
+		System.out.println("Cells whose result is not a real number are left empty.\n\n");
+		
+		
+		System.out.println("INSERTING AND DELETING ROWS AND COLUMNS\n");
+		
+		System.out.println("To insert or delete rows or columns, use the following syntax:\n");
+		
+		System.out.println("\tinsert row <row> [<count>]");
+		System.out.println("\tdelete row <row> [<count>]");
+		System.out.println("\tinsert col <column> [<count>]");
+		System.out.println("\tdelete col <column> [<count>]\n");
+		
+		System.out.println("<row> is a row number and <column> is a column letter, such as C.");
+		System.out.println("<count> is the number of rows or columns, which is 1 if it is not typed.");
+		System.out.println("Inserted rows and columns are empty, and the cells after them are moved");
+		System.out.println("down or to the right. Formulas are changed so that they still refer to");
+		System.out.println("the same cells, and a range grows or shrinks when rows or columns are");
+		System.out.println("inserted or deleted inside it. A reference to a cell that is deleted");
+		System.out.println("becomes #REF!, and the formula shows #ERROR.\n\n");
+		
+		
+		System.out.println("UNDOING CHANGES\n");
+		
+		System.out.println("Type \"undo\" to undo the last change to the cells, such as setting,");
+		System.out.println("clearing, sorting, filtering, filling, copying, computing an array,");
+		System.out.println("writing the result of a query, or inserting or deleting rows and");
+		System.out.println("columns, and \"redo\" to redo the last change that was undone. The last");
+		System.out.println("100 changes can be undone. Loading a spreadsheet starts a new history, and");
+		System.out.println("making a new change forgets the changes that were undone.\n\n");
+		
+		
+		System.out.println("SHEETS AND WORKBOOKS\n");
+		
+		System.out.println("A workbook holds several sheets, each of which is a spreadsheet. The first");
+		System.out.println("sheet is called Sheet1. To switch to another sheet, use the following syntax:\n");
+		
+		System.out.println("\tsheet <name>\n");
+		
+		System.out.println("If there is no sheet called <name>, an empty one is added. The name starts");
+		System.out.println("with a letter and contains only letters, digits and underscores.");
+		System.out.println("Type \"sheets\" to list the sheets. The other commands, including");
+		System.out.println("load and save, apply to the current sheet only. Formulas can");
+		System.out.println("refer to the cells of another sheet by putting its name and an");
+		System.out.println("exclamation mark before them, as in ( Sheet2!A1 * 2 ) or SUM(Sheet2!A1:A10).\n");
+		
+		System.out.println("To save or load every sheet at once, use the following syntax:\n");
+		
+		System.out.println("\tsave workbook [<directory>]");
+		System.out.println("\tload workbook <directory>\n");
+		
+		System.out.println("Each sheet is saved to its own file in the directory, along with the file");
+		System.out.println("workbook.txt, which lists the sheets. Only the sheets that have changed");
+		System.out.println("since they were last saved there are written again. If no directory is");
+		System.out.println("typed, the workbook is saved to the directory it was last saved to or");
+		System.out.println("loaded from. When a workbook is loaded, each sheet is only read when");
+		System.out.println("it is first used.\n\n");
+		
+		
+		System.out.println("RECOVERING FROM A CRASH\n");
+		
+		System.out.println("Every change is logged to the file TextExcel.log until this program");
+		System.out.println("exits with the command \"exit\". If it stops in any other way, such as");
+		System.out.println("by crashing, the spreadsheet is recovered from the log the next time");
+		System.out.println("that the program starts, even if it was never saved.\n\n");
+		
+		
+		System.out.println("SHARING A WORKBOOK\n");
+		
+		System.out.println("Other programs on this computer can share a spreadsheet or workbook");
+		System.out.println("in memory if this program is started with the following arguments:\n");
+		
+		System.out.println("\t--server [<port>] [<filepath or directory>]\n");
+		
+		System.out.println("Instead of reading commands, it then waits for connections on the port,");
+		System.out.println("7654 by default. Each request is a line such as GET A1, VALUE A1,");
+		System.out.println("SET A1 5, EVAL SUM(A1:A5), SHEET Sheet2 or SAVE, and each is answered with");
+		System.out.println("a line that starts with OK or ERROR. Many requests can be sent at once.");
+		System.out.println("SAVE saves the workbook or spreadsheet to where it was loaded from, and");
+		System.out.println("changes are logged so that they are recovered if the server crashes.");
 	}
 }
\ No newline at end of file
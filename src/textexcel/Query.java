@@ -0,0 +1,733 @@
+package textexcel;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * A summary of a range of a {@link Spreadsheet} that is written like a query of a database,
+ * such as {@code A1:D100 SELECT B, SUM(D), COUNT(*) WHERE C > 5 AND A = "east" GROUP BY B}.
+ * The {@code SELECT} clause lists columns of the range and the aggregates {@code SUM},
+ * {@code AVG}, {@code MIN}, {@code MAX} and {@code COUNT} of columns; the optional
+ * {@code WHERE} clause keeps only the rows that satisfy every comparison, which are the same
+ * as those of {@link Spreadsheet#filter(String, String, Cell)}; and the optional
+ * {@code GROUP BY} clause summarizes each distinct combination of values of its columns
+ * separately. Without aggregates or {@code GROUP BY}, the columns of every row that is kept are
+ * listed. Rows whose cells in the columns that the query uses are all empty are skipped.
+ * <p>
+ * The query is run a column at a time rather than a cell at a time: each column that it uses
+ * is read once into arrays of primitives, and then the rows are filtered and aggregated in
+ * chunks of {@link #CHUNK_ROWS}, each into a hash table of groups of its own. If there are at
+ * least {@link #PARALLEL_ROWS} rows, the chunks are aggregated on the threads of
+ * {@link Function#POOL}. The chunks are always merged in order, so the result does not depend
+ * on the number of threads, and the groups are listed in the order that they first appear.
+ * @author Sam Beaumont
+ */
+class Query {
+	/**
+	 * The number of rows that are filtered and aggregated at a time, by one thread.
+	 */
+	static final int CHUNK_ROWS = 1 << 14;
+	/**
+	 * The smallest number of rows that are aggregated on several threads at once.
+	 */
+	static final int PARALLEL_ROWS = 1 << 17;
+	
+	// The aggregate functions of the SELECT clause
+	private static final String[] AGGREGATES = {"SUM", "AVG", "MIN", "MAX", "COUNT"};
+	private static final int SUM = 0;
+	private static final int AVG = 1;
+	private static final int MIN = 2;
+	private static final int MAX = 3;
+	private static final int COUNT = 4;
+	// The comparison operators of the WHERE clause, in the same order as Spreadsheet's
+	private static final List<String> OPERATORS = Arrays.asList("=", "!=", "<", ">", "<=", ">=");
+	
+	// The kinds of values that a column is read into
+	private static final byte EMPTY = 0;
+	private static final byte NUMBER = 1; // a number, a date or the value of a formula
+	private static final byte STRING = 2;
+	private static final byte ERROR = 3; // a formula that cannot be evaluated
+	
+	private static final Pattern QUERY = Pattern.compile("([A-Z]+\\d+)\\s*[:-]\\s*([A-Z]+\\d+) (?i:select) (.+?)"
+			+ "(?: (?i:where) (.+?))?(?: (?i:group by) (.+))?");
+	// An item of the SELECT clause, such as "B", "SUM(D)" or "COUNT(*)"
+	private static final Pattern ITEM = Pattern.compile("([A-Z]+)|([A-Za-z]+)\\s*\\(\\s*([A-Z]+|\\*)\\s*\\)");
+	// A comparison of the WHERE clause, and the AND that follows it
+	private static final Pattern CONDITION
+			= Pattern.compile("([A-Z]+)\\s*(!=|<=|>=|=|<|>)\\s*(\"[^\"]*\"|\\S+)(?:\\s+(?i:and)\\s+|$)");
+	
+	private final String text;
+	private final int firstRow;
+	private final int firstCol;
+	private final int lastRow;
+	private final int lastCol;
+	private final String[] labels; // the heading of each item of the SELECT clause
+	private final int[] itemCols; // the column of each item, or -1 for COUNT(*)
+	private final int[] functions; // the aggregate of each item, or -1 if it is not aggregated
+	private final int[] conditionCols;
+	private final int[] operators;
+	private final Cell[] values; // the value that each column is compared with
+	private final int[] groupCols;
+	private final boolean aggregated;
+	private final int[] used; // every column that the query uses, in order
+	
+	private Query (String text, int[] first, int[] last, List<String> labels, List<int[]> items,
+			List<Object[]> conditions, List<Integer> groupCols) {
+		this.text = text;
+		firstRow = first[0];
+		firstCol = first[1];
+		lastRow = last[0];
+		lastCol = last[1];
+		this.labels = labels.toArray(new String[labels.size()]);
+		itemCols = new int[items.size()];
+		functions = new int[items.size()];
+		boolean aggregates = !groupCols.isEmpty();
+		Set<Integer> used = new TreeSet<Integer>(groupCols);
+		for (int t = 0; t < itemCols.length; t++) {
+			itemCols[t] = items.get(t)[0];
+			functions[t] = items.get(t)[1];
+			aggregates |= functions[t] != -1;
+			if (itemCols[t] != -1) {
+				used.add(itemCols[t]);
+			}
+		}
+		aggregated = aggregates;
+		conditionCols = new int[conditions.size()];
+		operators = new int[conditions.size()];
+		values = new Cell[conditions.size()];
+		for (int c = 0; c < conditionCols.length; c++) {
+			conditionCols[c] = (Integer) conditions.get(c)[0];
+			operators[c] = (Integer) conditions.get(c)[1];
+			values[c] = (Cell) conditions.get(c)[2];
+			used.add(conditionCols[c]);
+		}
+		this.groupCols = new int[groupCols.size()];
+		for (int g = 0; g < this.groupCols.length; g++) {
+			this.groupCols[g] = groupCols.get(g);
+		}
+		this.used = new int[used.size()];
+		int k = 0;
+		for (int col : used) {
+			this.used[k++] = col;
+		}
+	}
+	
+	/**
+	 * Parses a query, such as {@code A1:D100 SELECT B, SUM(D) WHERE C > 5 GROUP BY B}. The
+	 * keywords and the names of the aggregates are case-insensitive, but the columns are not.
+	 * @param text The query.
+	 * @param spreadsheet The {@link Spreadsheet} that dates and numbers in the {@code WHERE}
+	 * 			clause are parsed for.
+	 * @return The parsed query.
+	 * @throws IllegalArgumentException If the query is not valid, with a message that says why.
+	 */
+	static Query parse (String text, Spreadsheet spreadsheet) {
+		Matcher m = QUERY.matcher(text.trim());
+		if (!m.matches()) {
+			throw new IllegalArgumentException("A query looks like A1:D100 SELECT B, SUM(D) WHERE C > 5 GROUP BY B.");
+		}
+		int[] first = Spreadsheet.getIndices(m.group(1));
+		int[] last = Spreadsheet.getIndices(m.group(2));
+		if (first[0] > last[0] || first[1] > last[1]) {
+			throw new IllegalArgumentException("Illegal cell range.");
+		}
+		
+		List<String> labels = new ArrayList<String>();
+		List<int[]> items = new ArrayList<int[]>();
+		for (String item : m.group(3).split(",")) {
+			Matcher im = ITEM.matcher(item.trim());
+			if (!im.matches()) {
+				throw new IllegalArgumentException("Illegal column: " + item.trim());
+			}
+			if (im.group(1) != null) {
+				items.add(new int[] {column(im.group(1), first, last), -1});
+				labels.add(im.group(1));
+				continue;
+			}
+			int function = Arrays.asList(AGGREGATES).indexOf(im.group(2).toUpperCase());
+			if (function == -1 || (im.group(3).equals("*") && function != COUNT)) {
+				throw new IllegalArgumentException("Illegal aggregate: " + item.trim());
+			}
+			int col = im.group(3).equals("*") ? -1 : column(im.group(3), first, last);
+			items.add(new int[] {col, function});
+			labels.add(AGGREGATES[function] + "(" + im.group(3) + ")");
+		}
+		
+		List<Object[]> conditions = new ArrayList<Object[]>();
+		if (m.group(4) != null) {
+			Matcher cm = CONDITION.matcher(m.group(4));
+			int end = 0;
+			while (end < m.group(4).length()) {
+				if (!cm.find(end) || cm.start() != end) {
+					throw new IllegalArgumentException("Illegal condition: " + m.group(4).substring(end));
+				}
+				Cell value = Cell.parse(cm.group(3), null, spreadsheet);
+				if (value == null || value.getType() == Types.FORMULA) {
+					throw new IllegalArgumentException("Illegal value: " + cm.group(3));
+				}
+				conditions.add(new Object[] {column(cm.group(1), first, last), OPERATORS.indexOf(cm.group(2)), value});
+				end = cm.end();
+			}
+		}
+		
+		List<Integer> groupCols = new ArrayList<Integer>();
+		if (m.group(5) != null) {
+			for (String col : m.group(5).split(",")) {
+				if (!col.trim().matches("[A-Z]+")) {
+					throw new IllegalArgumentException("Illegal column: " + col.trim());
+				}
+				groupCols.add(column(col.trim(), first, last));
+			}
+		}
+		
+		Query query = new Query(text.trim(), first, last, labels, items, conditions, groupCols);
+		if (query.aggregated) {
+			for (int t = 0; t < query.itemCols.length; t++) {
+				if (query.functions[t] == -1 && !groupCols.contains(query.itemCols[t])) {
+					throw new IllegalArgumentException("Column " + query.labels[t]
+							+ " must be aggregated or listed in GROUP BY.");
+				}
+			}
+		}
+		return query;
+	}
+	
+	/**
+	 * Returns the text of the query.
+	 */
+	public String toString () {
+		return text;
+	}
+	
+	/**
+	 * Runs the query. The values of the formulas that it uses are computed on this thread, before
+	 * any of the rows are aggregated.
+	 * @param spreadsheet The {@link Spreadsheet} that the range is part of.
+	 * @return The result, with a row of headings, such as {@code SUM(D)}, followed by a row for
+	 * 			each group or row that is kept. Aggregates of groups with no numbers, other than
+	 * 			{@code SUM} and {@code COUNT}, are left empty.
+	 */
+	Cell[][] run (Spreadsheet spreadsheet) {
+		int rows = Math.max(0, Math.min(lastRow, spreadsheet.getCells().length - 1) - firstRow + 1);
+		final Column[] columns = read(spreadsheet, rows);
+		final boolean[][] verdicts = new boolean[conditionCols.length][];
+		for (int c = 0; c < verdicts.length; c++) {
+			if (values[c].getType() == Types.STRING && operators[c] >= 2) { // compared alphabetically
+				StringDictionary strings = spreadsheet.getStrings();
+				verdicts[c] = new boolean[strings.size()];
+				for (int code = 0; code < verdicts[c].length; code++) {
+					verdicts[c][code] = compare(strings.get(code).compareTo(values[c].getString()), operators[c]);
+				}
+			}
+		}
+		final int[] codes = new int[conditionCols.length]; // the codes of the Strings that are compared
+		for (int c = 0; c < codes.length; c++) {
+			codes[c] = (values[c].getType() == Types.STRING) ? spreadsheet.getStrings().codeOf(values[c].getString()) : -1;
+		}
+		
+		final int total = rows;
+		int chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+		List<Future<Partial>> parallel = new ArrayList<Future<Partial>>();
+		if (rows >= PARALLEL_ROWS && Function.THREADS > 1) {
+			for (int b = 0; b < chunks; b++) {
+				final int start = b * CHUNK_ROWS;
+				parallel.add(Function.POOL.submit(new Callable<Partial>() {
+					public Partial call () {
+						return aggregate(columns, verdicts, codes, start, Math.min(total, start + CHUNK_ROWS));
+					}
+				}));
+			}
+		}
+		Partial result = new Partial(columns);
+		try {
+			for (int b = 0; b < chunks; b++) {
+				Partial partial = parallel.isEmpty() ? null : get(parallel.get(b));
+				if (partial == null) {
+					partial = aggregate(columns, verdicts, codes, b * CHUNK_ROWS, Math.min(rows, (b + 1) * CHUNK_ROWS));
+				}
+				result.merge(partial);
+			}
+		} finally {
+			for (Future<Partial> partial : parallel) {
+				partial.cancel(false);
+			}
+		}
+		if (aggregated && groupCols.length == 0 && result.groups == 0) { // the aggregates of no rows
+			result.group(0);
+		}
+		return result.toCells(spreadsheet);
+	}
+	
+	/**
+	 * Returns the index of a column of the range.
+	 * @throws IllegalArgumentException If the column is outside of the range.
+	 */
+	private static int column (String letters, int[] first, int[] last) {
+		int col = Spreadsheet.toDec(letters);
+		if (col < first[1] || col > last[1]) {
+			throw new IllegalArgumentException("Column " + letters + " is outside of the range.");
+		}
+		return col;
+	}
+	
+	/**
+	 * Reads every column that the query uses, one row at a time.
+	 * @param rows The number of rows of the range that are inside the spreadsheet.
+	 * @return The columns, by their index in the range, or {@code null} for the columns that are not used.
+	 */
+	private Column[] read (Spreadsheet spreadsheet, int rows) {
+		Column[] columns = new Column[lastCol - firstCol + 1];
+		for (int col : used) {
+			columns[col - firstCol] = new Column(rows);
+		}
+		StringDictionary strings = spreadsheet.getStrings();
+		for (int i = 0; i < rows; i++) {
+			for (int col : used) {
+				Column column = columns[col - firstCol];
+				Cell cell = spreadsheet.getCell(firstRow + i, col);
+				Types type = cell.getType();
+				if (type == Types.EMPTY) {
+					continue;
+				} else if (type == Types.STRING) {
+					column.kinds[i] = STRING;
+					column.values[i] = (cell.getCode() != -1) ? cell.getCode() : strings.codeOf(cell.getString());
+					continue;
+				}
+				try {
+					column.values[i] = cell.getValue();
+					column.kinds[i] = NUMBER;
+				} catch (ArithmeticException ae) {
+					column.kinds[i] = ERROR;
+				} catch (IllegalArgumentException iae) {
+					column.kinds[i] = ERROR;
+				} catch (StackOverflowError soe) {
+					column.kinds[i] = ERROR;
+				}
+			}
+		}
+		return columns;
+	}
+	
+	/**
+	 * Filters and aggregates a chunk of the rows.
+	 * @param verdicts For each comparison of a {@link String} by order, whether the {@link String}
+	 * 			with each code satisfies it.
+	 * @param codes The code of each {@link String} that the rows are compared with, or {@code -1}.
+	 * @param start The index of the first row of the chunk.
+	 * @param end The index after the last row of the chunk.
+	 */
+	private Partial aggregate (Column[] columns, boolean[][] verdicts, int[] codes, int start, int end) {
+		int[] selected = new int[end - start];
+		int n = 0;
+		for (int i = start; i < end; i++) { // skip the empty rows, unless the query only counts rows
+			if (used.length == 0) {
+				selected[n++] = i;
+			}
+			for (int col : used) {
+				if (columns[col - firstCol].kinds[i] != EMPTY) {
+					selected[n++] = i;
+					break;
+				}
+			}
+		}
+		for (int c = 0; c < conditionCols.length; c++) { // narrow the rows down by each comparison in turn
+			n = filter(columns[conditionCols[c] - firstCol], c, verdicts[c], codes[c], selected, n);
+		}
+		
+		Partial partial = new Partial(columns);
+		if (!aggregated) {
+			partial.selected = selected;
+			partial.groups = n;
+			return partial;
+		}
+		int[] ids = partial.groups(selected, n);
+		for (int t = 0; t < itemCols.length; t++) {
+			if (functions[t] != -1) {
+				partial.accumulate(t, selected, ids, n);
+			}
+		}
+		return partial;
+	}
+	
+	/**
+	 * Keeps only the selected rows that satisfy a comparison of the {@code WHERE} clause.
+	 * @return The number of rows that are kept, which are moved to the front of {@code selected}.
+	 */
+	private int filter (Column column, int c, boolean[] verdicts, int code, int[] selected, int n) {
+		int op = operators[c];
+		int kept = 0;
+		if (values[c].getType() == Types.STRING) {
+			for (int k = 0; k < n; k++) {
+				int i = selected[k];
+				boolean matches;
+				if (column.kinds[i] != STRING) {
+					matches = op == 1;
+				} else if (verdicts != null) {
+					int cellCode = (int) column.values[i];
+					matches = cellCode >= 0 && cellCode < verdicts.length && verdicts[cellCode];
+				} else {
+					matches = (code != -1 && column.values[i] == code) == (op == 0);
+				}
+				if (matches) {
+					selected[kept++] = i;
+				}
+			}
+		} else {
+			double value = values[c].getValue();
+			for (int k = 0; k < n; k++) {
+				int i = selected[k];
+				if ((column.kinds[i] == NUMBER) ? compare(Double.compare(column.values[i], value), op) : op == 1) {
+					selected[kept++] = i;
+				}
+			}
+		}
+		return kept;
+	}
+	
+	/**
+	 * Returns whether the result of a comparison satisfies an operator.
+	 * @param op The index of the operator in {@code OPERATORS}.
+	 */
+	private static boolean compare (int result, int op) {
+		switch (op) {
+			case 0: // =
+				return result == 0;
+			case 1: // !=
+				return result != 0;
+			case 2: // <
+				return result < 0;
+			case 3: // >
+				return result > 0;
+			case 4: // <=
+				return result <= 0;
+			default: // >=
+				return result >= 0;
+		}
+	}
+	
+	/**
+	 * Returns the partial result that another thread computed, or {@code null} if it could not.
+	 */
+	private static Partial get (Future<Partial> partial) {
+		try {
+			return partial.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/**
+	 * A column of the range, read into arrays.
+	 */
+	private static class Column {
+		final byte[] kinds;
+		final double[] values; // the number, or the code of the String
+		
+		Column (int rows) {
+			kinds = new byte[rows];
+			values = new double[rows];
+		}
+		
+		/**
+		 * Returns the bits that a value of the column is grouped by, with its kind.
+		 */
+		long key (int i) {
+			return (kinds[i] == NUMBER) ? Double.doubleToLongBits(values[i] + 0.0) : (long) values[i]; // -0.0 + 0.0 is 0.0
+		}
+	}
+	
+	/**
+	 * The groups of the rows, or the rows themselves if the query does not aggregate them,
+	 * of a chunk of the range or of every chunk that has been merged.
+	 */
+	private class Partial {
+		private final Column[] columns;
+		private final KeyTable[] tables = new KeyTable[groupCols.length]; // one for each column of GROUP BY
+		int groups; // or the number of selected rows if the query does not aggregate them
+		int[] selected = new int[0]; // the rows that are kept if the query does not aggregate them
+		// By the item of the SELECT clause, and then by group
+		private final double[][] sums = new double[itemCols.length][];
+		private final double[][] lost = new double[itemCols.length][]; // the bits that were lost from the sums
+		private final double[][] mins = new double[itemCols.length][];
+		private final double[][] maxes = new double[itemCols.length][];
+		private final long[][] counts = new long[itemCols.length][]; // of the numbers, cells or rows
+		private int capacity;
+		
+		Partial (Column[] columns) {
+			this.columns = columns;
+			for (int g = 0; g < tables.length; g++) {
+				tables[g] = new KeyTable();
+			}
+			ensureCapacity(16);
+		}
+		
+		/**
+		 * Returns the group of each of the selected rows, adding the groups that are new.
+		 */
+		int[] groups (int[] selected, int n) {
+			int[] ids = new int[n];
+			for (int g = 0; g < tables.length; g++) { // each column of GROUP BY divides the groups further
+				Column column = columns[groupCols[g] - firstCol];
+				KeyTable table = tables[g];
+				for (int k = 0; k < n; k++) {
+					int i = selected[k];
+					ids[k] = table.id(ids[k], column.kinds[i], column.key(i), i);
+				}
+			}
+			groups = (tables.length > 0) ? tables[tables.length - 1].size : Math.max(groups, Math.min(n, 1));
+			ensureCapacity(groups);
+			return ids;
+		}
+		
+		/**
+		 * Returns the group of a row, adding it if it is new.
+		 */
+		int group (int i) {
+			int id = 0;
+			for (int g = 0; g < tables.length; g++) {
+				Column column = columns[groupCols[g] - firstCol];
+				id = tables[g].id(id, column.kinds[i], column.key(i), i);
+			}
+			groups = Math.max(groups, id + 1);
+			ensureCapacity(groups);
+			return id;
+		}
+		
+		/**
+		 * Adds the values of the selected rows to the aggregates of an item of the SELECT clause.
+		 * @param t The index of the item.
+		 * @param ids The group of each of the selected rows.
+		 */
+		void accumulate (int t, int[] selected, int[] ids, int n) {
+			long[] count = counts[t];
+			if (itemCols[t] == -1) { // COUNT(*)
+				for (int k = 0; k < n; k++) {
+					count[ids[k]]++;
+				}
+				return;
+			}
+			Column column = columns[itemCols[t] - firstCol];
+			if (functions[t] == COUNT) {
+				for (int k = 0; k < n; k++) {
+					if (column.kinds[selected[k]] != EMPTY) {
+						count[ids[k]]++;
+					}
+				}
+				return;
+			}
+			double[] sum = sums[t];
+			double[] low = lost[t];
+			double[] min = mins[t];
+			double[] max = maxes[t];
+			for (int k = 0; k < n; k++) {
+				int i = selected[k];
+				if (column.kinds[i] != NUMBER) {
+					continue;
+				}
+				int g = ids[k];
+				double x = column.values[i];
+				count[g]++;
+				add(sum, low, g, x);
+				min[g] = Math.min(min[g], x);
+				max[g] = Math.max(max[g], x);
+			}
+		}
+		
+		/**
+		 * Adds the groups or rows of the partial result of a later chunk.
+		 */
+		void merge (Partial other) {
+			if (!aggregated) {
+				selected = Arrays.copyOf(selected, groups + other.groups);
+				System.arraycopy(other.selected, 0, selected, groups, other.groups);
+				groups += other.groups;
+				return;
+			}
+			for (int h = 0; h < other.groups; h++) {
+				int g = group(other.firstRow(h));
+				for (int t = 0; t < itemCols.length; t++) {
+					if (functions[t] == -1) {
+						continue;
+					}
+					counts[t][g] += other.counts[t][h];
+					add(sums[t], lost[t], g, other.sums[t][h]);
+					lost[t][g] += other.lost[t][h];
+					mins[t][g] = Math.min(mins[t][g], other.mins[t][h]);
+					maxes[t][g] = Math.max(maxes[t][g], other.maxes[t][h]);
+				}
+			}
+		}
+		
+		/**
+		 * Returns the first row of a group, or {@code 0} if the query has no {@code GROUP BY}.
+		 */
+		int firstRow (int group) {
+			return (tables.length > 0) ? tables[tables.length - 1].rows[group] : 0;
+		}
+		
+		/**
+		 * Returns the result as cells, with a row of headings.
+		 */
+		Cell[][] toCells (Spreadsheet spreadsheet) {
+			Cell[][] cells = new Cell[groups + 1][labels.length];
+			for (int t = 0; t < labels.length; t++) {
+				cells[0][t] = Cell.parse("\"" + labels[t] + "\"", null, spreadsheet);
+			}
+			for (int g = 0; g < groups; g++) {
+				int i = aggregated ? firstRow(g) : selected[g];
+				for (int t = 0; t < labels.length; t++) {
+					long count = (counts[t] == null) ? 0 : counts[t][g];
+					switch (functions[t]) {
+						case -1:
+							cells[g + 1][t] = valueOf(spreadsheet, i, itemCols[t]);
+							break;
+						case COUNT:
+							cells[g + 1][t] = new Cell(count);
+							break;
+						case SUM:
+							cells[g + 1][t] = new Cell(sums[t][g] + lost[t][g]);
+							break;
+						case AVG:
+							cells[g + 1][t] = (count == 0) ? new Cell() : new Cell((sums[t][g] + lost[t][g]) / count);
+							break;
+						case MIN:
+							cells[g + 1][t] = (count == 0) ? new Cell() : new Cell(mins[t][g]);
+							break;
+						default: // case MAX:
+							cells[g + 1][t] = (count == 0) ? new Cell() : new Cell(maxes[t][g]);
+					}
+				}
+			}
+			return cells;
+		}
+		
+		/**
+		 * Returns a copy of a cell that was read, or its value if it holds a formula.
+		 * @param i The index of the row in the range.
+		 */
+		private Cell valueOf (Spreadsheet spreadsheet, int i, int col) {
+			Cell cell = spreadsheet.getCell(firstRow + i, col);
+			if (cell.getType() != Types.FORMULA) {
+				return cell.clone();
+			}
+			Column column = columns[col - firstCol];
+			return (column.kinds[i] == NUMBER) ? new Cell(column.values[i]) : new Cell();
+		}
+		
+		/**
+		 * Makes room for the aggregates of at least the given number of groups.
+		 */
+		private void ensureCapacity (int groups) {
+			if (groups <= capacity) {
+				return;
+			}
+			int old = capacity;
+			capacity = Math.max(groups, capacity * 2);
+			for (int t = 0; t < itemCols.length; t++) {
+				if (functions[t] == -1) {
+					continue;
+				}
+				counts[t] = (old == 0) ? new long[capacity] : Arrays.copyOf(counts[t], capacity);
+				sums[t] = (old == 0) ? new double[capacity] : Arrays.copyOf(sums[t], capacity);
+				lost[t] = (old == 0) ? new double[capacity] : Arrays.copyOf(lost[t], capacity);
+				mins[t] = (old == 0) ? new double[capacity] : Arrays.copyOf(mins[t], capacity);
+				maxes[t] = (old == 0) ? new double[capacity] : Arrays.copyOf(maxes[t], capacity);
+				Arrays.fill(mins[t], old, capacity, Double.POSITIVE_INFINITY);
+				Arrays.fill(maxes[t], old, capacity, Double.NEGATIVE_INFINITY);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a number to a sum with Neumaier's compensated summation, as {@link Moments} does.
+	 * @param sum The sums of each group.
+	 * @param lost The low-order bits that were lost from the sum of each group.
+	 * @param g The group whose sum the number is added to.
+	 */
+	private static void add (double[] sum, double[] lost, int g, double x) {
+		double t = sum[g] + x;
+		if (Math.abs(sum[g]) >= Math.abs(x)) {
+			lost[g] += (sum[g] - t) + x;
+		} else {
+			lost[g] += (x - t) + sum[g];
+		}
+		sum[g] = t;
+	}
+	
+	/**
+	 * A hash table of the distinct values of a column of {@code GROUP BY} within each group of the
+	 * columns before it, which numbers each combination in the order that it is first found.
+	 * Its keys are stored in arrays, with open addressing, so adding a row creates no objects.
+	 */
+	private static class KeyTable {
+		int size;
+		int[] rows = new int[8]; // the first row that each key was found in
+		private int[] prevs = new int[8]; // the group of the columns before
+		private byte[] kinds = new byte[8];
+		private long[] keys = new long[8];
+		private int[] slots = new int[16]; // one more than the number of the key in each slot, or 0
+		
+		/**
+		 * Returns the number of a key, adding it if it is new.
+		 * @param prev The group of the row by the columns before.
+		 * @param kind The kind of the value of the row in the column.
+		 * @param key The bits of the value, see {@link Column#key(int)}.
+		 * @param row The row.
+		 */
+		int id (int prev, byte kind, long key, int row) {
+			int mask = slots.length - 1;
+			int h = hash(prev, kind, key) & mask;
+			while (slots[h] != 0) {
+				int id = slots[h] - 1;
+				if (keys[id] == key && prevs[id] == prev && kinds[id] == kind) {
+					return id;
+				}
+				h = (h + 1) & mask;
+			}
+			if (size == keys.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+				prevs = Arrays.copyOf(prevs, size * 2);
+				kinds = Arrays.copyOf(kinds, size * 2);
+				keys = Arrays.copyOf(keys, size * 2);
+			}
+			rows[size] = row;
+			prevs[size] = prev;
+			kinds[size] = kind;
+			keys[size] = key;
+			slots[h] = ++size;
+			if (size * 2 > slots.length) {
+				rehash();
+			}
+			return size - 1;
+		}
+		
+		/**
+		 * Doubles the number of slots.
+		 */
+		private void rehash () {
+			slots = new int[slots.length * 2];
+			int mask = slots.length - 1;
+			for (int id = 0; id < size; id++) {
+				int h = hash(prevs[id], kinds[id], keys[id]) & mask;
+				while (slots[h] != 0) {
+					h = (h + 1) & mask;
+				}
+				slots[h] = id + 1;
+			}
+		}
+		
+		/**
+		 * Mixes the bits of a key, so that numbers that only differ in their exponents are spread out.
+		 */
+		private static int hash (int prev, byte kind, long key) {
+			long h = key ^ ((long) prev << 32 | prev) ^ ((long) kind << 56);
+			h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+			h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+			return (int) (h ^ (h >>> 33));
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package textexcel;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures how long it takes to load a large spreadsheet that is mostly text. A file is generated
+ * in the format of {@link Spreadsheet#save(String)}, with a mix of text, numbers, dates and empty
+ * cells in each row, and then three things are timed, a few rounds in a row: classifying each of its
+ * lines with {@link Cell#parse(String, String, Spreadsheet)}, which looks at the shape of the text;
+ * classifying them the way that cells used to be read, by trying to parse a number and then a date,
+ * with the regular expressions that dates used to be matched with, and catching the exceptions;
+ * and loading the whole file into a {@link Spreadsheet} and reading every cell. The two ways of
+ * classifying the lines are checked to agree first.
+ * <p>
+ * The arguments, all optional, are the number of rows and the number of rounds, which default to
+ * 100000 and 5.
+ * @author Sam Beaumont
+ */
+class ReadBenchmark {
+	/**
+	 * The number of cells in each row of the file.
+	 */
+	static final int COLUMNS = 7;
+	
+	private static final String[] REGIONS = {"north", "south", "east", "west"};
+	// The names of the months that dates used to be matched with
+	private static final String MONTH_NAMES = "(?iu)(Jan|January|Feb|February|Mar|March|Apr|April|May|"
+			+ "Jun|June|Jul|July|Aug|August|Sep|Sept|September|Oct|October|Nov|November|Dec|December)";
+	
+	private ReadBenchmark () {} // prevent this class from being instantiated
+	
+	public static void main (String[] args) throws IOException {
+		int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		
+		File file = File.createTempFile("textexcel", ".txt");
+		file.deleteOnExit();
+		List<String> lines = write(file, rows);
+		Spreadsheet scratch = new Spreadsheet();
+		for (String line : lines) {
+			Cell cell = Cell.parse(line, null, scratch);
+			Types old = classifyByExceptions(line);
+			if ((cell == null) ? old != null : cell.getType() != old) {
+				throw new IllegalStateException("\"" + line + "\" is " + ((cell == null) ? null : cell.getType())
+						+ " but used to be " + old);
+			}
+		}
+		
+		for (int r = 1; r <= rounds; r++) {
+			long start = System.nanoTime();
+			int cells = 0; // counted so that the work is not optimized away
+			for (String line : lines) {
+				if (Cell.parse(line, null, scratch) != null) {
+					cells++;
+				}
+			}
+			long byShape = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			int oldCells = 0;
+			for (String line : lines) {
+				if (classifyByExceptions(line) != null) {
+					oldCells++;
+				}
+			}
+			long byExceptions = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			Spreadsheet sheet = new Spreadsheet(file.getPath());
+			int loaded = 0;
+			for (int i = 0; i < sheet.getRowCount(); i++) {
+				for (int j = 0; j < sheet.getColumnCount(); j++) {
+					if (sheet.getCell(i, j).getType() != Types.EMPTY) {
+						loaded++;
+					}
+				}
+			}
+			long load = System.nanoTime() - start;
+			
+			if (cells != oldCells || loaded != cells - countEmpty(lines)) {
+				throw new IllegalStateException(cells + " cells by shape, " + oldCells + " by exceptions, "
+						+ loaded + " loaded");
+			}
+			System.out.printf("Round %d: %d lines classified by shape in %.0f ms, by exceptions in %.0f ms;"
+					+ " whole file loaded in %.0f ms%n", r, lines.size(), byShape / 1e6, byExceptions / 1e6, load / 1e6);
+		}
+	}
+	
+	/**
+	 * Writes a file of random rows, and returns the lines of its cells.
+	 */
+	private static List<String> write (File file, int rows) throws IOException {
+		Random random = new Random(42);
+		List<String> lines = new ArrayList<String>(rows * COLUMNS);
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try {
+			for (int i = 0; i < rows; i++) {
+				String[] row = {
+					"\"" + REGIONS[random.nextInt(REGIONS.length)] + "\"",
+					"\"Item " + random.nextInt(10000) + "\"",
+					"\"" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + "\"",
+					"\"Customer #" + random.nextInt(1000) + ", order " + i + "\"",
+					Double.toString(random.nextInt(100000) / 100.0),
+					String.format("%02d/%02d/%d", random.nextInt(12) + 1, random.nextInt(28) + 1, 1990 + random.nextInt(40)),
+					(random.nextInt(4) == 0) ? "<empty>" : "\"note\""
+				};
+				for (String cell : row) {
+					writer.println(cell);
+					lines.add(cell);
+				}
+				writer.println();
+			}
+		} finally {
+			writer.close();
+		}
+		return lines;
+	}
+	
+	/**
+	 * Returns the type of the cell that a line holds, or {@code null} if it is not a valid cell,
+	 * the way that cells used to be read: as a number if {@link Double#parseDouble(String)} does not
+	 * throw an exception, otherwise as a date if {@link #newDateByRegex(String)} does not, and
+	 * otherwise as text or an empty cell.
+	 */
+	private static Types classifyByExceptions (String line) {
+		try {
+			Double.parseDouble(line);
+			return Types.DOUBLE;
+		} catch (NumberFormatException nfe) { // not a number
+			try {
+				newDateByRegex(line);
+				return Types.DATE;
+			} catch (IllegalArgumentException iae) { // not a date
+				if (line.matches("\".+\"")) {
+					return Types.STRING;
+				} else if (line.equals("<empty>") || line.equals("\"\"")) {
+					return Types.EMPTY;
+				}
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Reads a date the way that {@link Date#Date(String)} used to, by matching the text with
+	 * a regular expression for each of the three formats in turn. The date itself is then read by
+	 * {@link Date#Date(String)}, as the parts of the text used to be once the format was known.
+	 * @throws IllegalArgumentException If the text is not a valid date.
+	 */
+	private static Date newDateByRegex (String s) {
+		if (!s.matches("\\d{1,2}/\\d{1,2}/\\d+") // Something like "5/3/2014"
+				&& !s.matches(MONTH_NAMES + ".? \\d{1,2},? \\d+") // Something like "Apr. 5, 2014"
+				&& !s.matches("\\d{1,2} " + MONTH_NAMES + "(.|,) \\d+")) { // Something like "5 April 2014"
+			throw new IllegalArgumentException();
+		}
+		return new Date(s);
+	}
+	
+	private static int countEmpty (List<String> lines) {
+		int empty = 0;
+		for (String line : lines) {
+			if (line.equals("<empty>")) {
+				empty++;
+			}
+		}
+		return empty;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+package textexcel;
+
+import java.util.concurrent.*;
+
+/**
+ * Computes the values of the formulas of a {@link Spreadsheet} on a background thread while
+ * the user is typing the next command, so that printing a large spreadsheet does not have to
+ * wait for all of them. Each value is remembered by its {@link Formula} until the spreadsheet
+ * changes (see {@link Formula#getValue()}), so a formula that is computed in the background is
+ * not computed again when it is printed.
+ * <p>
+ * A pass starts {@link #DELAY} milliseconds after it is requested, so that a burst of changes,
+ * such as pasted commands, only leads to one pass. The formulas are computed row by row, and
+ * every formula that another one references is computed and remembered first, so the order
+ * follows the dependencies between the cells. A pass must be finished with {@link #finish(long)}
+ * before the spreadsheet is used or changed again; if it is stopped before the end, the next
+ * pass continues from the row it reached, unless the spreadsheet has changed since.
+ * @author Sam Beaumont
+ */
+class Recalculator {
+	/**
+	 * The number of milliseconds to wait for more changes before a pass starts.
+	 */
+	static final long DELAY = 50;
+	/**
+	 * The number of milliseconds that printing waits for a pass to end,
+	 * or a negative number to always wait until it ends.
+	 */
+	static final long PRINT_WAIT = Long.getLong("textexcel.printWait", 2000);
+	
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread(r, "TextExcel recalculation");
+			thread.setDaemon(true); // so that it does not keep the program running
+			return thread;
+		}
+	});
+	private Future<?> pass; // null if no pass has been started since the last one finished
+	private Spreadsheet spreadsheet;
+	private long version = -1; // the version of the spreadsheet that was last fully calculated
+	private long passVersion; // the version of the spreadsheet that the pass is calculating
+	private int row; // the row that the pass continues from
+	private volatile boolean stopped;
+	private boolean hurried; // guarded by this
+	
+	/**
+	 * Starts computing the values of the formulas of a {@link Spreadsheet} in the background,
+	 * unless they are already up to date.
+	 * @param spreadsheet The {@link Spreadsheet}, which must not be used or changed until
+	 * 			{@link #finish(long)} is called.
+	 */
+	void start (Spreadsheet spreadsheet) {
+		long current = spreadsheet.getVersion();
+		if (spreadsheet == this.spreadsheet && current == version) {
+			return;
+		} else if (spreadsheet != this.spreadsheet || current != passVersion) {
+			row = 0;
+		}
+		this.spreadsheet = spreadsheet;
+		passVersion = current;
+		stopped = false;
+		hurried = false;
+		pass = executor.submit(new Runnable() {
+			public void run () {
+				calculate();
+			}
+		});
+	}
+	
+	/**
+	 * Finishes the pass that was last started, if any, so that the {@link Spreadsheet} can be used.
+	 * A formula that is being computed when the pass is stopped is always finished first.
+	 * @param timeout The number of milliseconds to wait for the pass to compute every formula
+	 * 			before it is stopped, or a negative number to wait until it has.
+	 * @return {@code true} if the values of every formula of the {@link Spreadsheet} are up to date,
+	 * 			or if no pass was started, {@code false} otherwise.
+	 */
+	boolean finish (long timeout) {
+		if (pass == null) {
+			return true;
+		}
+		if (timeout != 0) {
+			synchronized (this) {
+				hurried = true; // there is no point in waiting for more changes
+				notifyAll();
+			}
+			await(timeout);
+		}
+		stopped = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		await(-1);
+		pass = null;
+		return version == passVersion;
+	}
+	
+	/**
+	 * Computes the values of the formulas, starting from the current row.
+	 */
+	private void calculate () {
+		synchronized (this) {
+			long end = System.currentTimeMillis() + DELAY;
+			for (long left = DELAY; left > 0 && !stopped && !hurried; left = end - System.currentTimeMillis()) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+		
+		Cell[][] cells = spreadsheet.getCells();
+		for (; row < cells.length; row++) {
+			if (cells[row] == null) { // not parsed yet, so it has never been printed
+				continue;
+			}
+			for (Cell cell : cells[row]) {
+				if (stopped) {
+					return;
+				} else if (cell.getType() == Types.FORMULA) {
+					try {
+						cell.getValue();
+					} catch (ArithmeticException e) { // remembered as an error
+					} catch (StackOverflowError e) { // a circular reference
+					}
+				}
+			}
+		}
+		version = passVersion;
+	}
+	
+	/**
+	 * Waits for the pass to end.
+	 * @param timeout The number of milliseconds to wait, or a negative number to wait until it ends.
+	 */
+	private void await (long timeout) {
+		try {
+			if (timeout < 0) {
+				pass.get();
+			} else {
+				pass.get(timeout, TimeUnit.MILLISECONDS);
+			}
+		} catch (TimeoutException e) { // the pass is stopped instead
+		} catch (ExecutionException e) { // the values are computed again when they are printed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,243 @@
+package textexcel;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * An index of the rows of a saved spreadsheet, so that a {@link Spreadsheet} that is too large
+ * to parse at once can parse its rows only when they are accessed. The file is scanned once when
+ * it is opened, without parsing any {@link Cell}, to count its rows and columns and to find where
+ * every block of {@link #BLOCK_ROWS} rows starts.
+ * <p>
+ * The index also keeps track of which blocks have been parsed, so that the least recently used
+ * ones can be discarded once more than {@link #MAX_BLOCKS} are held in memory, unless their
+ * rows have been changed, in which case they are pinned.
+ * @author Sam Beaumont
+ */
+class RowIndex {
+	/**
+	 * The number of rows that are parsed together.
+	 */
+	static final int BLOCK_ROWS = 256;
+	/**
+	 * The number of blocks that are held in memory.
+	 */
+	static final int MAX_BLOCKS = 256;
+	
+	private final File file;
+	private final RandomAccessFile in;
+	private final long[] blocks; // the position in the file of the first line of each block
+	private final int rows;
+	private final int cols;
+	private final List<String> dictionary;
+	// The codes of the Strings in the dictionary of the file, set by the Spreadsheet
+	int[] fileCodes = new int[0];
+	
+	private final BitSet pinned = new BitSet();
+	private int evicted = -1;
+	// The blocks that have been parsed, least recently used first
+	private final LinkedHashMap<Integer, Boolean> parsed = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+		protected boolean removeEldestEntry (Map.Entry<Integer, Boolean> eldest) {
+			if (size() > MAX_BLOCKS) {
+				evicted = eldest.getKey();
+				return true;
+			}
+			return false;
+		}
+	};
+	
+	private RowIndex (File file, long[] blocks, int rows, int cols, List<String> dictionary) throws IOException {
+		this.file = file;
+		in = new RandomAccessFile(file, "r");
+		this.blocks = blocks;
+		this.rows = rows;
+		this.cols = cols;
+		this.dictionary = dictionary;
+	}
+	
+	/**
+	 * Scans a saved spreadsheet, in the format described by {@link Spreadsheet#save(String)}.
+	 * The file is kept open until {@link #close()} is called.
+	 * @param filepath The location of the file.
+	 * @throws FileNotFoundException If the file is not found or cannot be read.
+	 * @throws IOException If an error occurs while the file is being read.
+	 */
+	static RowIndex open (String filepath) throws IOException {
+		File file = new File(filepath);
+		InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		long[] blocks = new long[16];
+		int rows = 0;
+		int cols = 0;
+		List<String> dictionary = new ArrayList<String>();
+		try {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(); // only kept for the dictionary
+			long position = 0;
+			long lineStart = 0;
+			int lineLength = 0;
+			int cells = 0; // in the current row
+			boolean firstLine = true;
+			boolean inDictionary = false;
+			for (int b = stream.read(); ; b = stream.read()) {
+				if (b != '\n' && b != -1) {
+					if (b != '\r') {
+						lineLength++;
+						if (firstLine || inDictionary) {
+							line.write(b);
+						}
+					}
+					position++;
+					continue;
+				}
+				
+				// The end of a line
+				if (firstLine && line.toString().equals(Spreadsheet.DICTIONARY_HEADER)) {
+					inDictionary = true;
+				} else if (inDictionary) {
+					if (lineLength == 0) { // the end of the dictionary
+						inDictionary = false;
+					} else {
+						dictionary.add(line.toString());
+					}
+				} else if (lineLength == 0) { // a blank line ends the row
+					if (cells > 0) {
+						cols = Math.max(cols, cells);
+						rows++;
+						cells = 0;
+					}
+				} else {
+					if (cells == 0 && rows % BLOCK_ROWS == 0) {
+						int block = rows / BLOCK_ROWS;
+						if (block == blocks.length) {
+							blocks = Arrays.copyOf(blocks, block * 2);
+						}
+						blocks[block] = lineStart;
+					}
+					cells++;
+				}
+				firstLine = false;
+				line.reset();
+				if (b == -1) {
+					break;
+				}
+				position++;
+				lineStart = position;
+				lineLength = 0;
+			}
+			if (cells > 0) { // the file doesn't end with a blank line
+				cols = Math.max(cols, cells);
+				rows++;
+			}
+		} finally {
+			stream.close();
+		}
+		return new RowIndex(file, Arrays.copyOf(blocks, (rows + BLOCK_ROWS - 1) / BLOCK_ROWS),
+				rows, cols, dictionary);
+	}
+	
+	/**
+	 * Returns the number of rows in the file.
+	 */
+	int getRowCount () {
+		return rows;
+	}
+	
+	/**
+	 * Returns the number of columns of the longest row in the file.
+	 */
+	int getColumnCount () {
+		return cols;
+	}
+	
+	/**
+	 * Returns the lines of the dictionary of {@link String}s at the start of the file, if any,
+	 * each of which is a {@link String} surrounded by quotation marks.
+	 */
+	List<String> getDictionary () {
+		return dictionary;
+	}
+	
+	/**
+	 * Returns {@code true} if the index is of the file at the given location.
+	 */
+	boolean isOf (String filepath) {
+		try {
+			return new File(filepath).getCanonicalFile().equals(file.getCanonicalFile());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Reads the lines of every row of a block, without parsing them.
+	 * @param block The index of the block.
+	 * @return The lines of each row, one for each {@link Cell}.
+	 * @throws IOException If the file cannot be read.
+	 */
+	List<List<String>> read (int block) throws IOException {
+		int n = Math.min(BLOCK_ROWS, rows - block * BLOCK_ROWS);
+		List<List<String>> lines = new ArrayList<List<String>>(n);
+		in.seek(blocks[block]);
+		
+		// The channel is not closed, since that would close the file
+		BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(in.getChannel())));
+		List<String> row = new ArrayList<String>();
+		for (String line = reader.readLine(); line != null && lines.size() < n; line = reader.readLine()) {
+			if (line.length() != 0) {
+				row.add(line);
+			} else if (!row.isEmpty()) { // a blank line ends the row
+				lines.add(row);
+				row = new ArrayList<String>();
+			}
+		}
+		if (!row.isEmpty() && lines.size() < n) {
+			lines.add(row);
+		}
+		return lines;
+	}
+	
+	/**
+	 * Records that a block has been parsed or used, and returns the block that was least recently
+	 * used if it should now be discarded.
+	 * @param block The index of the block.
+	 * @return The index of the block to be discarded, or {@code -1} if there is none.
+	 */
+	int use (int block) {
+		evicted = -1;
+		parsed.put(block, Boolean.TRUE);
+		return evicted;
+	}
+	
+	/**
+	 * Records that a block that has been parsed was used again, if it is still held.
+	 */
+	void touch (int block) {
+		parsed.get(block);
+	}
+	
+	/**
+	 * Keeps a row in memory even when its block is discarded, because it has been changed.
+	 * @param row The index of the row in the file.
+	 */
+	void pin (int row) {
+		pinned.set(row);
+	}
+	
+	/**
+	 * Returns {@code true} if a row is kept in memory, {@code false} otherwise.
+	 * @param row The index of the row in the file.
+	 */
+	boolean isPinned (int row) {
+		return pinned.get(row);
+	}
+	
+	/**
+	 * Closes the file.
+	 */
+	void close () {
+		try {
+			in.close();
+		} catch (IOException e) { // nothing more is read from it
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,320 @@
+package textexcel;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serves a {@link Workbook} to other processes on the same host, so that they can share its sheets
+ * in memory instead of each reading them from their files. The server only listens on the loopback
+ * address, and each connection is handled by its own thread.
+ * <p>
+ * The protocol is made up of lines of UTF-8 text. Each request is one line, and the server answers
+ * each request with one line, in the order that the requests were sent, which is either
+ * {@code OK}, followed by a space and the result if there is one, or {@code ERROR} followed by
+ * a space and a message. The requests are:
+ * <ul>
+ * 		<li> {@code GET <cell>}, which returns the contents of a cell, as the command line shows them. </li>
+ * 		<li> {@code VALUE <cell>}, which returns the value of a cell as a number, see {@link Cell#getValue()}. </li>
+ * 		<li> {@code SET <cell> <contents>}, which sets a cell, or clears it if there are no contents. </li>
+ * 		<li> {@code EVAL <formula>}, which returns the value of a formula without storing it. </li>
+ * 		<li> {@code SHEET <name>}, which makes the requests that follow use another sheet. </li>
+ * 		<li> {@code SAVE}, which saves the workbook to the directory that it was loaded from, or the
+ * 			sheet to the file that it was loaded from if a single spreadsheet is served. </li>
+ * 		<li> {@code SUBSCRIBE <range>}, such as {@code SUBSCRIBE A1:C10}, which subscribes the
+ * 			connection to the changes to the values of a range of cells of the sheet, see
+ * 			{@link Subscription}. </li>
+ * 		<li> {@code UNSUBSCRIBE}, which cancels every subscription of the connection. </li>
+ * </ul>
+ * The changes to the ranges that a connection is subscribed to are sent on the connection as they
+ * are published, between the answers, as a line {@code EVENT <sheet>!<cell> <value>} for each
+ * cell whose value changed, where the value is shown as the command line prints it. The events
+ * of a batch may arrive before its answers. An event that cannot be sent because the client is
+ * not reading is merged into the next one, see {@link Subscription}. The subscriptions of a
+ * connection are cancelled when it is closed.
+ * Requests may be pipelined: a client can send many requests without waiting for the answers.
+ * Every request that has arrived when the server reads from a connection is handled as one batch,
+ * while the other connections wait, and the answers to the batch are sent back together.
+ * The changes that each batch makes are then written to the {@link WriteAheadLog}, as after each
+ * command of the command line, so that they can be recovered if the server crashes, and published
+ * to the {@link Subscription}s of the sheets.
+ * @author Sam Beaumont
+ */
+class Server {
+	/**
+	 * The port that the server listens on unless another one is chosen.
+	 */
+	static final int DEFAULT_PORT = 7654;
+	/**
+	 * The longest request that is accepted, in bytes.
+	 */
+	static final int MAX_REQUEST = 1 << 16;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final Workbook workbook; // guarded by itself
+	private WriteAheadLog log; // null if changes are not logged, guarded by the workbook
+	private final ServerSocketChannel channel;
+	private final ExecutorService connections = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread(r, "TextExcel connection");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * Starts listening for connections, which are only accepted once {@link #run()} is called.
+	 * @param workbook The {@link Workbook} to be served, which must not be used by anything else.
+	 * @param log The {@link WriteAheadLog} that the changes to the workbook are logged to,
+	 * 			or {@code null} if they are not logged.
+	 * @param port The port to listen on, or {@code 0} for any free port.
+	 * @throws IOException If the port cannot be listened on.
+	 */
+	Server (Workbook workbook, WriteAheadLog log, int port) throws IOException {
+		this.workbook = workbook;
+		this.log = log;
+		channel = ServerSocketChannel.open();
+		channel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+	}
+	
+	/**
+	 * Returns the port that the server listens on.
+	 */
+	int getPort () {
+		return channel.socket().getLocalPort();
+	}
+	
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	void run () {
+		while (channel.isOpen()) {
+			final SocketChannel client;
+			try {
+				client = channel.accept();
+			} catch (IOException e) { // closed
+				break;
+			}
+			connections.execute(new Runnable() {
+				public void run () {
+					serve(client);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Stops accepting connections and closes the ones that are open.
+	 */
+	void close () {
+		try {
+			channel.close();
+		} catch (IOException e) { // nothing more is accepted anyway
+		}
+		connections.shutdownNow();
+	}
+	
+	/**
+	 * Handles the requests of a connection until it is closed.
+	 */
+	private void serve (final SocketChannel client) {
+		final Session session = new Session();
+		session.listener = new Subscription.Listener() {
+			public void changed (Subscription.Event event) {
+				StringBuilder lines = new StringBuilder();
+				for (Map.Entry<String, String> value : event.values.entrySet()) {
+					lines.append("EVENT ").append(event.sheet).append('!').append(value.getKey())
+							.append(' ').append(value.getValue()).append('\n');
+				}
+				try {
+					send(client, session, lines);
+				} catch (IOException e) { // the client has gone away, which serve() notices
+				}
+			}
+		};
+		ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+		try {
+			client.socket().setTcpNoDelay(true);
+			while (client.read(in) != -1) {
+				// Every complete line that has arrived is a request
+				List<String> requests = new ArrayList<String>();
+				in.flip();
+				int start = 0;
+				for (int i = 0; i < in.limit(); i++) {
+					if (in.get(i) == '\n') {
+						int end = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+						requests.add(new String(in.array(), start, end - start, UTF8));
+						start = i + 1;
+					}
+				}
+				in.position(start);
+				in.compact();
+				if (!in.hasRemaining()) {
+					send(client, session, "ERROR The request is too long.\n");
+					break;
+				}
+				
+				StringBuilder answers = new StringBuilder();
+				synchronized (workbook) {
+					for (String request : requests) {
+						answers.append(handle(session, request)).append('\n');
+					}
+					commitLog();
+					workbook.publish();
+				}
+				send(client, session, answers);
+			}
+		} catch (IOException e) { // the client has gone away
+		} finally {
+			synchronized (workbook) {
+				for (Subscription subscription : session.subscriptions) {
+					subscription.cancel();
+				}
+			}
+			try {
+				client.close();
+			} catch (IOException e) { // already closed
+			}
+		}
+	}
+	
+	/**
+	 * Sends lines to a client. The answers and the events of a connection are sent by different
+	 * threads, so each is sent whole.
+	 */
+	private static void send (SocketChannel client, Session session, CharSequence lines) throws IOException {
+		ByteBuffer out = UTF8.encode(lines.toString());
+		synchronized (session) {
+			while (out.hasRemaining()) {
+				client.write(out);
+			}
+		}
+	}
+	
+	/**
+	 * Handles one request.
+	 * @return The answer, without the end of the line.
+	 */
+	private String handle (Session session, String request) {
+		int space = request.indexOf(' ');
+		String type = (space == -1) ? request : request.substring(0, space);
+		String argument = (space == -1) ? "" : request.substring(space + 1);
+		try {
+			if (session.spreadsheet == null) {
+				session.spreadsheet = workbook.get(workbook.getNames().get(0));
+			}
+			Spreadsheet spr = session.spreadsheet;
+			if (type.equalsIgnoreCase("GET") && argument.matches("[A-Z]+\\d+")) {
+				return "OK " + spr.get(argument);
+			} else if (type.equalsIgnoreCase("VALUE") && argument.matches("[A-Z]+\\d+")) {
+				int[] indices = Spreadsheet.getIndices(argument);
+				return "OK " + spr.getValue(indices[0], indices[1]);
+			} else if (type.equalsIgnoreCase("SET") && argument.matches("[A-Z]+\\d+( .*)?")) {
+				space = argument.indexOf(' ');
+				String name = (space == -1) ? argument : argument.substring(0, space);
+				Cell value = (space == -1) ? new Cell() : Cell.parse(argument.substring(space + 1), name, spr);
+				if (value == null) {
+					return "ERROR Invalid cell.";
+				} else if (value.getType() == Types.FORMULA && value.getFormula().referencesItself()) {
+					return "ERROR Circular formula reference.";
+				}
+				spr.set(name, value);
+				return "OK";
+			} else if (type.equalsIgnoreCase("EVAL") && argument.length() != 0) {
+				// Not a Formula, which would be shared with the stored formulas and add dependencies
+				double value = FormulaParser.parse(argument).evaluate(spr, 0, 0);
+				if (Double.isNaN(value) || Double.isInfinite(value)) {
+					throw new ArithmeticException();
+				}
+				return "OK " + value;
+			} else if (type.equalsIgnoreCase("SHEET") && argument.length() != 0) {
+				Spreadsheet sheet = workbook.get(argument);
+				if (sheet == null) {
+					return "ERROR There is no sheet called " + argument + ".";
+				}
+				session.spreadsheet = sheet;
+				return "OK";
+			} else if (type.equalsIgnoreCase("SAVE") && argument.length() == 0) {
+				return save(spr);
+			} else if (type.equalsIgnoreCase("SUBSCRIBE") && argument.matches("[A-Z]+\\d+(:[A-Z]+\\d+)?")) {
+				session.subscriptions.add(spr.subscribe(argument, session.listener));
+				return "OK";
+			} else if (type.equalsIgnoreCase("UNSUBSCRIBE") && argument.length() == 0) {
+				for (Subscription subscription : session.subscriptions) {
+					subscription.cancel();
+				}
+				session.subscriptions.clear();
+				return "OK";
+			}
+			return "ERROR Invalid request.";
+		} catch (ArithmeticException e) {
+			return "ERROR The formula does not evaluate to a real number.";
+		} catch (NumberFormatException e) {
+			return "ERROR Invalid formula.";
+		} catch (StackOverflowError e) {
+			return "ERROR Circular formula reference.";
+		} catch (UnrecognizedFunctionException e) {
+			return "ERROR Unrecognized function " + e.getMessage() + ".";
+		} catch (InvalidCellException e) {
+			return "ERROR Invalid cell.";
+		} catch (IllegalArgumentException e) {
+			return "ERROR Illegal cell range.";
+		} catch (IOException e) {
+			return "ERROR The sheet could not be read.";
+		}
+	}
+	
+	/**
+	 * Handles a request to save, see the description of the protocol.
+	 * @param spreadsheet The sheet that the connection uses.
+	 * @return The answer, without the end of the line.
+	 */
+	private String save (Spreadsheet spreadsheet) {
+		try {
+			if (workbook.getDirectory() != null) {
+				workbook.save(workbook.getDirectory());
+			} else if (spreadsheet.getPath() != null) {
+				spreadsheet.save(spreadsheet.getPath());
+			} else {
+				return "ERROR The sheet was not loaded from a file.";
+			}
+			return "OK";
+		} catch (IOException e) {
+			return "ERROR The files could not be written.";
+		} catch (SecurityException e) {
+			return "ERROR The server does not have permission to write the files.";
+		}
+	}
+	
+	/**
+	 * Writes the changes that the last batch of requests made to the log, or stops logging them
+	 * if the log cannot be written.
+	 */
+	private void commitLog () {
+		if (log != null) {
+			try {
+				log.commit();
+			} catch (IOException e) {
+				System.out.println("ERROR: Changes cannot be logged to the file at \""
+						+ new File(WriteAheadLog.FILE).getAbsolutePath()
+						+ "\", so they cannot be recovered if the server crashes.");
+				workbook.setLog(null);
+				log = null;
+			}
+		}
+	}
+	
+	/**
+	 * The state of a connection.
+	 */
+	private static class Session {
+		Spreadsheet spreadsheet; // the sheet that the requests use, null until the first one
+		Subscription.Listener listener; // sends the events of the subscriptions to the client
+		final List<Subscription> subscriptions = new ArrayList<Subscription>(); // guarded by the workbook
+	}
+}
\ No newline at end of file
@@ -9,8 +9,95 @@ import java.util.regex.*;
  * @author Sam Beaumont
  */
 class Spreadsheet {
+	// Returned for cells outside of the bounds of the spreadsheet
+	private static final Cell EMPTY = new Cell();
+	// The approximate amount of memory that lookup indexes may take up
+	private static final long MAX_INDEX_BYTES = 64L << 20;
+	// The number of changes that can be undone
+	private static final int MAX_UNDO = 100;
+	// Files that are larger than this are parsed one block of rows at a time, see RowIndex
+	private static final long LAZY_BYTES = 32L << 20;
+	// The first line of a saved spreadsheet that starts with a dictionary of Strings
+	static final String DICTIONARY_HEADER = "<strings>";
+	/**
+	 * What a reference to a deleted cell is replaced with in a formula.
+	 */
+	static final String DELETED = "#REF!";
+	/**
+	 * The number of rows whose changes are counted together, see {@link #getBlockVersion(int)}.
+	 */
+	static final int BLOCK_ROWS = 1024;
+	/**
+	 * The width of the columns of a printed spreadsheet, unless they are fitted to their contents.
+	 */
+	static final int COLUMN_WIDTH = 12;
+	/**
+	 * The largest width of a column that is fitted to its contents.
+	 */
+	static final int MAX_COLUMN_WIDTH = 40;
+	// A reference to a single cell within a formula
+	private static final Pattern REFERENCE = Pattern.compile("[A-Z]+\\d+");
+	// A reference to a cell such as "A1" or "R[-1]C" that is not the name of a sheet
+	private static final String CELL = "(?:([A-Z]+)(\\d+)\\b(?!!)|R(?:\\[([^\\]]*)\\])?C(?:\\[([^\\]]*)\\])?(?![\\w\\[!]))";
+	// A reference to a single cell or a range within a formula, or text surrounded by quotation marks,
+	// which is skipped
+	private static final Pattern RANGE_REFERENCE
+			= Pattern.compile("\"[^\"]*\"|\\b" + CELL + "(?:(\\s*:\\s*)" + CELL + ")?");
+	// The same, for a formula such as "(sum A1-A5)"
+	private static final Pattern LEGACY_RANGE_REFERENCE
+			= Pattern.compile("\"[^\"]*\"|\\b" + CELL + "(?:(\\s*[:-]\\s*)" + CELL + ")?");
+	// A formula that aggregates a range of cells, such as "(sum A1-A5)"
+	private static final Pattern RANGE_FORMULA
+			= Pattern.compile("(?iu)\\(\\s*(avg|sum)\\s*[A-Z]+\\d+\\s*-\\s*[A-Z]+\\d+\\s*\\)");
+	
+	// The comparison operators accepted by filter
+	private static final String[] OPERATORS = {"=", "!=", "<", ">", "<=", ">="};
+	
+	// The classes of the keys that rows are sorted by, in ascending order
+	private static final int NUMBER_KEY = 0;
+	private static final int STRING_KEY = 1;
+	private static final int ERROR_KEY = 2;
+	private static final int EMPTY_KEY = 3;
+	
 	private Cell[][] spreadsheet;
+	private StringDictionary strings;
+	private IndexCache indexes = new IndexCache(MAX_INDEX_BYTES);
+	private ExpressionTable expressions = new ExpressionTable();
+	// Increased whenever a cell changes, to the number of the change in the workbook if there is one
+	private long version;
+	private long[] blockVersions = new long[0]; // the version that each block of rows last changed at
+	private long allChanged; // the version that every row last changed at
+	// The most recent change is first
+	private ArrayDeque<Change> undoStack = new ArrayDeque<Change>();
+	private ArrayDeque<Change> redoStack = new ArrayDeque<Change>();
+	private WriteAheadLog log; // null if changes are not logged
+	// Incremented whenever the undo history stops matching the one that replaying the log builds
+	private int history;
+	// The rows of the file that the spreadsheet was loaded from, if they are parsed as they are used,
+	// in which case the rows that have not been parsed are null
+	private RowIndex rowIndex;
+	// The rows and columns inserted or deleted since the file of the RowIndex was opened, in order,
+	// which are applied to each row of the file when it is parsed
+	private Shift[] fileShifts = new Shift[0];
+	// The rows and columns inserted or deleted in other sheets of the workbook since then, which
+	// move the references to those sheets in each row of the file when it is parsed, unless undone
+	private Shift[] otherShifts = new Shift[0];
+	// The rows that may hold formulas, apart from rows that have not been parsed yet
+	private BitSet formulaRows = new BitSet();
 	private String path;
+	private long savedVersion = -1; // the version that was last saved to or loaded from the path
+	private Workbook workbook; // null if the spreadsheet is not part of a workbook
+	private String name;
+	// The names of the other sheets that formulas reference, in upper case, which may include
+	// sheets that they no longer reference if it is stale
+	private volatile Set<String> dependencies = new HashSet<String>();
+	private volatile boolean dependenciesStale;
+	// The number of changes to the workbook and the version that getVersion() returned then, or null
+	private volatile long[] cachedVersion;
+	private List<Subscription> subscriptions = new ArrayList<Subscription>();
+	private List<Pivot> pivots = new ArrayList<Pivot>();
+	// The format of each column that has been given one, which is null for the others
+	private CellFormat[] formats = new CellFormat[0];
 	
 	/**
 	 * Creates a new, empty {@link Spreadsheet} with ten rows and seven columns,
@@ -21,52 +108,232 @@ class Spreadsheet {
 	}
 	
 	/**
-	 * Parses the file at the specified location into a new {@link Spreadsheet}
+	 * Parses the file at the specified location into a new {@link Spreadsheet}.
+	 * Each row of the file is made up of one line per cell, and rows are separated by blank lines.
+	 * Lines that cannot be parsed into a valid cell are loaded as empty cells.
+	 * If the file starts with a dictionary of {@link String}s (see {@link #save(String)}),
+	 * cells such as {@code @3} refer to the fourth {@link String} in the dictionary.
+	 * <p>
+	 * A file that is larger than {@value #LAZY_BYTES} bytes is only scanned by {@link RowIndex},
+	 * and each row is parsed when it is first used. The rows that have been parsed and not changed
+	 * may be discarded and parsed again later, so that the spreadsheet does not need to fit in memory.
 	 * @param filepath The filepath of the file to be parsed.
 	 * @throws FileNotFoundException If the file at the specified location is not found
 	 * 			or cannot be read.
+	 * @throws IOException If an error occurs while the file is being read.
 	 */
-	Spreadsheet (String filepath) throws FileNotFoundException, SecurityException {
-		// Set up a Scanner that uses two blank lines to separate tokens
-		Scanner fileReader = new Scanner(new File(filepath));
-		fileReader.useDelimiter(Pattern.compile("(?m)$^$^"));
-		ArrayList<ArrayList<Cell>> list = new ArrayList<ArrayList<Cell>>();
-		
-		// Parse the file into an ArrayList of cells
-		for (int i = 0; fileReader.hasNext(); i++) {
-			Scanner thisRow = new Scanner(fileReader.next());
-			list.add(new ArrayList<Cell>());
-			while (thisRow.hasNextLine()) {
-				try {
-					list.get(i).add(new Cell(thisRow.nextLine()));
-				} catch (IllegalArgumentException e) {
-					list.get(i).add(new Cell());
+	Spreadsheet (String filepath) throws IOException, SecurityException {
+		strings = new StringDictionary();
+		if (new File(filepath).length() > LAZY_BYTES) {
+			open(filepath);
+		} else {
+			read(filepath);
+		}
+		path = filepath;
+		savedVersion = version;
+	}
+	
+	/**
+	 * Parses every row of a file.
+	 */
+	private void read (String filepath) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(filepath));
+		ArrayList<Cell[]> rows = new ArrayList<Cell[]>();
+		ArrayList<Cell> thisRow = new ArrayList<Cell>();
+		int numCols = 0;
+		try {
+			String line = reader.readLine();
+			int[] fileCodes = new int[0];
+			if (DICTIONARY_HEADER.equals(line)) {
+				fileCodes = readDictionary(reader);
+				line = reader.readLine();
+			}
+			for (; line != null; line = reader.readLine()) {
+				if (line.length() == 0) { // a blank line ends the row
+					if (!thisRow.isEmpty()) {
+						numCols = addRow(rows, thisRow, numCols);
+					}
+				} else {
+					thisRow.add(readCell(line, rows.size(), thisRow.size(), fileCodes));
 				}
 			}
-			thisRow.close(); // see below
+			if (!thisRow.isEmpty()) { // the file doesn't end with a blank line
+				numCols = addRow(rows, thisRow, numCols);
+			}
+		} finally {
+			reader.close();
 		}
-		// Get rid of those annoying "Resource leak: some scanner is never closed" warnings
-		fileReader.close();
 		
-		// Kludge - otherwise, there's always an extra row of one cell at the end.
-		list.remove(list.size() - 1);
-		
-		// Kludge - otherwise, a blank cell is added to the front of every row except the first
-		for (int i = 1; i < list.size(); i++) {
-			list.get(i).remove(0);
+		if (rows.isEmpty()) {
+			newSheet();
+		} else {
+			spreadsheet = rows.toArray(new Cell[rows.size()][]);
+		}
+	}
+	
+	/**
+	 * Indexes the rows of a file without parsing them, apart from the first.
+	 */
+	private void open (String filepath) throws IOException {
+		RowIndex index = RowIndex.open(filepath);
+		if (index.getRowCount() == 0) {
+			index.close();
+			newSheet();
+			return;
+		}
+		List<String> dictionary = index.getDictionary();
+		index.fileCodes = new int[dictionary.size()];
+		for (int i = 0; i < dictionary.size(); i++) {
+			index.fileCodes[i] = strings.intern(unquote(dictionary.get(i)));
+		}
+		rowIndex = index;
+		spreadsheet = new Cell[index.getRowCount()][];
+		rowIndex.pin(0); // the first row is always kept, since it gives the number of columns
+		row(0);
+	}
+	
+	/**
+	 * Returns a row of the spreadsheet, parsing it first if necessary.
+	 * @param i The index of the row.
+	 */
+	private Cell[] row (int i) {
+		Cell[] row = spreadsheet[i];
+		if (rowIndex != null) {
+			int fileRow = fileRow(i);
+			if (row == null) {
+				parse(fileRow / RowIndex.BLOCK_ROWS);
+				row = spreadsheet[i];
+			} else if (fileRow != -1) {
+				rowIndex.touch(fileRow / RowIndex.BLOCK_ROWS);
+			}
+		}
+		return row;
+	}
+	
+	/**
+	 * Returns the index in the file of the {@link RowIndex} of a row, or {@code -1} if the row
+	 * was not read from the file, such as a row that was inserted.
+	 * @param i The index of the row in the spreadsheet.
+	 */
+	private int fileRow (int i) {
+		for (int s = fileShifts.length - 1; s >= 0 && i != -1; s--) {
+			if (fileShifts[s].rows) {
+				i = fileShifts[s].invert(i);
+			}
+		}
+		return (i < rowIndex.getRowCount()) ? i : -1;
+	}
+	
+	/**
+	 * Returns the index in the spreadsheet of a row of the file of the {@link RowIndex},
+	 * or {@code -1} if the row was deleted.
+	 * @param fileRow The index of the row in the file.
+	 */
+	private int sheetRow (int fileRow) {
+		int i = fileRow;
+		for (int s = 0; s < fileShifts.length && i != -1; s++) {
+			if (fileShifts[s].rows) {
+				i = fileShifts[s].apply(i);
+			}
+		}
+		return i;
+	}
+	
+	/**
+	 * Parses the rows of a block that are not already in memory, and discards the rows of the block
+	 * that was least recently used if there are too many.
+	 * @throws IOError If the file that the rows are read from cannot be read.
+	 */
+	private void parse (int block) {
+		List<List<String>> lines;
+		try {
+			lines = rowIndex.read(block);
+		} catch (IOException e) {
+			throw new IOError(e);
+		}
+		int firstRow = block * RowIndex.BLOCK_ROWS;
+		// Columns may have been added since the file was loaded
+		int numCols = (spreadsheet[0] != null) ? spreadsheet[0].length : rowIndex.getColumnCount();
+		for (int k = 0; k < lines.size(); k++) {
+			int i = sheetRow(firstRow + k);
+			if (i == -1 || spreadsheet[i] != null) {
+				continue;
+			}
+			List<String> cells = lines.get(k);
+			Cell[] row = new Cell[numCols];
+			for (int j = 0; j < cells.size(); j++) {
+				String line = cells.get(j);
+				int col = j;
+				if (fileShifts.length > 0 || otherShifts.length > 0) {
+					int[] at = {firstRow + k, j};
+					boolean formula = Cell.isFormula(line);
+					for (int s = 0; s < fileShifts.length && at[1] != -1; s++) {
+						Shift shift = fileShifts[s];
+						int[] to = shift.rows ? new int[] {shift.apply(at[0]), at[1]} : new int[] {at[0], shift.apply(at[1])};
+						if (formula && to[1] != -1) {
+							line = shiftFormula(line, shift, at, to);
+						}
+						at = to;
+					}
+					for (int s = 0; s < otherShifts.length && formula && at[1] != -1; s++) {
+						if (!otherShifts[s].undone) {
+							line = shiftFormula(line, otherShifts[s], at, at);
+						}
+					}
+					col = at[1];
+				}
+				if (col != -1 && col < numCols) {
+					row[col] = readCell(line, i, col, rowIndex.fileCodes);
+				}
+			}
+			for (int j = 0; j < numCols; j++) {
+				if (row[j] == null) {
+					row[j] = new Cell();
+				}
+			}
+			spreadsheet[i] = row;
 		}
 		
-		// Convert the ArrayList into an array.
-		Cell[][] sprArray = new Cell[list.size()][list.get(0).size()];
-		for (int i = 0; i < sprArray.length; i++) {
-			ArrayList<Cell> thisRow = list.get(i);
-			
-			for (int j = 0; j < sprArray[0].length; j++) {
-				sprArray[i][j] = thisRow.get(j);
+		int evicted = rowIndex.use(block);
+		if (evicted != -1) {
+			int end = Math.min((evicted + 1) * RowIndex.BLOCK_ROWS, rowIndex.getRowCount());
+			for (int f = evicted * RowIndex.BLOCK_ROWS; f < end; f++) {
+				int i = rowIndex.isPinned(f) ? -1 : sheetRow(f);
+				if (i != -1) {
+					spreadsheet[i] = null;
+				}
 			}
 		}
-		spreadsheet = sprArray;
-		path = filepath;
+	}
+	
+	/**
+	 * Keeps rows in memory, parsing them if necessary, before they are changed.
+	 * @param firstRow The index of the first row.
+	 * @param lastRow The index of the last row, which may be outside of the spreadsheet.
+	 */
+	private void pin (int firstRow, int lastRow) {
+		if (rowIndex != null) {
+			lastRow = Math.min(lastRow, spreadsheet.length - 1);
+			for (int i = firstRow; i <= lastRow; i++) {
+				int fileRow = fileRow(i);
+				if (fileRow != -1) {
+					rowIndex.pin(fileRow);
+					row(i);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Parses every row that has not been parsed, for changes that may affect any row, such as sorting.
+	 */
+	private void parseAll () {
+		if (rowIndex != null) {
+			pin(0, spreadsheet.length - 1);
+			rowIndex = null;
+			fileShifts = new Shift[0];
+			otherShifts = new Shift[0];
+		}
 	}
 	
 	/**
@@ -80,7 +347,7 @@ class Spreadsheet {
 		if (indices[0] >= spreadsheet.length || indices[1] >= spreadsheet[0].length) {
 			return new Cell(); // empty cell
 		} else {
-			return spreadsheet[indices[0]][indices[1]].clone();
+			return row(indices[0])[indices[1]].clone();
 		}
 	}
 	
@@ -94,283 +361,2549 @@ class Spreadsheet {
 	 */
 	Cell get (int row, int col) {
 		try {
-			return spreadsheet[row][col].clone();
+			return row(row)[col].clone();
 		} catch (ArrayIndexOutOfBoundsException e) {
 			return new Cell();
 		}
 	}
 	
 	/**
-	 * Returns the average value of a given range of cells
-	 * @param startCell
-	 * @param endCell
-	 * @return
+	 * Returns the {@link Cell} at the given indices without copying it, or an empty {@link Cell}
+	 * if the indices are outside of the bounds of the spreadsheet. The {@link Cell} that is
+	 * returned must not be modified.
+	 * @param row The index of the row of the desired {@link Cell}
+	 * @param col The index of the column of the desired {@link Cell}
 	 */
-	double avg (String startCell, String endCell) {
-		int[] startIndices = getIndices(startCell);
-		int[] endIndices = getIndices(endCell);
-		return sum(startCell, endCell)
-				/ (endIndices[0] - startIndices[0]) * (endIndices[1] - startIndices[1]);
+	Cell getCell (int row, int col) {
+		if (row < 0 || col < 0 || row >= spreadsheet.length || col >= spreadsheet[0].length) {
+			return EMPTY;
+		}
+		return row(row)[col];
 	}
 	
 	/**
-	 * Computes the sum of all cells in a rectangular region from the start cell (inclusive)
-	 * to the end cell (exclusive)
-	 * @param startCell The cell with the smallest row and column indices to be included in the sum.
-	 * @param endCell The cell with the largest row and column indices to be included in the sum.
-	 * @return
-	 * @throws IllegalArgumentException if the cell range is invalid.
+	 * Returns the array that the {@link Cell}s are stored in, which must not be modified.
+	 * If the rows are parsed as they are used, the rows that have not been parsed are {@code null},
+	 * and their {@link Cell}s must be read through {@link #getCell(int, int)} instead.
 	 */
-	double sum (String startCell, String endCell) {
-		int[] start = getIndices(startCell);
-		int[] end = getIndices(endCell);
-		if (start[0] > end[0] || start[1] > end[1]) {
-			throw new ArrayIndexOutOfBoundsException();
+	Cell[][] getCells () {
+		return spreadsheet;
+	}
+	
+	/**
+	 * Returns the value of the {@link Cell} at the given indices, as returned by
+	 * {@link Cell#getValue()}, without copying the {@link Cell}.
+	 * @param row The index of the row of the desired {@link Cell}
+	 * @param col The index of the column of the desired {@link Cell}
+	 */
+	double getValue (int row, int col) {
+		return getCell(row, col).getValue();
+	}
+	
+	/**
+	 * Returns the number of rows in the spreadsheet.
+	 */
+	int getRowCount () {
+		return spreadsheet.length;
+	}
+	
+	/**
+	 * Returns the number of columns in the spreadsheet.
+	 */
+	int getColumnCount () {
+		return spreadsheet[0].length;
+	}
+	
+	/**
+	 * Returns the dictionary of the {@link String}s stored in the spreadsheet.
+	 */
+	StringDictionary getStrings () {
+		return strings;
+	}
+	
+	/**
+	 * Returns a number that changes whenever any {@link Cell} of the spreadsheet changes, or any
+	 * {@link Cell} of another sheet that its formulas depend on, directly or through other sheets.
+	 * Changes to sheets that no formula references do not change it. The number only increases,
+	 * except that it may go back to its value after the last change to the spreadsheet and the
+	 * sheets that it still depends on when formulas that referenced other sheets are removed.
+	 * Since it is only computed again after a change to any sheet of the {@link Workbook}, it is
+	 * cheap enough to call every time that a formula is evaluated.
+	 */
+	long getVersion () {
+		if (workbook == null || dependencies.isEmpty()) {
+			return version;
 		}
-		double sum = 0;
-		for (int i = start[0]; i <= end[0] && i < spreadsheet.length; i++) {
-			for (int j = start[1]; j <= end[1] && i < spreadsheet[0].length; j++) {
-				sum += spreadsheet[i][j].getValue();
-			}
+		long changes = workbook.getChanges();
+		long[] cached = cachedVersion;
+		if (cached != null && cached[0] == changes) {
+			return cached[1];
 		}
-		return sum;
+		long current = getVersion(new HashSet<Spreadsheet>());
+		cachedVersion = new long[] {changes, current};
+		return current;
 	}
 	
 	/**
-	 * Sets the specified cell in the spreadsheet to the specified value.
-	 * Overwrites the current spreadsheet array if necessary
-	 * in order to set the cell to its correct value.
-	 * @param cell A textual representation of the cell's location in the spreadsheet.
-	 * @param value The contents of the cell.
-	 * @see getCell
+	 * Returns the version of the spreadsheet that a cell in a block of {@link #BLOCK_ROWS} rows last
+	 * changed at, so that a summary of a large range of cells can be kept for each block, and only
+	 * the blocks that have changed need to be read again. The version only counts changes to
+	 * the cells themselves, so a block that holds formulas may have new values without a new version.
+	 * @param block The index of the block, which is the index of a row divided by {@link #BLOCK_ROWS}.
 	 */
-	void set (String cell, Cell value) {
-		int[] indices = getIndices(cell);
-		if (indices[0] >= spreadsheet.length || indices[1] >= spreadsheet[0].length) {
-			Cell[][] nextSheet = new Cell[Math.max(spreadsheet.length, indices[0] + 1)]
-					[Math.max(spreadsheet[0].length, indices[1] + 1)];
-			for (int i = 0; i < nextSheet.length; i++) {
-				for (int j = 0; j < nextSheet[0].length; j++) {
-					if (i < spreadsheet.length && j < spreadsheet[0].length) { 
-						nextSheet[i][j] = spreadsheet[i][j];
-					} else {
-						nextSheet[i][j] = new Cell();
-					}
-				}
+	long getBlockVersion (int block) {
+		return (block < blockVersions.length) ? Math.max(blockVersions[block], allChanged) : allChanged;
+	}
+	
+	/**
+	 * Increments the version, and records that the cells of some rows changed at the new version.
+	 * @param firstRow The index of the first row.
+	 * @param lastRow The index of the last row.
+	 */
+	private void changed (int firstRow, int lastRow) {
+		changedRows(firstRow, lastRow);
+		if (!dependencies.isEmpty()) { // formulas that referenced other sheets may have been removed
+			dependenciesStale = true;
+		}
+		for (Pivot pivot : pivots) {
+			if (pivot.reads(firstRow, lastRow)) {
+				pivot.rebuild();
 			}
-			spreadsheet = nextSheet;
 		}
-		spreadsheet[indices[0]][indices[1]] = value;
 	}
 	
 	/**
-	 * Replaces the current {@link Spreadsheet} with a spreadsheet made up of
-	 * ten rows and seven columns, and every {@link Cell}
-	 * set to {@code <empty>}.
+	 * Records that the cells of some rows changed, without updating the {@link Pivot}s.
 	 */
-	void clear () {
-		newSheet();
+	private void changedRows (int firstRow, int lastRow) {
+		nextVersion();
+		int last = lastRow / BLOCK_ROWS;
+		if (last >= blockVersions.length) {
+			blockVersions = Arrays.copyOf(blockVersions, Math.max(last + 1, blockVersions.length * 2));
+		}
+		for (int b = firstRow / BLOCK_ROWS; b <= last; b++) {
+			blockVersions[b] = version;
+		}
 	}
 	
 	/**
-	 * Saves the {@link Spreadsheet} to the specified location.
-	 * @param filepath The location that the {@link Spreadsheet} is to be saved at.
-	 * @throws FileNotFoundException If the file cannot be written or an error occurs
-	 * 			when opening the file.
-	 * @throws SecurityException If the program that calls this method
-	 * 			is denied permission to modify the file.
+	 * Increments the version, and records that any cell may have changed at the new version.
 	 */
-	void save (String filepath) throws FileNotFoundException, SecurityException {
-		PrintStream writer = new PrintStream(new File(filepath));
-		int numCols = spreadsheet[0].length;
-		
-		// Write the contents of the spreadsheet array to the file.
-		for (int i = 0; i < spreadsheet.length; i++) {
-			Cell[] thisRow = spreadsheet[i];
-			for (int j = 0; j < numCols; j++) {
-				writer.println(thisRow[j]);
-			}
-			writer.println();
+	private void changedAll () {
+		nextVersion();
+		allChanged = version;
+		if (!dependencies.isEmpty()) { // formulas that referenced other sheets may have been removed
+			dependenciesStale = true;
+		}
+		for (Pivot pivot : pivots) {
+			pivot.rebuild();
 		}
-		writer.close();
-		path = filepath;
 	}
 	
 	/**
-	 * Returns the non-absolute filepath of this {@link Spreadsheet} object as a {@link String},
-	 * or {@code null} if the spreadsheet has not yet been loaded or saved.
+	 * Gives the spreadsheet a new version, which is larger than that of any sheet of the
+	 * {@link Workbook}, so that the versions of the sheets that depend on it change too.
 	 */
-	String getPath () {
-		return path;
+	private void nextVersion () {
+		version = (workbook == null) ? version + 1 : Math.max(version + 1, workbook.changed());
 	}
 	
-	Cell[][] getArray () {
-		Cell[][] copy = new Cell[spreadsheet.length][spreadsheet[0].length];
-		for (int i = 0; i < copy.length; i++) {
-			for (int j = 0; j < copy[0].length; j++) {
-				copy[i][j] = spreadsheet[i][j].clone();
+	/**
+	 * Returns the largest version of the spreadsheet and of the sheets that it depends on, which
+	 * is the number of the last change to any of them, since each change is numbered by the
+	 * {@link Workbook}. The dependencies are found again first if they are stale.
+	 * @param visited The sheets that have already been counted.
+	 */
+	private long getVersion (Set<Spreadsheet> visited) {
+		if (!visited.add(this)) {
+			return 0;
+		}
+		if (dependenciesStale) {
+			findDependencies();
+		}
+		long max = version;
+		for (String dependency : dependencies) {
+			Spreadsheet sheet = workbook.getLoaded(dependency);
+			if (sheet != null) { // a sheet that has not been loaded has not changed
+				max = Math.max(max, sheet.getVersion(visited));
 			}
 		}
-		return copy;
+		return max;
 	}
 	
 	/**
-	 * Returns a graphical representation of the spreadsheet as a {@link String}.
+	 * Finds the other sheets that the formulas of the rows that have been parsed reference, after
+	 * formulas that referenced other sheets may have been removed. The formulas of the other rows
+	 * add theirs when they are parsed.
 	 */
-	public String toString () {
-		String s = "            |"; // 12 spaces
-		if (spreadsheet[0].length == 7) { // print the first row with exactly 7 columns
-			for (char c = 'A'; c < 'H'; c++) {
-				s += "     " + c + "      |";
-			}
-		} else { // print the first row with any other amount of columns
-			for (int i = 0; i < spreadsheet[0].length; i++) {
-				String thisCol = toBase26(i);
-				s += multistr(" ", 6 - (thisCol.length() + 1) / 2) + thisCol;
-				s += multistr(" ", 6 - thisCol.length() / 2) + "|";
-			}
-		}
-		s += "\n" + multistr("------------+", spreadsheet[0].length + 1)  + "\n";
-		
-		for (int i = 0; i < spreadsheet.length; i++) { // print every subsequent row
-			s += multistr(" ", 6 - (Integer.toString(i + 1).length() + 1) / 2);
-			s += Integer.toString(i + 1);
-			s += multistr(" ", 6 - Integer.toString(i + 1).length() / 2) + "|";
-			
-			for (int j = 0; j < spreadsheet[0].length; j++) {
-				String thisCell = "";
-				if (spreadsheet[i][j].getType() == Types.EMPTY) { // Empty cell
-					thisCell = "";
-				} else if (spreadsheet[i][j].getType() ==  Types.STRING) { // A String
-					thisCell = spreadsheet[i][j].toString()
-							.substring(1, spreadsheet[i][j].toString().length() - 1);
-				} else if (spreadsheet[i][j].getType() == Types.FORMULA) {
-					try {
-						thisCell = Double.toString(spreadsheet[i][j].getValue());
-					} catch (ArithmeticException ae) {
-						thisCell = "#ERROR";
-					} catch (StackOverflowError soe) {
-						thisCell = "#ERROR";
+	private void findDependencies () {
+		dependenciesStale = false;
+		Set<String> found = new HashSet<String>();
+		Cell[][] cells = spreadsheet;
+		for (int i = formulaRows.nextSetBit(0); i >= 0 && i < cells.length; i = formulaRows.nextSetBit(i + 1)) {
+			if (cells[i] != null) {
+				for (Cell cell : cells[i]) {
+					Formula formula = cell.getFormula();
+					if (formula != null) {
+						formula.addSheets(found);
 					}
-				} else { // Anything else (a date or real number)
-					thisCell = spreadsheet[i][j].toString();
 				}
-				
-				if (thisCell.length() > 12) { // Truncate the cell contents if necessary
-					thisCell = thisCell.substring(0, 11) + ">";
-				}
-				
-				s += multistr(" ", 6 - (thisCell.length() + 1) / 2);
-				s += thisCell;
-				s += multistr(" ", 6 - (thisCell.length()) / 2);
-				s += "|";
 			}
-			s += "\n" + multistr("------------+", spreadsheet[0].length + 1) + "\n";
 		}
-		return s;
+		dependencies = found;
 	}
 	
 	/**
-	 * Calculates the indices of the {@link Spreadsheet} represented
-	 * by a {@link String} of letters and numbers.
-	 * <p>
-	 * Calculates the actual indices in the {@link Spreadsheet} represented
-	 * by a {@link String} formatted as follows:
-	 * <pre>
-	 *      {@code <column><row>}
-	 * </pre>
-	 * The column is represented by a sequence of one or more
-	 * capital letters, such as "A", which evaluates to column 0, or "BE",
-	 * which evaluates to column 56. The method {@link convert} is used to convert the
-	 * sequence of capital letters into {@link int}s. The row is represented by the row number.
-	 * @param cell The {@link String} that is parsed to determine the location of the cell
-	 * 			that is specified.
-	 * @return An array of {@code int}s with two elements. The element at index 0 is
-	 * 			the row number, and the element at index 1 is the column number.
-	 * @throws IllegalArgumentException If {@code cell} is not formatted as described above.
-	 * @see toDec
+	 * Records the other sheets that an {@link Expression} of a formula references, so that
+	 * their changes are included in {@link #getVersion()}.
+	 * @param expression The parsed formula.
 	 */
-	private static int[] getIndices(String cell) {
-		if (cell.matches("[A-Z]+\\d+")) { // Something like "A1" or "AB50"
-			Pattern regex = Pattern.compile("\\d+");
-			Matcher m = regex.matcher(cell);
-			int row = 0;
-			int col = 0;
-			if (m.find()) {
-				col = toDec(cell.substring(0, m.start()));
-				row = Library.fromString(cell, m.start(), cell.length());
-			}
-			return new int[] {row - 1, col};
-		} else {
-			throw new IllegalArgumentException();
-		}
+	void addDependencies (Expression expression) {
+		expression.addSheets(dependencies);
 	}
-
+	
 	/**
-	 * Replaces the current spreadsheet with a spreadsheet with ten rows and seven columns,
-	 * and every {@link Cell} set to empty.
+	 * Marks the dependencies as stale if a {@link Cell} that is being replaced holds a formula that
+	 * references another sheet, so that they are found again the next time that they are used.
 	 */
-	private void newSheet () {
-		Cell[][] spreadsheet = new Cell[10][7];
-		for (int i = 0; i < spreadsheet.length; i++) {
-			for (int j = 0; j < spreadsheet[0].length; j++) {
-				spreadsheet[i][j] = new Cell();
-			}
+	private void replacing (Cell cell) {
+		Formula formula = cell.getFormula();
+		if (formula != null && !dependencies.isEmpty() && !dependenciesStale) {
+			Set<String> sheets = new HashSet<String>();
+			formula.addSheets(sheets);
+			dependenciesStale = !sheets.isEmpty();
 		}
-		this.spreadsheet = spreadsheet;
 	}
-
+	
 	/**
-	 * Accepts a {@link String} ({@code s}) and an {@code int} ({@code n}), then concatenates
-	 * {@code s} to itself <i> {@code n - 1} </i> times.
-	 * @param s The {@link String} to be concatenated.
-	 * @param n The number of times, plus one, that {@code s}
-	 * 			is to be concatenated to itself.
-	 * @return The resulting {@link String}.
+	 * Returns another sheet of the {@link Workbook} that the spreadsheet is part of, loading it if
+	 * necessary, for a formula that references it.
+	 * @param name The name of the sheet, which is not case-sensitive.
+	 * @throws ArithmeticException If there is no such sheet, or it cannot be read.
 	 */
-	private static String multistr (String s, int n) {
-		String result = "";
-		for (int i = 0; i < n; i++) {
-			result += s;
+	Spreadsheet getSheet (String name) {
+		Spreadsheet sheet = null;
+		if (workbook != null) {
+			try {
+				sheet = workbook.get(name);
+			} catch (IOException e) {
+				throw new ArithmeticException("Sheet " + name + " cannot be read");
+			}
 		}
-		return result;
+		if (sheet == null) {
+			throw new ArithmeticException("No sheet named " + name);
+		}
+		return sheet;
 	}
 	
 	/**
-	 * Converts a decimal {@code int} into base-26 (3 -> C, 32 -> AF, etc.),
-	 * formatted as a {@link String}.
-	 * @param n The {@code int} to be converted.
-	 * @return The resulting {@link String}.
+	 * Makes the spreadsheet a sheet of a {@link Workbook}. It is given a new version, which is
+	 * larger than that of any sheet of the workbook, including a sheet that it replaces, so that
+	 * the versions of the sheets that depend on it change.
+	 * @param workbook The {@link Workbook}.
+	 * @param name The name of the sheet.
 	 */
-	private static String toBase26 (int n) {
-		if (n < 26) {
-			return Character.toString((char) (n + 65));
-		} else if (n == 26) {
-			return "AA";
-		} else {
-			String result = "";
-			while (n > 26) {
-				result = (char) (n % 26 + 65) + result;
-				n /= 26;
+	void setWorkbook (Workbook workbook, String name) {
+		this.workbook = workbook;
+		this.name = name;
+		long offset = workbook.changed() - version;
+		if (offset > 0) {
+			version += offset;
+			if (savedVersion != -1) {
+				savedVersion += offset;
 			}
-			result = (char) ((n + 1) % 26 + 63) + result;
-			return result;
 		}
 	}
 	
 	/**
-	 * Converts a base-26 number made up of capital letters into a base-10 {@code int}.
-	 * @param n The base-26 integer, stored as a {@link String}, to be converted.
-	 * @return The {@code int} that was parsed from the {@link String}.
+	 * Returns the name of the sheet, or {@code null} if the spreadsheet is not part of a {@link Workbook}.
 	 */
-	private static int toDec (String n) {
-		int total = 0;
-		total += (int) n.charAt(n.length() - 1) - 65;
-		int timesBy = 26;
-		for (int i = n.length() - 2; i >= 0; i--) {
-			total += ((int) n.charAt(i) - 64) * timesBy;
-			timesBy *= 26;
-		}
-		return total;
+	String getName () {
+		return name;
+	}
+	
+	/**
+	 * Returns the {@link Expression} of another formula in the spreadsheet that is equal to
+	 * the given one, or the given {@link Expression} if there is none. See {@link ExpressionTable}.
+	 * @param expression The parsed formula.
+	 */
+	Expression intern (Expression expression) {
+		return expressions.intern(expression);
+	}
+	
+	/**
+	 * Returns the {@link LookupIndex} of a row or column segment, building it if necessary.
+	 * @param byRow {@code true} if the segment is part of a row, {@code false} if it is part of a column.
+	 * @param fixed The index of the row or column.
+	 * @param start The index of the first column or row in the segment.
+	 * @param end The index of the last column or row in the segment.
+	 */
+	LookupIndex getLookupIndex (boolean byRow, int fixed, int start, int end) {
+		return indexes.get(this, byRow, fixed, start, end);
+	}
+	
+	/**
+	 * Sorts the rows of a rectangular range of cells by the values in one of its columns.
+	 * Numbers and dates come first, followed by {@link String}s in alphabetical order,
+	 * then formulas that cannot be evaluated; empty cells are always placed last.
+	 * Rows with equal values keep their order. Formulas that reference a moved cell are
+	 * changed to reference its new location.
+	 * @param startCell The cell with the smallest row and column indices in the range.
+	 * @param endCell The cell with the largest row and column indices in the range.
+	 * @param column The letters of the column to sort by, which must be inside the range.
+	 * @param ascending {@code true} to sort from smallest to largest,
+	 * 			{@code false} to sort from largest to smallest.
+	 * @throws IllegalArgumentException If the cell range or the column is invalid, or if a formula
+	 * 			aggregates a range of cells that only some of the moved rows would be moved into or
+	 * 			out of, which would change its value.
+	 */
+	void sort (String startCell, String endCell, String column, boolean ascending) {
+		parseAll();
+		int[] start = getIndices(startCell);
+		int[] end = getIndices(endCell);
+		int col = getColumn(column);
+		if (start[0] > end[0] || start[1] > end[1] || col < start[1] || col > end[1]) {
+			throw new IllegalArgumentException();
+		}
+		int lastRow = Math.min(end[0], spreadsheet.length - 1);
+		int lastCol = Math.min(end[1], spreadsheet[0].length - 1);
+		if (start[0] > lastRow || start[1] > lastCol || col > lastCol) {
+			return; // every cell in the range is empty
+		}
+		
+		int n = lastRow - start[0] + 1;
+		int[] classes = new int[n];
+		double[] values = new double[n];
+		readKeys(col, start[0], classes, values);
+		int[] order = IndexSort.sort(classes, values, EMPTY_KEY, !ascending);
+		checkRanges(start[0], start[1], lastCol, order);
+		permuteRows(start[0], start[1], lastCol, order, n);
+		if (log != null) {
+			log.sort(this, startCell, endCell, column, ascending);
+		}
+	}
+	
+	/**
+	 * Keeps only the rows of the spreadsheet whose cell in the given column satisfies a
+	 * comparison with a value, moving them to the top of the spreadsheet in their original order.
+	 * The rows that are left over are emptied. Formulas that reference a moved cell are
+	 * changed to reference its new location.
+	 * @param column The letters of the column to be compared.
+	 * @param operator One of {@code =}, {@code !=}, {@code <}, {@code >}, {@code <=} or {@code >=}.
+	 * @param value The value that the cells are compared with.
+	 * @throws IllegalArgumentException If the column or the operator is invalid.
+	 */
+	void filter (String column, String operator, Cell value) {
+		parseAll();
+		int col = getColumn(column);
+		int op = Arrays.asList(OPERATORS).indexOf(operator);
+		if (op == -1) {
+			throw new IllegalArgumentException();
+		}
+		
+		int n = spreadsheet.length;
+		int[] order = new int[n];
+		int kept = 0;
+		if (col < spreadsheet[0].length) {
+			int code = (value.getType() == Types.STRING) ? strings.codeOf(value.getString()) : -1;
+			for (int i = 0; i < n; i++) {
+				if (matches(spreadsheet[i][col], op, value, code)) {
+					order[kept++] = i;
+				}
+			}
+		} else if (matches(new Cell(), op, value, -1)) { // the whole column is empty
+			return;
+		}
+		
+		// The rows that are removed follow the rows that are kept
+		int next = kept;
+		for (int i = 0, k = 0; i < n; i++) {
+			if (k < kept && order[k] == i) {
+				k++;
+			} else {
+				order[next++] = i;
+			}
+		}
+		permuteRows(0, 0, spreadsheet[0].length - 1, order, kept);
+		if (log != null) {
+			log.filter(this, column, operator, value);
+		}
+	}
+	
+	/**
+	 * Inserts empty rows or columns, moving the rows below or the columns to the right down or
+	 * right. Formulas that reference the cells that moved are changed to reference their new
+	 * locations, and a range that spans the new rows or columns grows to include them.
+	 * This can be undone. See {@link #move(Shift)}.
+	 * @param rows {@code true} to insert rows, {@code false} to insert columns.
+	 * @param start The index of the first new row or column.
+	 * @param count The number of rows or columns to insert.
+	 * @throws IllegalArgumentException If {@code start} is negative or {@code count} is not positive.
+	 */
+	void insert (boolean rows, int start, int count) {
+		if (start < 0 || count < 1) {
+			throw new IllegalArgumentException();
+		}
+		if (start < (rows ? spreadsheet.length : spreadsheet[0].length)) { // otherwise nothing moves
+			move(new Shift(rows, start, count, (name == null) ? null : name.toUpperCase()));
+		}
+		if (log != null) {
+			log.insert(this, rows, start, count);
+		}
+	}
+	
+	/**
+	 * Deletes rows or columns, moving the rows below or the columns to the right up or left.
+	 * Formulas that reference the cells that moved are changed to reference their new locations,
+	 * references to deleted cells are replaced with {@value #DELETED}, so that the formulas are
+	 * errors, and a range that includes deleted cells shrinks. This can be undone.
+	 * See {@link #move(Shift)}.
+	 * @param rows {@code true} to delete rows, {@code false} to delete columns.
+	 * @param start The index of the first row or column to delete.
+	 * @param count The number of rows or columns to delete.
+	 * @throws IllegalArgumentException If {@code start} is negative or {@code count} is not positive.
+	 */
+	void delete (boolean rows, int start, int count) {
+		if (start < 0 || count < 1) {
+			throw new IllegalArgumentException();
+		}
+		int size = rows ? spreadsheet.length : spreadsheet[0].length;
+		if (start < size) { // otherwise nothing is deleted
+			move(new Shift(rows, start, -Math.min(count, size - start), (name == null) ? null : name.toUpperCase()));
+		}
+		if (log != null) {
+			log.delete(this, rows, start, count);
+		}
+	}
+	
+	/**
+	 * Inserts or deletes rows or columns. Inserting or deleting rows only moves the rows themselves,
+	 * which are shared with the old array of rows that is kept for undoing the change, and only
+	 * the rows with formulas that change are copied. Only the rows that may hold formulas
+	 * ({@link #formulaRows}) are looked at: a formula whose references all move by the same
+	 * distance as the formula itself keeps its parsed form, which is made relative, as by
+	 * {@link Formula#fill(int, int)}, and only the formulas with references that cross the
+	 * inserted or deleted rows or columns are changed and parsed again. References from other
+	 * sheets are left unchanged.
+	 * <p>
+	 * The rows of a large file that have not been parsed are moved as they are, and the change is
+	 * applied to each of them when it is parsed (see {@link #fileShifts}). The caches of the cells
+	 * before the inserted or deleted rows are kept, unless a formula there was changed.
+	 */
+	private void move (Shift shift) {
+		Cell[][] old = spreadsheet;
+		int rows = old.length;
+		int cols = old[0].length;
+		int size = Math.max((shift.rows ? rows : cols) + shift.count, 1);
+		if (shift.rows && shift.start == 0 && shift.count < 0 && -shift.count < rows) {
+			pin(-shift.count, -shift.count); // the first row is always kept, since it gives the number of columns
+		}
+		Cell[][] cells;
+		if (shift.rows) {
+			cells = new Cell[size][];
+			int start = shift.start;
+			System.arraycopy(old, 0, cells, 0, start);
+			if (shift.count > 0) {
+				System.arraycopy(old, start, cells, start + shift.count, rows - start);
+				for (int i = start; i < start + shift.count; i++) {
+					cells[i] = emptyRow(cols);
+				}
+			} else {
+				System.arraycopy(old, start - shift.count, cells, start, rows - start + shift.count);
+				if (rows + shift.count == 0) { // every row was deleted
+					cells[0] = emptyRow(cols);
+				}
+			}
+		} else {
+			cells = new Cell[rows][];
+			for (int i = 0; i < rows; i++) {
+				if (old[i] == null) {
+					continue; // moved when it is parsed
+				}
+				cells[i] = new Cell[size];
+				for (int j = 0; j < cols; j++) {
+					int k = shift.apply(j);
+					if (k != -1) {
+						cells[i][k] = old[i][j];
+					}
+				}
+				for (int j = 0; j < size; j++) {
+					if (cells[i][j] == null) {
+						cells[i][j] = new Cell();
+					}
+				}
+			}
+		}
+		
+		BitSet formulas = new BitSet();
+		BitSet changed = new BitSet(); // rows with formulas that changed, which are no longer shared
+		for (int i = formulaRows.nextSetBit(0); i >= 0 && i < rows; i = formulaRows.nextSetBit(i + 1)) {
+			int newRow = shift.rows ? shift.apply(i) : i;
+			if (newRow == -1) {
+				continue;
+			}
+			formulas.set(newRow);
+			if (old[i] == null) {
+				continue;
+			}
+			for (int j = 0; j < cols; j++) {
+				Formula formula = old[i][j].getFormula();
+				int newCol = shift.rows ? j : shift.apply(j);
+				if (formula == null || newCol == -1) {
+					continue;
+				}
+				Cell moved = null;
+				if (formula.movesWith(shift)) {
+					if (newRow == i && newCol == j) {
+						continue;
+					}
+					moved = new Cell(formula.fill(newRow, newCol));
+				} else {
+					String text = formula.toString();
+					String name = toBase26(newCol) + (newRow + 1);
+					try {
+						moved = new Cell(shiftReferences(text, shift, this.name, new int[] {i, j}, new int[] {newRow, newCol}), name, this);
+					} catch (IllegalArgumentException e) { // keep the formula that was valid
+					} catch (ArithmeticException e) {
+					}
+					if (moved == null) {
+						if (newRow == i && newCol == j) {
+							continue;
+						}
+						moved = new Cell(text, name, this); // parsed again for where it is moved to
+					}
+				}
+				if (shift.rows && !changed.get(newRow)) {
+					cells[newRow] = cells[newRow].clone();
+				}
+				changed.set(newRow);
+				cells[newRow][newCol] = moved;
+			}
+		}
+		
+		if (!shift.rows) {
+			CellFormat[] moved = new CellFormat[size];
+			for (int j = 0; j < formats.length; j++) {
+				int k = shift.apply(j);
+				if (k != -1 && k < size) {
+					moved[k] = formats[j];
+				}
+			}
+			formats = moved;
+		}
+		
+		SheetChange change = new SheetChange(old);
+		record(change);
+		spreadsheet = cells;
+		formulaRows = formulas;
+		if (rowIndex != null) {
+			fileShifts = Arrays.copyOf(fileShifts, fileShifts.length + 1);
+			fileShifts[fileShifts.length - 1] = shift;
+			for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+				pin(i, i);
+			}
+		}
+		change.shiftRanges(shift);
+		if (shift.rows) {
+			int first = Math.min(shift.start, Math.max(changed.nextSetBit(0), 0));
+			indexes.invalidateRows(first);
+			changed(first, Math.max(rows, size) - 1);
+		} else {
+			indexes.clear();
+			changedAll();
+		}
+		if (workbook != null && shift.sheet != null) {
+			change.shift = shift;
+			shiftOtherSheets(shift, change.rewrites);
+		}
+	}
+	
+	/**
+	 * Moves the references to the spreadsheet in the formulas of the other sheets of the
+	 * {@link Workbook} when its rows or columns are inserted or deleted, or moves them back when
+	 * that is undone (see {@link Shift#undone}). Sheets that have not been used are read first.
+	 * @param shift The rows or columns that are inserted or deleted.
+	 * @param rewrites The formulas that have been changed so far, which those that are changed
+	 * 			now are added to.
+	 */
+	private void shiftOtherSheets (Shift shift, List<Rewrite> rewrites) {
+		for (String other : workbook.getNames()) {
+			Spreadsheet sheet;
+			try {
+				sheet = workbook.get(other);
+			} catch (IOException e) { // its formulas cannot be shown, and are moved if it is loaded again
+				continue;
+			}
+			if (sheet != this) {
+				sheet.shiftReferencesTo(shift, rewrites);
+			}
+		}
+	}
+	
+	/**
+	 * Moves the references of the formulas to another sheet of the {@link Workbook} whose rows or
+	 * columns are inserted or deleted, or moves them back when that is undone. A formula that was
+	 * changed before and has not changed since is put back exactly, even if its references were
+	 * deleted, and the others are changed as by {@link #shiftReferences}. The rows of a large file
+	 * that have not been parsed are changed when they are parsed.
+	 * @param shift The rows or columns of the other sheet that are inserted or deleted.
+	 * @param rewrites The formulas of every sheet that have been changed so far, which those that
+	 * 			are changed now are added to.
+	 */
+	private void shiftReferencesTo (Shift shift, List<Rewrite> rewrites) {
+		int first = spreadsheet.length;
+		int last = -1;
+		Set<Cell> swapped = Collections.newSetFromMap(new IdentityHashMap<Cell, Boolean>());
+		for (Rewrite rewrite : rewrites) {
+			Cell[] row = (rewrite.sheet == this && rewrite.row < spreadsheet.length) ? spreadsheet[rewrite.row] : null;
+			if (row != null && rewrite.col < row.length
+					&& row[rewrite.col] == (shift.undone ? rewrite.moved : rewrite.unmoved)) {
+				row[rewrite.col] = shift.undone ? rewrite.unmoved : rewrite.moved;
+				swapped.add(row[rewrite.col]);
+				first = Math.min(first, rewrite.row);
+				last = Math.max(last, rewrite.row);
+			}
+		}
+		if (rowIndex != null && !Arrays.asList(otherShifts).contains(shift)) {
+			otherShifts = Arrays.copyOf(otherShifts, otherShifts.length + 1);
+			otherShifts[otherShifts.length - 1] = shift;
+			savedVersion = -1; // the file no longer holds the cells that have not been parsed
+		}
+		
+		if (dependencies.contains(shift.sheet)) {
+			Shift applied = shift.undone ? shift.inverse() : shift;
+			for (int i = formulaRows.nextSetBit(0); i >= 0 && i < spreadsheet.length; i = formulaRows.nextSetBit(i + 1)) {
+				Cell[] row = spreadsheet[i];
+				for (int j = 0; row != null && j < row.length; j++) {
+					Formula formula = row[j].getFormula();
+					if (formula == null || swapped.contains(row[j])) {
+						continue;
+					}
+					int[] at = {i, j};
+					String text;
+					try {
+						text = formula.toString();
+					} catch (IllegalArgumentException e) {
+						continue;
+					}
+					String moved = shiftFormula(text, applied, at, at);
+					if (moved.equals(text)) {
+						continue;
+					}
+					Cell cell = new Cell(moved, toBase26(j) + (i + 1), this);
+					rewrites.add(shift.undone ? new Rewrite(this, i, j, row[j], cell) : new Rewrite(this, i, j, cell, row[j]));
+					row[j] = cell;
+					first = Math.min(first, i);
+					last = Math.max(last, i);
+				}
+			}
+		}
+		if (last != -1) {
+			indexes.clear();
+			changed(first, last);
+		}
+	}
+	
+	/**
+	 * Returns a row of empty {@link Cell}s.
+	 * @param cols The number of columns.
+	 */
+	private static Cell[] emptyRow (int cols) {
+		Cell[] row = new Cell[cols];
+		for (int j = 0; j < cols; j++) {
+			row[j] = new Cell();
+		}
+		return row;
+	}
+	
+	/**
+	 * Changes the references of a formula as by {@link #shiftReferences}, unless the formula that
+	 * this gives is not valid, in which case it is kept, as {@link #move(Shift)} keeps it.
+	 * @return The changed formula, or the formula itself.
+	 */
+	private String shiftFormula (String formula, Shift shift, int[] from, int[] to) {
+		try {
+			String shifted = shiftReferences(formula, shift, name, from, to);
+			if (!shifted.equals(formula)) {
+				new Cell(shifted, toBase26(to[1]) + (to[0] + 1), this);
+			}
+			return shifted;
+		} catch (IllegalArgumentException e) { // keep the formula that was valid
+		} catch (ArithmeticException e) {
+		}
+		return formula;
+	}
+	
+	/**
+	 * Changes the references of a formula for rows or columns that are inserted or deleted.
+	 * Only the references to the sheet that the rows or columns are in are moved, whether they
+	 * name it, such as {@code Sheet2!A1}, or are on the sheet that holds the formula; relative
+	 * references to other sheets, such as {@code Sheet2!R[-1]C}, are only written again for the
+	 * cell that the formula is moved to. Text surrounded by quotation marks is left unchanged.
+	 * @param formula The formula.
+	 * @param shift The rows or columns that are inserted or deleted.
+	 * @param sheet The name of the sheet that holds the formula, or {@code null} if it has none.
+	 * @param from The indices of the cell that held the formula, which relative references,
+	 * 			such as {@code R[-1]C}, are counted from.
+	 * @param to The indices of the cell that the formula is moved to.
+	 */
+	private static String shiftReferences (String formula, Shift shift, String sheet, int[] from, int[] to) {
+		Pattern pattern = RANGE_FORMULA.matcher(formula).matches() ? LEGACY_RANGE_REFERENCE : RANGE_REFERENCE;
+		Matcher m = pattern.matcher(formula);
+		StringBuffer shifted = new StringBuffer();
+		boolean moved = !Arrays.equals(from, to);
+		int d = shift.rows ? 0 : 1;
+		while (m.find()) {
+			if (m.group(0).startsWith("\"") || isInName(formula, m.start())) {
+				continue;
+			}
+			String on = getSheetBefore(formula, m.start());
+			boolean shifts = shift.isOn((on == null) ? sheet : on);
+			if (!shifts && !moved) {
+				continue;
+			}
+			int[] first = readReference(m, 1, from);
+			String replacement;
+			if (m.group(5) == null) { // a single cell
+				first[d] = shifts ? shift.apply(first[d]) : first[d];
+				replacement = (first[d] == -1) ? DELETED : writeReference(m, 1, first, to);
+			} else { // a range, whose ends are moved inside it if they are deleted
+				int[] last = readReference(m, 6, from);
+				if (shifts) {
+					int a = shift.apply(first[d]);
+					int b = shift.apply(last[d]);
+					first[d] = (a == -1) ? shift.start : a;
+					last[d] = (b == -1) ? shift.start - 1 : b;
+				}
+				replacement = (first[d] > last[d]) ? DELETED
+						: writeReference(m, 1, first, to) + m.group(5) + writeReference(m, 6, last, to);
+			}
+			m.appendReplacement(shifted, Matcher.quoteReplacement(replacement));
+			if (on != null && replacement == DELETED) { // the name of the sheet is deleted too
+				shifted.delete(shifted.length() - DELETED.length() - on.length() - 1, shifted.length() - DELETED.length());
+			}
+		}
+		m.appendTail(shifted);
+		return shifted.toString();
+	}
+	
+	/**
+	 * Returns the indices of the cell that a reference matched by {@link #CELL} refers to.
+	 * @param group The first group of the reference.
+	 * @param origin The indices of the cell that relative references are counted from.
+	 */
+	private static int[] readReference (Matcher m, int group, int[] origin) {
+		if (m.group(group) != null) {
+			return getIndices(m.group(group) + m.group(group + 1));
+		}
+		return new int[] {origin[0] + readOffset(m.group(group + 2)), origin[1] + readOffset(m.group(group + 3))};
+	}
+	
+	private static int readOffset (String offset) {
+		if (offset == null) {
+			return 0;
+		}
+		offset = offset.trim();
+		return Integer.parseInt(offset.startsWith("+") ? offset.substring(1) : offset);
+	}
+	
+	/**
+	 * Writes a reference to a cell in the same way as the reference matched by {@link #CELL}.
+	 * @param group The first group of the reference.
+	 * @param cell The indices of the cell.
+	 * @param origin The indices of the cell that relative references are counted from.
+	 */
+	private static String writeReference (Matcher m, int group, int[] cell, int[] origin) {
+		if (m.group(group) != null) {
+			return toBase26(cell[1]) + (cell[0] + 1);
+		}
+		int rows = cell[0] - origin[0];
+		int cols = cell[1] - origin[1];
+		return "R" + ((rows == 0) ? "" : "[" + rows + "]") + "C" + ((cols == 0) ? "" : "[" + cols + "]");
+	}
+	
+	/**
+	 * Sets the specified cell in the spreadsheet to the specified value.
+	 * Overwrites the current spreadsheet array if necessary
+	 * in order to set the cell to its correct value.
+	 * @param cell A textual representation of the cell's location in the spreadsheet.
+	 * @param value The contents of the cell.
+	 * @see getCell
+	 */
+	void set (String cell, Cell value) {
+		int[] indices = getIndices(cell);
+		record(indices[0], indices[1], indices[0], indices[1]);
+		ensureSize(indices[0] + 1, indices[1] + 1);
+		value.encode(strings);
+		replacing(spreadsheet[indices[0]][indices[1]]);
+		spreadsheet[indices[0]][indices[1]] = value;
+		if (value.getType() == Types.FORMULA) {
+			formulaRows.set(indices[0]);
+		}
+		indexes.invalidate(indices[0], indices[1]);
+		changedRows(indices[0], indices[0]);
+		for (Pivot pivot : pivots) {
+			pivot.update(indices[0], indices[1]);
+		}
+		if (log != null) {
+			log.set(this, indices[0], indices[1], value);
+		}
+	}
+	
+	/**
+	 * Sets a cell without recording the change for undoing or logging it, for the cells of
+	 * a {@link Pivot} table, which are written again whenever the cells they depend on change.
+	 * @param row The index of the row of the cell.
+	 * @param col The index of the column of the cell.
+	 * @param value The contents of the cell, which must not be a formula.
+	 */
+	void put (int row, int col, Cell value) {
+		pin(row, row);
+		ensureSize(row + 1, col + 1);
+		value.encode(strings);
+		replacing(spreadsheet[row][col]);
+		spreadsheet[row][col] = value;
+		indexes.invalidate(row, col);
+		changedRows(row, row);
+	}
+	
+	/**
+	 * Creates a pivot table that summarizes a range of the spreadsheet, see {@link Pivot}, and
+	 * writes it. The table replaces any other pivot table that starts at the same cell.
+	 * @param startCell The top left cell of the range.
+	 * @param endCell The bottom right cell of the range.
+	 * @param rowColumn The letters of the column whose values are the rows of the table.
+	 * @param colColumn The letters of the column whose values are the columns of the table,
+	 * 			or {@code null} for a single column of values.
+	 * @param function {@code SUM}, {@code COUNT} or {@code AVG}, case-insensitive.
+	 * @param valueColumn The letters of the column that is aggregated.
+	 * @param destination The top left cell of the table, which must be below or to the right
+	 * 			of the range.
+	 * @throws IllegalArgumentException If any of the above is not valid.
+	 */
+	void pivot (String startCell, String endCell, String rowColumn, String colColumn, String function,
+			String valueColumn, String destination) {
+		int[] target = getIndices(destination);
+		Pivot pivot = new Pivot(this, getIndices(startCell), getIndices(endCell), getColumn(rowColumn),
+				(colColumn == null) ? -1 : getColumn(colColumn), function, getColumn(valueColumn), target);
+		stopPivot(destination);
+		pivots.add(pivot);
+		if (log != null) {
+			log.pivot(this, startCell, endCell, rowColumn, (colColumn == null) ? "" : colColumn,
+					function, valueColumn, destination);
+		}
+	}
+	
+	/**
+	 * Stops updating the pivot table that starts at a cell. Its cells keep their values.
+	 * @param destination The top left cell of the table.
+	 * @return {@code true} if there was such a table, {@code false} otherwise.
+	 * @throws IllegalArgumentException If the cell is not valid.
+	 */
+	boolean stopPivot (String destination) {
+		int[] target = getIndices(destination);
+		Iterator<Pivot> i = pivots.iterator();
+		while (i.hasNext()) {
+			if (Arrays.equals(i.next().getTarget(), target)) {
+				i.remove();
+				if (log != null) {
+					log.stopPivot(this, destination);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Fills a rectangular range of cells with copies of a cell. If the cell holds a formula,
+	 * the references in each copy are moved by the distance from the cell to the copy,
+	 * so filling {@code B2:B100} from {@code B1 = ( A1 * 2 )} sets {@code B2} to {@code ( A2 * 2 )}
+	 * and so on. The copies share a single parsed formula.
+	 * @param source The cell to be copied, such as {@code "B1"}.
+	 * @param startCell The top left cell of the range.
+	 * @param endCell The bottom right cell of the range.
+	 * @throws IllegalArgumentException If the range is not valid, or a reference would be moved
+	 * 			outside of the spreadsheet.
+	 */
+	void fill (String source, String startCell, String endCell) {
+		int[] src = getIndices(source);
+		int[] start = getIndices(startCell);
+		int[] end = getIndices(endCell);
+		if (start[0] > end[0] || start[1] > end[1]) {
+			throw new IllegalArgumentException();
+		}
+		Cell cell = getCell(src[0], src[1]);
+		Formula formula = cell.getFormula();
+		if (formula != null) {
+			formula = formula.fill(src[0], src[1]);
+			formula.fill(start[0], start[1]).toString(); // the references move furthest up and left here
+			pin(src[0], src[0]);
+			spreadsheet[src[0]][src[1]] = new Cell(formula);
+		}
+		
+		record(start[0], start[1], end[0], end[1]);
+		ensureSize(end[0] + 1, end[1] + 1);
+		for (int i = start[0]; i <= end[0]; i++) {
+			for (int j = start[1]; j <= end[1]; j++) {
+				if (i == src[0] && j == src[1]) {
+					continue;
+				}
+				spreadsheet[i][j] = (formula != null) ? new Cell(formula.fill(i, j)) : cell.clone();
+			}
+		}
+		if (formula != null) {
+			formulaRows.set(start[0], end[0] + 1);
+		}
+		indexes.clear();
+		changed(start[0], end[0]);
+		if (log != null) {
+			log.fill(this, source, startCell, endCell);
+		}
+	}
+	
+	/**
+	 * Sets every cell of a rectangular range to the same contents. The spreadsheet is grown and the
+	 * change is recorded once for the whole range, so this is much faster than setting each cell
+	 * with {@link #set(String, Cell)}. If the contents are a formula, it is written for the top left
+	 * cell, and its references are moved for the other cells as by {@link #fill(String, String, String)}.
+	 * @param startCell The top left cell of the range.
+	 * @param endCell The bottom right cell of the range.
+	 * @param value The contents of the top left cell, which must have been parsed for that cell.
+	 * @throws IllegalArgumentException If the range is not valid.
+	 */
+	void setRange (String startCell, String endCell, Cell value) {
+		int[] start = getIndices(startCell);
+		int[] end = getIndices(endCell);
+		if (start[0] > end[0] || start[1] > end[1]) {
+			throw new IllegalArgumentException();
+		}
+		value.encode(strings);
+		Formula formula = value.getFormula();
+		
+		record(start[0], start[1], end[0], end[1]);
+		ensureSize(end[0] + 1, end[1] + 1);
+		for (int i = start[0]; i <= end[0]; i++) {
+			Cell[] row = spreadsheet[i];
+			for (int j = start[1]; j <= end[1]; j++) {
+				row[j] = (formula != null) ? new Cell(formula.fill(i, j)) : value.clone();
+			}
+		}
+		if (formula != null) {
+			formulaRows.set(start[0], end[0] + 1);
+		}
+		indexes.clear();
+		changed(start[0], end[0]);
+		if (log != null) {
+			log.setRange(this, startCell, endCell, value);
+		}
+	}
+	
+	/**
+	 * Copies a rectangular range of cells to another place in the spreadsheet. The references
+	 * of each formula that is copied are moved by the distance that it is copied, as by
+	 * {@link #fill(String, String, String)}. Every cell of the range is read before any is
+	 * written, so the range and the place that it is copied to may overlap.
+	 * @param startCell The top left cell of the range.
+	 * @param endCell The bottom right cell of the range.
+	 * @param destination The cell that the top left cell is copied to.
+	 * @throws IllegalArgumentException If the range is not valid, or a reference would be moved
+	 * 			outside of the spreadsheet.
+	 */
+	void copy (String startCell, String endCell, String destination) {
+		int[] start = getIndices(startCell);
+		int[] end = getIndices(endCell);
+		int[] dest = getIndices(destination);
+		if (start[0] > end[0] || start[1] > end[1]) {
+			throw new IllegalArgumentException();
+		}
+		// References only move towards the top left, where they may leave the spreadsheet, if the cells do
+		boolean check = dest[0] < start[0] || dest[1] < start[1];
+		Cell[][] copies = new Cell[end[0] - start[0] + 1][end[1] - start[1] + 1];
+		for (int i = 0; i < copies.length; i++) {
+			for (int j = 0; j < copies[i].length; j++) {
+				Cell cell = getCell(start[0] + i, start[1] + j);
+				Formula formula = cell.getFormula();
+				if (formula == null) {
+					copies[i][j] = cell.clone();
+					continue;
+				}
+				formula = formula.fill(dest[0] + i, dest[1] + j);
+				if (check) {
+					formula.toString();
+				}
+				copies[i][j] = new Cell(formula);
+				formulaRows.set(dest[0] + i);
+			}
+		}
+		
+		int lastRow = dest[0] + copies.length - 1;
+		int lastCol = dest[1] + copies[0].length - 1;
+		record(dest[0], dest[1], lastRow, lastCol);
+		ensureSize(lastRow + 1, lastCol + 1);
+		for (int i = 0; i < copies.length; i++) {
+			System.arraycopy(copies[i], 0, spreadsheet[dest[0] + i], dest[1], copies[i].length);
+		}
+		indexes.clear();
+		changed(dest[0], lastRow);
+		if (log != null) {
+			log.copy(this, startCell, endCell, destination);
+		}
+	}
+	
+	/**
+	 * Runs a {@link Query} over a range of the spreadsheet, such as
+	 * {@code A1:D100 SELECT B, SUM(D) WHERE C > 5 GROUP BY B}, and optionally writes its result
+	 * into the spreadsheet, headings first, as a single change that can be undone.
+	 * @param query The query.
+	 * @param destination The cell that the top left cell of the result is written to,
+	 * 			or {@code null} to only return the result.
+	 * @return The result, see {@link Query#run(Spreadsheet)}.
+	 * @throws IllegalArgumentException If the query or the destination is not valid.
+	 */
+	Cell[][] query (String query, String destination) {
+		int[] dest = (destination == null) ? null : getIndices(destination);
+		Cell[][] result = Query.parse(query, this).run(this);
+		if (dest != null) {
+			paste(dest[0], dest[1], result);
+			if (log != null) {
+				log.query(this, query, destination);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Prints cells that are not part of a spreadsheet, such as the result of a {@link Query},
+	 * with each column fitted to its contents as by {@link #print(String, boolean, boolean, PrintStream)}.
+	 * @param cells The cells, which have at least one row and one column.
+	 * @param out The {@link PrintStream} that the cells are printed to.
+	 */
+	static void print (Cell[][] cells, PrintStream out) {
+		Spreadsheet table = new Spreadsheet();
+		table.paste(0, 0, cells);
+		table.print("A1:" + toBase26(cells[0].length - 1) + cells.length, true, true, out);
+	}
+	
+	/**
+	 * Writes a rectangular block of cells, which must not hold formulas, as a single change.
+	 * @param row The index of the row of the top left cell.
+	 * @param col The index of the column of the top left cell.
+	 * @param cells The cells, which are written as they are.
+	 */
+	private void paste (int row, int col, Cell[][] cells) {
+		int lastRow = row + cells.length - 1;
+		int lastCol = col + cells[0].length - 1;
+		record(row, col, lastRow, lastCol);
+		ensureSize(lastRow + 1, lastCol + 1);
+		for (int i = 0; i < cells.length; i++) {
+			for (Cell cell : cells[i]) {
+				cell.encode(strings);
+			}
+			System.arraycopy(cells[i], 0, spreadsheet[row + i], col, cells[i].length);
+		}
+		indexes.clear();
+		changed(row, lastRow);
+	}
+	
+	/**
+	 * Evaluates a formula for every cell of a rectangular range and stores the results as numbers.
+	 * The formula is written for the top left cell, and its references are moved for each other cell
+	 * as by {@link #fill(String, String, String)}, but each column is computed at once by
+	 * {@link ArrayEvaluator} rather than one formula at a time. All of the values are computed
+	 * before any cell is changed, so the formula may reference cells in the range.
+	 * @param startCell The top left cell of the range.
+	 * @param endCell The bottom right cell of the range.
+	 * @param formula The formula for the top left cell.
+	 * @return The number of cells whose value is not a real number, which are left empty.
+	 * @throws IllegalArgumentException If the range is not valid.
+	 * @throws NumberFormatException If the formula is not a mathematically valid expression.
+	 * @throws UnrecognizedFunctionException If the formula calls a function that does not exist.
+	 */
+	int computeArray (String startCell, String endCell, String formula) {
+		int[] start = getIndices(startCell);
+		int[] end = getIndices(endCell);
+		if (start[0] > end[0] || start[1] > end[1]) {
+			throw new IllegalArgumentException();
+		}
+		Expression expression = FormulaParser.parse(formula).relativeTo(start[0], start[1]);
+		double[][] columns = new double[end[1] - start[1] + 1][];
+		for (int j = start[1]; j <= end[1]; j++) {
+			columns[j - start[1]] = ArrayEvaluator.evaluate(expression, this, start[0], end[0], j);
+		}
+		
+		record(start[0], start[1], end[0], end[1]);
+		ensureSize(end[0] + 1, end[1] + 1);
+		int errors = 0;
+		for (int j = start[1]; j <= end[1]; j++) {
+			double[] values = columns[j - start[1]];
+			for (int i = start[0]; i <= end[0]; i++) {
+				double value = values[i - start[0]];
+				if (Double.isNaN(value) || Double.isInfinite(value)) {
+					spreadsheet[i][j] = new Cell();
+					errors++;
+				} else {
+					spreadsheet[i][j] = new Cell(value);
+				}
+			}
+		}
+		indexes.clear();
+		changed(start[0], end[0]);
+		if (log != null) {
+			log.computeArray(this, startCell, endCell, formula);
+		}
+		return errors;
+	}
+	
+	/**
+	 * Replaces the current {@link Spreadsheet} with a spreadsheet made up of
+	 * ten rows and seven columns, and every {@link Cell}
+	 * set to {@code <empty>}. This can be undone.
+	 */
+	void clear () {
+		record(new SheetChange(spreadsheet, strings));
+		newSheet();
+		if (log != null) {
+			log.clear(this);
+		}
+	}
+	
+	/**
+	 * Undoes the most recent change to the cells that has not been undone. Only the
+	 * {@value #MAX_UNDO} most recent changes are remembered, and loading a file forgets them all.
+	 * @return {@code true} if a change was undone, {@code false} if there was none.
+	 */
+	boolean undo () {
+		return swap(undoStack, redoStack);
+	}
+	
+	/**
+	 * Redoes the most recent change that was undone, unless the cells have been changed since.
+	 * @return {@code true} if a change was redone, {@code false} if there was none.
+	 */
+	boolean redo () {
+		return swap(redoStack, undoStack);
+	}
+	
+	/**
+	 * Reverses the first change on one stack and moves it to the other, which it then reverses.
+	 */
+	private boolean swap (ArrayDeque<Change> from, ArrayDeque<Change> to) {
+		Change change = from.pollFirst();
+		if (change == null) {
+			return false;
+		}
+		change.swap();
+		to.addFirst(change);
+		indexes.clear();
+		changedAll();
+		if (log != null) {
+			if (change.isReplayable()) {
+				log.undo(this, from == redoStack);
+			} else {
+				// Replaying the cells that are logged instead records them as a new change
+				change.log(log);
+				history++;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Remembers the cells of a rectangular range before they are changed. If the range does not fit
+	 * in the spreadsheet, only the part that does is remembered, along with the size of the spreadsheet.
+	 */
+	private void record (int firstRow, int firstCol, int lastRow, int lastCol) {
+		pin(firstRow, lastRow);
+		int rows = spreadsheet.length;
+		int cols = spreadsheet[0].length;
+		Change change = null;
+		if (firstRow < rows && firstCol < cols) {
+			int endRow = Math.min(lastRow, rows - 1);
+			int endCol = Math.min(lastCol, cols - 1);
+			if (firstRow == endRow && firstCol == endCol) {
+				change = new CellChange(firstRow, firstCol, spreadsheet[firstRow][firstCol]);
+			} else {
+				Cell[][] cells = new Cell[endRow - firstRow + 1][];
+				for (int i = 0; i < cells.length; i++) {
+					cells[i] = Arrays.copyOfRange(spreadsheet[firstRow + i], firstCol, endCol + 1);
+				}
+				change = new RangeChange(firstRow, firstCol, cells);
+			}
+		}
+		if (lastRow >= rows || lastCol >= cols) {
+			change = new GrowChange(rows, cols, change);
+		}
+		record(change);
+	}
+	
+	/**
+	 * Adds a change to the undo history, and forgets the changes that were undone.
+	 */
+	private void record (Change change) {
+		change.checkpoint = (log == null) ? -1 : log.getCheckpoint();
+		change.history = history;
+		undoStack.addFirst(change);
+		if (undoStack.size() > MAX_UNDO) {
+			undoStack.removeLast();
+		}
+		redoStack.clear();
+	}
+	
+	/**
+	 * Saves the {@link Spreadsheet} to the specified location.
+	 * If any {@link String} is stored in more than one cell, the file starts with a dictionary
+	 * of the {@link String}s in use, written once each, and every cell holding a {@link String}
+	 * is written as a reference to the dictionary, such as {@code @3}.
+	 * @param filepath The location that the {@link Spreadsheet} is to be saved at.
+	 * @throws FileNotFoundException If the file cannot be written or an error occurs
+	 * 			when opening the file.
+	 * @throws SecurityException If the program that calls this method
+	 * 			is denied permission to modify the file.
+	 */
+	void save (String filepath) throws FileNotFoundException, SecurityException {
+		// A temporary file replaces the file once it is written, so that if the spreadsheet was
+		// loaded from the file, the rows that have not been parsed can still be read from it
+		File file = new File(filepath);
+		File temp = new File(filepath + ".tmp");
+		PrintStream writer = new PrintStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		write(writer);
+		writer.close();
+		if (log != null) {
+			log.replacing(filepath);
+		}
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			temp.delete();
+			throw new FileNotFoundException(filepath + " could not be replaced");
+		}
+		setPath(filepath);
+		savedVersion = version;
+	}
+	
+	/**
+	 * Writes the {@link Spreadsheet} in the format described by {@link #save(String)},
+	 * without closing the stream.
+	 * @param writer The stream that the {@link Spreadsheet} is written to.
+	 */
+	void write (PrintStream writer) {
+		int numCols = spreadsheet[0].length;
+		int[] fileCodes = writeDictionary(writer);
+		
+		// Write the contents of the spreadsheet array to the file.
+		for (int i = 0; i < spreadsheet.length; i++) {
+			Cell[] thisRow = row(i);
+			for (int j = 0; j < numCols; j++) {
+				int code = thisRow[j].getCode();
+				if (fileCodes != null && code != -1) {
+					writer.print('@');
+					writer.println(fileCodes[code]);
+				} else {
+					writer.println(thisRow[j]);
+				}
+			}
+			writer.println();
+		}
+	}
+	
+	/**
+	 * Writes the dictionary of {@link String}s to the start of a file if any {@link String}
+	 * is stored in more than one cell. {@link String}s that are no longer in use are left out.
+	 * @param writer The stream that the file is written to.
+	 * @return The position in the file of each {@link String}, indexed by its code,
+	 * 			or {@code null} if no dictionary was written.
+	 */
+	private int[] writeDictionary (PrintStream writer) {
+		int[] uses = new int[strings.size()];
+		boolean repeated = false;
+		for (int i = 0; i < spreadsheet.length; i++) {
+			Cell[] row = row(i);
+			for (int j = 0; j < row.length; j++) {
+				int code = row[j].getCode();
+				if (code >= uses.length) { // parsing the row added Strings to the dictionary
+					uses = Arrays.copyOf(uses, Math.max(code + 1, strings.size()));
+				}
+				if (code != -1 && ++uses[code] > 1) {
+					repeated = true;
+				}
+			}
+		}
+		if (!repeated) {
+			return null;
+		}
+		
+		int[] fileCodes = new int[uses.length];
+		int n = 0;
+		writer.println(DICTIONARY_HEADER);
+		for (int code = 0; code < uses.length; code++) {
+			if (uses[code] > 0) {
+				fileCodes[code] = n++;
+				writer.println("\"" + strings.get(code) + "\"");
+			}
+		}
+		writer.println();
+		return fileCodes;
+	}
+	
+	/**
+	 * Returns the non-absolute filepath of this {@link Spreadsheet} object as a {@link String},
+	 * or {@code null} if the spreadsheet has not yet been loaded or saved.
+	 */
+	String getPath () {
+		return path;
+	}
+	
+	/**
+	 * Returns {@code true} if the {@link Spreadsheet} has not changed since it was saved to or
+	 * loaded from the given file, {@code false} otherwise.
+	 * @param filepath The location of the file.
+	 */
+	boolean isSavedTo (String filepath) {
+		return version == savedVersion && path != null && Workbook.isSameFile(path, filepath);
+	}
+	
+	/**
+	 * Sets the filepath that the {@link Spreadsheet} is saved to by default, as when a session
+	 * is recovered by {@link WriteAheadLog}. The {@link Spreadsheet} is not assumed to be saved there.
+	 * @param path The filepath, or {@code null} if there is none.
+	 */
+	void setPath (String path) {
+		this.path = path;
+		savedVersion = -1;
+		if (log != null) {
+			log.setPath(this, path);
+		}
+	}
+	
+	/**
+	 * Sets the {@link WriteAheadLog} that every change to the cells is logged to.
+	 * @param log The {@link WriteAheadLog}, or {@code null} to stop logging changes.
+	 */
+	void setLog (WriteAheadLog log) {
+		this.log = log;
+	}
+	
+	Cell[][] getArray () {
+		Cell[][] copy = new Cell[spreadsheet.length][spreadsheet[0].length];
+		for (int i = 0; i < copy.length; i++) {
+			for (int j = 0; j < copy[0].length; j++) {
+				copy[i][j] = row(i)[j].clone();
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * Returns a graphical representation of the spreadsheet as a {@link String}.
+	 */
+	public String toString () {
+		return toString(true);
+	}
+	
+	/**
+	 * Returns a graphical representation of the spreadsheet as a {@link String}.
+	 * @param calculate {@code true} to compute the value of every formula, or {@code false} to show
+	 * 			the last value that was computed, marked with a {@code ~}, for every formula whose
+	 * 			value has not been computed since the spreadsheet last changed, or {@code ...}
+	 * 			if it has never been computed.
+	 */
+	String toString (boolean calculate) {
+		StringBuilder s = new StringBuilder();
+		render(0, 0, spreadsheet.length - 1, spreadsheet[0].length - 1, calculate, false, s, null);
+		return s.toString();
+	}
+	
+	/**
+	 * Prints a range of the spreadsheet, one row at a time, without building all of it as a
+	 * {@link String} first. If the columns are fitted to their contents, the text of every cell
+	 * of the range is computed once to measure the columns, and kept until it is printed, so
+	 * the time and memory that this takes depend only on the size of the range, however long
+	 * its columns are in the rest of the spreadsheet.
+	 * @param range A range of cells, such as {@code A1:H20}, which may extend past the edge of
+	 * 			the spreadsheet, or {@code null} for the whole spreadsheet.
+	 * @param calculate {@code true} to compute the value of every formula, or {@code false} to
+	 * 			show the last value that was computed, as by {@link #toString(boolean)}.
+	 * @param fit {@code true} to make each column as wide as its longest text, up to
+	 * 			{@link #MAX_COLUMN_WIDTH} characters, or {@code false} to make every column
+	 * 			{@link #COLUMN_WIDTH} characters wide.
+	 * @param out The {@link PrintStream} that the range is printed to.
+	 * @throws IllegalArgumentException If the range is not valid, or starts outside the spreadsheet.
+	 */
+	void print (String range, boolean calculate, boolean fit, PrintStream out) {
+		int[] first = {0, 0};
+		int[] last = {spreadsheet.length - 1, spreadsheet[0].length - 1};
+		if (range != null) {
+			String[] cells = range.split(":", 2);
+			first = getIndices(cells[0]);
+			int[] end = getIndices(cells[cells.length - 1]);
+			if (first[0] > end[0] || first[1] > end[1] || first[0] < 0
+					|| first[0] > last[0] || first[1] > last[1]) {
+				throw new IllegalArgumentException(range);
+			}
+			last[0] = Math.min(last[0], end[0]);
+			last[1] = Math.min(last[1], end[1]);
+		}
+		render(first[0], first[1], last[0], last[1], calculate, fit, new StringBuilder(), out);
+	}
+	
+	/**
+	 * Draws a range of the spreadsheet, with the names of its columns and the numbers of its rows.
+	 * @param calculate See {@link #toString(boolean)}.
+	 * @param fit See {@link #print(String, boolean, boolean, PrintStream)}.
+	 * @param s The {@link StringBuilder} that each line is drawn in.
+	 * @param out The {@link PrintStream} that each line is printed to as soon as it is drawn,
+	 * 			after which {@code s} is emptied, or {@code null} to leave all of them in {@code s}.
+	 */
+	private void render (int firstRow, int firstCol, int lastRow, int lastCol, boolean calculate,
+			boolean fit, StringBuilder s, PrintStream out) {
+		int cols = lastCol - firstCol + 1;
+		int[] widths = new int[cols + 1]; // the width of the row numbers, and then of each column
+		int[] room = new int[cols + 1]; // the number of characters of text that fit in each
+		String[][] texts = null; // the text of each cell, if it was measured
+		StringBuilder thisCell = new StringBuilder(); // reused for every cell
+		if (fit) { // measure the range
+			texts = new String[lastRow - firstRow + 1][cols];
+			widths[0] = Integer.toString(lastRow + 1).length();
+			for (int j = 0; j < cols; j++) {
+				widths[j + 1] = toBase26(firstCol + j).length();
+			}
+			for (int i = 0; i < texts.length; i++) {
+				Cell[] row = row(firstRow + i);
+				for (int j = 0; j < cols; j++) {
+					thisCell.setLength(0);
+					appendValue(row[firstCol + j], firstCol + j, calculate, thisCell);
+					texts[i][j] = thisCell.toString();
+					widths[j + 1] = Math.max(widths[j + 1], Math.min(thisCell.length(), MAX_COLUMN_WIDTH - 2));
+				}
+			}
+			for (int j = 0; j <= cols; j++) {
+				room[j] = widths[j];
+				widths[j] += 2; // a space on either side
+			}
+		} else {
+			Arrays.fill(widths, COLUMN_WIDTH);
+			Arrays.fill(room, COLUMN_WIDTH);
+		}
+		
+		StringBuilder divider = new StringBuilder("\n");
+		for (int width : widths) {
+			for (int k = 0; k < width; k++) {
+				divider.append('-');
+			}
+			divider.append('+');
+		}
+		divider.append('\n');
+		
+		appendCentered(s, "", widths[0], room[0]); // print the first row
+		for (int j = 0; j < cols; j++) {
+			appendCentered(s, toBase26(firstCol + j), widths[j + 1], room[j + 1]);
+		}
+		s.append(divider);
+		flush(s, out);
+		
+		for (int i = firstRow; i <= lastRow; i++) { // print every subsequent row
+			thisCell.setLength(0);
+			appendCentered(s, thisCell.append(i + 1), widths[0], room[0]);
+			
+			Cell[] row = (texts == null) ? row(i) : null;
+			for (int j = 0; j < cols; j++) {
+				if (texts == null) {
+					thisCell.setLength(0);
+					appendValue(row[firstCol + j], firstCol + j, calculate, thisCell);
+					appendCentered(s, thisCell, widths[j + 1], room[j + 1]);
+				} else {
+					appendCentered(s, texts[i - firstRow][j], widths[j + 1], room[j + 1]);
+				}
+			}
+			s.append(divider);
+			flush(s, out);
+		}
+	}
+	
+	/**
+	 * Appends the text that is printed for a {@link Cell}, which for a formula that has not been
+	 * computed since the spreadsheet last changed may be its last value or {@code ...}.
+	 * @param col The index of the column of the {@link Cell}, whose format is used.
+	 * @param calculate See {@link #toString(boolean)}.
+	 */
+	private void appendValue (Cell cell, int col, boolean calculate, StringBuilder out) {
+		if (cell.getType() == Types.FORMULA && !calculate
+				&& !cell.getFormula().isCalculated()) { // A formula still being calculated
+			double last = cell.getFormula().getLastValue();
+			if (Double.isNaN(last)) {
+				out.append("...");
+			} else {
+				getFormat(col).format(last, out.append('~'));
+			}
+		} else {
+			appendText(cell, getFormat(col), out);
+		}
+	}
+	
+	/**
+	 * Appends text centered in a column, and the border of the column. Text that does not fit is
+	 * truncated, and its last character that fits is replaced with {@code >}.
+	 * @param width The width of the column.
+	 * @param room The number of characters of text that fit in the column.
+	 */
+	private static void appendCentered (StringBuilder s, CharSequence text, int width, int room) {
+		int length = Math.min(text.length(), room);
+		for (int k = (width - length) / 2; k > 0; k--) {
+			s.append(' ');
+		}
+		if (text.length() > room) { // Truncate the cell contents if necessary
+			s.append(text, 0, room - 1).append('>');
+		} else {
+			s.append(text);
+		}
+		for (int k = width - length - (width - length) / 2; k > 0; k--) {
+			s.append(' ');
+		}
+		s.append('|');
+	}
+	
+	/**
+	 * Prints the lines that have been drawn, and empties the {@link StringBuilder} they were drawn
+	 * in, unless they are kept in it.
+	 * @param out The {@link PrintStream}, or {@code null} if the lines are kept.
+	 */
+	private static void flush (StringBuilder s, PrintStream out) {
+		if (out != null) {
+			out.print(s);
+			s.setLength(0);
+		}
+	}
+	
+	/**
+	 * Returns the format that the numbers in a column are printed with.
+	 * @param col The index of the column.
+	 */
+	CellFormat getFormat (int col) {
+		return (col < formats.length && formats[col] != null) ? formats[col] : CellFormat.DEFAULT;
+	}
+	
+	/**
+	 * Sets the format that the numbers in a column, including the values of formulas, are printed
+	 * with. Formats are kept when columns are inserted or deleted, but are not saved to files,
+	 * and setting one cannot be undone.
+	 * @param col The index of the column.
+	 * @param format The {@link CellFormat}.
+	 * @throws IllegalArgumentException If there is no such column.
+	 */
+	void setFormat (int col, CellFormat format) {
+		if (col < 0 || col >= spreadsheet[0].length) {
+			throw new IllegalArgumentException(toBase26(Math.max(col, 0)));
+		}
+		if (col >= formats.length) {
+			formats = Arrays.copyOf(formats, Math.max(col + 1, spreadsheet[0].length));
+		}
+		formats[col] = format;
+		nextVersion();
+	}
+	
+	/**
+	 * Subscribes to the changes to the values of a range of cells, see {@link Subscription}.
+	 * The changes are only looked for when {@link #publish()} is called.
+	 * @param range A range of cells, such as {@code A1:C10}, or a single cell.
+	 * @param listener The {@link Subscription.Listener} that the changes are delivered to.
+	 * @return The new {@link Subscription}, which can be cancelled.
+	 * @throws IllegalArgumentException If the range is not valid.
+	 */
+	Subscription subscribe (String range, Subscription.Listener listener) {
+		String[] cells = range.split(":", 2);
+		int[] first = getIndices(cells[0]);
+		int[] last = getIndices(cells[cells.length - 1]);
+		if (first[0] > last[0] || first[1] > last[1] || first[0] < 0) {
+			throw new IllegalArgumentException(range);
+		}
+		Subscription subscription = new Subscription(this, first, last, listener);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+	
+	/**
+	 * Queues an event for each {@link Subscription} whose cells have changed since the last time
+	 * that this method was called, and removes the subscriptions that have been cancelled.
+	 * This should be called after each command or batch of changes, so that a burst of changes
+	 * only leads to one event.
+	 */
+	void publish () {
+		Iterator<Subscription> i = subscriptions.iterator();
+		while (i.hasNext()) {
+			Subscription subscription = i.next();
+			if (subscription.isCancelled()) {
+				i.remove();
+			} else {
+				subscription.publish();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the text that is printed for a {@link Cell} of the spreadsheet, before it is
+	 * truncated to fit its column.
+	 * @param row The index of the row of the {@link Cell}.
+	 * @param col The index of the column of the {@link Cell}.
+	 */
+	String getText (int row, int col) {
+		StringBuilder text = new StringBuilder();
+		appendText(getCell(row, col), getFormat(col), text);
+		return text.toString();
+	}
+	
+	/**
+	 * Appends the text that is printed for a {@link Cell}, with numbers in the given format.
+	 */
+	private static void appendText (Cell cell, CellFormat format, StringBuilder out) {
+		if (cell.getType() == Types.EMPTY) { // Empty cell
+			return;
+		} else if (cell.getType() == Types.STRING) { // A String
+			out.append(cell.getString());
+		} else if (cell.getType() == Types.FORMULA) {
+			double value;
+			try {
+				value = cell.getValue();
+			} catch (ArithmeticException ae) {
+				out.append("#ERROR");
+				return;
+			} catch (StackOverflowError soe) {
+				out.append("#ERROR");
+				return;
+			}
+			format.format(value, out);
+		} else if (cell.getType() == Types.DOUBLE) {
+			format.format(cell.getValue(), out);
+		} else { // Anything else (a date)
+			out.append(cell.toString());
+		}
+	}
+	
+	/**
+	 * Calculates the indices of the {@link Spreadsheet} represented
+	 * by a {@link String} of letters and numbers.
+	 * <p>
+	 * Calculates the actual indices in the {@link Spreadsheet} represented
+	 * by a {@link String} formatted as follows:
+	 * <pre>
+	 *      {@code <column><row>}
+	 * </pre>
+	 * The column is represented by a sequence of one or more
+	 * capital letters, such as "A", which evaluates to column 0, or "BE",
+	 * which evaluates to column 56. The method {@link convert} is used to convert the
+	 * sequence of capital letters into {@link int}s. The row is represented by the row number.
+	 * @param cell The {@link String} that is parsed to determine the location of the cell
+	 * 			that is specified.
+	 * @return An array of {@code int}s with two elements. The element at index 0 is
+	 * 			the row number, and the element at index 1 is the column number.
+	 * @throws IllegalArgumentException If {@code cell} is not formatted as described above.
+	 * @see toDec
+	 */
+	static int[] getIndices (String cell) {
+		if (cell.matches("[A-Z]+\\d+")) { // Something like "A1" or "AB50"
+			Pattern regex = Pattern.compile("\\d+");
+			Matcher m = regex.matcher(cell);
+			int row = 0;
+			int col = 0;
+			if (m.find()) {
+				col = toDec(cell.substring(0, m.start()));
+				row = Library.fromString(cell, m.start(), cell.length());
+			}
+			return new int[] {row - 1, col};
+		} else {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Reads the key that each row of a range is sorted by from the given column.
+	 * {@link String}s are replaced by their alphabetical rank so that all keys are numbers.
+	 * @param col The index of the column to sort by.
+	 * @param firstRow The index of the first row in the range.
+	 * @param classes Filled with the class of each key.
+	 * @param values Filled with the value of each key.
+	 */
+	private void readKeys (int col, int firstRow, int[] classes, double[] values) {
+		boolean hasStrings = false;
+		for (int i = 0; i < values.length; i++) {
+			Cell cell = spreadsheet[firstRow + i][col];
+			Types type = cell.getType();
+			if (type == Types.EMPTY) {
+				classes[i] = EMPTY_KEY;
+			} else if (type == Types.STRING) {
+				classes[i] = STRING_KEY;
+				values[i] = cell.getCode();
+				hasStrings = true;
+			} else {
+				try {
+					values[i] = cell.getValue();
+					classes[i] = NUMBER_KEY;
+				} catch (ArithmeticException ae) {
+					classes[i] = ERROR_KEY;
+				} catch (IllegalArgumentException iae) {
+					classes[i] = ERROR_KEY;
+				} catch (StackOverflowError soe) {
+					classes[i] = ERROR_KEY;
+				}
+			}
+		}
+		
+		if (hasStrings) {
+			int[] ranks = strings.ranks();
+			for (int i = 0; i < values.length; i++) {
+				if (classes[i] == STRING_KEY) {
+					values[i] = ranks[(int) values[i]];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Determines whether a cell satisfies a comparison used by {@link #filter(String, String, Cell)}.
+	 * Cells of different types are never equal; {@link String}s are compared alphabetically, and
+	 * numbers, dates and formulas are compared by value.
+	 * @param cell The cell to be tested.
+	 * @param op The index of the operator in {@code OPERATORS}.
+	 * @param value The value that the cell is compared with.
+	 * @param code The dictionary code of {@code value} if it is a {@link String}, or {@code -1}.
+	 */
+	private static boolean matches (Cell cell, int op, Cell value, int code) {
+		Types type = cell.getType();
+		Types valueType = value.getType();
+		int result;
+		if (valueType == Types.STRING && type == Types.STRING) {
+			if (op < 2) { // = or !=, which only need the codes
+				result = (code != -1 && cell.getCode() == code) ? 0 : 1;
+			} else {
+				result = cell.getString().compareTo(value.getString());
+			}
+		} else if ((valueType == Types.DOUBLE || valueType == Types.DATE)
+				&& (type == Types.DOUBLE || type == Types.DATE || type == Types.FORMULA)) {
+			try {
+				result = Double.compare(cell.getValue(), value.getValue());
+			} catch (ArithmeticException ae) {
+				return op == 1;
+			} catch (IllegalArgumentException iae) {
+				return op == 1;
+			} catch (StackOverflowError soe) {
+				return op == 1;
+			}
+		} else if (valueType == Types.EMPTY && type == Types.EMPTY) {
+			result = 0;
+		} else { // different types
+			return op == 1;
+		}
+		
+		switch (op) {
+			case 0: // =
+				return result == 0;
+			case 1: // !=
+				return result != 0;
+			case 2: // <
+				return result < 0;
+			case 3: // >
+				return result > 0;
+			case 4: // <=
+				return result <= 0;
+			default: // >=
+				return result >= 0;
+		}
+	}
+	
+	/**
+	 * Rearranges the rows of a rectangular range in a single pass, so that the row at index
+	 * {@code order[k]} of the range is moved to index {@code k}.
+	 * Rows at index {@code kept} or later are emptied instead of moved.
+	 * Formulas that reference a moved cell are changed to reference its new location.
+	 * @param firstRow The index of the first row in the range.
+	 * @param firstCol The index of the first column in the range.
+	 * @param lastCol The index of the last column in the range.
+	 * @param order The permutation to be applied.
+	 * @param kept The number of rows that are moved rather than emptied.
+	 */
+	private void permuteRows (int firstRow, int firstCol, int lastCol, int[] order, int kept) {
+		// Only the rows of the range, and the rows of formulas, which may reference it, are changed
+		// in place, so only they are saved, and the others are shared
+		int n = order.length;
+		Cell[][] saved = spreadsheet.clone();
+		for (int i = firstRow; i < firstRow + n; i++) {
+			saved[i] = saved[i].clone();
+		}
+		for (int i = formulaRows.nextSetBit(0); i >= 0 && i < saved.length; i = formulaRows.nextSetBit(i + 1)) {
+			if ((i < firstRow || i >= firstRow + n) && saved[i] != null) {
+				saved[i] = saved[i].clone();
+			}
+		}
+		record(new SheetChange(saved));
+		
+		if (firstCol == 0 && lastCol == spreadsheet[0].length - 1) { // whole rows
+			Cell[][] rows = new Cell[n][];
+			for (int k = 0; k < n; k++) {
+				rows[k] = spreadsheet[firstRow + order[k]];
+			}
+			for (int k = 0; k < n; k++) {
+				spreadsheet[firstRow + k] = rows[k];
+				if (k >= kept) {
+					for (int j = 0; j <= lastCol; j++) {
+						rows[k][j] = new Cell();
+					}
+				}
+			}
+		} else {
+			Cell[] column = new Cell[n];
+			for (int j = firstCol; j <= lastCol; j++) {
+				for (int k = 0; k < n; k++) {
+					column[k] = spreadsheet[firstRow + order[k]][j];
+				}
+				for (int k = 0; k < n; k++) {
+					spreadsheet[firstRow + k][j] = (k < kept) ? column[k] : new Cell();
+				}
+			}
+		}
+		
+		// The rows that formulas were moved to; the old set is kept by the change for undoing it
+		BitSet formulas = (BitSet) formulaRows.clone();
+		for (int k = 0; k < kept; k++) {
+			if (formulaRows.get(firstRow + order[k])) {
+				formulas.set(firstRow + k);
+			}
+		}
+		formulaRows = formulas;
+		indexes.clear();
+		
+		// Find where each row was moved to
+		int[] newRow = new int[n];
+		for (int k = 0; k < n; k++) {
+			newRow[order[k]] = (k < kept) ? k : -1;
+		}
+		moveReferences(firstRow, firstCol, lastCol, newRow);
+		changedAll();
+	}
+	
+	/**
+	 * Makes sure that sorting the rows of a range would not change which cells any range in a
+	 * formula covers, such as {@code A1:A5} or the {@code A1-A5} of {@code (sum A1-A5)}. The ends
+	 * of ranges are not moved with the rows (see {@link #moveReferences}), so a range that the whole
+	 * sorted range is inside of, or outside of, still covers the same cells, but one that a row
+	 * would be moved into or out of would not.
+	 * @param firstRow The index of the first row of the sorted range.
+	 * @param firstCol The index of the first column of the sorted range.
+	 * @param lastCol The index of the last column of the sorted range.
+	 * @param order The permutation that the rows would be moved by, as for
+	 * 			{@link #permuteRows(int, int, int, int[], int)}.
+	 * @throws IllegalArgumentException If a formula has such a range.
+	 */
+	private void checkRanges (int firstRow, int firstCol, int lastCol, int[] order) {
+		// The number of rows that would cross the boundary above each row of the sorted range
+		int n = order.length;
+		int[] crossing = new int[n + 1];
+		for (int k = 0; k < n; k++) {
+			if (order[k] != k) {
+				crossing[Math.min(k, order[k]) + 1]++;
+				crossing[Math.max(k, order[k]) + 1]--;
+			}
+		}
+		for (int k = 1; k <= n; k++) {
+			crossing[k] += crossing[k - 1];
+		}
+		
+		for (int i = 0; i < spreadsheet.length; i++) {
+			for (int j = 0; j < spreadsheet[0].length; j++) {
+				if (spreadsheet[i][j].getType() != Types.FORMULA) {
+					continue;
+				}
+				String formula = spreadsheet[i][j].toString();
+				Pattern pattern = RANGE_FORMULA.matcher(formula).matches() ? LEGACY_RANGE_REFERENCE : RANGE_REFERENCE;
+				Matcher m = pattern.matcher(formula);
+				int[] origin = {i, j};
+				while (m.find()) {
+					if (m.group(5) == null || m.group(0).startsWith("\"")
+							|| isOnOtherSheet(formula, m.start(), m.start())) {
+						continue;
+					}
+					int[] first = readReference(m, 1, origin);
+					int[] last = readReference(m, 6, origin);
+					if (last[1] < firstCol || first[1] > lastCol) {
+						continue;
+					}
+					// A boundary of the range is crossed if it is between two rows of the sorted range
+					int top = first[0] - firstRow;
+					int bottom = last[0] + 1 - firstRow;
+					if (top > 0 && top < n && crossing[top] > 0 || bottom > 0 && bottom < n && crossing[bottom] > 0) {
+						throw new IllegalArgumentException("Sorting would move rows into or out of the range of "
+								+ toBase26(j) + (i + 1) + ".");
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Changes every formula that references a cell that was moved by
+	 * {@link #permuteRows(int, int, int, int[], int)} to reference the cell's new location.
+	 * References to cells that were emptied, and the ends of ranges such as {@code A1:A5} or the
+	 * {@code A1-A5} of {@code (sum A1-A5)}, are left unchanged; {@link #sort} makes sure that the
+	 * rows that are moved stay inside or outside of every range.
+	 * @param firstRow The index of the first row that may have been moved.
+	 * @param firstCol The index of the first column that may have been moved.
+	 * @param lastCol The index of the last column that may have been moved.
+	 * @param newRow The new index, relative to {@code firstRow}, of each row,
+	 * 			or {@code -1} if the row was emptied.
+	 */
+	private void moveReferences (int firstRow, int firstCol, int lastCol, int[] newRow) {
+		for (int i = formulaRows.nextSetBit(0); i >= 0 && i < spreadsheet.length; i = formulaRows.nextSetBit(i + 1)) {
+			for (int j = 0; j < spreadsheet[0].length; j++) {
+				if (spreadsheet[i][j].getType() != Types.FORMULA) {
+					continue;
+				}
+				String formula = spreadsheet[i][j].toString();
+				char separator = RANGE_FORMULA.matcher(formula).matches() ? '-' : ':';
+				
+				Matcher m = REFERENCE.matcher(formula);
+				StringBuffer moved = null;
+				while (m.find()) {
+					if (isRangeEnd(formula, m.start(), m.end(), separator)
+							|| isOnOtherSheet(formula, m.start(), m.end())) {
+						continue;
+					}
+					int[] ref = getIndices(m.group());
+					int k = ref[0] - firstRow;
+					if (ref[1] >= firstCol && ref[1] <= lastCol && k >= 0 && k < newRow.length
+							&& newRow[k] != -1 && newRow[k] != k) {
+						if (moved == null) {
+							moved = new StringBuffer();
+						}
+						m.appendReplacement(moved, toBase26(ref[1]) + (firstRow + newRow[k] + 1));
+					}
+				}
+				if (moved != null) {
+					m.appendTail(moved);
+					try {
+						spreadsheet[i][j] = new Cell(moved.toString(), toBase26(j) + (i + 1), this);
+					} catch (IllegalArgumentException e) { // keep the formula that was valid
+					} catch (ArithmeticException e) {
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Determines whether the reference between the given indices of a formula is one end of a range,
+	 * such as {@code A1:A5}.
+	 * @param separator The character between the ends of a range: {@code ':'}, or {@code '-'} in a
+	 * 			formula such as {@code (sum A1-A5)}.
+	 */
+	private static boolean isRangeEnd (String formula, int start, int end, char separator) {
+		int before = start - 1;
+		while (before >= 0 && formula.charAt(before) == ' ') {
+			before--;
+		}
+		int after = end;
+		while (after < formula.length() && formula.charAt(after) == ' ') {
+			after++;
+		}
+		return before >= 0 && formula.charAt(before) == separator
+				|| after < formula.length() && formula.charAt(after) == separator;
+	}
+	
+	/**
+	 * Determines whether the reference between the given indices of a formula is on another sheet,
+	 * such as {@code Sheet2!A1}, or is the name of a sheet, such as {@code SHEET2}, or part of one.
+	 */
+	private static boolean isOnOtherSheet (String formula, int start, int end) {
+		if (end < formula.length() && formula.charAt(end) == '!') {
+			return true;
+		} else if (start == 0) {
+			return false;
+		}
+		char before = formula.charAt(start - 1);
+		return before == '!' || before == '_' || Character.isLetterOrDigit(before);
+	}
+	
+	/**
+	 * Determines whether the text that starts at the given index of a formula is part of a longer
+	 * name, such as the {@code 2B} of {@code SHEET_2B}, rather than a reference.
+	 */
+	private static boolean isInName (String formula, int start) {
+		if (start == 0) {
+			return false;
+		}
+		char before = formula.charAt(start - 1);
+		return before == '_' || Character.isLetterOrDigit(before);
+	}
+	
+	/**
+	 * Returns the name of the sheet that a reference names, such as the {@code Sheet2} of
+	 * {@code Sheet2!A1}, or {@code null} if it does not name one.
+	 * @param start The index of the reference in the formula, after the {@code !}.
+	 */
+	private static String getSheetBefore (String formula, int start) {
+		if (start == 0 || formula.charAt(start - 1) != '!') {
+			return null;
+		}
+		int i = start - 1;
+		while (i > 0 && (Character.isLetterOrDigit(formula.charAt(i - 1)) || formula.charAt(i - 1) == '_')) {
+			i--;
+		}
+		return formula.substring(i, start - 1);
+	}
+	
+	/**
+	 * Converts the letters of a column, such as {@code "B"}, into the index of the column.
+	 * @throws IllegalArgumentException If {@code column} is not made up of capital letters.
+	 */
+	private static int getColumn (String column) {
+		if (!column.matches("[A-Z]+")) {
+			throw new IllegalArgumentException();
+		}
+		return toDec(column);
+	}
+	
+	/**
+	 * Parses one line of a saved spreadsheet into a {@link Cell}, using an empty {@link Cell}
+	 * if the line is not valid.
+	 * @param line The line to be parsed.
+	 * @param row The index of the row that the {@link Cell} is in.
+	 * @param col The index of the column that the {@link Cell} is in.
+	 * @param fileCodes The codes of the {@link String}s in the dictionary of the file, if any.
+	 */
+	private Cell readCell (String line, int row, int col, int[] fileCodes) {
+		if (line.charAt(0) == '@') { // a String from the dictionary
+			int fileCode = parseCode(line);
+			return (fileCode < fileCodes.length) ? new Cell(fileCodes[fileCode], strings) : new Cell();
+		}
+		Cell cell;
+		try {
+			cell = Cell.parse(line, toBase26(col) + (row + 1), this);
+		} catch (IllegalArgumentException e) { // a formula that is no longer valid
+			cell = null;
+		} catch (ArithmeticException e) {
+			cell = null;
+		}
+		if (cell == null) {
+			return new Cell();
+		}
+		if (cell.getType() == Types.FORMULA) {
+			formulaRows.set(row);
+		}
+		cell.encode(strings);
+		return cell;
+	}
+	
+	/**
+	 * Reads the dictionary of {@link String}s at the start of a saved spreadsheet, which is
+	 * made up of one quoted {@link String} per line and ends with a blank line.
+	 * @param reader The reader, positioned after the line that starts the dictionary.
+	 * @return The code in this spreadsheet's {@link StringDictionary} of each {@link String},
+	 * 			indexed by its position in the file.
+	 * @throws IOException If an error occurs while the file is being read.
+	 */
+	private int[] readDictionary (BufferedReader reader) throws IOException {
+		int[] fileCodes = new int[16];
+		int n = 0;
+		for (String line = reader.readLine(); line != null && line.length() != 0; line = reader.readLine()) {
+			if (n == fileCodes.length) {
+				fileCodes = Arrays.copyOf(fileCodes, n * 2);
+			}
+			fileCodes[n++] = strings.intern(unquote(line));
+		}
+		return Arrays.copyOf(fileCodes, n);
+	}
+	
+	/**
+	 * Returns the {@link String} in a line of the dictionary, without its quotation marks.
+	 */
+	private static String unquote (String line) {
+		return (line.length() >= 2) ? line.substring(1, line.length() - 1) : "";
+	}
+	
+	/**
+	 * Parses a reference to the dictionary of a saved spreadsheet, such as {@code @3}.
+	 * @return The position of the {@link String} in the dictionary, or {@link Integer#MAX_VALUE}
+	 * 			if the reference is not valid.
+	 */
+	private static int parseCode (String line) {
+		if (line.length() < 2 || line.length() > 10) {
+			return Integer.MAX_VALUE;
+		}
+		int code = 0;
+		for (int i = 1; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') {
+				return Integer.MAX_VALUE;
+			}
+			code = code * 10 + (c - '0');
+		}
+		return code;
+	}
+	
+	/**
+	 * Adds a row that has been read from a file to a list of rows, then empties the row.
+	 * Every row is given the same number of columns as the first row,
+	 * padding it with empty {@link Cell}s if necessary.
+	 * @param rows The rows that have been read so far.
+	 * @param thisRow The row to be added.
+	 * @param numCols The number of columns in the first row, or {@code 0} if no rows have been read.
+	 * @return The number of columns in the spreadsheet.
+	 */
+	private static int addRow (List<Cell[]> rows, List<Cell> thisRow, int numCols) {
+		if (numCols == 0) {
+			numCols = thisRow.size();
+		}
+		Cell[] row = new Cell[numCols];
+		for (int j = 0; j < numCols; j++) {
+			row[j] = (j < thisRow.size()) ? thisRow.get(j) : new Cell();
+		}
+		rows.add(row);
+		thisRow.clear();
+		return numCols;
+	}
+	
+	/**
+	 * Adds empty rows and columns to the spreadsheet until it has at least the given size.
+	 * @param rows The smallest number of rows.
+	 * @param cols The smallest number of columns.
+	 */
+	private void ensureSize (int rows, int cols) {
+		if (rows <= spreadsheet.length && cols <= spreadsheet[0].length) {
+			return;
+		}
+		int numCols = Math.max(spreadsheet[0].length, cols);
+		Cell[][] nextSheet = new Cell[Math.max(spreadsheet.length, rows)][];
+		for (int i = 0; i < nextSheet.length; i++) {
+			if (i < spreadsheet.length && (numCols == spreadsheet[0].length || spreadsheet[i] == null)) {
+				nextSheet[i] = spreadsheet[i]; // the row is shared, or is parsed with the new columns later
+				continue;
+			}
+			nextSheet[i] = new Cell[numCols];
+			for (int j = 0; j < numCols; j++) {
+				if (i < spreadsheet.length && j < spreadsheet[0].length) {
+					nextSheet[i][j] = spreadsheet[i][j];
+				} else {
+					nextSheet[i][j] = new Cell();
+				}
+			}
+		}
+		spreadsheet = nextSheet;
+	}
+	
+	/**
+	 * Replaces the current spreadsheet with a spreadsheet with ten rows and seven columns,
+	 * and every {@link Cell} set to empty.
+	 */
+	private void newSheet () {
+		Cell[][] spreadsheet = new Cell[10][7];
+		for (int i = 0; i < spreadsheet.length; i++) {
+			for (int j = 0; j < spreadsheet[0].length; j++) {
+				spreadsheet[i][j] = new Cell();
+			}
+		}
+		this.spreadsheet = spreadsheet;
+		strings = new StringDictionary();
+		rowIndex = null;
+		fileShifts = new Shift[0];
+		otherShifts = new Shift[0];
+		formulaRows = new BitSet();
+		indexes.clear();
+		expressions = new ExpressionTable();
+		changedAll();
+	}
+
+	/**
+	 * Converts a decimal {@code int} into base-26 (3 -> C, 32 -> AF, etc.),
+	 * formatted as a {@link String}.
+	 * @param n The {@code int} to be converted.
+	 * @return The resulting {@link String}.
+	 */
+	static String toBase26 (int n) {
+		if (n < 26) {
+			return Character.toString((char) (n + 65));
+		} else if (n == 26) {
+			return "AA";
+		} else {
+			String result = "";
+			while (n > 26) {
+				result = (char) (n % 26 + 65) + result;
+				n /= 26;
+			}
+			result = (char) ((n + 1) % 26 + 63) + result;
+			return result;
+		}
+	}
+	
+	/**
+	 * Converts a base-26 number made up of capital letters into a base-10 {@code int}.
+	 * @param n The base-26 integer, stored as a {@link String}, to be converted.
+	 * @return The {@code int} that was parsed from the {@link String}.
+	 */
+	static int toDec (String n) {
+		int total = 0;
+		total += (int) n.charAt(n.length() - 1) - 65;
+		int timesBy = 26;
+		for (int i = n.length() - 2; i >= 0; i--) {
+			total += ((int) n.charAt(i) - 64) * timesBy;
+			timesBy *= 26;
+		}
+		return total;
+	}
+	
+	/**
+	 * Rows or columns that are inserted or deleted, which moves the rows or columns after them.
+	 */
+	static class Shift {
+		final boolean rows; // whether rows are inserted or deleted, rather than columns
+		final int start; // the index of the first row or column that is inserted or deleted
+		final int count; // the number that are inserted, or minus the number that are deleted
+		final String sheet; // the name of the sheet in upper case, or null if it has none
+		// Whether the change has been undone, in which case the rows of other sheets that are
+		// parsed afterwards do not have their references to the sheet moved by it
+		boolean undone;
+		
+		Shift (boolean rows, int start, int count, String sheet) {
+			this.rows = rows;
+			this.start = start;
+			this.count = count;
+			this.sheet = sheet;
+		}
+		
+		/**
+		 * Returns the change that undoes this one, for the references to the sheet.
+		 */
+		Shift inverse () {
+			return new Shift(rows, start, -count, sheet);
+		}
+		
+		/**
+		 * Returns {@code true} if references to the given sheet are moved by the change,
+		 * {@code false} otherwise.
+		 * @param name The name of the sheet, or {@code null} if it has none.
+		 */
+		boolean isOn (String name) {
+			return (sheet == null) ? name == null : sheet.equalsIgnoreCase(name);
+		}
+		
+		/**
+		 * Returns the index that a row or column is moved to, or {@code -1} if it is deleted.
+		 */
+		int apply (int index) {
+			if (index < start) {
+				return index;
+			} else if (index < start - count) { // deleted
+				return -1;
+			}
+			return index + count;
+		}
+		
+		/**
+		 * Returns the first and last of some consecutive rows or columns that are left, which
+		 * includes any that are inserted between them, or {@code null} if they are all deleted.
+		 */
+		int[] apply (int first, int last) {
+			int newFirst = apply(first);
+			int newLast = apply(last);
+			if (newFirst == -1) { // the first one that is left is after the deleted ones
+				newFirst = start;
+			}
+			if (newLast == -1) {
+				newLast = start - 1;
+			}
+			return (newFirst > newLast) ? null : new int[] {newFirst, newLast};
+		}
+		
+		/**
+		 * Returns the index that a row or column was moved from, or {@code -1} if it was inserted.
+		 */
+		int invert (int index) {
+			if (index < start) {
+				return index;
+			} else if (index < start + count) { // inserted
+				return -1;
+			}
+			return index - count;
+		}
+		
+		/**
+		 * Returns {@code true} if a {@link Cell} is moved by the same distance as another one,
+		 * the origin, and is not deleted, {@code false} otherwise.
+		 */
+		boolean movesWith (int row, int col, int originRow, int originCol) {
+			int index = rows ? row : col;
+			int origin = rows ? originRow : originCol;
+			int moved = apply(index);
+			return moved != -1 && moved - index == apply(origin) - origin;
+		}
+	}
+	
+	/**
+	 * A change to the cells that can be undone. Each change holds only what it replaced, and the
+	 * cells that it did not replace are shared with the spreadsheet. Undoing a change swaps what it
+	 * holds with the spreadsheet, so that the same object can then redo it.
+	 */
+	private abstract class Change {
+		// The checkpoint of the log and the history that the change was recorded in
+		long checkpoint;
+		int history;
+		
+		abstract void swap ();
+		
+		/**
+		 * Returns {@code true} if undoing or redoing the change can be logged as a single record,
+		 * which is replayed by undoing or redoing it again. This is only the case if the change was
+		 * logged since the last checkpoint, and the undo history has matched the one that replaying
+		 * the log builds ever since, so that the change is also first on the same stack there.
+		 */
+		boolean isReplayable () {
+			return log != null && checkpoint == log.getCheckpoint() && history == Spreadsheet.this.history;
+		}
+		
+		/**
+		 * Logs the cells that the change has just set, after it was undone or redone, when it
+		 * cannot be logged as undoing or redoing it, see {@link #isReplayable()}.
+		 */
+		abstract void log (WriteAheadLog log);
+	}
+	
+	/**
+	 * A change to a single {@link Cell}.
+	 */
+	private class CellChange extends Change {
+		private final int row;
+		private final int col;
+		private Cell cell;
+		
+		CellChange (int row, int col, Cell cell) {
+			this.row = row;
+			this.col = col;
+			this.cell = cell;
+		}
+		
+		void swap () {
+			Cell current = spreadsheet[row][col];
+			spreadsheet[row][col] = cell;
+			if (cell.getType() == Types.FORMULA) {
+				formulaRows.set(row);
+			}
+			cell = current;
+		}
+		
+		void log (WriteAheadLog log) {
+			log.set(Spreadsheet.this, row, col, spreadsheet[row][col]);
+		}
+	}
+	
+	/**
+	 * A change to a rectangular range of {@link Cell}s, such as by {@link Spreadsheet#fill(String, String, String)}.
+	 */
+	private class RangeChange extends Change {
+		private final int firstRow;
+		private final int firstCol;
+		private final Cell[][] cells;
+		
+		RangeChange (int firstRow, int firstCol, Cell[][] cells) {
+			this.firstRow = firstRow;
+			this.firstCol = firstCol;
+			this.cells = cells;
+		}
+		
+		void swap () {
+			for (int i = 0; i < cells.length; i++) {
+				Cell[] row = spreadsheet[firstRow + i];
+				for (int j = 0; j < cells[i].length; j++) {
+					Cell current = row[firstCol + j];
+					row[firstCol + j] = cells[i][j];
+					if (row[firstCol + j].getType() == Types.FORMULA) {
+						formulaRows.set(firstRow + i);
+					}
+					cells[i][j] = current;
+				}
+			}
+		}
+		
+		void log (WriteAheadLog log) {
+			for (int i = 0; i < cells.length; i++) {
+				for (int j = 0; j < cells[i].length; j++) {
+					log.set(Spreadsheet.this, firstRow + i, firstCol + j,
+							spreadsheet[firstRow + i][firstCol + j]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A change that adds rows or columns to the spreadsheet, along with the change to the
+	 * {@link Cell}s that were already in it, if any. Only the size of the spreadsheet is kept
+	 * until the change is undone.
+	 */
+	private class GrowChange extends Change {
+		private final int rows;
+		private final int cols;
+		private final Change change; // null if no cells were changed
+		private Cell[][] cells; // the larger spreadsheet while the change is undone
+		
+		GrowChange (int rows, int cols, Change change) {
+			this.rows = rows;
+			this.cols = cols;
+			this.change = change;
+		}
+		
+		void swap () {
+			if (cells == null) { // undo
+				if (change != null) {
+					change.swap();
+				}
+				cells = spreadsheet;
+				Cell[][] smaller = Arrays.copyOf(spreadsheet, rows);
+				if (cols < spreadsheet[0].length) {
+					for (int i = 0; i < rows; i++) {
+						if (smaller[i] != null) { // rows that have not been parsed are left alone
+							smaller[i] = Arrays.copyOf(smaller[i], cols);
+						}
+					}
+				}
+				spreadsheet = smaller;
+			} else { // redo
+				spreadsheet = cells;
+				cells = null;
+				if (change != null) {
+					change.swap();
+				}
+			}
+		}
+		
+		/**
+		 * Takes a checkpoint instead, since the size of the spreadsheet has changed.
+		 */
+		void log (WriteAheadLog log) {
+			log.requestCheckpoint();
+		}
+	}
+	
+	/**
+	 * A change that replaces the whole array of {@link Cell}s, such as clearing the
+	 * spreadsheet, or that moves whole rows, such as sorting. The rows are kept rather than the
+	 * {@link Cell}s, which are shared.
+	 */
+	private class SheetChange extends Change {
+		// The rows or columns that were inserted or deleted, if the references of the other sheets
+		// to them were moved, or null
+		private Shift shift;
+		private final List<Rewrite> rewrites = new ArrayList<Rewrite>();
+		private Cell[][] cells;
+		private StringDictionary strings; // null if the dictionary is not replaced
+		private RowIndex rowIndex = Spreadsheet.this.rowIndex;
+		private Shift[] fileShifts = Spreadsheet.this.fileShifts;
+		private BitSet formulaRows = Spreadsheet.this.formulaRows;
+		// Where the pivot tables and subscriptions were before rows or columns were inserted or
+		// deleted, or null if they were not moved, and the pivot tables that were stopped since
+		// they were deleted
+		private Map<Pivot, int[]> pivotPositions;
+		private final List<Pivot> stoppedPivots = new ArrayList<Pivot>();
+		private Map<Subscription, Object[]> subscriptionPositions;
+		
+		SheetChange (Cell[][] cells) {
+			this(cells, null);
+		}
+		
+		SheetChange (Cell[][] cells, StringDictionary strings) {
+			this.cells = cells;
+			this.strings = strings;
+		}
+		
+		void swap () {
+			Cell[][] current = spreadsheet;
+			spreadsheet = cells;
+			cells = current;
+			RowIndex currentIndex = Spreadsheet.this.rowIndex;
+			Spreadsheet.this.rowIndex = rowIndex;
+			rowIndex = currentIndex;
+			Shift[] currentShifts = Spreadsheet.this.fileShifts;
+			Spreadsheet.this.fileShifts = fileShifts;
+			fileShifts = currentShifts;
+			BitSet currentFormulas = Spreadsheet.this.formulaRows;
+			Spreadsheet.this.formulaRows = formulaRows;
+			formulaRows = currentFormulas;
+			if (strings != null) {
+				StringDictionary currentStrings = Spreadsheet.this.strings;
+				Spreadsheet.this.strings = strings;
+				strings = currentStrings;
+			}
+			if (shift != null) {
+				shift.undone = !shift.undone;
+				shiftOtherSheets(shift, rewrites);
+			}
+			if (pivotPositions != null) {
+				Map<Pivot, int[]> currentPositions = new HashMap<Pivot, int[]>();
+				for (Map.Entry<Pivot, int[]> entry : pivotPositions.entrySet()) {
+					Pivot pivot = entry.getKey();
+					boolean stopped = stoppedPivots.contains(pivot);
+					if (pivots.contains(pivot) || stopped) { // not stopped by the user since
+						currentPositions.put(pivot, pivot.getPosition());
+						pivot.setPosition(entry.getValue());
+						if (stopped && !pivots.remove(pivot)) {
+							pivots.add(pivot);
+						}
+					}
+				}
+				pivotPositions = currentPositions;
+			}
+			if (subscriptionPositions != null) {
+				Map<Subscription, Object[]> currentPositions = new HashMap<Subscription, Object[]>();
+				for (Map.Entry<Subscription, Object[]> entry : subscriptionPositions.entrySet()) {
+					Subscription subscription = entry.getKey();
+					currentPositions.put(subscription, subscription.getPosition());
+					subscription.setPosition(entry.getValue());
+				}
+				subscriptionPositions = currentPositions;
+			}
+		}
+		
+		/**
+		 * Moves the pivot tables and subscriptions after rows or columns were inserted or deleted,
+		 * see {@link Pivot#shift} and {@link Subscription#shift}, and remembers where they were
+		 * so that undoing puts them back.
+		 */
+		void shiftRanges (Shift shift) {
+			pivotPositions = new HashMap<Pivot, int[]>();
+			Iterator<Pivot> i = pivots.iterator();
+			while (i.hasNext()) {
+				Pivot pivot = i.next();
+				pivotPositions.put(pivot, pivot.getPosition());
+				if (!pivot.shift(shift)) {
+					i.remove();
+					stoppedPivots.add(pivot);
+				}
+			}
+			subscriptionPositions = new HashMap<Subscription, Object[]>();
+			for (Subscription subscription : subscriptions) {
+				subscriptionPositions.put(subscription, subscription.getPosition());
+				subscription.shift(shift);
+			}
+		}
+		
+		/**
+		 * Takes a checkpoint instead, since the whole spreadsheet may have changed.
+		 */
+		void log (WriteAheadLog log) {
+			log.requestCheckpoint();
+		}
+	}
+	
+	/**
+	 * A formula of another sheet whose references were moved when rows or columns were inserted
+	 * or deleted, so that undoing and redoing that can put back the formula it replaced exactly.
+	 */
+	private static class Rewrite {
+		final Spreadsheet sheet;
+		final int row;
+		final int col;
+		final Cell moved; // the formula with its references moved
+		final Cell unmoved; // the formula that it replaced
+		
+		Rewrite (Spreadsheet sheet, int row, int col, Cell moved, Cell unmoved) {
+			this.sheet = sheet;
+			this.row = row;
+			this.col = col;
+			this.moved = moved;
+			this.unmoved = unmoved;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package textexcel;
+
+import java.util.*;
+
+/**
+ * A dictionary that assigns an {@code int} code to every distinct {@link String} stored in a
+ * {@link Spreadsheet}, so that {@link Cell}s holding equal {@link String}s share a single
+ * {@link String} object and can be compared by code.
+ * @author Sam Beaumont
+ */
+class StringDictionary {
+	private Map<String, Integer> codes = new HashMap<String, Integer>();
+	private String[] strings = new String[16];
+	private int size;
+	
+	/**
+	 * Returns the code of the given {@link String}, adding it to the dictionary if necessary.
+	 * @param s The {@link String} to be looked up.
+	 */
+	int intern (String s) {
+		Integer code = codes.get(s);
+		if (code != null) {
+			return code;
+		}
+		if (size == strings.length) {
+			strings = Arrays.copyOf(strings, size * 2);
+		}
+		strings[size] = s;
+		codes.put(s, size);
+		return size++;
+	}
+	
+	/**
+	 * Returns the code of the given {@link String} without adding it to the dictionary.
+	 * @param s The {@link String} to be looked up.
+	 * @return The code, or {@code -1} if no {@link Cell} has ever held {@code s}.
+	 */
+	int codeOf (String s) {
+		Integer code = codes.get(s);
+		return (code == null) ? -1 : code;
+	}
+	
+	/**
+	 * Returns the {@link String} with the given code.
+	 * @param code A code returned by {@link #intern(String)}.
+	 */
+	String get (int code) {
+		return strings[code];
+	}
+	
+	/**
+	 * Returns the position of every {@link String} in the dictionary when the {@link String}s
+	 * are sorted alphabetically, indexed by code, so that {@link String}s can be ordered by
+	 * comparing {@code int}s.
+	 */
+	int[] ranks () {
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare (Integer a, Integer b) {
+				return strings[a].compareTo(strings[b]);
+			}
+		});
+		int[] ranks = new int[size];
+		for (int i = 0; i < size; i++) {
+			ranks[order[i]] = i;
+		}
+		return ranks;
+	}
+	
+	/**
+	 * Returns the number of distinct {@link String}s in the dictionary.
+	 */
+	int size () {
+		return size;
+	}
+}
\ No newline at end of file
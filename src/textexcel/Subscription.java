@@ -0,0 +1,233 @@
+package textexcel;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Interest in the values of a range of cells of a {@link Spreadsheet}, so that a program that
+ * embeds the spreadsheet does not have to poll it to notice changes. Each time that the
+ * spreadsheet is published (see {@link Spreadsheet#publish()}), the cells of the range are
+ * computed, and if any of their values have changed, an {@link Event} with only those cells is
+ * queued for the {@link Listener}. A subscription is created by
+ * {@link Spreadsheet#subscribe(String, Listener)}.
+ * <p>
+ * Events are delivered on a thread of their own, through a queue that holds at most
+ * {@link #QUEUE_SIZE} of them, so a slow listener never holds up the spreadsheet. When the queue
+ * is full, the event is dropped, and its changes are included in the next one that is queued.
+ * <p>
+ * When rows or columns are inserted or deleted, the range moves with its cells, and grows or
+ * shrinks with the rows or columns that are inserted into it or deleted from it. A range whose
+ * cells are all deleted covers no cells until that is undone.
+ * @author Sam Beaumont
+ */
+class Subscription {
+	/**
+	 * The number of events that can wait to be delivered.
+	 */
+	static final int QUEUE_SIZE = 16;
+	
+	// Queued when the subscription is cancelled, to wake the thread that delivers the events
+	private static final Event CANCELLED = new Event(null, 0, new HashMap<String, String>());
+	
+	private final Spreadsheet spreadsheet;
+	private int firstRow;
+	private int firstCol;
+	private String[][] values; // as of the last event that was queued, a row for each row of the range
+	private long version; // the version of the spreadsheet that was last published
+	private final Listener listener;
+	private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(QUEUE_SIZE);
+	private final Thread deliverer;
+	private volatile boolean cancelled;
+	
+	/**
+	 * Subscribes to the range of cells between two cells, and starts delivering events.
+	 * The values that the cells have now are not delivered.
+	 * @param spreadsheet The {@link Spreadsheet} that the cells are part of.
+	 * @param first The indices of the top-left cell.
+	 * @param last The indices of the bottom-right cell.
+	 * @param listener The {@link Listener} that the events are delivered to.
+	 */
+	Subscription (Spreadsheet spreadsheet, int[] first, int[] last, Listener listener) {
+		this.spreadsheet = spreadsheet;
+		firstRow = first[0];
+		firstCol = first[1];
+		values = new String[last[0] - first[0] + 1][last[1] - first[1] + 1];
+		for (int i = 0; i < values.length; i++) {
+			for (int j = 0; j < values[i].length; j++) {
+				values[i][j] = spreadsheet.getText(firstRow + i, firstCol + j);
+			}
+		}
+		version = spreadsheet.getVersion();
+		this.listener = listener;
+		deliverer = new Thread(new Runnable() {
+			public void run () {
+				deliver();
+			}
+		}, "TextExcel subscription");
+		deliverer.setDaemon(true);
+		deliverer.start();
+	}
+	
+	/**
+	 * Stops delivering events, including the ones that are waiting in the queue.
+	 * The subscription is removed from the {@link Spreadsheet} the next time that it is published.
+	 */
+	void cancel () {
+		cancelled = true;
+		queue.clear();
+		// Not interrupted, since that would close a channel that the listener is writing to
+		queue.offer(CANCELLED);
+	}
+	
+	/**
+	 * Returns {@code true} if the subscription has been cancelled, {@code false} otherwise.
+	 */
+	boolean isCancelled () {
+		return cancelled;
+	}
+	
+	/**
+	 * Moves the range after rows or columns of the {@link Spreadsheet} were inserted or deleted.
+	 * The cells that were inserted into the range are taken to have had their values, which
+	 * are empty, when the range was last published.
+	 * @param shift The rows or columns that were inserted or deleted.
+	 */
+	void shift (Spreadsheet.Shift shift) {
+		int rows = values.length;
+		int cols = (rows == 0) ? 0 : values[0].length;
+		int first = shift.rows ? firstRow : firstCol;
+		int[] range = shift.apply(first, first + (shift.rows ? rows : cols) - 1);
+		int size = (range == null) ? 0 : range[1] - range[0] + 1;
+		String[][] moved = shift.rows ? new String[size][cols] : new String[rows][size];
+		for (int k = 0; k < size; k++) {
+			int old = shift.invert(range[0] + k) - first; // -1 - first if it was inserted
+			for (int l = 0; l < (shift.rows ? cols : rows); l++) {
+				int i = shift.rows ? k : l;
+				int j = shift.rows ? l : k;
+				if (old >= 0) {
+					moved[i][j] = shift.rows ? values[old][l] : values[l][old];
+				} else {
+					moved[i][j] = spreadsheet.getText(shift.rows ? range[0] + k : firstRow + l,
+							shift.rows ? firstCol + l : range[0] + k);
+				}
+			}
+		}
+		if (shift.rows) {
+			firstRow = (range == null) ? shift.start : range[0];
+		} else {
+			firstCol = (range == null) ? shift.start : range[0];
+		}
+		values = moved;
+	}
+	
+	/**
+	 * Returns where the range is and the values that were last published, so that they can be
+	 * put back with {@link #setPosition(Object[])} when inserting or deleting rows or columns
+	 * is undone.
+	 */
+	Object[] getPosition () {
+		return new Object[] {firstRow, firstCol, values};
+	}
+	
+	/**
+	 * Puts back the range and the values that {@link #getPosition()} found.
+	 */
+	void setPosition (Object[] position) {
+		firstRow = (Integer) position[0];
+		firstCol = (Integer) position[1];
+		values = (String[][]) position[2];
+	}
+	
+	/**
+	 * Computes the cells of the range, if the {@link Spreadsheet} has changed since it was last
+	 * published, and queues an {@link Event} with the ones whose values have changed, if any.
+	 * This is called by {@link Spreadsheet#publish()}.
+	 */
+	void publish () {
+		long current = spreadsheet.getVersion();
+		if (current == version || cancelled) {
+			return;
+		}
+		
+		Map<String, String> changed = new LinkedHashMap<String, String>();
+		List<int[]> positions = new ArrayList<int[]>();
+		for (int i = 0; i < values.length; i++) {
+			for (int j = 0; j < values[i].length; j++) {
+				String value = spreadsheet.getText(firstRow + i, firstCol + j);
+				if (!value.equals(values[i][j])) {
+					changed.put(Spreadsheet.toBase26(firstCol + j) + (firstRow + i + 1), value);
+					positions.add(new int[] {i, j});
+				}
+			}
+		}
+		if (changed.isEmpty() || queue.offer(new Event(spreadsheet.getName(), current, changed))) {
+			Iterator<String> newValues = changed.values().iterator();
+			for (int[] position : positions) {
+				values[position[0]][position[1]] = newValues.next();
+			}
+			version = current;
+		} // otherwise the changes are compared with the same values the next time
+	}
+	
+	/**
+	 * Delivers the events in the queue until the subscription is cancelled.
+	 */
+	private void deliver () {
+		while (!cancelled) {
+			Event event;
+			try {
+				event = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (cancelled) {
+				return;
+			}
+			try {
+				listener.changed(event);
+			} catch (RuntimeException e) { // the listener's own problem, so the next event is still delivered
+			}
+		}
+	}
+	
+	/**
+	 * Receives the changes to the cells that it is subscribed to.
+	 */
+	interface Listener {
+		/**
+		 * Called on the thread of the {@link Subscription} after cells have changed.
+		 * @param event The cells that have changed.
+		 */
+		void changed (Event event);
+	}
+	
+	/**
+	 * The cells of a range whose values changed between two times that the {@link Spreadsheet}
+	 * was published.
+	 */
+	static class Event {
+		/**
+		 * The name of the sheet, or {@code null} if the spreadsheet is not part of a {@link Workbook}.
+		 */
+		final String sheet;
+		/**
+		 * The version of the spreadsheet that the values were computed at.
+		 */
+		final long version;
+		/**
+		 * The new values of the cells that have changed, as they are printed, by the names of the
+		 * cells, such as {@code A1}, in order by row and then by column.
+		 */
+		final Map<String, String> values;
+		
+		Event (String sheet, long version, Map<String, String> values) {
+			this.sheet = sheet;
+			this.version = version;
+			this.values = Collections.unmodifiableMap(values);
+		}
+		
+		public String toString () {
+			return ((sheet == null) ? "" : sheet + "!") + values;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,307 @@
+package textexcel;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A workbook of named {@link Spreadsheet}s, called sheets, whose formulas can reference each
+ * other's cells, such as {@code Sheet2!A1} or {@code SUM(Sheet2!A1:A10)}. Each sheet records the
+ * sheets that its formulas reference, and its version includes theirs (see
+ * {@link Spreadsheet#getVersion()}), so a change to one sheet only makes the formulas of the sheets
+ * that depend on it be computed again. Each change to a sheet is numbered by the workbook, so that
+ * a version that includes other sheets is only computed again after a change to any sheet.
+ * <p>
+ * A workbook is saved to a directory, which holds a file for each sheet, named after the sheet and
+ * in the format described by {@link Spreadsheet#save(String)}, and the file {@value #INDEX}, which
+ * lists the names of the sheets in order. Each sheet is saved on its own, and only if it has changed.
+ * The sheets of a workbook that is opened are only read when they are first used.
+ * @author Sam Beaumont
+ */
+class Workbook {
+	/**
+	 * The name of the file in the directory of a workbook that lists its sheets.
+	 */
+	static final String INDEX = "workbook.txt";
+	
+	// The sheets in order, by their names in upper case
+	private final Map<String, Sheet> sheets = new LinkedHashMap<String, Sheet>();
+	private String directory; // null if the workbook has not been saved or opened
+	private WriteAheadLog log; // null if changes are not logged
+	// The number of changes to the sheets so far, which every version of a sheet is at most
+	private volatile long changes;
+	
+	/**
+	 * Opens the workbook saved in a directory. Its sheets are read when they are first used.
+	 * @param directory The location of the directory.
+	 * @throws FileNotFoundException If the directory does not hold a workbook.
+	 * @throws IOException If the list of sheets cannot be read, or is not valid.
+	 */
+	static Workbook open (String directory) throws IOException {
+		Workbook workbook = new Workbook();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(directory, INDEX)));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (line.length() != 0) {
+					workbook.add(line, new File(directory, line + ".txt").getPath());
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid name of a sheet");
+		} finally {
+			reader.close();
+		}
+		if (workbook.sheets.isEmpty()) {
+			throw new IOException("The workbook has no sheets");
+		}
+		workbook.directory = directory;
+		return workbook;
+	}
+	
+	/**
+	 * Adds a new, empty sheet to the end of the workbook.
+	 * @param name The name of the sheet.
+	 * @return The new sheet.
+	 * @throws IllegalArgumentException If the name is not valid, see {@link #isValidName(String)},
+	 * 			or another sheet has the same name.
+	 */
+	Spreadsheet add (String name) {
+		Sheet sheet = new Sheet(name, null);
+		put(sheet);
+		attach(sheet, new Spreadsheet());
+		if (log != null) {
+			log.addSheet(sheet.spreadsheet);
+		}
+		return sheet.spreadsheet;
+	}
+	
+	/**
+	 * Adds a sheet to the end of the workbook that is read from a file when it is first used.
+	 * @param name The name of the sheet.
+	 * @param filepath The location of the file.
+	 * @throws IllegalArgumentException If the name is not valid, see {@link #isValidName(String)},
+	 * 			or another sheet has the same name.
+	 */
+	void add (String name, String filepath) {
+		put(new Sheet(name, filepath));
+	}
+	
+	/**
+	 * Replaces the contents of a sheet with a file, as when a file is loaded into it.
+	 * @param name The name of the sheet, which must exist.
+	 * @param filepath The location of the file.
+	 * @return The new contents of the sheet.
+	 * @throws FileNotFoundException If the file is not found or cannot be read.
+	 * @throws IOException If an error occurs while the file is being read.
+	 */
+	Spreadsheet load (String name, String filepath) throws IOException {
+		Sheet sheet = sheets.get(name.toUpperCase());
+		attach(sheet, new Spreadsheet(filepath));
+		return sheet.spreadsheet;
+	}
+	
+	/**
+	 * Returns a sheet, reading it from its file first if it has not been used yet.
+	 * @param name The name of the sheet, which is not case-sensitive.
+	 * @return The sheet, or {@code null} if there is no sheet with the given name.
+	 * @throws FileNotFoundException If the file of the sheet is not found or cannot be read.
+	 * @throws IOException If an error occurs while the file is being read.
+	 */
+	Spreadsheet get (String name) throws IOException {
+		Sheet sheet = sheets.get(name.toUpperCase());
+		if (sheet == null) {
+			return null;
+		} else if (sheet.spreadsheet == null) {
+			attach(sheet, new Spreadsheet(sheet.file));
+		}
+		return sheet.spreadsheet;
+	}
+	
+	/**
+	 * Returns a sheet if it has been read from its file or created, or {@code null} otherwise.
+	 * @param name The name of the sheet, which is not case-sensitive.
+	 */
+	Spreadsheet getLoaded (String name) {
+		Sheet sheet = sheets.get(name.toUpperCase());
+		return (sheet == null) ? null : sheet.spreadsheet;
+	}
+	
+	/**
+	 * Returns the file that a sheet is read from when it is first used.
+	 * @param name The name of the sheet, which is not case-sensitive.
+	 * @return The location of the file, or {@code null} if the sheet was created empty.
+	 */
+	String getFile (String name) {
+		Sheet sheet = sheets.get(name.toUpperCase());
+		return (sheet == null) ? null : sheet.file;
+	}
+	
+	/**
+	 * Returns the names of the sheets, in order.
+	 */
+	List<String> getNames () {
+		List<String> names = new ArrayList<String>();
+		for (Sheet sheet : sheets.values()) {
+			names.add(sheet.name);
+		}
+		return names;
+	}
+	
+	/**
+	 * Returns the directory that the workbook was last saved to or opened from, or {@code null}.
+	 */
+	String getDirectory () {
+		return directory;
+	}
+	
+	/**
+	 * Saves the workbook to a directory, which is created if necessary. A sheet that has not
+	 * changed since it was last saved to its file in the directory is not written again, and a
+	 * sheet that has not been used is copied from its file without being read.
+	 * @param directory The location of the directory.
+	 * @throws FileNotFoundException If the directory cannot be created, or a file cannot be written.
+	 * @throws IOException If an error occurs while a sheet is being copied.
+	 * @throws SecurityException If the program is denied permission to write the files.
+	 */
+	void save (String directory) throws IOException, SecurityException {
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new FileNotFoundException(directory + " could not be created");
+		}
+		for (Sheet sheet : sheets.values()) {
+			String filepath = new File(dir, sheet.name + ".txt").getPath();
+			if (sheet.spreadsheet != null) {
+				if (!sheet.spreadsheet.isSavedTo(filepath)) {
+					sheet.spreadsheet.save(filepath);
+				}
+			} else if (!isSameFile(sheet.file, filepath)) {
+				copy(sheet.file, filepath);
+				sheet.file = filepath;
+			}
+		}
+		
+		File index = new File(dir, INDEX);
+		PrintStream writer = new PrintStream(new BufferedOutputStream(new FileOutputStream(index)));
+		for (Sheet sheet : sheets.values()) {
+			writer.println(sheet.name);
+		}
+		writer.close();
+		if (writer.checkError()) {
+			throw new FileNotFoundException(INDEX + " could not be written");
+		}
+		this.directory = directory;
+	}
+	
+	/**
+	 * Publishes the changes to every sheet that has been used, see {@link Spreadsheet#publish()}.
+	 * Since formulas can reference other sheets, a change to one sheet may be published by another.
+	 */
+	void publish () {
+		for (Sheet sheet : sheets.values()) {
+			if (sheet.spreadsheet != null) {
+				sheet.spreadsheet.publish();
+			}
+		}
+	}
+	
+	/**
+	 * Sets the {@link WriteAheadLog} that every change to the sheets is logged to.
+	 * @param log The {@link WriteAheadLog}, or {@code null} to stop logging changes.
+	 */
+	void setLog (WriteAheadLog log) {
+		this.log = log;
+		for (Sheet sheet : sheets.values()) {
+			if (sheet.spreadsheet != null) {
+				sheet.spreadsheet.setLog(log);
+			}
+		}
+	}
+	
+	/**
+	 * Returns {@code true} if a {@link String} can be the name of a sheet, {@code false} otherwise.
+	 * A name starts with a letter and is made up of letters, digits and underscores.
+	 * @param name The name to be checked.
+	 */
+	static boolean isValidName (String name) {
+		return name.matches("[A-Za-z][A-Za-z0-9_]*");
+	}
+	
+	/**
+	 * Returns {@code true} if two filepaths refer to the same file, {@code false} otherwise.
+	 */
+	static boolean isSameFile (String a, String b) {
+		try {
+			return new File(a).getCanonicalFile().equals(new File(b).getCanonicalFile());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @throws IllegalArgumentException If the name of the sheet is not valid or is already used.
+	 */
+	private void put (Sheet sheet) {
+		String key = sheet.name.toUpperCase();
+		if (!isValidName(sheet.name) || sheets.containsKey(key)) {
+			throw new IllegalArgumentException(sheet.name);
+		}
+		sheets.put(key, sheet);
+	}
+	
+	/**
+	 * Returns the number of changes to the sheets so far, which only increases.
+	 */
+	long getChanges () {
+		return changes;
+	}
+	
+	/**
+	 * Counts a change to a sheet.
+	 * @return The number of the change, which is larger than that of any change before it.
+	 */
+	long changed () {
+		return ++changes; // the sheets are only changed by one thread at a time
+	}
+	
+	/**
+	 * Makes a {@link Spreadsheet} the contents of a sheet.
+	 */
+	private void attach (Sheet sheet, Spreadsheet spreadsheet) {
+		spreadsheet.setWorkbook(this, sheet.name);
+		spreadsheet.setLog(log);
+		sheet.spreadsheet = spreadsheet;
+	}
+	
+	/**
+	 * Copies a file that holds a sheet.
+	 */
+	private static void copy (String from, String to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] bytes = new byte[1 << 16];
+				for (int n = in.read(bytes); n != -1; n = in.read(bytes)) {
+					out.write(bytes, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * A sheet of the workbook, which may not have been read from its file yet.
+	 */
+	private static class Sheet {
+		final String name;
+		String file; // the file that the sheet is read from, or null if it was created empty
+		Spreadsheet spreadsheet; // null until the sheet is used
+		
+		Sheet (String name, String file) {
+			this.name = name;
+			this.file = file;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,723 @@
+package textexcel;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * An append-only log of the changes to the sheets of a {@link Workbook}, so that a session can be
+ * recovered if the program crashes before it is saved. The log starts from a checkpoint, for which
+ * each sheet that has changed since it was loaded or saved is written to a separate file, and holds
+ * one binary record for each change made since: a cell that is set is a single record, and so is a
+ * command such as {@code fill} or {@code sort}, however many cells it changes, and so is undoing or
+ * redoing one of them, which replaying the records before it has made possible to undo or redo in
+ * the same way. A record that names a sheet comes before the changes to it. The workbook is
+ * recovered by loading the checkpoint and replaying the records.
+ * <p>
+ * Records are collected in memory and written together when {@link #commit()} is called after
+ * each command, so that setting many cells at once does not write to the file many times. Written
+ * records survive a crash of the program, but may be lost if the computer itself fails before they
+ * are forced to the disk. Forcing them is slow, so it is only done once every
+ * {@link #SYNC_INTERVAL} milliseconds. When the log grows past {@link #CHECKPOINT_BYTES},
+ * a new checkpoint is taken and the log starts again.
+ * <p>
+ * Each record is written as its length, a CRC-32 checksum and its contents, so that a record
+ * that was only partly written when the program crashed is ignored.
+ * @author Sam Beaumont
+ */
+class WriteAheadLog {
+	/**
+	 * The file that the log is written to, which can be set with {@code -Dtextexcel.log=<path>}.
+	 * If the path is empty, nothing is logged.
+	 */
+	static final String FILE = System.getProperty("textexcel.log", "TextExcel.log");
+	/**
+	 * The number of milliseconds between times that the log is forced to the disk, which can be
+	 * set with {@code -Dtextexcel.sync=<milliseconds>}. If it is {@code 0}, the log is forced after
+	 * every command, and if it is negative, forcing the log is left to the operating system.
+	 */
+	static final long SYNC_INTERVAL = Long.getLong("textexcel.sync", 1000);
+	/**
+	 * The size in bytes that the log may grow to before a new checkpoint is taken.
+	 */
+	static final long CHECKPOINT_BYTES = 4L << 20;
+	
+	private static final int MAGIC = 0x54584C47; // "TXLG"
+	private static final int HEADER_BYTES = 12; // the magic number and the checkpoint number
+	private static final int BUFFER_BYTES = 64 << 10;
+	
+	// Types of records
+	private static final byte SET = 1;
+	private static final byte FILL = 2;
+	private static final byte ARRAY = 3;
+	private static final byte SORT = 4;
+	private static final byte FILTER = 5;
+	private static final byte CLEAR = 6;
+	private static final byte PATH = 7;
+	private static final byte SHEET = 8; // the sheet that the next records change
+	private static final byte NEW_SHEET = 9;
+	private static final byte SHEET_FILE = 10; // a sheet of the checkpoint that is read from its own file
+	private static final byte SHEET_CHECKPOINT = 11; // a sheet of the checkpoint that was saved
+	private static final byte INSERT = 12;
+	private static final byte DELETE = 13;
+	private static final byte COPY = 14;
+	private static final byte SET_RANGE = 15;
+	private static final byte QUERY = 16;
+	private static final byte PIVOT = 17;
+	private static final byte STOP_PIVOT = 18;
+	private static final byte UNDO = 19;
+	private static final byte REDO = 20;
+	
+	// Types of cells within a record
+	private static final byte EMPTY = 0;
+	private static final byte NUMBER = 1;
+	private static final byte TEXT = 2; // anything else, stored as it is printed
+	
+	private final File file;
+	private Workbook workbook;
+	private Spreadsheet current; // the sheet that the last record changed
+	private long checkpoint; // the number of the checkpoint that the log starts from
+	private FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private final CRC32 crc = new CRC32();
+	private long lastSync = System.currentTimeMillis();
+	private boolean unsynced;
+	private boolean checkpointNeeded;
+	// The files that the sheets of the checkpoint are read from without being copied
+	private final List<String> sourceFiles = new ArrayList<String>();
+	private IOException error; // an error while writing records, which is thrown by commit()
+	
+	/**
+	 * Starts a new log for a {@link Workbook}, beginning with a checkpoint of it.
+	 * @param filepath The location of the log.
+	 * @param workbook The {@link Workbook} whose changes are logged.
+	 * @throws IOException If the log or the checkpoint cannot be written.
+	 */
+	WriteAheadLog (String filepath, Workbook workbook) throws IOException {
+		file = new File(filepath);
+		checkpoint = readCheckpointNumber(file);
+		checkpoint(workbook);
+	}
+	
+	/**
+	 * Recovers the {@link Workbook} from a log that was not deleted by {@link #delete()},
+	 * because the program did not exit normally.
+	 * @param filepath The location of the log.
+	 * @return The {@link Workbook} as it was after the last record that was written,
+	 * 			or {@code null} if there is no log.
+	 * @throws IOException If the log exists but cannot be read.
+	 */
+	static Workbook recover (String filepath) throws IOException {
+		File file = new File(filepath);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (file.length() < HEADER_BYTES || in.readInt() != MAGIC) {
+				return null; // not a log
+			}
+			in.readLong(); // the number of the checkpoint, whose files are named by the records
+			Workbook workbook = new Workbook();
+			Spreadsheet sheet = null;
+			byte[] contents;
+			while ((contents = readRecord(in)) != null) {
+				try {
+					sheet = replay(workbook, sheet, new DataInputStream(new ByteArrayInputStream(contents)));
+				} catch (RuntimeException e) { // the change failed when it was first made too
+				}
+			}
+			return workbook.getNames().isEmpty() ? null : workbook;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Logs a new, empty sheet that was added to the {@link Workbook}.
+	 */
+	void addSheet (Spreadsheet sheet) {
+		try {
+			recordOut.writeByte(NEW_SHEET);
+			writeString(sheet.getName());
+			endRecord();
+			current = sheet;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Logs a {@link Cell} that was set.
+	 */
+	void set (Spreadsheet sheet, int row, int col, Cell cell) {
+		try {
+			select(sheet);
+			recordOut.writeByte(SET);
+			recordOut.writeInt(row);
+			recordOut.writeInt(col);
+			writeCell(cell);
+			endRecord();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#fill(String, String, String)}.
+	 */
+	void fill (Spreadsheet sheet, String source, String startCell, String endCell) {
+		write(sheet, FILL, source, startCell, endCell);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#setRange(String, String, Cell)}.
+	 */
+	void setRange (Spreadsheet sheet, String startCell, String endCell, Cell value) {
+		try {
+			select(sheet);
+			recordOut.writeByte(SET_RANGE);
+			writeString(startCell);
+			writeString(endCell);
+			writeCell(value);
+			endRecord();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#copy(String, String, String)}.
+	 */
+	void copy (Spreadsheet sheet, String startCell, String endCell, String destination) {
+		write(sheet, COPY, startCell, endCell, destination);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#query(String, String)} that wrote its result.
+	 */
+	void query (Spreadsheet sheet, String query, String destination) {
+		write(sheet, QUERY, query, destination);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#pivot(String, String, String, String, String, String, String)},
+	 * with an empty {@link String} for a table without a column of columns.
+	 */
+	void pivot (Spreadsheet sheet, String startCell, String endCell, String rowColumn, String colColumn,
+			String function, String valueColumn, String destination) {
+		write(sheet, PIVOT, startCell, endCell, rowColumn, colColumn, function, valueColumn, destination);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#stopPivot(String)} that stopped a pivot table.
+	 */
+	void stopPivot (Spreadsheet sheet, String destination) {
+		write(sheet, STOP_PIVOT, destination);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#computeArray(String, String, String)}.
+	 */
+	void computeArray (Spreadsheet sheet, String startCell, String endCell, String formula) {
+		write(sheet, ARRAY, startCell, endCell, formula);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#sort(String, String, String, boolean)}.
+	 */
+	void sort (Spreadsheet sheet, String startCell, String endCell, String column, boolean ascending) {
+		write(sheet, SORT, startCell, endCell, column, ascending ? "asc" : "desc");
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#insert(boolean, int, int)}.
+	 */
+	void insert (Spreadsheet sheet, boolean rows, int start, int count) {
+		write(sheet, INSERT, rows, start, count);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#delete(boolean, int, int)}.
+	 */
+	void delete (Spreadsheet sheet, boolean rows, int start, int count) {
+		write(sheet, DELETE, rows, start, count);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#filter(String, String, Cell)}.
+	 */
+	void filter (Spreadsheet sheet, String column, String operator, Cell value) {
+		try {
+			select(sheet);
+			recordOut.writeByte(FILTER);
+			writeString(column);
+			writeString(operator);
+			writeCell(value);
+			endRecord();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#clear()}.
+	 */
+	void clear (Spreadsheet sheet) {
+		write(sheet, CLEAR);
+	}
+	
+	/**
+	 * Logs a call of {@link Spreadsheet#undo()} or {@link Spreadsheet#redo()} that undid or redid
+	 * a change that was logged since the last checkpoint.
+	 * @param redo {@code true} if the change was redone, {@code false} if it was undone.
+	 */
+	void undo (Spreadsheet sheet, boolean redo) {
+		write(sheet, redo ? REDO : UNDO);
+	}
+	
+	/**
+	 * Logs the location that a {@link Spreadsheet} was saved to or loaded from.
+	 */
+	void setPath (Spreadsheet sheet, String path) {
+		if (path != null) {
+			write(sheet, PATH, path);
+		}
+	}
+	
+	/**
+	 * Takes a checkpoint before a file that a sheet of the current checkpoint is read from is
+	 * replaced, as when a sheet is saved over the file that it was loaded from, so that the records
+	 * logged since are not replayed on top of the new file. The sheet is copied by the checkpoint,
+	 * and the next call of {@link #commit()} takes another one, which reads it from the new file.
+	 * @param filepath The location of the file that is about to be replaced.
+	 */
+	void replacing (String filepath) {
+		for (String source : sourceFiles) {
+			if (Workbook.isSameFile(source, filepath)) {
+				try {
+					checkpoint(workbook);
+				} catch (IOException e) {
+					fail(e);
+				}
+				checkpointNeeded = true;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Makes the next call of {@link #commit()} take a checkpoint, for a change that is not
+	 * worth logging as records, such as undoing a sort that was made before the last checkpoint.
+	 */
+	void requestCheckpoint () {
+		checkpointNeeded = true;
+	}
+	
+	/**
+	 * Returns the number of the checkpoint that the log starts from, which changes whenever a new
+	 * checkpoint is taken, so that the changes logged since can be told from those before it.
+	 */
+	long getCheckpoint () {
+		return checkpoint;
+	}
+	
+	/**
+	 * Writes the records that have been logged since the last call to the log, and forces them to
+	 * the disk or takes a checkpoint if it is time to. This is called after each command.
+	 * @throws IOException If the log cannot be written, in which case it should not be used again.
+	 */
+	void commit () throws IOException {
+		if (error != null) {
+			throw error;
+		}
+		flush();
+		if (checkpointNeeded || channel.size() > CHECKPOINT_BYTES) {
+			checkpoint(workbook);
+		} else if (unsynced && SYNC_INTERVAL >= 0
+				&& System.currentTimeMillis() - lastSync >= SYNC_INTERVAL) {
+			sync();
+		}
+	}
+	
+	/**
+	 * Starts the log again from a checkpoint of a {@link Workbook}, which replaces the
+	 * {@link Workbook} that was logged, as when a file is loaded. Any records that have not
+	 * been written are discarded, since the checkpoint includes them.
+	 * <p>
+	 * Each sheet that has been used is written to a new file, and a new log that starts with a record
+	 * for each sheet replaces the old one only once all of them have been forced to the disk, so a
+	 * crash leaves either the old checkpoint and log or the new ones. Sheets that have not been used,
+	 * or have not changed since they were loaded or saved, are still read from their own files,
+	 * so a large file that is only parsed as it is used is not copied.
+	 * @throws IOException If the checkpoint or the log cannot be written.
+	 */
+	void checkpoint (Workbook workbook) throws IOException {
+		this.workbook = workbook;
+		current = null;
+		buffer.clear();
+		record.reset();
+		error = null;
+		checkpointNeeded = false;
+		
+		long next = checkpoint + 1;
+		ByteArrayOutputStream start = new ByteArrayOutputStream();
+		DataOutputStream startOut = new DataOutputStream(start);
+		startOut.writeInt(MAGIC);
+		startOut.writeLong(next);
+		int saved = 0;
+		sourceFiles.clear();
+		for (String name : workbook.getNames()) {
+			Spreadsheet sheet = workbook.getLoaded(name);
+			if (sheet == null || sheet.isSavedTo(sheet.getPath())) {
+				String source = (sheet == null) ? workbook.getFile(name) : sheet.getPath();
+				recordOut.writeByte(SHEET_FILE);
+				writeString(name);
+				writeString(source);
+				sourceFiles.add(source);
+			} else {
+				File sheetFile = checkpointFile(file, next, saved++);
+				FileOutputStream out = new FileOutputStream(sheetFile);
+				try {
+					PrintStream writer = new PrintStream(new BufferedOutputStream(out));
+					sheet.write(writer);
+					writer.flush();
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				recordOut.writeByte(SHEET_CHECKPOINT);
+				writeString(name);
+				writeString(sheetFile.getPath());
+				writeString((sheet.getPath() == null) ? "" : sheet.getPath());
+			}
+			startOut.write(frame());
+		}
+		
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile log = new RandomAccessFile(temp, "rw");
+		FileChannel newChannel = log.getChannel();
+		try {
+			newChannel.truncate(0);
+			ByteBuffer header = ByteBuffer.wrap(start.toByteArray());
+			while (header.hasRemaining()) {
+				newChannel.write(header);
+			}
+			newChannel.force(true);
+		} catch (IOException e) {
+			log.close();
+			throw e;
+		}
+		close();
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			log.close();
+			throw new IOException("The log could not be replaced");
+		}
+		deleteCheckpoint(checkpoint);
+		checkpoint = next;
+		channel = newChannel;
+		channel.position(channel.size());
+		lastSync = System.currentTimeMillis();
+		unsynced = false;
+	}
+	
+	/**
+	 * Closes the log and deletes it along with its checkpoint, when the program exits normally
+	 * and there is nothing to recover.
+	 */
+	void delete () {
+		try {
+			close();
+		} catch (IOException e) { // it is deleted anyway
+		}
+		file.delete();
+		deleteCheckpoint(checkpoint);
+	}
+	
+	/**
+	 * Writes a record that names a sheet, unless it is the sheet that the last record changed.
+	 */
+	private void select (Spreadsheet sheet) throws IOException {
+		if (sheet != current) {
+			recordOut.writeByte(SHEET);
+			writeString(sheet.getName());
+			endRecord();
+			current = sheet;
+		}
+	}
+	
+	/**
+	 * Writes a record that changes a sheet and is made up of a type and some {@link String}s.
+	 */
+	private void write (Spreadsheet sheet, byte type, String... strings) {
+		try {
+			select(sheet);
+			recordOut.writeByte(type);
+			for (String s : strings) {
+				writeString(s);
+			}
+			endRecord();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Writes a record of rows or columns that were inserted or deleted.
+	 */
+	private void write (Spreadsheet sheet, byte type, boolean rows, int start, int count) {
+		try {
+			select(sheet);
+			recordOut.writeByte(type);
+			recordOut.writeBoolean(rows);
+			recordOut.writeInt(start);
+			recordOut.writeInt(count);
+			endRecord();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Writes a {@link String} of any length, unlike {@link DataOutputStream#writeUTF(String)}.
+	 */
+	private void writeString (String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		recordOut.writeInt(bytes.length);
+		recordOut.write(bytes);
+	}
+	
+	private static String readString (DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	/**
+	 * Writes a {@link Cell}. Numbers are written as eight bytes; anything else is written
+	 * as it is printed, which {@link Cell#parse(String, String, Spreadsheet)} reads back.
+	 */
+	private void writeCell (Cell cell) throws IOException {
+		if (cell.getType() == Types.EMPTY) {
+			recordOut.writeByte(EMPTY);
+		} else if (cell.getType() == Types.DOUBLE) {
+			recordOut.writeByte(NUMBER);
+			recordOut.writeDouble(cell.getValue());
+		} else {
+			recordOut.writeByte(TEXT);
+			writeString(cell.toString());
+		}
+	}
+	
+	/**
+	 * Reads a {@link Cell} that was written by {@link #writeCell(Cell)}.
+	 * @param name The name of the cell that holds it, or {@code null} if it is not held by a cell.
+	 */
+	private static Cell readCell (DataInputStream in, String name, Spreadsheet spreadsheet) throws IOException {
+		switch (in.readByte()) {
+			case NUMBER:
+				return new Cell(in.readDouble());
+			case TEXT:
+				Cell cell = Cell.parse(readString(in), name, spreadsheet);
+				return (cell == null) ? new Cell() : cell;
+			default: // case EMPTY:
+				return new Cell();
+		}
+	}
+	
+	/**
+	 * Adds the record that was written to {@link #recordOut} to the buffer, writing the buffer to
+	 * the file if it is full.
+	 */
+	private void endRecord () throws IOException {
+		byte[] framed = frame();
+		if (buffer.remaining() < framed.length) {
+			flush();
+		}
+		if (buffer.remaining() < framed.length) { // larger than the buffer
+			ByteBuffer large = ByteBuffer.wrap(framed);
+			while (large.hasRemaining()) {
+				channel.write(large);
+			}
+			unsynced = true;
+		} else {
+			buffer.put(framed);
+		}
+	}
+	
+	/**
+	 * Returns the record that was written to {@link #recordOut}, framed with its length and checksum.
+	 */
+	private byte[] frame () {
+		byte[] contents = record.toByteArray();
+		record.reset();
+		crc.reset();
+		crc.update(contents, 0, contents.length);
+		ByteBuffer framed = ByteBuffer.allocate(8 + contents.length);
+		framed.putInt(contents.length).putInt((int) crc.getValue()).put(contents);
+		return framed.array();
+	}
+	
+	/**
+	 * Reads the contents of the next record, or returns {@code null} if there are no more
+	 * complete records.
+	 */
+	private static byte[] readRecord (DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 0 || length > CHECKPOINT_BYTES + BUFFER_BYTES) {
+				return null; // the length itself was not written correctly
+			}
+			byte[] contents = new byte[length];
+			in.readFully(contents);
+			CRC32 crc = new CRC32();
+			crc.update(contents);
+			return ((int) crc.getValue() == checksum) ? contents : null;
+		} catch (EOFException e) { // the last record was only partly written
+			return null;
+		}
+	}
+	
+	/**
+	 * Makes the change that a record describes.
+	 * @param spreadsheet The sheet that the last record changed, or {@code null}.
+	 * @return The sheet that the next record changes.
+	 */
+	private static Spreadsheet replay (Workbook workbook, Spreadsheet spreadsheet, DataInputStream in)
+			throws IOException {
+		byte type = in.readByte();
+		if (type == SHEET) {
+			return workbook.get(readString(in));
+		} else if (type == NEW_SHEET) {
+			return workbook.add(readString(in));
+		} else if (type == SHEET_FILE) {
+			workbook.add(readString(in), readString(in));
+		} else if (type == SHEET_CHECKPOINT) {
+			String name = readString(in);
+			workbook.add(name, readString(in));
+			// Read now, since the checkpoint is replaced as soon as the workbook is logged again
+			Spreadsheet sheet = workbook.get(name);
+			String path = readString(in);
+			sheet.setPath((path.length() == 0) ? null : path);
+		} else if (type == SET) {
+			int row = in.readInt();
+			int col = in.readInt();
+			String name = Spreadsheet.toBase26(col) + (row + 1);
+			spreadsheet.set(name, readCell(in, name, spreadsheet));
+		} else if (type == FILL) {
+			spreadsheet.fill(readString(in), readString(in), readString(in));
+		} else if (type == SET_RANGE) {
+			String startCell = readString(in);
+			spreadsheet.setRange(startCell, readString(in), readCell(in, startCell, spreadsheet));
+		} else if (type == COPY) {
+			spreadsheet.copy(readString(in), readString(in), readString(in));
+		} else if (type == PIVOT) {
+			String startCell = readString(in);
+			String endCell = readString(in);
+			String rowColumn = readString(in);
+			String colColumn = readString(in);
+			spreadsheet.pivot(startCell, endCell, rowColumn, (colColumn.length() == 0) ? null : colColumn,
+					readString(in), readString(in), readString(in));
+		} else if (type == STOP_PIVOT) {
+			spreadsheet.stopPivot(readString(in));
+		} else if (type == QUERY) {
+			spreadsheet.query(readString(in), readString(in));
+		} else if (type == ARRAY) {
+			spreadsheet.computeArray(readString(in), readString(in), readString(in));
+		} else if (type == SORT) {
+			spreadsheet.sort(readString(in), readString(in), readString(in), readString(in).equals("asc"));
+		} else if (type == FILTER) {
+			spreadsheet.filter(readString(in), readString(in), readCell(in, null, spreadsheet));
+		} else if (type == INSERT) {
+			spreadsheet.insert(in.readBoolean(), in.readInt(), in.readInt());
+		} else if (type == DELETE) {
+			spreadsheet.delete(in.readBoolean(), in.readInt(), in.readInt());
+		} else if (type == CLEAR) {
+			spreadsheet.clear();
+		} else if (type == UNDO) {
+			spreadsheet.undo();
+		} else if (type == REDO) {
+			spreadsheet.redo();
+		} else if (type == PATH) {
+			spreadsheet.setPath(readString(in));
+		}
+		return spreadsheet;
+	}
+	
+	/**
+	 * Writes the buffered records to the file.
+	 */
+	private void flush () throws IOException {
+		buffer.flip();
+		if (buffer.hasRemaining()) {
+			unsynced = true;
+		}
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	/**
+	 * Forces the records that have been written to the disk.
+	 */
+	private void sync () throws IOException {
+		channel.force(false);
+		lastSync = System.currentTimeMillis();
+		unsynced = false;
+	}
+	
+	private void close () throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Remembers an error that happened while a record was written, which is thrown by
+	 * {@link #commit()}, since the methods that log changes are called by the {@link Spreadsheet}.
+	 */
+	private void fail (IOException e) {
+		record.reset();
+		if (error == null) {
+			error = e;
+		}
+	}
+	
+	/**
+	 * Returns the number of the checkpoint that an existing log starts from, or {@code 0} if there
+	 * is no log, so that a new checkpoint does not replace a file that may be needed.
+	 */
+	private static long readCheckpointNumber (File file) throws IOException {
+		if (file.length() < HEADER_BYTES) {
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return (in.readInt() == MAGIC) ? in.readLong() : 0;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Returns the file that a sheet of a checkpoint is saved to, such as {@code TextExcel.log.3.0.txt}.
+	 * @param sheet The position of the file among those of the checkpoint.
+	 */
+	private static File checkpointFile (File log, long checkpoint, int sheet) {
+		return new File(log.getPath() + "." + checkpoint + "." + sheet + ".txt");
+	}
+	
+	/**
+	 * Deletes the files of a checkpoint, which are numbered from {@code 0}.
+	 */
+	private void deleteCheckpoint (long checkpoint) {
+		for (int sheet = 0; checkpointFile(file, checkpoint, sheet).delete(); sheet++);
+	}
+}
\ No newline at end of file